@@ -0,0 +1,65 @@
+package org.cipango.benchmarks;
+
+import org.cipango.sip.SipRules;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.BitSet;
+
+/**
+ * Compares the class table of {@link SipRules} with the per-class <code>BitSet</code>s it replaced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CharClassBenchmark {
+
+    private static final BitSet USER = bitSet(SipRules.USER_CHARS);
+    private static final BitSet TOKEN = bitSet(SipRules.TOKEN_CHARS);
+
+    private String user = "alice.smith-42+home;transport=tcp?subject=lunch";
+    private String token = "z9hG4bK-524287-1---6d3f5a2e8a8c3f4b";
+
+    @Benchmark
+    public int bitSet() {
+        return count(user, USER) + count(token, TOKEN);
+    }
+
+    @Benchmark
+    public int table() {
+        return count(user, SipRules.USER) + count(token, SipRules.TOKEN);
+    }
+
+    private static int count(String s, BitSet bs) {
+        int n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            if (bs.get(s.charAt(i)))
+                n++;
+        }
+        return n;
+    }
+
+    private static int count(String s, int charClasses) {
+        int n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            if (SipRules.is(s.charAt(i), charClasses))
+                n++;
+        }
+        return n;
+    }
+
+    private static BitSet bitSet(String chars) {
+        BitSet bs = new BitSet();
+        for (int i = 0; i < chars.length(); i++)
+            bs.set(chars.charAt(i));
+        return bs;
+    }
+}
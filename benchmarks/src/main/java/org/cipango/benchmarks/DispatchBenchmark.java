@@ -0,0 +1,92 @@
+package org.cipango.benchmarks;
+
+import org.cipango.server.SipHandler;
+import org.cipango.server.SipMessage;
+import org.cipango.server.SipRequest;
+import org.cipango.server.SipServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dispatches a burst of messages over many calls to a handler that blocks, as an application waiting on a
+ * database or an HTTP server would, on platform threads and on virtual threads (which need Java 21).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DispatchBenchmark {
+
+    private static final int MESSAGES = 2000;
+
+    @Param({ "false", "true" })
+    private boolean virtualThreads;
+
+    @Param({ "0", "1" })
+    private int blockingMillis;
+
+    @Param({ "1024" })
+    private int lanes;
+
+    private SipServer server;
+    private SipRequest[] requests;
+    private volatile CountDownLatch latch;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = new SipServer();
+        server.setVirtualThreads(virtualThreads);
+        server.getDispatcher().setLanes(lanes);
+        server.setHandler(new SipHandler() {
+            public void handle(SipMessage message) throws IOException {
+                if (blockingMillis > 0) {
+                    try {
+                        Thread.sleep(blockingMillis);
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                latch.countDown();
+            }
+        });
+        server.start();
+
+        requests = new SipRequest[MESSAGES];
+        for (int i = 0; i < requests.length; i++) {
+            requests[i] = new SipRequest("MESSAGE", "sip:bob@example.com");
+            requests[i].addHeader("Call-ID", "call-" + i);
+            requests[i].addHeader("CSeq", "1 MESSAGE");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void dispatch() throws Exception {
+        latch = new CountDownLatch(requests.length);
+        for (SipRequest request : requests)
+            server.handle(request);
+        if (!latch.await(1, TimeUnit.MINUTES))
+            throw new IllegalStateException("messages not processed");
+    }
+}
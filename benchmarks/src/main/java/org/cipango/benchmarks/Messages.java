@@ -0,0 +1,91 @@
+package org.cipango.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Corpus of realistic SIP messages.
+ */
+public enum Messages {
+
+    INVITE("INVITE sip:service@192.168.1.26:5070 SIP/2.0\r\n"
+            + "Via: SIP/2.0/UDP 192.168.1.26:5060;branch=z9hG4bK-90021-1-0\r\n"
+            + "Max-Forwards: 70\r\n"
+            + "From: sipp <sip:sipp@192.168.1.26:5060>;tag=90021SIPpTag001\r\n"
+            + "To: service <sip:service@192.168.1.26:5070>\r\n"
+            + "Call-ID: 1-90021@192.168.1.26\r\n"
+            + "CSeq: 1 INVITE\r\n"
+            + "Contact: <sip:sipp@192.168.1.26:5060>\r\n"
+            + "Allow: INVITE, ACK, CANCEL, BYE, OPTIONS, UPDATE, PRACK, INFO, REFER, NOTIFY\r\n"
+            + "Supported: timer, 100rel, replaces\r\n"
+            + "User-Agent: Cipango benchmark\r\n"
+            + "Subject: Performance Test\r\n"
+            + "Content-Type: application/sdp\r\n"
+            + "Content-Length: 210\r\n"
+            + "\r\n"
+            + "v=0\r\n"
+            + "o=user1 53655765 2353687637 IN IP4 192.168.1.26\r\n"
+            + "s=-\r\n"
+            + "c=IN IP4 192.168.1.26\r\n"
+            + "t=0 0\r\n"
+            + "m=audio 6000 RTP/AVP 0 8 101\r\n"
+            + "a=rtpmap:0 PCMU/8000\r\n"
+            + "a=rtpmap:8 PCMA/8000\r\n"
+            + "a=rtpmap:101 telephone-event/8000\r\n"
+            + "a=sendrecv\r\n"),
+
+    REGISTER(register(10)),
+
+    OK(ok(12));
+
+    private final String message;
+
+    Messages(String message) {
+        this.message = message;
+    }
+
+    public String asString() {
+        return message;
+    }
+
+    public byte[] getBytes() {
+        return message.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String register(int contacts) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("REGISTER sip:example.com SIP/2.0\r\n")
+                .append("Via: SIP/2.0/TCP 10.0.0.12:5060;branch=z9hG4bK776asdhds;rport\r\n")
+                .append("Max-Forwards: 70\r\n")
+                .append("From: Bob <sip:bob@example.com>;tag=a73kszlfl\r\n")
+                .append("To: Bob <sip:bob@example.com>\r\n")
+                .append("Call-ID: 1j9FpLxk3uxtm8tn@10.0.0.12\r\n")
+                .append("CSeq: 1826 REGISTER\r\n");
+        for (int i = 0; i < contacts; i++) {
+            sb.append("Contact: <sip:bob@10.0.0.").append(i + 12).append(":5060;transport=tcp;ob>")
+                    .append(";+sip.instance=\"<urn:uuid:00000000-0000-1000-8000-0000000000").append(10 + i).append(">\"")
+                    .append(";reg-id=1;expires=3600;q=0.").append(9 - i % 9).append("\r\n");
+        }
+        sb.append("Supported: path, outbound, gruu\r\n")
+                .append("Expires: 3600\r\n")
+                .append("Content-Length: 0\r\n")
+                .append("\r\n");
+        return sb.toString();
+    }
+
+    private static String ok(int routes) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("SIP/2.0 200 OK\r\n")
+                .append("Via: SIP/2.0/UDP proxy1.example.com:5060;branch=z9hG4bK2d4790.1;received=192.0.2.3\r\n")
+                .append("Via: SIP/2.0/UDP 192.168.1.26:5060;branch=z9hG4bK-90021-1-0\r\n");
+        for (int i = 0; i < routes; i++)
+            sb.append("Record-Route: <sip:proxy").append(i).append(".example.com;lr;transport=udp;ftag=90021SIPpTag001>\r\n");
+        sb.append("From: sipp <sip:sipp@192.168.1.26:5060>;tag=90021SIPpTag001\r\n")
+                .append("To: service <sip:service@192.168.1.26:5070>;tag=314159\r\n")
+                .append("Call-ID: 1-90021@192.168.1.26\r\n")
+                .append("CSeq: 1 INVITE\r\n")
+                .append("Contact: <sip:service@192.168.1.26:5070>\r\n")
+                .append("Content-Length: 0\r\n")
+                .append("\r\n");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,65 @@
+package org.cipango.benchmarks;
+
+import org.cipango.util.BufferScanner;
+import org.cipango.util.Scanner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScannerBenchmark {
+
+    private String allow = "INVITE, ACK, CANCEL, BYE, OPTIONS, UPDATE, PRACK, INFO, REFER, NOTIFY";
+    private String cseq = "1826 REGISTER";
+
+    private ByteBuffer allowBuffer = ByteBuffer.wrap(allow.getBytes(StandardCharsets.US_ASCII));
+    private ByteBuffer cseqBuffer = ByteBuffer.wrap(cseq.getBytes(StandardCharsets.US_ASCII));
+    private BufferScanner bufferScanner = new BufferScanner();
+
+    @Benchmark
+    public void tokens(Blackhole blackhole) throws Exception {
+        Scanner scanner = new Scanner(allow);
+        while (!scanner.eof()) {
+            blackhole.consume(scanner.token());
+            if (!scanner.eof())
+                scanner.match(',').skipSpace();
+        }
+    }
+
+    @Benchmark
+    public String cseq() throws Exception {
+        Scanner scanner = new Scanner(cseq);
+        int number = scanner.readInt();
+        return scanner.matchSpace().token() + number;
+    }
+
+    @Benchmark
+    public void bufferTokens(Blackhole blackhole) throws Exception {
+        BufferScanner scanner = bufferScanner.reset(allowBuffer, 0, allowBuffer.limit());
+        while (!scanner.eof()) {
+            blackhole.consume(scanner.token());
+            if (!scanner.eof())
+                scanner.match(',').skipSpace();
+        }
+    }
+
+    @Benchmark
+    public int bufferCseq() throws Exception {
+        BufferScanner scanner = bufferScanner.reset(cseqBuffer, 0, cseqBuffer.limit());
+        int number = scanner.readInt();
+        return scanner.matchSpace().token() + number;
+    }
+}
@@ -0,0 +1,104 @@
+package org.cipango.benchmarks;
+
+import org.cipango.server.SipHandler;
+import org.cipango.server.SipRequest;
+import org.cipango.server.session.SessionManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Handles in-dialog requests and registration churn on a session store holding a million registrations, and
+ * reports the number of sessions, the memory estimate of the store and the heap actually used at the end of each
+ * iteration. With registrations replacing each other, the heap should stay steady from one iteration to the next
+ * and within twice the estimate, which leaves out Call-IDs and attribute values.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SessionManagerBenchmark {
+
+    private static final SipHandler HANDLER = message -> { };
+    private static final int REQUESTS = 4096;
+
+    @Param("1000000")
+    private int registrations;
+
+    private SessionManager manager;
+    private SipRequest[] requests;
+    private final AtomicLong next = new AtomicLong();
+
+    @Setup
+    public void setUp() throws Exception {
+        manager = new SessionManager();
+        manager.setDefaultExpires(60);
+        manager.start();
+        for (int i = 0; i < registrations; i++) {
+            SipRequest register = request("REGISTER", i, null);
+            manager.handle(register, HANDLER);
+            register.getApplicationSession().setAttribute("contact", "sip:" + i + "@example.com");
+        }
+        next.set(registrations);
+
+        requests = new SipRequest[REQUESTS];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < REQUESTS; i++)
+            requests[i] = request("BYE", random.nextInt(registrations), "b");
+    }
+
+    @TearDown(Level.Iteration)
+    public void report() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        System.out.printf("%n%d application sessions, %d SIP sessions, ~%d MB estimated, %d MB heap used%n",
+                manager.getApplicationSessions(), manager.getSipSessions(), manager.getMemoryEstimate() >> 20,
+                (runtime.totalMemory() - runtime.freeMemory()) >> 20);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        manager.stop();
+    }
+
+    @Benchmark
+    public void inDialog() throws Exception {
+        manager.handle(requests[ThreadLocalRandom.current().nextInt(REQUESTS)], HANDLER);
+    }
+
+    /**
+     * A registration ends and a new one starts, keeping the number of registrations steady.
+     */
+    @Benchmark
+    public void churn() throws Exception {
+        long n = next.getAndIncrement();
+        manager.getApplicationSession("reg" + (n - registrations)).invalidate();
+        SipRequest register = request("REGISTER", n, null);
+        manager.handle(register, HANDLER);
+        register.getApplicationSession().setAttribute("contact", "sip:" + n + "@example.com");
+    }
+
+    private static SipRequest request(String method, long n, String toTag) {
+        SipRequest request = new SipRequest(method, "sip:registrar.example.com");
+        request.addHeader("From", "<sip:" + n + "@example.com>;tag=a");
+        request.addHeader("To", "<sip:" + n + "@example.com>" + (toTag == null ? "" : ";tag=" + toTag));
+        request.addHeader("Call-ID", "reg" + n);
+        request.addHeader("CSeq", "1 " + method);
+        return request;
+    }
+}
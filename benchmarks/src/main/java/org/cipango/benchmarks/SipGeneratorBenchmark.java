@@ -0,0 +1,58 @@
+package org.cipango.benchmarks;
+
+import org.cipango.server.SipGenerator;
+import org.cipango.server.SipMessage;
+import org.cipango.server.SipMessageBuilder;
+import org.cipango.server.SipParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes a received message unchanged, and with one header changed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SipGeneratorBenchmark {
+
+    @Param({ "INVITE", "REGISTER", "OK" })
+    private Messages message;
+
+    private SipMessage unmodified;
+    private SipMessage modified;
+
+    @Setup
+    public void setUp() throws Exception {
+        unmodified = parse(message.getBytes());
+        modified = parse(message.getBytes());
+        modified.setHeader("Max-Forwards", "69");
+    }
+
+    @Benchmark
+    public ByteBuffer[] unmodified() {
+        return SipGenerator.generateBuffers(unmodified);
+    }
+
+    @Benchmark
+    public ByteBuffer[] modified() {
+        return SipGenerator.generateBuffers(modified);
+    }
+
+    private static SipMessage parse(byte[] bytes) throws Exception {
+        SipMessageBuilder builder = new SipMessageBuilder();
+        new SipParser(builder).parse(ByteBuffer.wrap(bytes));
+        return builder.getMessage();
+    }
+}
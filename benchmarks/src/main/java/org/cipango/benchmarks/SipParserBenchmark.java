@@ -0,0 +1,56 @@
+package org.cipango.benchmarks;
+
+import org.cipango.server.SipMessage;
+import org.cipango.server.SipMessageBuilder;
+import org.cipango.server.SipParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SipParserBenchmark {
+
+    @Param({ "INVITE", "REGISTER", "OK" })
+    private Messages message;
+
+    private ByteBuffer buffer;
+    private SipMessageBuilder builder;
+    private SipParser parser;
+
+    @Setup
+    public void setUp() {
+        byte[] bytes = message.getBytes();
+        buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        builder = new SipMessageBuilder();
+        parser = new SipParser(builder);
+    }
+
+    @Benchmark
+    public SipMessage parse() throws Exception {
+        buffer.rewind();
+        parser.reset();
+        builder.reset();
+        parser.parse(buffer);
+        return builder.getMessage();
+    }
+
+    @Benchmark
+    public String parseAndRead() throws Exception {
+        SipMessage message = parse();
+        return message.getCallId() + message.getHeader("CSeq") + message.getHeader("Via");
+    }
+}
@@ -0,0 +1,46 @@
+package org.cipango.benchmarks;
+
+import org.cipango.sip.SipURICache;
+import org.cipango.sip.SipURIImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SipURIBenchmark {
+
+    @Param({
+            "sip:service@192.168.1.26:5070",
+            "sip:bob@10.0.0.12:5060;transport=tcp;ob",
+            "sip:proxy1.example.com;lr;transport=udp;ftag=90021SIPpTag001",
+            "sips:alice%20smith:secret@atlanta.example.com;maddr=239.255.255.1;ttl=15?subject=project%20x&priority=urgent"
+    })
+    private String uri;
+
+    private SipURICache cache = new SipURICache(SipURICache.DEFAULT_MAX_SIZE);
+
+    @Benchmark
+    public SipURIImpl parseURI() throws Exception {
+        return SipURIImpl.parseURI(uri);
+    }
+
+    @Benchmark
+    public String parseAndGetHost() throws Exception {
+        return SipURIImpl.parseURI(uri).getHost();
+    }
+
+    @Benchmark
+    public String parseCachedAndGetHost() throws Exception {
+        return cache.parse(uri).getHost();
+    }
+}
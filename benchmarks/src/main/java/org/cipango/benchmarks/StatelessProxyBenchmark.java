@@ -0,0 +1,118 @@
+package org.cipango.benchmarks;
+
+import org.cipango.server.SipConnection;
+import org.cipango.server.SipConnector;
+import org.cipango.server.SipFields;
+import org.cipango.server.SipGenerator;
+import org.cipango.server.SipMessage;
+import org.cipango.server.SipMessageBuilder;
+import org.cipango.server.SipParser;
+import org.cipango.server.SipServer;
+import org.cipango.server.Transport;
+import org.cipango.server.nio.UdpConnector;
+import org.cipango.server.proxy.ForwardingRule;
+import org.cipango.server.proxy.StatelessProxy;
+import org.cipango.server.transaction.TransactionManager;
+import org.cipango.sip.SipHeader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Forwards an INVITE with a preloaded Route through the stateless fast path, and through parsing, editing and
+ * generating a {@link SipMessage}, the least the normal processing does to proxy it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StatelessProxyBenchmark {
+
+    private static final String INVITE = Messages.INVITE.asString()
+            .replace("Max-Forwards: 70\r\n", "Max-Forwards: 70\r\nRoute: <sip:127.0.0.1:5060;lr>\r\n");
+
+    private ByteBuffer buffer;
+    private StatelessProxy proxy;
+    private SipConnection connection;
+
+    @Setup
+    public void setUp() {
+        byte[] bytes = INVITE.getBytes();
+        buffer = ByteBuffer.allocate(bytes.length);
+        buffer.put(bytes).flip();
+
+        UdpConnector connector = new UdpConnector(new SipServer());
+        connector.setHost("127.0.0.1");
+        connector.setPort(5060);
+        connection = new Connection(connector);
+
+        proxy = new StatelessProxy() {
+            @Override
+            protected void send(SipConnection connection, ByteBuffer buffer, InetSocketAddress target) {
+                buffer.position(buffer.limit());
+            }
+        };
+        proxy.addRule(new ForwardingRule(null, "INVITE"));
+    }
+
+    @Benchmark
+    public boolean fastPath() {
+        buffer.rewind();
+        return proxy.process(buffer, connection);
+    }
+
+    @Benchmark
+    public ByteBuffer messagePath() throws Exception {
+        buffer.rewind();
+        SipMessageBuilder builder = new SipMessageBuilder();
+        new SipParser(builder).parse(buffer);
+        SipMessage message = builder.getMessage();
+
+        SipFields fields = message.getFields();
+        int maxForwards = Integer.parseInt(fields.get(SipHeader.MAX_FORWARDS));
+        fields.remove(SipHeader.MAX_FORWARDS);
+        fields.add(SipHeader.MAX_FORWARDS, Integer.toString(maxForwards - 1));
+        fields.remove(SipHeader.ROUTE);
+        fields.addFirst(SipHeader.VIA, "SIP/2.0/UDP 127.0.0.1:5060;branch=" + TransactionManager.newBranch());
+        return SipGenerator.generate(message);
+    }
+
+    static class Connection implements SipConnection {
+
+        private final SipConnector connector;
+        private final InetSocketAddress remoteAddress = new InetSocketAddress("192.168.1.26", 5060);
+
+        Connection(SipConnector connector) {
+            this.connector = connector;
+        }
+
+        public SipConnector getConnector() {
+            return connector;
+        }
+
+        public Transport getTransport() {
+            return Transport.UDP;
+        }
+
+        public InetSocketAddress getLocalAddress() {
+            return new InetSocketAddress("127.0.0.1", 5060);
+        }
+
+        public InetSocketAddress getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        public void send(ByteBuffer buffer) {
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package org.cipango.benchmarks;
+
+import org.cipango.sip.SipRules;
+import org.cipango.util.StringUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StringUtilBenchmark {
+
+    @Param({ "alice", "alice smith", "jérôme+tag@département" })
+    private String value;
+
+    private String encoded;
+    private StringBuilder buffer = new StringBuilder(128);
+
+    @Setup
+    public void setUp() {
+        encoded = StringUtil.encode(value, SipRules.USER);
+    }
+
+    @Benchmark
+    public String encode() {
+        return StringUtil.encode(value, SipRules.USER);
+    }
+
+    @Benchmark
+    public String decode() throws Exception {
+        return StringUtil.decode(encoded);
+    }
+
+    @Benchmark
+    public StringBuilder encodeTo() {
+        buffer.setLength(0);
+        StringUtil.encode(value, SipRules.USER, buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public StringBuilder decodeTo() {
+        buffer.setLength(0);
+        StringUtil.decode(encoded, 0, encoded.length(), buffer);
+        return buffer;
+    }
+}
@@ -0,0 +1,61 @@
+package org.cipango.benchmarks;
+
+import org.cipango.util.TimerWheel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules and cancels a transaction timeout, as done for each transaction that completes before its timer
+ * fires, on the timer wheel and on a <code>ScheduledThreadPoolExecutor</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class TimerBenchmark {
+
+    private static final Runnable TASK = () -> { };
+
+    private TimerWheel wheel;
+    private ScheduledThreadPoolExecutor executor;
+
+    @Setup
+    public void setUp() throws Exception {
+        wheel = new TimerWheel();
+        wheel.start();
+        executor = new ScheduledThreadPoolExecutor(1);
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        wheel.stop();
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public boolean timerWheel() {
+        return wheel.schedule(TASK, 32, TimeUnit.SECONDS).cancel();
+    }
+
+    @Benchmark
+    public boolean scheduledExecutor() {
+        ScheduledFuture<?> future = executor.schedule(TASK, 32, TimeUnit.SECONDS);
+        return future.cancel(false);
+    }
+}
@@ -0,0 +1,148 @@
+package org.cipango.benchmarks;
+
+import org.cipango.server.SipHandler;
+import org.cipango.server.SipMessage;
+import org.cipango.server.SipRequest;
+import org.cipango.server.SipServer;
+import org.cipango.server.nio.UdpConnector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.servlet.sip.SipServletResponse;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Sends bursts of OPTIONS requests over loopback to a UDP connector that answers each with a 200, and reports
+ * the receive and send system calls per message of the connector after each iteration.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UdpLoopbackBenchmark {
+
+    private static final int BURST = 64;
+
+    @Param({ "1", "32" })
+    private int maxBatch;
+
+    @Param({ "0", "16" })
+    private int spins;
+
+    private SipServer server;
+    private UdpConnector connector;
+    private DatagramChannel client;
+    private ByteBuffer[] requests;
+    private final DatagramPacket response = new DatagramPacket(new byte[UdpConnector.MAX_DATAGRAM_SIZE],
+            UdpConnector.MAX_DATAGRAM_SIZE);
+
+    private long lost;
+    private long receiveCalls;
+    private long selectCalls;
+    private long sendCalls;
+    private long received;
+    private long sent;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = new SipServer();
+        server.setTransactionManager(null);
+        server.setSessionManager(null);
+        server.setHandler(new SipHandler() {
+            public void handle(SipMessage message) throws IOException {
+                if (message.isRequest())
+                    ((SipRequest) message).createResponse(SipServletResponse.SC_OK).send();
+            }
+        });
+
+        connector = new UdpConnector(server);
+        connector.setHost("127.0.0.1");
+        connector.setPort(0);
+        connector.setSockets(1);
+        connector.setMaxBatch(maxBatch);
+        connector.setSpins(spins);
+        server.setConnectors(new UdpConnector[] { connector });
+        server.start();
+
+        client = DatagramChannel.open();
+        client.setOption(StandardSocketOptions.SO_RCVBUF, 1 << 20);
+        client.bind(new InetSocketAddress("127.0.0.1", 0));
+        client.connect(connector.getLocalAddress());
+        client.socket().setSoTimeout(1000);
+
+        int port = ((InetSocketAddress) client.getLocalAddress()).getPort();
+        requests = new ByteBuffer[BURST];
+        for (int i = 0; i < BURST; i++) {
+            String request = "OPTIONS sip:127.0.0.1 SIP/2.0\r\n"
+                    + "Via: SIP/2.0/UDP 127.0.0.1:" + port + ";branch=z9hG4bK" + i + "\r\n"
+                    + "From: <sip:alice@example.com>;tag=1\r\n"
+                    + "To: <sip:127.0.0.1>\r\n"
+                    + "Call-ID: loopback-" + i + "\r\n"
+                    + "CSeq: 1 OPTIONS\r\n"
+                    + "Max-Forwards: 70\r\n"
+                    + "Content-Length: 0\r\n\r\n";
+            requests[i] = ByteBuffer.wrap(request.getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        client.close();
+        server.stop();
+    }
+
+    @TearDown(Level.Iteration)
+    public void report() {
+        long receiveCalls = connector.getReceiveCalls() - this.receiveCalls;
+        long selectCalls = connector.getSelectCalls() - this.selectCalls;
+        long sendCalls = connector.getSendCalls() - this.sendCalls;
+        long received = connector.getStatistics().getMessagesReceived() - this.received;
+        long sent = connector.getStatistics().getMessagesSent() - this.sent;
+        System.out.printf("%nreceive+select calls/message: %.2f, send calls/message: %.2f, lost: %d%n",
+                (double) (receiveCalls + selectCalls) / Math.max(1, received), (double) sendCalls / Math.max(1, sent),
+                lost);
+
+        this.receiveCalls += receiveCalls;
+        this.selectCalls += selectCalls;
+        this.sendCalls += sendCalls;
+        this.received += received;
+        this.sent += sent;
+        lost = 0;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void burst() throws Exception {
+        for (ByteBuffer request : requests) {
+            request.rewind();
+            client.write(request);
+        }
+        for (int i = 0; i < BURST; i++) {
+            try {
+                client.socket().receive(response);
+            } catch (SocketTimeoutException e) {
+                lost += BURST - i;
+                return;
+            }
+        }
+    }
+}
@@ -2,23 +2,41 @@ package org.cipango.server;
 
 
 import org.cipango.server.nio.UdpConnector;
+import org.cipango.util.VirtualThreads;
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.util.annotation.ManagedAttribute;
+import org.eclipse.jetty.util.annotation.ManagedObject;
 import org.eclipse.jetty.util.component.ContainerLifeCycle;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 
+@ManagedObject("SIP connector")
 public abstract class AbstractSipConnector extends ContainerLifeCycle implements SipConnector {
 
     private volatile String host;
     private volatile int port;
 
-    private final Thread[] acceptors;
+    private final SipServer server;
+    private Thread[] acceptors;
+    private int nbAcceptors;
     private final Executor executor;
+    private volatile ByteBufferPool byteBufferPool;
+    private Boolean virtualThreads;
+    private ExecutorService acceptorExecutor;
+    private final ConnectorStatistics statistics = new ConnectorStatistics();
 
-    public AbstractSipConnector(Executor executor, int nbAcceptors) {
+    public AbstractSipConnector(SipServer server, Executor executor, int nbAcceptors) {
+        this.server = server;
         this.executor = executor;
-        acceptors = new Thread[nbAcceptors];
+        this.nbAcceptors = nbAcceptors;
+        addBean(statistics);
+    }
+
+    public SipServer getServer() {
+        return server;
     }
 
     public void setHost(String host) {
@@ -33,20 +51,66 @@ public abstract class AbstractSipConnector extends ContainerLifeCycle implements
         this.port = port;
     }
 
+    @ManagedAttribute("Host")
     public String getHost() {
         return host;
     }
 
+    @ManagedAttribute("Port")
     public int getPort() {
         return port;
     }
 
+    @ManagedAttribute("Number of acceptors")
+    public int getAcceptors() {
+        return nbAcceptors;
+    }
+
+    public void setAcceptors(int nbAcceptors) {
+        if (isRunning())
+            throw new IllegalStateException("running");
+        if (nbAcceptors < 1)
+            throw new IllegalArgumentException("invalid number of acceptors: " + nbAcceptors);
+        this.nbAcceptors = nbAcceptors;
+    }
+
+    @ManagedAttribute("Traffic and latency statistics")
+    public ConnectorStatistics getStatistics() {
+        return statistics;
+    }
+
     public Executor getExecutor() {
         return executor;
     }
 
+    @ManagedAttribute("Buffer pool")
+    public ByteBufferPool getByteBufferPool() {
+        return byteBufferPool;
+    }
+
+    public void setByteBufferPool(ByteBufferPool byteBufferPool) {
+        if (isRunning())
+            throw new IllegalStateException("running");
+        updateBean(this.byteBufferPool, byteBufferPool);
+        this.byteBufferPool = byteBufferPool;
+    }
+
+    /**
+     * Whether acceptors run on virtual threads. Defaults to the server setting.
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads != null ? virtualThreads : server.isVirtualThreads();
+    }
+
+    public void setVirtualThreads(boolean virtualThreads) {
+        if (isRunning())
+            throw new IllegalStateException("running");
+        this.virtualThreads = virtualThreads;
+    }
+
     protected abstract void open() throws IOException;
-    protected abstract void accept() throws IOException;
+    protected abstract void close() throws IOException;
+    protected abstract void accept(int acceptorId) throws IOException;
 
     protected void doStart() throws Exception {
         if (port <= 0)
@@ -63,9 +127,23 @@ public abstract class AbstractSipConnector extends ContainerLifeCycle implements
 
         open();
 
+        if (isVirtualThreads())
+            acceptorExecutor = VirtualThreads.newExecutor(getTransport().getName().toLowerCase() + "-acceptor-");
+        Executor executor = acceptorExecutor != null ? acceptorExecutor : getExecutor();
+
+        acceptors = new Thread[nbAcceptors];
         for (int i = 0; i < acceptors.length; i++) {
             Acceptor a = new Acceptor(i);
-            getExecutor().execute(a);
+            executor.execute(a);
+        }
+    }
+
+    protected void doStop() throws Exception {
+        close();
+        super.doStop();
+        if (acceptorExecutor != null) {
+            acceptorExecutor.shutdown();
+            acceptorExecutor = null;
         }
     }
 
@@ -87,9 +165,10 @@ public abstract class AbstractSipConnector extends ContainerLifeCycle implements
             try {
                 while (isRunning()) {
                     try {
-                        accept();
+                        accept(id);
                     } catch (Exception e) {
-                        e.printStackTrace();
+                        if (isRunning())
+                            e.printStackTrace();
                     }
                 }
             } finally {
@@ -0,0 +1,139 @@
+package org.cipango.server;
+
+import org.cipango.util.LatencyHistogram;
+import org.eclipse.jetty.util.annotation.ManagedAttribute;
+import org.eclipse.jetty.util.annotation.ManagedObject;
+import org.eclipse.jetty.util.annotation.ManagedOperation;
+import org.eclipse.jetty.util.component.ContainerLifeCycle;
+import org.eclipse.jetty.util.component.Dumpable;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Traffic counters and latency histograms of a connector. Recording only updates striped counters, so that the
+ * statistics can be left on at full load.
+ */
+@ManagedObject("Connector statistics")
+public class ConnectorStatistics implements Dumpable {
+
+    private final LongAdder messagesReceived = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder messagesSent = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder parseErrors = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    private final LatencyHistogram parseTime = new LatencyHistogram("parse");
+    private final LatencyHistogram dispatchLatency = new LatencyHistogram("receive-to-dispatch");
+    private final LatencyHistogram responseTime = new LatencyHistogram("dispatch-to-response");
+
+    public void messageReceived(int bytes) {
+        messagesReceived.increment();
+        bytesReceived.add(bytes);
+    }
+
+    public void parsed(long nanos) {
+        parseTime.record(nanos);
+    }
+
+    public void messageSent(int bytes) {
+        messagesSent.increment();
+        bytesSent.add(bytes);
+    }
+
+    public void parseError() {
+        parseErrors.increment();
+    }
+
+    public void dropped() {
+        dropped.increment();
+    }
+
+    @ManagedAttribute("Messages received")
+    public long getMessagesReceived() {
+        return messagesReceived.sum();
+    }
+
+    @ManagedAttribute("Bytes of the messages received")
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @ManagedAttribute("Messages sent")
+    public long getMessagesSent() {
+        return messagesSent.sum();
+    }
+
+    @ManagedAttribute("Bytes sent")
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @ManagedAttribute("Messages that could not be parsed")
+    public long getParseErrors() {
+        return parseErrors.sum();
+    }
+
+    @ManagedAttribute("Datagrams dropped because they did not hold a complete message")
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Time spent parsing each message.
+     */
+    @ManagedAttribute("Parse time")
+    public LatencyHistogram getParseTime() {
+        return parseTime;
+    }
+
+    /**
+     * Time from the reception of a message to the start of its processing, including the time spent waiting in
+     * the {@link SipDispatcher}.
+     */
+    @ManagedAttribute("Receive to dispatch latency")
+    public LatencyHistogram getDispatchLatency() {
+        return dispatchLatency;
+    }
+
+    /**
+     * Time from the start of the processing of a request to its first response.
+     */
+    @ManagedAttribute("Dispatch to response latency")
+    public LatencyHistogram getResponseTime() {
+        return responseTime;
+    }
+
+    @ManagedOperation(value = "Resets the statistics", impact = "ACTION")
+    public void reset() {
+        messagesReceived.reset();
+        bytesReceived.reset();
+        messagesSent.reset();
+        bytesSent.reset();
+        parseErrors.reset();
+        dropped.reset();
+        parseTime.reset();
+        dispatchLatency.reset();
+        responseTime.reset();
+    }
+
+    @Override
+    public String dump() {
+        return ContainerLifeCycle.dump(this);
+    }
+
+    @Override
+    public void dump(Appendable out, String indent) throws IOException {
+        ContainerLifeCycle.dumpObject(out, this);
+        ContainerLifeCycle.dump(out, indent, Arrays.asList(parseTime, dispatchLatency, responseTime));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s@%x{in=%d/%dB,out=%d/%dB,parseErrors=%d,dropped=%d}", getClass().getSimpleName(),
+                hashCode(), getMessagesReceived(), getBytesReceived(), getMessagesSent(), getBytesSent(),
+                getParseErrors(), getDropped());
+    }
+}
@@ -0,0 +1,204 @@
+package org.cipango.server;
+
+import org.eclipse.jetty.io.ByteBufferPool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Body of a message dispatched before its body has been received, as the chunks read by the connection.
+ * <p>
+ * At most {@link #getMaxChunks()} chunks are buffered: when the reader falls behind, {@link #offer} returns
+ * <code>false</code> and the connection stops reading until the reader has consumed a chunk, at which point the
+ * demand callback is run. Chunks go back to the pool once read. The application must read the stream to its end
+ * or close it, otherwise the connection stalls.
+ */
+public class ContentInputStream extends InputStream {
+
+    private final ByteBufferPool pool;
+    private final int maxChunks;
+    private final Runnable demand;
+    private final ArrayDeque<ByteBuffer> chunks = new ArrayDeque<>();
+
+    private boolean ended;
+    private boolean closed;
+    private boolean suspended;
+    private IOException failure;
+
+    /**
+     * @param demand run, on the reading thread, when the connection may read again after <code>offer</code>
+     *               returned <code>false</code>.
+     */
+    public ContentInputStream(ByteBufferPool pool, int maxChunks, Runnable demand) {
+        this.pool = pool;
+        this.maxChunks = maxChunks;
+        this.demand = demand;
+    }
+
+    public int getMaxChunks() {
+        return maxChunks;
+    }
+
+    /**
+     * Adds a chunk of the body, in flush mode.
+     *
+     * @param last whether this is the last chunk of the body.
+     * @return <code>false</code> if the connection should stop reading until the demand callback is run.
+     */
+    public synchronized boolean offer(ByteBuffer chunk, boolean last) {
+        if (last)
+            ended = true;
+        notifyAll();
+        if (closed || failure != null) {
+            pool.release(chunk);
+            return true;
+        }
+        chunks.add(chunk);
+        if (!last && chunks.size() >= maxChunks) {
+            suspended = true;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Called by the connection if it is closed before the end of the body.
+     */
+    public synchronized void fail(IOException failure) {
+        if (ended)
+            return;
+        this.failure = failure;
+        releaseChunks();
+        notifyAll();
+    }
+
+    public synchronized boolean isEnded() {
+        return ended;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+
+        boolean resume = false;
+        int n;
+        synchronized (this) {
+            ByteBuffer chunk = await();
+            if (chunk == null)
+                return -1;
+
+            n = Math.min(len, chunk.remaining());
+            chunk.get(b, off, n);
+            if (!chunk.hasRemaining())
+                resume = consumed();
+        }
+        if (resume)
+            demand.run();
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0)
+            return 0;
+
+        boolean resume = false;
+        int skipped;
+        synchronized (this) {
+            ByteBuffer chunk = await();
+            if (chunk == null)
+                return 0;
+
+            skipped = (int) Math.min(n, chunk.remaining());
+            chunk.position(chunk.position() + skipped);
+            if (!chunk.hasRemaining())
+                resume = consumed();
+        }
+        if (resume)
+            demand.run();
+        return skipped;
+    }
+
+    @Override
+    public synchronized int available() throws IOException {
+        int available = 0;
+        for (ByteBuffer chunk : chunks)
+            available += chunk.remaining();
+        return available;
+    }
+
+    /**
+     * Discards the rest of the body: the connection still reads it, but releases the chunks as they come.
+     */
+    @Override
+    public void close() {
+        boolean resume;
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            releaseChunks();
+            resume = suspended;
+            suspended = false;
+            notifyAll();
+        }
+        if (resume)
+            demand.run();
+    }
+
+    /**
+     * Waits for a chunk with remaining bytes, or returns <code>null</code> at the end of the body.
+     */
+    private ByteBuffer await() throws IOException {
+        while (true) {
+            if (closed)
+                throw new IOException("closed");
+            if (failure != null)
+                throw failure;
+            ByteBuffer chunk = chunks.peek();
+            if (chunk != null)
+                return chunk;
+            if (ended)
+                return null;
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /**
+     * Releases the first chunk, which has been read. Returns whether the connection should be resumed.
+     */
+    private boolean consumed() {
+        pool.release(chunks.poll());
+        if (suspended && chunks.size() < maxChunks) {
+            suspended = false;
+            return true;
+        }
+        return false;
+    }
+
+    private void releaseChunks() {
+        ByteBuffer chunk;
+        while ((chunk = chunks.poll()) != null)
+            pool.release(chunk);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s@%x{chunks=%d,ended=%b,closed=%b,suspended=%b}", getClass().getSimpleName(),
+                hashCode(), chunks.size(), ended, closed, suspended);
+    }
+}
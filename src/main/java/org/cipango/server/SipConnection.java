@@ -0,0 +1,37 @@
+package org.cipango.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+public interface SipConnection {
+
+    SipConnector getConnector();
+
+    Transport getTransport();
+
+    InetSocketAddress getLocalAddress();
+
+    InetSocketAddress getRemoteAddress();
+
+    void send(ByteBuffer buffer) throws IOException;
+
+    /**
+     * Sends the buffers as a single message. Connections that cannot write them with a gathering write copy them
+     * into one buffer.
+     */
+    default void send(ByteBuffer... buffers) throws IOException {
+        if (buffers.length == 1) {
+            send(buffers[0]);
+            return;
+        }
+        int length = 0;
+        for (ByteBuffer buffer : buffers)
+            length += buffer.remaining();
+        ByteBuffer message = ByteBuffer.allocate(length);
+        for (ByteBuffer buffer : buffers)
+            message.put(buffer);
+        message.flip();
+        send(message);
+    }
+}
@@ -5,6 +5,7 @@ import org.eclipse.jetty.util.component.LifeCycle;
 public interface SipConnector extends LifeCycle {
 
     Transport getTransport();
+    ConnectorStatistics getStatistics();
     String getHost();
     int getPort();
 
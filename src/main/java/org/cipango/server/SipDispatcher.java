@@ -0,0 +1,309 @@
+package org.cipango.server;
+
+import org.cipango.util.VirtualThreads;
+import org.eclipse.jetty.util.annotation.ManagedAttribute;
+import org.eclipse.jetty.util.annotation.ManagedObject;
+import org.eclipse.jetty.util.component.ContainerLifeCycle;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import javax.servlet.sip.SipServletResponse;
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hands received messages from the connector threads over to a worker pool.
+ * <p>
+ * Messages are queued on a lane chosen from their Call-ID, so that messages of the same call are processed one
+ * at a time and in arrival order, while different calls are processed in parallel. Lanes are bounded: when the
+ * lane of a message is full, the {@link OverloadPolicy} applies.
+ */
+@ManagedObject("Message dispatcher")
+public class SipDispatcher extends ContainerLifeCycle {
+
+    private static final Logger LOG = Log.getLogger(SipDispatcher.class);
+
+    public static final int DEFAULT_LANE_CAPACITY = 1024;
+    public static final int MAX_BATCH = 64;
+
+    public enum OverloadPolicy {
+        /**
+         * Silently discards the message, leaving retransmissions to the sender.
+         */
+        DROP,
+        /**
+         * Answers requests, except ACK, with a 503 (Service Unavailable). Responses are dropped.
+         */
+        REJECT
+    }
+
+    private final SipServer server;
+    private Executor executor;
+    private int nbLanes = Runtime.getRuntime().availableProcessors() * 4;
+    private int laneCapacity = DEFAULT_LANE_CAPACITY;
+    private volatile OverloadPolicy overloadPolicy = OverloadPolicy.REJECT;
+
+    private Lane[] lanes;
+    private ExecutorService virtualExecutor;
+
+    private final LongAdder dispatched = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    public SipDispatcher(SipServer server) {
+        this(server, null);
+    }
+
+    public SipDispatcher(SipServer server, Executor executor) {
+        this.server = server;
+        setExecutor(executor != null ? executor : newThreadPool());
+    }
+
+    private static QueuedThreadPool newThreadPool() {
+        QueuedThreadPool threadPool = new QueuedThreadPool();
+        threadPool.setName("sip-dispatch");
+        return threadPool;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    public void setExecutor(Executor executor) {
+        if (isRunning())
+            throw new IllegalStateException("running");
+        updateBean(this.executor, executor, true);
+        this.executor = executor;
+    }
+
+    @ManagedAttribute("Number of lanes")
+    public int getLanes() {
+        return nbLanes;
+    }
+
+    public void setLanes(int lanes) {
+        if (isRunning())
+            throw new IllegalStateException("running");
+        if (lanes < 1)
+            throw new IllegalArgumentException("invalid number of lanes: " + lanes);
+        this.nbLanes = lanes;
+    }
+
+    @ManagedAttribute("Capacity of each lane")
+    public int getLaneCapacity() {
+        return laneCapacity;
+    }
+
+    public void setLaneCapacity(int laneCapacity) {
+        if (isRunning())
+            throw new IllegalStateException("running");
+        if (laneCapacity < 1)
+            throw new IllegalArgumentException("invalid lane capacity: " + laneCapacity);
+        this.laneCapacity = laneCapacity;
+    }
+
+    @ManagedAttribute("Policy applied when a lane is full")
+    public OverloadPolicy getOverloadPolicy() {
+        return overloadPolicy;
+    }
+
+    public void setOverloadPolicy(OverloadPolicy overloadPolicy) {
+        this.overloadPolicy = overloadPolicy;
+    }
+
+    @ManagedAttribute("Messages dispatched")
+    public long getDispatched() {
+        return dispatched.sum();
+    }
+
+    @ManagedAttribute("Messages dropped because their lane was full")
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    @ManagedAttribute("Requests rejected because their lane was full")
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * Number of messages waiting in the lanes.
+     */
+    @ManagedAttribute("Queue depth")
+    public int getQueued() {
+        Lane[] lanes = this.lanes;
+        int queued = 0;
+        if (lanes != null) {
+            for (Lane lane : lanes)
+                queued += lane.queue.size();
+        }
+        return queued;
+    }
+
+    /**
+     * Returns the executor lanes actually run on, which is a virtual thread per task executor if enabled on the
+     * server and supported.
+     */
+    public Executor getLaneExecutor() {
+        return virtualExecutor != null ? virtualExecutor : executor;
+    }
+
+    protected void doStart() throws Exception {
+        if (server.isVirtualThreads())
+            virtualExecutor = VirtualThreads.newExecutor("sip-dispatch-");
+
+        Lane[] lanes = new Lane[nbLanes];
+        for (int i = 0; i < lanes.length; i++)
+            lanes[i] = new Lane(laneCapacity);
+        this.lanes = lanes;
+        super.doStart();
+    }
+
+    protected void doStop() throws Exception {
+        super.doStop();
+        lanes = null;
+        if (virtualExecutor != null) {
+            virtualExecutor.shutdown();
+            virtualExecutor = null;
+        }
+    }
+
+    public void dispatch(SipMessage message) {
+        Lane[] lanes = this.lanes;
+        if (lanes == null) {
+            overload(message);
+            return;
+        }
+
+        Lane lane = getLane(lanes, message);
+        if (lane.queue.offer(message)) {
+            dispatched.increment();
+            lane.schedule();
+        } else {
+            overload(message);
+        }
+    }
+
+    /**
+     * Dispatches the first <code>count</code> messages of <code>messages</code>, e.g. datagrams drained by a
+     * single receive wakeup. Each lane is scheduled once for the whole batch.
+     */
+    public void dispatch(SipMessage[] messages, int count) {
+        Lane[] lanes = this.lanes;
+        if (lanes == null) {
+            for (int i = 0; i < count; i++)
+                overload(messages[i]);
+            return;
+        }
+
+        for (int i = 0; i < count; i++) {
+            if (getLane(lanes, messages[i]).queue.offer(messages[i]))
+                dispatched.increment();
+            else
+                overload(messages[i]);
+        }
+        // once the whole batch is queued, scheduling a lane again only reads its flag
+        Lane last = null;
+        for (int i = 0; i < count; i++) {
+            Lane lane = getLane(lanes, messages[i]);
+            if (lane != last) {
+                lane.schedule();
+                last = lane;
+            }
+        }
+    }
+
+    private Lane getLane(Lane[] lanes, SipMessage message) {
+        String callId = message.getCallId();
+        int hash = callId == null ? 0 : callId.hashCode();
+        return lanes[((hash ^ (hash >>> 16)) & 0x7fffffff) % lanes.length];
+    }
+
+    /**
+     * Rejects or drops a message that cannot be queued, then releases its pooled buffers as it will not be
+     * processed.
+     */
+    protected void overload(SipMessage message) {
+        try {
+            if (overloadPolicy == OverloadPolicy.REJECT && message.isRequest()
+                    && !"ACK".equals(message.getMethod())) {
+                rejected.increment();
+                try {
+                    ((SipRequest) message).createResponse(SipServletResponse.SC_SERVICE_UNAVAILABLE).send();
+                } catch (Exception e) {
+                    LOG.debug("Failed to reject {}", message, e);
+                }
+            } else {
+                dropped.increment();
+                if (LOG.isDebugEnabled())
+                    LOG.debug("Dropped {}", message);
+            }
+        } finally {
+            message.release();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s@%x{lanes=%d,capacity=%d,%s}", getClass().getSimpleName(), hashCode(),
+                nbLanes, laneCapacity, overloadPolicy);
+    }
+
+    class Lane implements Runnable {
+
+        private final Queue<SipMessage> queue;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        Lane(int capacity) {
+            queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        void schedule() {
+            if (!scheduled.get() && scheduled.compareAndSet(false, true)) {
+                try {
+                    getLaneExecutor().execute(this);
+                } catch (RuntimeException e) {
+                    scheduled.set(false);
+                    throw e;
+                }
+            }
+        }
+
+        public void run() {
+            // at most one thread runs a lane at any time, which keeps the messages of a call in order
+            while (true) {
+                for (int i = 0; i < MAX_BATCH; i++) {
+                    SipMessage message = queue.poll();
+                    if (message == null)
+                        break;
+                    try {
+                        server.process(message);
+                    } catch (Throwable t) {
+                        LOG.warn("Failed to process " + message, t);
+                    }
+                }
+
+                if (queue.isEmpty()) {
+                    scheduled.set(false);
+                    if (queue.isEmpty() || !scheduled.compareAndSet(false, true))
+                        return;
+                } else {
+                    // yield the thread to the other lanes, we are still scheduled
+                    try {
+                        getLaneExecutor().execute(this);
+                        return;
+                    } catch (RuntimeException e) {
+                        // nobody else would run the lane, keep draining it on this thread
+                        LOG.debug("Failed to reschedule lane", e);
+                    }
+                }
+            }
+        }
+    }
+}
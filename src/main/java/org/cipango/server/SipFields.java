@@ -0,0 +1,560 @@
+package org.cipango.server;
+
+import org.cipango.sip.SipHeader;
+import org.eclipse.jetty.util.BufferUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Header fields of a SIP message.
+ * <p>
+ * Fields read from the network are only recorded as offsets in the receive buffer: names and values are
+ * decoded the first time they are asked for, so headers never looked at never become strings. Standard headers
+ * are identified by their {@link SipHeader}, whatever the case or form (full or compact) of the name.
+ * <p>
+ * Fields are kept in one array in the order of the message, with the position of the first field of each standard
+ * header indexed, so that the top Via or Route is found without scanning. Some room is left before the first
+ * field: a field added before the first of its header, or the removal of that field, only moves the fields that
+ * precede it, usually none for a Via. Values of list headers such as Via or Route may be comma-separated in one
+ * field; they are stored as received and only split when asked for one by one.
+ */
+public class SipFields {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Room left before the first field, for the Via or Record-Route a proxy adds.
+     */
+    private static final int FRONT = 2;
+
+    private static final Set<SipHeader> LISTS = EnumSet.of(SipHeader.VIA, SipHeader.ROUTE, SipHeader.RECORD_ROUTE,
+            SipHeader.PATH, SipHeader.SERVICE_ROUTE);
+
+    private ByteBuffer buffer;
+    private SipValueCache valueCache;
+
+    private int[] offsets = new int[(FRONT + INITIAL_CAPACITY) * 4];
+    private SipHeader[] headers = new SipHeader[FRONT + INITIAL_CAPACITY];
+    private String[] names = new String[FRONT + INITIAL_CAPACITY];
+    private String[] values = new String[FRONT + INITIAL_CAPACITY];
+    private int head = FRONT;
+    private int size;
+
+    /**
+     * Slot of the first field of each standard header, or <code>-1</code>.
+     */
+    private final int[] first = newIndex();
+
+    public void setBuffer(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Sets the cache that values read from the buffer are first looked up in.
+     */
+    public void setValueCache(SipValueCache valueCache) {
+        this.valueCache = valueCache;
+    }
+
+    /**
+     * Moves the fields to a new buffer, where the bytes that were at <code>offset</code> in the previous
+     * buffer are now at index 0.
+     */
+    public void rebase(ByteBuffer buffer, int offset) {
+        this.buffer = buffer;
+        if (offset == 0)
+            return;
+        for (int s = head; s < head + size; s++) {
+            int o = s * 4;
+            if (offsets[o] >= 0) {
+                offsets[o] -= offset;
+                offsets[o + 1] -= offset;
+                offsets[o + 2] -= offset;
+                offsets[o + 3] -= offset;
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds a field read from the buffer. <code>header</code> is <code>null</code> for a non-standard header.
+     */
+    public void add(SipHeader header, int nameStart, int nameEnd, int valueStart, int valueEnd) {
+        ensureCapacity();
+        int slot = head + size++;
+        headers[slot] = header;
+        int o = slot * 4;
+        offsets[o] = nameStart;
+        offsets[o + 1] = nameEnd;
+        offsets[o + 2] = valueStart;
+        offsets[o + 3] = valueEnd;
+        if (header != null && first[header.ordinal()] == -1)
+            first[header.ordinal()] = slot;
+    }
+
+    public void add(String name, String value) {
+        SipHeader header = SipHeader.lookup(name);
+        add(header, header != null ? header.asString() : name, value);
+    }
+
+    public void add(SipHeader header, String value) {
+        add(header, header.asString(), value);
+    }
+
+    private void add(SipHeader header, String name, String value) {
+        ensureCapacity();
+        int slot = head + size++;
+        set(slot, header, name, value);
+        if (header != null && first[header.ordinal()] == -1)
+            first[header.ordinal()] = slot;
+    }
+
+    /**
+     * Adds a field before the first field of <code>header</code>, or before all fields if there is none, as a Via
+     * added by this server. Only the fields preceding the first field of <code>header</code> are moved.
+     */
+    public void addFirst(SipHeader header, String value) {
+        if (head == 0)
+            reserveFront();
+        int at = first[header.ordinal()];
+        if (at == -1)
+            at = head;
+
+        move(head, at, -1);
+        head--;
+        size++;
+        set(at - 1, header, header.asString(), value);
+        first[header.ordinal()] = at - 1;
+    }
+
+    /**
+     * Removes the first value of <code>header</code> and returns it, or <code>null</code> if there is none. For a
+     * list header, this is the first value of the first field, the field being only removed with its last value.
+     */
+    public String removeFirst(SipHeader header) {
+        int slot = first[header.ordinal()];
+        if (slot == -1)
+            return null;
+
+        String value = getValue(slot - head);
+        if (LISTS.contains(header)) {
+            int comma = nextComma(value, 0);
+            if (comma != -1) {
+                set(slot, header, header.asString(), value.substring(comma + 1).trim());
+                return value.substring(0, comma).trim();
+            }
+        }
+
+        move(head, slot, 1);
+        clear(head, head + 1);
+        head++;
+        size--;
+        first[header.ordinal()] = nextSlot(header, slot);
+        return value;
+    }
+
+    /**
+     * Moves the fields in the slots from <code>from</code> to <code>to</code> by <code>delta</code> slots.
+     */
+    private void move(int from, int to, int delta) {
+        if (from == to)
+            return;
+        System.arraycopy(offsets, from * 4, offsets, (from + delta) * 4, (to - from) * 4);
+        System.arraycopy(headers, from, headers, from + delta, to - from);
+        System.arraycopy(names, from, names, from + delta, to - from);
+        System.arraycopy(values, from, values, from + delta, to - from);
+        // against the move, so that a field is not taken for the first of its header once that one has moved
+        for (int i = 0; i < to - from; i++) {
+            int s = delta < 0 ? from + delta + i : to + delta - 1 - i;
+            SipHeader header = headers[s];
+            if (header != null && first[header.ordinal()] == s - delta)
+                first[header.ordinal()] = s;
+        }
+    }
+
+    private void set(int slot, SipHeader header, String name, String value) {
+        offsets[slot * 4] = -1;
+        headers[slot] = header;
+        names[slot] = name;
+        values[slot] = value;
+    }
+
+    public void remove(String name) {
+        SipHeader header = SipHeader.lookup(name);
+        if (header != null)
+            remove(header, null);
+        else
+            remove(null, name);
+    }
+
+    public void remove(SipHeader header) {
+        if (first[header.ordinal()] != -1)
+            remove(header, null);
+    }
+
+    private void remove(SipHeader header, String name) {
+        int end = head + size;
+        int j = head;
+        for (int s = head; s < end; s++) {
+            if (header != null ? headers[s] == header : is(s - head, name))
+                continue;
+            if (s != j) {
+                System.arraycopy(offsets, s * 4, offsets, j * 4, 4);
+                headers[j] = headers[s];
+                names[j] = names[s];
+                values[j] = values[s];
+            }
+            j++;
+        }
+        clear(j, end);
+        size = j - head;
+
+        Arrays.fill(first, -1);
+        for (int s = j - 1; s >= head; s--) {
+            if (headers[s] != null)
+                first[headers[s].ordinal()] = s;
+        }
+    }
+
+    /**
+     * Returns the index in the buffer of the first byte of the field at <code>index</code>, or <code>-1</code> if
+     * the field has not been read from the buffer.
+     */
+    public int getStart(int index) {
+        return offsets[(head + index) * 4];
+    }
+
+    /**
+     * Returns the index in the buffer following the value of the field at <code>index</code>, which is not
+     * defined if the field has not been read from the buffer.
+     */
+    public int getValueEnd(int index) {
+        return offsets[(head + index) * 4 + 3];
+    }
+
+    /**
+     * Returns the standard header of the field at <code>index</code>, or <code>null</code> if it is not a
+     * standard header.
+     */
+    public SipHeader getHeader(int index) {
+        return headers[head + index];
+    }
+
+    /**
+     * Returns the name of the field at <code>index</code>. Standard headers have their full name, even if
+     * received in compact form.
+     */
+    public String getName(int index) {
+        int slot = head + index;
+        String name = names[slot];
+        if (name == null) {
+            if (headers[slot] != null)
+                return headers[slot].asString();
+            int o = slot * 4;
+            name = toString(offsets[o], offsets[o + 1]);
+            names[slot] = name;
+        }
+        return name;
+    }
+
+    public String getValue(int index) {
+        int slot = head + index;
+        String value = values[slot];
+        if (value == null) {
+            int o = slot * 4;
+            if (valueCache != null)
+                value = valueCache.getValue(headers[slot], buffer, offsets[o + 2], offsets[o + 3]);
+            if (value == null)
+                value = unfold(toString(offsets[o + 2], offsets[o + 3]));
+            values[slot] = value;
+        }
+        return value;
+    }
+
+    public boolean is(int index, SipHeader header) {
+        return headers[head + index] == header;
+    }
+
+    /**
+     * Compares the name of the field at <code>index</code>, ignoring case and without decoding it. A standard
+     * header matches both its full and its compact name.
+     */
+    public boolean is(int index, String name) {
+        int slot = head + index;
+        SipHeader header = SipHeader.lookup(name);
+        if (header != null || headers[slot] != null)
+            return headers[slot] == header;
+
+        if (names[slot] != null)
+            return names[slot].equalsIgnoreCase(name);
+
+        int o = slot * 4;
+        int start = offsets[o];
+        int length = offsets[o + 1] - start;
+
+        if (length != name.length())
+            return false;
+
+        for (int i = 0; i < length; i++) {
+            char c1 = (char) (buffer.get(start + i) & 0xff);
+            char c2 = name.charAt(i);
+            if (c1 != c2 && Character.toLowerCase(c1) != Character.toLowerCase(c2))
+                return false;
+        }
+        return true;
+    }
+
+    public int indexOf(String name) {
+        SipHeader header = SipHeader.lookup(name);
+        if (header != null)
+            return indexOf(header);
+        for (int i = 0; i < size; i++) {
+            if (is(i, name))
+                return i;
+        }
+        return -1;
+    }
+
+    public int indexOf(SipHeader header) {
+        int slot = first[header.ordinal()];
+        return slot == -1 ? -1 : slot - head;
+    }
+
+    /**
+     * Returns the index of the next field of <code>header</code> after the field at <code>index</code>, or
+     * <code>-1</code>.
+     */
+    public int nextIndexOf(SipHeader header, int index) {
+        int slot = nextSlot(header, head + index);
+        return slot == -1 ? -1 : slot - head;
+    }
+
+    private int nextSlot(SipHeader header, int slot) {
+        for (int s = slot + 1; s < head + size; s++) {
+            if (headers[s] == header)
+                return s;
+        }
+        return -1;
+    }
+
+    public String get(String name) {
+        int index = indexOf(name);
+        return index == -1 ? null : getValue(index);
+    }
+
+    /**
+     * Returns the value of the first field of <code>header</code>, with all its comma-separated values.
+     */
+    public String get(SipHeader header) {
+        int index = indexOf(header);
+        return index == -1 ? null : getValue(index);
+    }
+
+    /**
+     * Returns the first value of <code>header</code>, which for a list header is the first of the
+     * comma-separated values of its first field.
+     */
+    public String getFirst(SipHeader header) {
+        String value = get(header);
+        if (value == null || !LISTS.contains(header))
+            return value;
+        int comma = nextComma(value, 0);
+        return comma == -1 ? value : value.substring(0, comma).trim();
+    }
+
+    public List<String> getValues(String name) {
+        SipHeader header = SipHeader.lookup(name);
+        if (header != null)
+            return getValues(header);
+        List<String> list = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            if (is(i, name))
+                list.add(getValue(i));
+        }
+        return list;
+    }
+
+    /**
+     * Returns the values of <code>header</code>, comma-separated values of list headers being returned one by one.
+     */
+    public List<String> getValues(SipHeader header) {
+        List<String> list = new ArrayList<>();
+        boolean split = LISTS.contains(header);
+        for (int i = indexOf(header); i != -1; i = nextIndexOf(header, i)) {
+            if (split)
+                split(getValue(i), list);
+            else
+                list.add(getValue(i));
+        }
+        return list;
+    }
+
+    public Iterator<String> getNames() {
+        List<String> list = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            String name = getName(i);
+            boolean found = false;
+            for (String n : list) {
+                if (n.equalsIgnoreCase(name)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found)
+                list.add(name);
+        }
+        return list.iterator();
+    }
+
+    public void clear() {
+        clear(head, head + size);
+        Arrays.fill(first, -1);
+        head = FRONT;
+        size = 0;
+        buffer = null;
+    }
+
+    private void clear(int from, int to) {
+        Arrays.fill(headers, from, to, null);
+        Arrays.fill(names, from, to, null);
+        Arrays.fill(values, from, to, null);
+    }
+
+    private void ensureCapacity() {
+        if (head + size == names.length) {
+            int capacity = names.length * 2;
+            offsets = Arrays.copyOf(offsets, capacity * 4);
+            headers = Arrays.copyOf(headers, capacity);
+            names = Arrays.copyOf(names, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+    }
+
+    /**
+     * Makes room before the first field, moving all fields.
+     */
+    private void reserveFront() {
+        int gap = Math.max(FRONT, size / 2);
+        int capacity = names.length + gap;
+
+        int[] offsets = new int[capacity * 4];
+        System.arraycopy(this.offsets, head * 4, offsets, (head + gap) * 4, size * 4);
+        this.offsets = offsets;
+        headers = shift(headers, new SipHeader[capacity], gap);
+        names = shift(names, new String[capacity], gap);
+        values = shift(values, new String[capacity], gap);
+
+        for (int i = 0; i < first.length; i++) {
+            if (first[i] != -1)
+                first[i] += gap;
+        }
+        head += gap;
+    }
+
+    private <T> T[] shift(T[] from, T[] to, int gap) {
+        System.arraycopy(from, head, to, head + gap, size);
+        return to;
+    }
+
+    private String toString(int start, int end) {
+        return BufferUtil.toString(buffer, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    private static int[] newIndex() {
+        int[] index = new int[SipHeader.values().length];
+        Arrays.fill(index, -1);
+        return index;
+    }
+
+    /**
+     * Returns the index of the first comma from <code>from</code> separating two values, ignoring commas in quoted
+     * strings and in URIs between angle brackets, or <code>-1</code>.
+     */
+    static int nextComma(String value, int from) {
+        boolean quoted = false;
+        boolean bracketed = false;
+        for (int i = from; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (quoted) {
+                if (c == '\\')
+                    i++;
+                else if (c == '"')
+                    quoted = false;
+            } else if (bracketed) {
+                if (c == '>')
+                    bracketed = false;
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == '<') {
+                bracketed = true;
+            } else if (c == ',') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void split(String value, List<String> list) {
+        int comma = nextComma(value, 0);
+        if (comma == -1) {
+            list.add(value);
+            return;
+        }
+        int start = 0;
+        while (true) {
+            String part = (comma == -1 ? value.substring(start) : value.substring(start, comma)).trim();
+            if (!part.isEmpty())
+                list.add(part);
+            if (comma == -1)
+                return;
+            start = comma + 1;
+            comma = nextComma(value, start);
+        }
+    }
+
+    private static String unfold(String value) {
+        if (value.indexOf('\n') == -1)
+            return value;
+
+        StringBuilder sb = new StringBuilder(value.length());
+        boolean folding = false;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\r' || c == '\n') {
+                while (sb.length() > 0 && (sb.charAt(sb.length() - 1) == ' ' || sb.charAt(sb.length() - 1) == '\t'))
+                    sb.setLength(sb.length() - 1);
+                folding = true;
+            } else if ((c == ' ' || c == '\t') && folding) {
+                continue;
+            } else {
+                if (folding)
+                    sb.append(' ');
+                folding = false;
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < size; i++)
+            sb.append(getName(i)).append(": ").append(getValue(i)).append("\r\n");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,199 @@
+package org.cipango.server;
+
+import org.cipango.sip.SipHeader;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes a {@link SipMessage} to wire format.
+ * <p>
+ * The start line, header fields and body of a received message are written as slices of its receive buffer
+ * while unchanged, adjacent slices being merged: an unmodified message is written as a single slice, identical
+ * to the received bytes. Only changed and added parts are encoded. A body received in chunks is written as
+ * slices of its chunks.
+ */
+public class SipGenerator {
+
+    private static final String CRLF = "\r\n";
+
+    /**
+     * Returns the message as buffers to be written in order, e.g. with a gathering write.
+     *
+     * @throws IllegalStateException if the body of the message is streamed or has been released, and has not
+     * been replaced with {@link SipMessage#setContent(Object, String)}.
+     */
+    public static ByteBuffer[] generateBuffers(SipMessage message) {
+        if (message.isContentStreamed())
+            throw new IllegalStateException("content streamed");
+        if (message.isContentReleased())
+            throw new IllegalStateException("content released");
+        Output out = new Output(message.getFields().getBuffer());
+
+        int start = message.getRawStartLineStart();
+        if (start >= 0)
+            out.raw(start, message.getRawStartLineEnd());
+        else
+            appendStartLine(out.text(), message);
+
+        SipFields fields = message.getFields();
+        for (int i = 0; i < fields.size(); i++) {
+            int fieldStart = fields.getStart(i);
+            if (fieldStart >= 0)
+                out.raw(fieldStart, out.lineEnd(fields.getValueEnd(i)));
+            else
+                out.text().append(fields.getName(i)).append(": ").append(fields.getValue(i)).append(CRLF);
+        }
+        ByteBuffer[] chunks = message.getContentChunks();
+        if (fields.indexOf(SipHeader.CONTENT_LENGTH) == -1) {
+            int length = 0;
+            if (chunks != null) {
+                for (ByteBuffer chunk : chunks)
+                    length += chunk.remaining();
+            } else if (message.getRawContentStart() >= 0) {
+                length = message.getRawContentEnd() - message.getRawContentStart();
+            }
+            out.text().append("Content-Length: ").append(length).append(CRLF);
+        }
+        out.endOfHeaders();
+
+        if (chunks != null) {
+            for (ByteBuffer chunk : chunks)
+                out.buffer(chunk.duplicate());
+        } else if (message.getRawContentStart() >= 0) {
+            out.raw(message.getRawContentStart(), message.getRawContentEnd());
+        } else if (message.getApplicationContent() != null) {
+            out.bytes(message.getApplicationContent());
+        }
+
+        return out.toArray();
+    }
+
+    /**
+     * Returns the message in a single buffer.
+     */
+    public static ByteBuffer generate(SipMessage message) {
+        ByteBuffer[] buffers = generateBuffers(message);
+        if (buffers.length == 1)
+            return buffers[0];
+
+        int length = 0;
+        for (ByteBuffer buffer : buffers)
+            length += buffer.remaining();
+        ByteBuffer bytes = ByteBuffer.allocate(length);
+        for (ByteBuffer buffer : buffers)
+            bytes.put(buffer);
+        bytes.flip();
+        return bytes;
+    }
+
+    private static void appendStartLine(StringBuilder sb, SipMessage message) {
+        if (message.isRequest()) {
+            SipRequest request = (SipRequest) message;
+            sb.append(request.getMethod()).append(' ').append(request.getRawRequestURI()).append(' ')
+                    .append(message.getProtocol()).append(CRLF);
+        } else {
+            SipResponse response = (SipResponse) message;
+            sb.append(message.getProtocol()).append(' ').append(response.getStatus()).append(' ');
+            if (response.getReasonPhrase() != null)
+                sb.append(response.getReasonPhrase());
+            sb.append(CRLF);
+        }
+    }
+
+    /**
+     * Sequence of slices of the receive buffer and of encoded text.
+     */
+    static class Output {
+
+        private final ByteBuffer buffer;
+        private final List<ByteBuffer> buffers = new ArrayList<>(4);
+        private final StringBuilder text = new StringBuilder();
+        private int rawStart = -1;
+        private int rawEnd;
+
+        Output(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        void raw(int start, int end) {
+            flushText();
+            if (rawStart >= 0 && start == rawEnd) {
+                rawEnd = end;
+                return;
+            }
+            flushRaw();
+            rawStart = start;
+            rawEnd = end;
+        }
+
+        void bytes(byte[] bytes) {
+            buffer(ByteBuffer.wrap(bytes));
+        }
+
+        void buffer(ByteBuffer buffer) {
+            flushText();
+            flushRaw();
+            buffers.add(buffer);
+        }
+
+        StringBuilder text() {
+            flushRaw();
+            return text;
+        }
+
+        /**
+         * Returns the index following the line terminator of the field value ending at <code>valueEnd</code>.
+         */
+        int lineEnd(int valueEnd) {
+            int i = valueEnd;
+            while (buffer.get(i) != SipParser.LF)
+                i++;
+            return i + 1;
+        }
+
+        /**
+         * Ends the header with the received empty line if it follows the last raw field, so that the header and
+         * the body remain a single slice.
+         */
+        void endOfHeaders() {
+            if (rawStart >= 0 && text.length() == 0) {
+                if (rawEnd + 1 < buffer.limit() && buffer.get(rawEnd) == SipParser.CR
+                        && buffer.get(rawEnd + 1) == SipParser.LF) {
+                    rawEnd += 2;
+                    return;
+                }
+                if (rawEnd < buffer.limit() && buffer.get(rawEnd) == SipParser.LF) {
+                    rawEnd++;
+                    return;
+                }
+            }
+            text().append(CRLF);
+        }
+
+        ByteBuffer[] toArray() {
+            flushText();
+            flushRaw();
+            return buffers.toArray(new ByteBuffer[buffers.size()]);
+        }
+
+        private void flushRaw() {
+            if (rawStart < 0)
+                return;
+            ByteBuffer slice = buffer.duplicate();
+            slice.limit(rawEnd);
+            slice.position(rawStart);
+            buffers.add(slice.slice());
+            rawStart = -1;
+        }
+
+        private void flushText() {
+            if (text.length() == 0)
+                return;
+            buffers.add(StandardCharsets.UTF_8.encode(text.toString()));
+            text.setLength(0);
+        }
+    }
+}
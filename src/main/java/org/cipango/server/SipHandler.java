@@ -0,0 +1,8 @@
+package org.cipango.server;
+
+import java.io.IOException;
+
+public interface SipHandler {
+
+    void handle(SipMessage message) throws IOException;
+}
@@ -1,8 +1,709 @@
 package org.cipango.server;
 
+import org.cipango.server.session.Session;
+import org.cipango.sip.SipHeader;
+import org.cipango.sip.SipVersion;
+import org.cipango.util.TypeUtils;
+import org.eclipse.jetty.http.MimeTypes;
+import org.eclipse.jetty.io.ByteBufferPool;
+
+import javax.servlet.sip.Address;
+import javax.servlet.sip.Parameterable;
+import javax.servlet.sip.ServletParseException;
+import javax.servlet.sip.SipApplicationSession;
 import javax.servlet.sip.SipServletMessage;
+import javax.servlet.sip.SipSession;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Locale;
+import java.util.Map;
 
 public abstract class SipMessage implements SipServletMessage {
 
+    protected final SipFields fields = new SipFields();
+
+    private SipConnection connection;
+    private Map<String, Object> attributes;
+    private String characterEncoding;
+    private Session session;
+
+    private int startLineStart = -1;
+    private int startLineEnd;
+    private int contentStart = -1;
+    private int contentEnd;
+    private byte[] rawContent;
+    private Object content;
+    private ContentInputStream contentStream;
+    private ByteBuffer[] contentChunks;
+    private ByteBufferPool pool;
+    private boolean pooledBuffer;
+    private boolean retained;
+    private boolean contentReleased;
+
+    private long receivedNanos;
+    private long processNanos;
+
+    public SipFields getFields() {
+        return fields;
+    }
+
+    public SipConnection getConnection() {
+        return connection;
+    }
+
+    public void setConnection(SipConnection connection) {
+        this.connection = connection;
+    }
+
+    public abstract boolean isRequest();
+
+    /**
+     * Returns the {@link System#nanoTime()} at which the connector started parsing the message, or <code>0</code>
+     * if it has not been received.
+     */
+    public long getReceivedNanos() {
+        return receivedNanos;
+    }
+
+    public void setReceivedNanos(long receivedNanos) {
+        this.receivedNanos = receivedNanos;
+    }
+
+    /**
+     * Returns the {@link System#nanoTime()} at which the server started processing the message, once dispatched.
+     */
+    public long getProcessNanos() {
+        return processNanos;
+    }
+
+    public void setProcessNanos(long processNanos) {
+        this.processNanos = processNanos;
+    }
+
+    /**
+     * Records where the start line of a received message, with its line terminator, is in the buffer of its
+     * fields, so that it can be written back as is while unchanged.
+     */
+    void setRawStartLine(int start, int end) {
+        startLineStart = start;
+        startLineEnd = end;
+    }
+
+    /**
+     * Returns the start of the received start line, or <code>-1</code> if the message has not been received or
+     * its start line has been changed since.
+     */
+    int getRawStartLineStart() {
+        return startLineStart >= 0 && !isStartLineModified() ? startLineStart : -1;
+    }
+
+    int getRawStartLineEnd() {
+        return startLineEnd;
+    }
+
+    protected boolean isStartLineModified() {
+        return false;
+    }
+
+    protected void startLineModified() {
+        startLineStart = -1;
+    }
+
+    /**
+     * Records where the body of a received message is in the buffer of its fields.
+     */
+    void setRawContent(int start, int end) {
+        contentStart = start;
+        contentEnd = end;
+    }
+
+    int getRawContentStart() {
+        return contentStart;
+    }
+
+    int getRawContentEnd() {
+        return contentEnd;
+    }
+
+    /**
+     * Sets the body of a received message as the pooled chunks it was read into, in flush mode. They are given
+     * back to <code>pool</code> by {@link #release()}.
+     */
+    public void setContentChunks(ByteBuffer[] chunks, ByteBufferPool pool) {
+        contentChunks = chunks;
+        this.pool = pool;
+    }
+
+    /**
+     * Tells that the buffer of a received message, set by {@link #rebase(ByteBuffer, int)}, comes from
+     * <code>pool</code>, to which {@link #release()} gives it back.
+     */
+    public void setBufferPool(ByteBufferPool pool) {
+        this.pool = pool;
+        pooledBuffer = true;
+    }
+
+    /**
+     * Tells that the message may be used once processed, e.g. because it has been passed to the application:
+     * {@link #release()} then moves it out of its pooled buffer rather than leave it to be overwritten.
+     */
+    public void retain() {
+        retained = true;
+    }
+
+    ByteBuffer[] getContentChunks() {
+        return contentChunks;
+    }
+
+    /**
+     * Gives the pooled buffers of a received message back to their pool. Called by the server once the message
+     * has been processed.
+     * <p>
+     * A message received in a pooled buffer is first copied into a buffer of its own if it has been
+     * {@link #retain() retained}. The pooled chunks of a large body are not copied: the body is then no longer
+     * available, unless it was copied before with {@link #getRawContent()} or {@link #getContent()}, or replaced
+     * with {@link #setContent(Object, String)}.
+     */
+    public void release() {
+        ByteBufferPool pool = this.pool;
+        if (pool == null)
+            return;
+        this.pool = null;
+
+        ByteBuffer[] chunks = contentChunks;
+        if (chunks != null) {
+            contentChunks = null;
+            contentReleased = true;
+            for (ByteBuffer chunk : chunks)
+                pool.release(chunk);
+        }
+
+        if (pooledBuffer) {
+            pooledBuffer = false;
+            ByteBuffer buffer = fields.getBuffer();
+            if (retained) {
+                ByteBuffer copy = ByteBuffer.allocate(buffer.limit());
+                ByteBuffer bytes = buffer.duplicate();
+                bytes.position(0);
+                copy.put(bytes).flip();
+                rebase(copy, 0);
+            } else {
+                rebase(null, 0);
+            }
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Returns whether the received body has been released without having been copied.
+     */
+    boolean isContentReleased() {
+        return contentReleased && rawContent == null;
+    }
+
+    private void checkReleased() {
+        if (isContentReleased())
+            throw new IllegalStateException("content released");
+    }
+
+    /**
+     * Returns the body as a read-only slice of the receive buffer, without copying it, or <code>null</code> if
+     * the message has no body. A body received in chunks is copied, see {@link #getContentBuffers()}, a body
+     * set by the application is wrapped.
+     */
+    public ByteBuffer getContentBuffer() {
+        checkReleased();
+        if (contentChunks != null) {
+            ByteBuffer buffer = ByteBuffer.allocate(getRawContentLength());
+            for (ByteBuffer chunk : contentChunks)
+                buffer.put(chunk.duplicate());
+            buffer.flip();
+            return buffer.asReadOnlyBuffer();
+        }
+        if (contentStart < 0)
+            return rawContent == null ? null : ByteBuffer.wrap(rawContent).asReadOnlyBuffer();
+        ByteBuffer buffer = fields.getBuffer().asReadOnlyBuffer();
+        buffer.limit(contentEnd).position(contentStart);
+        return buffer.slice();
+    }
+
+    /**
+     * Returns the body as read-only slices of the buffers it was received in, without copying it, or
+     * <code>null</code> if the message has no body.
+     */
+    public ByteBuffer[] getContentBuffers() {
+        if (contentChunks != null) {
+            ByteBuffer[] buffers = new ByteBuffer[contentChunks.length];
+            for (int i = 0; i < buffers.length; i++)
+                buffers[i] = contentChunks[i].asReadOnlyBuffer();
+            return buffers;
+        }
+        ByteBuffer buffer = getContentBuffer();
+        return buffer == null ? null : new ByteBuffer[] { buffer };
+    }
+
+    private int getRawContentLength() {
+        int length = 0;
+        for (ByteBuffer chunk : contentChunks)
+            length += chunk.remaining();
+        return length;
+    }
+
+    /**
+     * Moves the message to a new buffer, where the bytes that were at <code>offset</code> in the previous buffer
+     * are now at index 0.
+     *
+     * @see SipFields#rebase(java.nio.ByteBuffer, int)
+     */
+    public void rebase(ByteBuffer buffer, int offset) {
+        fields.rebase(buffer, offset);
+        if (startLineStart >= 0) {
+            startLineStart -= offset;
+            startLineEnd -= offset;
+        }
+        if (contentStart >= 0) {
+            contentStart -= offset;
+            contentEnd -= offset;
+        }
+    }
+
+    @Override
+    public String getHeader(String name) {
+        return fields.get(name);
+    }
+
+    @Override
+    public ListIterator<String> getHeaders(String name) {
+        return fields.getValues(name).listIterator();
+    }
+
+    @Override
+    public Iterator<String> getHeaderNames() {
+        return fields.getNames();
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        fields.remove(name);
+        fields.add(name, value);
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        fields.add(name, value);
+    }
+
+    @Override
+    public void removeHeader(String name) {
+        fields.remove(name);
+    }
+
+    @Override
+    public String getCallId() {
+        return fields.get(SipHeader.CALL_ID);
+    }
+
+    @Override
+    public String getProtocol() {
+        return SipVersion.SIP_2_0.asString();
+    }
+
+    @Override
+    public int getContentLength() {
+        return TypeUtils.toInt(fields.get(SipHeader.CONTENT_LENGTH), 0);
+    }
+
+    @Override
+    public String getContentType() {
+        return fields.get(SipHeader.CONTENT_TYPE);
+    }
+
+    @Override
+    public String getCharacterEncoding() {
+        return characterEncoding;
+    }
+
+    @Override
+    public void setCharacterEncoding(String encoding) {
+        this.characterEncoding = encoding;
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return attributes == null ? null : attributes.get(name);
+    }
+
+    @Override
+    public Enumeration<String> getAttributeNames() {
+        if (attributes == null)
+            return Collections.emptyEnumeration();
+        return Collections.enumeration(attributes.keySet());
+    }
+
+    @Override
+    public void setAttribute(String name, Object o) {
+        if (attributes == null)
+            attributes = new HashMap<>();
+        attributes.put(name, o);
+    }
+
+    @Override
+    public void removeAttribute(String name) {
+        if (attributes != null)
+            attributes.remove(name);
+    }
+
+    @Override
+    public boolean isSecure() {
+        return connection != null && connection.getTransport().isSecure();
+    }
+
+    @Override
+    public String getTransport() {
+        return connection == null ? null : connection.getTransport().getName();
+    }
+
+    @Override
+    public String getLocalAddr() {
+        return connection == null ? null : connection.getLocalAddress().getAddress().getHostAddress();
+    }
+
+    @Override
+    public int getLocalPort() {
+        return connection == null ? -1 : connection.getLocalAddress().getPort();
+    }
+
+    @Override
+    public String getRemoteAddr() {
+        return connection == null ? null : connection.getRemoteAddress().getAddress().getHostAddress();
+    }
+
+    @Override
+    public int getRemotePort() {
+        return connection == null ? -1 : connection.getRemoteAddress().getPort();
+    }
+
+    @Override
+    public String getInitialTransport() {
+        return getTransport();
+    }
+
+    @Override
+    public String getInitialRemoteAddr() {
+        return getRemoteAddr();
+    }
+
+    @Override
+    public int getInitialRemotePort() {
+        return getRemotePort();
+    }
+
+    @Override
+    public Address getFrom() {
+        return null;
+    }
+
+    @Override
+    public Address getTo() {
+        return null;
+    }
+
+    @Override
+    public Address getAddressHeader(String s) throws ServletParseException {
+        return null;
+    }
+
+    @Override
+    public ListIterator<Address> getAddressHeaders(String s) throws ServletParseException {
+        return null;
+    }
+
+    @Override
+    public void setAddressHeader(String s, Address address) {
+
+    }
+
+    @Override
+    public void addAddressHeader(String s, Address address, boolean b) {
+
+    }
+
+    @Override
+    public Parameterable getParameterableHeader(String s) throws ServletParseException {
+        return null;
+    }
+
+    @Override
+    public ListIterator<? extends Parameterable> getParameterableHeaders(String s) throws ServletParseException {
+        return null;
+    }
+
+    @Override
+    public void setParameterableHeader(String s, Parameterable parameterable) {
+
+    }
+
+    @Override
+    public void addParameterableHeader(String s, Parameterable parameterable, boolean b) {
+
+    }
+
+    @Override
+    public int getExpires() {
+        return 0;
+    }
+
+    @Override
+    public void setExpires(int i) {
+
+    }
+
+    /**
+     * Returns whether the message has been dispatched before its body was received, in which case the body is
+     * only available from {@link #getContentStream()}.
+     */
+    public boolean isContentStreamed() {
+        return contentStream != null;
+    }
+
+    public void setContentStream(ContentInputStream contentStream) {
+        this.contentStream = contentStream;
+    }
+
+    /**
+     * Returns the body as a stream: the body as it is received if the message has been dispatched before it
+     * was, else a view of the received body. Returns <code>null</code> if the message has no body.
+     */
+    public InputStream getContentStream() throws IOException {
+        if (contentStream != null)
+            return contentStream;
+        checkReleased();
+        if (contentChunks != null) {
+            List<InputStream> streams = new ArrayList<>(contentChunks.length);
+            for (ByteBuffer chunk : contentChunks) {
+                if (!chunk.hasArray())
+                    return new ByteArrayInputStream(getRawContent());
+                streams.add(new ByteArrayInputStream(chunk.array(), chunk.arrayOffset() + chunk.position(),
+                        chunk.remaining()));
+            }
+            return new SequenceInputStream(Collections.enumeration(streams));
+        }
+        if (contentStart < 0)
+            return rawContent == null ? null : new ByteArrayInputStream(rawContent);
+        ByteBuffer buffer = fields.getBuffer();
+        if (buffer.hasArray())
+            return new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + contentStart,
+                    contentEnd - contentStart);
+        return new ByteArrayInputStream(getRawContent());
+    }
+
+    /**
+     * Returns a copy of the body, made on the first call, or <code>null</code> if the message has no body or
+     * its body is streamed.
+     */
+    @Override
+    public byte[] getRawContent() throws IOException {
+        checkReleased();
+        if (rawContent == null && (contentStart >= 0 || contentChunks != null)) {
+            ByteBuffer buffer = getContentBuffer();
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            rawContent = bytes;
+        }
+        return rawContent;
+    }
+
+    /**
+     * Returns the body as a <code>String</code> if its type is textual, decoded with the charset of the
+     * Content-Type, else as a <code>byte[]</code>. The body is decoded on the first call. Returns
+     * <code>null</code> if the message has no body or its body is streamed.
+     */
+    @Override
+    public Object getContent() throws IOException, UnsupportedEncodingException {
+        checkReleased();
+        if (content == null && contentStart < 0 && (contentChunks != null || contentReleased)) {
+            String type = getContentType();
+            byte[] bytes = getRawContent();
+            content = isText(type) ? new String(bytes, getCharset(type)) : bytes;
+        } else if (content == null && contentStart >= 0) {
+            String type = getContentType();
+            if (isText(type))
+                content = getCharset(type).decode(getContentBuffer()).toString();
+            else
+                content = getRawContent();
+        }
+        return content;
+    }
+
+    private static boolean isText(String type) {
+        if (type == null)
+            return false;
+        String mimeType = MimeTypes.getContentTypeWithoutCharset(type).trim().toLowerCase(Locale.ENGLISH);
+        return mimeType.startsWith("text/") || mimeType.equals("application/sdp");
+    }
+
+    private Charset getCharset(String type) throws UnsupportedEncodingException {
+        String charset = MimeTypes.getCharsetFromContentType(type);
+        if (charset == null)
+            charset = characterEncoding;
+        try {
+            return charset == null ? StandardCharsets.UTF_8 : Charset.forName(charset);
+        } catch (IllegalArgumentException e) {
+            throw new UnsupportedEncodingException(charset);
+        }
+    }
+
+    /**
+     * Sets the body, replacing the received one, together with its Content-Type and Content-Length. A
+     * <code>String</code> is encoded with the charset of <code>contentType</code>.
+     *
+     * @throws IllegalArgumentException if the content is neither a <code>String</code> nor a <code>byte[]</code>.
+     */
+    @Override
+    public void setContent(Object o, String contentType) throws UnsupportedEncodingException {
+        byte[] bytes;
+        if (o == null)
+            bytes = null;
+        else if (o instanceof byte[])
+            bytes = (byte[]) o;
+        else if (o instanceof String)
+            bytes = ((String) o).getBytes(getCharset(contentType));
+        else
+            throw new IllegalArgumentException("unsupported content " + o.getClass().getName());
+
+        release();
+        contentStart = -1;
+        contentStream = null;
+        contentReleased = false;
+        rawContent = bytes;
+        content = o;
+
+        fields.remove(SipHeader.CONTENT_TYPE);
+        if (o != null && contentType != null)
+            fields.add(SipHeader.CONTENT_TYPE, contentType);
+        fields.remove(SipHeader.CONTENT_LENGTH);
+        fields.add(SipHeader.CONTENT_LENGTH, Integer.toString(bytes == null ? 0 : bytes.length));
+    }
+
+    /**
+     * Returns the body set by the application, or <code>null</code> if the body is the received one.
+     */
+    byte[] getApplicationContent() {
+        return contentStart < 0 && contentChunks == null ? rawContent : null;
+    }
+
+    @Override
+    public void setContentLength(int i) {
+
+    }
+
+    @Override
+    public void setContentType(String s) {
+
+    }
+
+    public void setSession(Session session) {
+        this.session = session;
+    }
+
+    @Override
+    public SipSession getSession() {
+        return session;
+    }
+
+    @Override
+    public SipSession getSession(boolean create) {
+        return session;
+    }
+
+    @Override
+    public SipApplicationSession getApplicationSession() {
+        return session == null ? null : session.getApplicationSession();
+    }
+
+    @Override
+    public SipApplicationSession getApplicationSession(boolean create) {
+        return getApplicationSession();
+    }
+
+    @Override
+    public Locale getAcceptLanguage() {
+        return null;
+    }
+
+    @Override
+    public Iterator<Locale> getAcceptLanguages() {
+        return null;
+    }
+
+    @Override
+    public void setAcceptLanguage(Locale locale) {
+
+    }
+
+    @Override
+    public void addAcceptLanguage(Locale locale) {
+
+    }
+
+    @Override
+    public void setContentLanguage(Locale locale) {
+
+    }
+
+    @Override
+    public Locale getContentLanguage() {
+        return null;
+    }
+
+    @Override
+    public void send() throws IOException {
+        if (connection == null)
+            throw new IllegalStateException("no connection");
+        connection.send(SipGenerator.generateBuffers(this));
+    }
+
+    @Override
+    public boolean isCommitted() {
+        return false;
+    }
+
+    @Override
+    public String getRemoteUser() {
+        return null;
+    }
+
+    @Override
+    public boolean isUserInRole(String s) {
+        return false;
+    }
+
+    @Override
+    public Principal getUserPrincipal() {
+        return null;
+    }
+
+    @Override
+    public void setHeaderForm(SipServletMessage.HeaderForm form) {
+
+    }
 
+    @Override
+    public SipServletMessage.HeaderForm getHeaderForm() {
+        return null;
+    }
 }
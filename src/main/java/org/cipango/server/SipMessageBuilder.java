@@ -0,0 +1,89 @@
+package org.cipango.server;
+
+import org.cipango.sip.SipHeader;
+import org.eclipse.jetty.util.BufferUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Builds a {@link SipRequest} or {@link SipResponse} from the parser events. Header fields are kept as offsets
+ * in the parsed buffer, so the buffer must not be reused while the message is alive. Method names, reason phrases
+ * and common header values are shared instances from a {@link SipValueCache}.
+ */
+public class SipMessageBuilder implements SipParser.SipMessageHandler {
+
+    private final SipValueCache valueCache;
+    private SipMessage message;
+
+    public SipMessageBuilder() {
+        this(SipValueCache.getDefault());
+    }
+
+    public SipMessageBuilder(SipValueCache valueCache) {
+        this.valueCache = valueCache;
+    }
+
+    public SipMessage getMessage() {
+        return message;
+    }
+
+    public void reset() {
+        message = null;
+    }
+
+    @Override
+    public boolean startRequest(ByteBuffer buffer, int methodStart, int methodEnd, int uriStart, int uriEnd) {
+        String method = valueCache != null ? valueCache.getMethod(buffer, methodStart, methodEnd) : null;
+        if (method == null)
+            method = toString(buffer, methodStart, methodEnd);
+        message = new SipRequest(method, toString(buffer, uriStart, uriEnd));
+        setBuffer(buffer);
+        message.setRawStartLine(methodStart, lineEnd(buffer, uriEnd));
+        return true;
+    }
+
+    @Override
+    public void startResponse(ByteBuffer buffer, int start, int status, int reasonStart, int reasonEnd) {
+        String reason = valueCache != null ? valueCache.getReasonPhrase(status, buffer, reasonStart, reasonEnd) : null;
+        if (reason == null)
+            reason = toString(buffer, reasonStart, reasonEnd);
+        message = new SipResponse(status, reason);
+        setBuffer(buffer);
+        message.setRawStartLine(start, lineEnd(buffer, reasonEnd));
+    }
+
+    private void setBuffer(ByteBuffer buffer) {
+        message.getFields().setBuffer(buffer);
+        message.getFields().setValueCache(valueCache);
+    }
+
+    @Override
+    public void parsedHeader(ByteBuffer buffer, SipHeader header, int nameStart, int nameEnd, int valueStart, int valueEnd) {
+        message.getFields().add(header, nameStart, nameEnd, valueStart, valueEnd);
+    }
+
+    @Override
+    public void headerComplete() {
+    }
+
+    @Override
+    public void content(ByteBuffer buffer, int start, int end) {
+        if (end > start)
+            message.setRawContent(start, end);
+    }
+
+    @Override
+    public void messageComplete() {
+    }
+
+    private static int lineEnd(ByteBuffer buffer, int i) {
+        while (buffer.get(i) != SipParser.LF)
+            i++;
+        return i + 1;
+    }
+
+    private static String toString(ByteBuffer buffer, int start, int end) {
+        return BufferUtil.toString(buffer, start, end - start, StandardCharsets.UTF_8);
+    }
+}
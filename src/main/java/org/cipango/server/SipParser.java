@@ -1,118 +1,407 @@
 package org.cipango.server;
 
+import org.cipango.sip.SipHeader;
 import org.cipango.sip.SipRules;
 import org.cipango.sip.SipVersion;
-import org.cipango.util.Scanner;
+import org.cipango.util.BufferScanner;
 
-import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 
+/**
+ * Incremental SIP parser working directly on the receive buffer.
+ * <p>
+ * Nothing is decoded: the start line and header fields are reported to the {@link SipMessageHandler} as
+ * absolute indexes into the parsed buffer. A message may be fed in several calls to {@link #parse(ByteBuffer)}
+ * as long as the bytes already parsed are left in place, which is what a stream connector does when it
+ * appends a new read to its buffer.
+ */
 public class SipParser {
 
     enum State {
-        START, HEADER, END;
+        START, HEADER, CONTENT, END, SKIPPED;
     }
 
     public static final byte CR = 0x0D;
     public static final byte LF = 0x0A;
+    public static final byte SPACE = 0x20;
+    public static final byte TAB = 0x09;
+    public static final byte COLON = ':';
 
-    private ByteBuffer lineBuffer = ByteBuffer.allocate(2048);
+    public static final int DEFAULT_MAX_HEADER_SIZE = 8192;
+
+    private static final byte[] SIP_VERSION = SipVersion.SIP_2_0.asString().getBytes(StandardCharsets.US_ASCII);
+
+    private final SipMessageHandler handler;
+    private final int maxHeaderSize;
+    private final BufferScanner scanner = new BufferScanner();
 
-    private byte eol;
     private State state = State.START;
 
-    private String header;
+    private int messageStart = -1;
+    private int lineStart = -1;
+
+    private int nameStart = -1;
+    private int nameEnd;
+    private int valueStart;
+    private int valueEnd;
+
+    private int contentLength = -1;
+    private int contentStart;
+    private boolean datagram;
+
+    public SipParser(SipMessageHandler handler) {
+        this(handler, DEFAULT_MAX_HEADER_SIZE);
+    }
+
+    public SipParser(SipMessageHandler handler, int maxHeaderSize) {
+        this.handler = handler;
+        this.maxHeaderSize = maxHeaderSize;
+    }
+
+    public SipMessageHandler getHandler() {
+        return handler;
+    }
+
+    public boolean isComplete() {
+        return state == State.END;
+    }
+
+    /**
+     * Whether the handler has declined the message in {@link SipMessageHandler#startRequest}: the rest of the
+     * message is not parsed.
+     */
+    public boolean isSkipped() {
+        return state == State.SKIPPED;
+    }
+
+    /**
+     * Whether the start line and all the header fields of the message being parsed have been parsed.
+     */
+    public boolean isHeaderComplete() {
+        return state == State.CONTENT || state == State.END;
+    }
+
+    public boolean isDatagram() {
+        return datagram;
+    }
+
+    /**
+     * Parses each buffer as a whole datagram, with the rules of RFC 3261 18.3 for message-oriented transports:
+     * a message without Content-Length extends to the end of the buffer, bytes after the body are ignored, and a
+     * body shorter than its Content-Length is an error.
+     */
+    public void setDatagram(boolean datagram) {
+        this.datagram = datagram;
+    }
+
+    /**
+     * Index of the first byte of the message being parsed, or <code>-1</code> if parsing has not started.
+     */
+    public int getMessageStart() {
+        return messageStart;
+    }
+
+    /**
+     * Value of the Content-Length header of the message being parsed, or <code>-1</code> if it has none.
+     */
+    public int getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Index of the first byte of the body of the message being parsed, once its header is complete.
+     */
+    public int getContentStart() {
+        return contentStart;
+    }
+
+    public void reset() {
+        state = State.START;
+        messageStart = -1;
+        lineStart = -1;
+        nameStart = -1;
+        contentLength = -1;
+    }
+
+    /**
+     * Tells the parser that the bytes of the message being parsed have been moved <code>offset</code> bytes
+     * towards the start of the buffer, for instance by a compaction of the buffer.
+     */
+    public void rebase(int offset) {
+        if (messageStart < 0)
+            return;
+        messageStart -= offset;
+        lineStart -= offset;
+        contentStart -= offset;
+        if (nameStart >= 0) {
+            nameStart -= offset;
+            nameEnd -= offset;
+            valueStart -= offset;
+            valueEnd -= offset;
+        }
+    }
+
+    /**
+     * Parses the bytes between the buffer position and its limit. The position is moved past the consumed bytes.
+     * The body is framed with the Content-Length header, a message without one has no body unless parsing
+     * datagrams.
+     *
+     * @return <code>true</code> if a complete message has been parsed, <code>false</code> if more bytes are needed
+     * or if the message has been skipped, see {@link #isSkipped()}.
+     */
+    public boolean parse(ByteBuffer buffer) throws ParseException {
+        if (state == State.END)
+            return true;
+        if (state == State.SKIPPED)
+            return false;
+
+        if (state != State.CONTENT && !parseHeaders(buffer))
+            return false;
+
+        if (state == State.CONTENT) {
+            int contentEnd = contentLength < 0 ? buffer.limit() : contentStart + contentLength;
+            if (buffer.limit() < contentEnd) {
+                if (datagram)
+                    throw new ParseException("Body shorter than Content-Length", buffer.limit() - messageStart);
+                buffer.position(buffer.limit());
+                return false;
+            }
+            buffer.position(contentEnd);
+            state = State.END;
+            handler.content(buffer, contentStart, contentEnd);
+            handler.messageComplete();
+        }
+        return true;
+    }
 
-    public void parse(ByteBuffer buffer) throws ParseException, IOException {
+    private boolean parseHeaders(ByteBuffer buffer) throws ParseException {
+        int i = buffer.position();
+        int limit = buffer.limit();
 
-        while (buffer.hasRemaining()) {
-            byte b = buffer.get();
+        if (lineStart < 0) {
+            messageStart = i;
+            lineStart = i;
+            contentLength = -1;
+        }
 
-            if (eol == CR && b == LF) {
-                eol = LF;
+        while (i < limit) {
+            if (buffer.get(i++) != LF)
                 continue;
+
+            int lineEnd = i - 1;
+            if (lineEnd > lineStart && buffer.get(lineEnd - 1) == CR)
+                lineEnd--;
+
+            parseLine(buffer, lineStart, lineEnd);
+            lineStart = i;
+
+            if (state == State.SKIPPED) {
+                buffer.position(i);
+                return false;
             }
-            eol = 0;
 
-            if (!lineBuffer.hasRemaining())
-                throw new IOException("Line too large");
+            if (state == State.START)
+                messageStart = i; // leading CRLF are ignored (RFC 3261 7.5)
+            else if (lineStart - messageStart > maxHeaderSize)
+                throw new ParseException("Header too large", lineStart - messageStart);
 
-            if (b == CR || b == LF) {
-                eol = b;
-                parseLine(takeString());
-            } else {
-                lineBuffer.put(b);
+            if (state == State.CONTENT || state == State.END) {
+                contentStart = i;
+                buffer.position(i);
+                return true;
             }
         }
+        buffer.position(i);
+
+        if (i - messageStart > maxHeaderSize)
+            throw new ParseException("Header too large", i - messageStart);
+
+        return false;
     }
 
-    protected String takeString() {
-        lineBuffer.flip();
+    private void parseLine(ByteBuffer buffer, int start, int end) throws ParseException {
+        switch (state) {
+            case START:
+                if (start == end)
+                    return;
+
+                if (startsWithVersion(buffer, start, end)) {
+                    parseStatusLine(buffer, start, end);
+                    state = State.HEADER;
+                } else {
+                    state = parseRequestLine(buffer, start, end) ? State.HEADER : State.SKIPPED;
+                }
+                break;
 
-        String line = StandardCharsets.UTF_8.decode(lineBuffer).toString();
-        lineBuffer.clear();
+            case HEADER:
+                if (start == end) {
+                    flushHeader(buffer);
+                    handler.headerComplete();
+                    if (contentLength > 0 || datagram && contentLength < 0) {
+                        state = State.CONTENT;
+                    } else {
+                        state = State.END;
+                        handler.messageComplete();
+                    }
+                } else {
+                    byte b = buffer.get(start);
+                    if (b == SPACE || b == TAB)
+                        parseContinuation(buffer, start, end);
+                    else {
+                        flushHeader(buffer);
+                        parseHeader(buffer, start, end);
+                    }
+                }
+                break;
 
-        return line;
+            default:
+                throw new IllegalStateException(state.toString());
+        }
     }
 
-    protected void parseLine(String line) throws ParseException {
+    private BufferScanner scan(ByteBuffer buffer, int start, int end) {
+        scanner.reset(buffer, start, end);
+        scanner.setOrigin(messageStart);
+        return scanner;
+    }
 
-        if (state == State.START) {
-            if (!isResponse(line)) {
+    private boolean parseRequestLine(ByteBuffer buffer, int start, int end) throws ParseException {
+        BufferScanner scanner = scan(buffer, start, end);
 
-                Scanner scanner = new Scanner(line);
-                String method = scanner.token();
-                String uri = scanner.matchSpace().readUntilSpace();
+        int methodEnd = scanner.token();
 
+        int uriStart = scanner.matchSpace().getPosition();
+        int uriEnd = scanner.readUntil((char) SPACE);
+        if (uriEnd == uriStart)
+            throw new ParseException("Expecting Request-URI", uriEnd - messageStart);
 
-                state = State.HEADER;
-            }
-        } else if (state == State.HEADER) {
-            if (header != null)
+        int i = scanner.matchSpace().getPosition();
+        if (SipVersion.CACHE.get(buffer, i, end - i) != SipVersion.SIP_2_0)
+            throw new ParseException("Unsupported version", i - messageStart);
 
-            if (line.length() == 0)
-                state = State.END;
-            else
-                header = line;
-        }
+        return handler.startRequest(buffer, start, methodEnd, uriStart, uriEnd);
+    }
+
+    private void parseStatusLine(ByteBuffer buffer, int start, int end) throws ParseException {
+        BufferScanner scanner = scan(buffer, start + SIP_VERSION.length, end);
 
+        int i = scanner.matchSpace().getPosition();
+        int status = scanner.readInt(3);
+        if (scanner.getPosition() - i != 3 || status < 100 || (!scanner.eof() && scanner.peek() != SPACE))
+            throw new ParseException("Invalid status code", scanner.getPosition() - messageStart);
+
+        handler.startResponse(buffer, start, status, scanner.skipSpace().getPosition(), end);
     }
 
-    protected boolean isResponse(String line) {
-        return line.startsWith(SipVersion.SIP_2_0.asString());
+    private void parseHeader(ByteBuffer buffer, int start, int end) throws ParseException {
+        int i = scan(buffer, start, end).read(SipRules.TOKEN);
+        if (i == start)
+            throw new ParseException("Expecting header name", i - messageStart);
+
+        nameStart = start;
+        nameEnd = i;
+
+        i = skipSpace(buffer, i, end);
+        if (i == end || buffer.get(i) != COLON)
+            throw new ParseException("Expecting ':'", i - messageStart);
+
+        valueStart = skipSpace(buffer, i + 1, end);
+        valueEnd = trimEnd(buffer, valueStart, end);
     }
 
-    class Handler {
+    private void parseContinuation(ByteBuffer buffer, int start, int end) throws ParseException {
+        if (nameStart < 0)
+            throw new ParseException("Unexpected continuation line", start - messageStart);
 
+        int i = skipSpace(buffer, start, end);
+        if (i == end)
+            return;
+
+        if (valueStart == valueEnd)
+            valueStart = i;
+        valueEnd = trimEnd(buffer, i, end);
+    }
 
-        public void requestLine() {
+    private void flushHeader(ByteBuffer buffer) throws ParseException {
+        if (nameStart >= 0) {
+            SipHeader header = SipHeader.CACHE.get(buffer, nameStart, nameEnd - nameStart);
+            if (header == SipHeader.CONTENT_LENGTH)
+                contentLength = parseContentLength(buffer, valueStart, valueEnd);
 
+            handler.parsedHeader(buffer, header, nameStart, nameEnd, valueStart, valueEnd);
+            nameStart = -1;
         }
     }
 
-    public static void main(String[] args) throws Exception {
-        String s = "INVITE sip:service@192.168.1.26:5070 SIP/2.0\r\n"
-        + "Via: SIP/2.0/UDP 192.168.1.26:5060;branch=z9hG4bK-90021-1-0\r\n"
-        + "From: sipp <sip:sipp@192.168.1.26:5060>;tag=90021SIPpTag001\r\n"
-        + "To: service <sip:service@192.168.1.26:5070>\r\n"
-        + "Call-ID: 1-90021@192.168.1.26\r\n"
-        + "CSeq: 1 INVITE\r\n"
-        + "Contact: sip:sipp@192.168.1.26:5060\r\n"
-        + "Max-Forwards: 70\r\n"
-        + "Subject: Performance Test\r\n"
-        + "Content-Type: application/sdp\r\n"
-        + "Content-Length:   135\r\n"
-        + "\r\n"
-        + "v=0\r\n"
-        + "o=user1 53655765 2353687637 IN IP4 192.168.1.26\r\n"
-        + "s=-\r\n"
-        + "c=IN IP4 192.168.1.26\r\n"
-        + "t=0 0\r\n"
-        + "m=audio 6000 RTP/AVP 0\r\n"
-        + "a=rtpmap:0 PCMU/8000\r\n";
-
-        new SipParser().parse(StandardCharsets.UTF_8.encode(s));
+    private int parseContentLength(ByteBuffer buffer, int start, int end) throws ParseException {
+        BufferScanner scanner = scan(buffer, start, end);
+        if (start == end || end - start > 9 || scanner.peek() < '0' || scanner.peek() > '9')
+            throw new ParseException("Invalid Content-Length", start - messageStart);
+
+        int length = scanner.readInt(9);
+        if (!scanner.eof())
+            throw new ParseException("Invalid Content-Length", scanner.getPosition() - messageStart);
+        return length;
+    }
+
+    private boolean startsWithVersion(ByteBuffer buffer, int start, int end) {
+        if (end - start <= SIP_VERSION.length)
+            return false;
+        for (int i = 0; i < SIP_VERSION.length; i++) {
+            if (buffer.get(start + i) != SIP_VERSION[i])
+                return false;
+        }
+        return buffer.get(start + SIP_VERSION.length) == SPACE;
+    }
+
+    private static int skipSpace(ByteBuffer buffer, int i, int end) {
+        while (i < end) {
+            byte b = buffer.get(i);
+            if (b != SPACE && b != TAB)
+                break;
+            i++;
+        }
+        return i;
+    }
+
+    private static int trimEnd(ByteBuffer buffer, int start, int end) {
+        while (end > start) {
+            byte b = buffer.get(end - 1);
+            if (b != SPACE && b != TAB)
+                break;
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * Receives the parsed elements of a message. Positions are absolute indexes in the parsed buffer.
+     */
+    public interface SipMessageHandler {
+
+        /**
+         * @return <code>false</code> to skip the rest of the message, e.g. when the request line is enough to
+         * tell that it is of no interest.
+         */
+        boolean startRequest(ByteBuffer buffer, int methodStart, int methodEnd, int uriStart, int uriEnd);
+
+        /**
+         * @param start the start of the status line.
+         */
+        void startResponse(ByteBuffer buffer, int start, int status, int reasonStart, int reasonEnd);
+
+        /**
+         * @param header the standard header, resolved from its full or compact name, or <code>null</code> if
+         *               the header is not a standard one.
+         */
+        void parsedHeader(ByteBuffer buffer, SipHeader header, int nameStart, int nameEnd, int valueStart, int valueEnd);
+
+        void headerComplete();
+
+        void content(ByteBuffer buffer, int start, int end);
+
+        void messageComplete();
     }
 }
@@ -1,14 +1,325 @@
 package org.cipango.server;
 
+import org.cipango.server.session.Session;
+import org.cipango.server.session.SessionManager;
+import org.cipango.server.transaction.ServerTransaction;
+import org.cipango.sip.SipHeader;
+import org.cipango.sip.SipScheme;
+import org.cipango.sip.SipURICache;
+import org.cipango.util.StringUtil;
+import org.cipango.util.TypeUtils;
+
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletInputStream;
+import javax.servlet.sip.Address;
+import javax.servlet.sip.AuthInfo;
+import javax.servlet.sip.B2buaHelper;
+import javax.servlet.sip.Proxy;
 import javax.servlet.sip.SipServletRequest;
+import javax.servlet.sip.SipServletResponse;
+import javax.servlet.sip.SipURI;
+import javax.servlet.sip.TooManyHopsException;
 import javax.servlet.sip.URI;
+import javax.servlet.sip.ar.SipApplicationRoutingDirective;
+import javax.servlet.sip.ar.SipApplicationRoutingRegion;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.Enumeration;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class SipRequest extends SipMessage implements SipServletRequest {
 
-public abstract class SipRequest extends SipMessage implements SipServletRequest {
+    private static final SipHeader[] RESPONSE_HEADERS = { SipHeader.VIA, SipHeader.FROM, SipHeader.TO, SipHeader.CALL_ID, SipHeader.CSEQ };
 
     private String method;
     private URI requestURI;
-    private String version;
+    private String rawRequestURI;
+    private ServerTransaction transaction;
+    private String toTag;
+
+    public SipRequest() {
+    }
+
+    public SipRequest(String method, String requestURI) {
+        this.method = method;
+        this.rawRequestURI = requestURI;
+    }
+
+    @Override
+    public boolean isRequest() {
+        return true;
+    }
+
+    @Override
+    public String getMethod() {
+        return method;
+    }
+
+    public void setMethod(String method) {
+        this.method = method;
+        startLineModified();
+    }
+
+    public boolean isAck() {
+        return "ACK".equals(method);
+    }
+
+    /**
+     * Returns the server transaction of a received request, or <code>null</code> if it has none.
+     */
+    public ServerTransaction getTransaction() {
+        return transaction;
+    }
+
+    public void setTransaction(ServerTransaction transaction) {
+        this.transaction = transaction;
+    }
+
+    public String getRawRequestURI() {
+        return requestURI != null ? requestURI.toString() : rawRequestURI;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        if (requestURI == null && rawRequestURI != null) {
+            if (StringUtil.startsWithIgnoreCase(rawRequestURI, SipScheme.SIP.asString())) {
+                try {
+                    requestURI = SipURICache.getDefault().parse(rawRequestURI);
+                } catch (ParseException e) {
+                    return null;
+                }
+            }
+        }
+        return requestURI;
+    }
+
+    @Override
+    public void setRequestURI(URI uri) {
+        if (uri == null)
+            throw new NullPointerException("null uri");
+        this.requestURI = uri;
+        startLineModified();
+    }
+
+    /**
+     * The parsed Request-URI is mutable, so the received start line is only reused if the URI still reads the
+     * same.
+     */
+    @Override
+    protected boolean isStartLineModified() {
+        return requestURI != null && !requestURI.toString().equals(rawRequestURI);
+    }
+
+    @Override
+    public int getMaxForwards() {
+        return TypeUtils.toInt(fields.get(SipHeader.MAX_FORWARDS), -1);
+    }
+
+    @Override
+    public void pushRoute(SipURI uri) {
+
+    }
+
+    @Override
+    public void pushRoute(Address address) {
+
+    }
+
+    @Override
+    public void setMaxForwards(int i) {
+
+    }
+
+    @Override
+    public boolean isInitial() {
+        return false;
+    }
+
+    @Override
+    public ServletInputStream getInputStream() throws IOException {
+        return null;
+    }
+
+    @Override
+    public BufferedReader getReader() throws IOException {
+        return null;
+    }
+
+    @Override
+    public Proxy getProxy() throws TooManyHopsException {
+        return null;
+    }
+
+    @Override
+    public Proxy getProxy(boolean b) throws TooManyHopsException {
+        return null;
+    }
+
+    @Override
+    public SipServletResponse createResponse(int status) {
+        return createResponse(status, null);
+    }
+
+    /**
+     * Creates a response with the standard reason phrase if <code>reason</code> is <code>null</code>. Responses
+     * other than 100 get a To tag if the request has none (RFC 3261 8.2.6.2), the same for all the responses to
+     * the request.
+     */
+    @Override
+    public SipServletResponse createResponse(int status, String reason) {
+        SipResponse response = new SipResponse(status, reason == null ? SipValueCache.getReasonPhrase(status) : reason);
+        SipFields responseFields = response.getFields();
+        for (SipHeader header : RESPONSE_HEADERS) {
+            for (int i = fields.indexOf(header); i != -1; i = fields.nextIndexOf(header, i)) {
+                String value = fields.getValue(i);
+                if (header == SipHeader.TO && status > 100 && SessionManager.getTag(value) == null)
+                    value = value + ";tag=" + getToTag();
+                responseFields.add(header, value);
+            }
+        }
+        response.setConnection(getConnection());
+        response.setRequest(this);
+        return response;
+    }
+
+    /**
+     * Returns the tag added to the To of the responses: the local tag of the session if it has one, else a new
+     * tag that becomes the local tag of the session.
+     */
+    private String getToTag() {
+        if (toTag == null) {
+            Session session = (Session) getSession();
+            if (session != null && session.getLocalTag() != null) {
+                toTag = session.getLocalTag();
+            } else {
+                toTag = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+                if (session != null)
+                    session.setLocalTag(toTag);
+            }
+        }
+        return toTag;
+    }
+
+    @Override
+    public SipServletRequest createCancel() {
+        return null;
+    }
+
+    @Override
+    public void pushPath(Address address) {
+
+    }
+
+    @Override
+    public B2buaHelper getB2buaHelper() {
+        return null;
+    }
+
+    @Override
+    public Address getPoppedRoute() {
+        return null;
+    }
+
+    @Override
+    public Address getInitialPoppedRoute() {
+        return null;
+    }
+
+    @Override
+    public void setRoutingDirective(SipApplicationRoutingDirective directive, SipServletRequest request) {
+
+    }
+
+    @Override
+    public SipApplicationRoutingDirective getRoutingDirective() {
+        return null;
+    }
+
+    @Override
+    public SipApplicationRoutingRegion getRegion() {
+        return null;
+    }
+
+    @Override
+    public URI getSubscriberURI() {
+        return null;
+    }
+
+    @Override
+    public void addAuthHeader(SipServletResponse response, AuthInfo authInfo) {
+
+    }
+
+    @Override
+    public void addAuthHeader(SipServletResponse response, String s, String s2) {
+
+    }
+
+    @Override
+    public String getParameter(String s) {
+        return null;
+    }
+
+    @Override
+    public Enumeration getParameterNames() {
+        return null;
+    }
+
+    @Override
+    public String[] getParameterValues(String s) {
+        return null;
+    }
+
+    @Override
+    public Map getParameterMap() {
+        return null;
+    }
+
+    @Override
+    public String getScheme() {
+        return null;
+    }
+
+    @Override
+    public String getServerName() {
+        return null;
+    }
+
+    @Override
+    public int getServerPort() {
+        return 0;
+    }
+
+    @Override
+    public String getRemoteHost() {
+        return null;
+    }
+
+    @Override
+    public Locale getLocale() {
+        return null;
+    }
+
+    @Override
+    public Enumeration getLocales() {
+        return null;
+    }
 
+    @Override
+    public RequestDispatcher getRequestDispatcher(String s) {
+        return null;
+    }
 
+    @Override
+    public String getRealPath(String s) {
+        return null;
+    }
 
+    @Override
+    public String getLocalName() {
+        return null;
+    }
 }
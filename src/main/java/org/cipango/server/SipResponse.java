@@ -0,0 +1,184 @@
+package org.cipango.server;
+
+import org.cipango.server.transaction.ServerTransaction;
+import org.cipango.sip.SipHeader;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.sip.Proxy;
+import javax.servlet.sip.ProxyBranch;
+import javax.servlet.sip.Rel100Exception;
+import javax.servlet.sip.SipServletRequest;
+import javax.servlet.sip.SipServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.Locale;
+
+public class SipResponse extends SipMessage implements SipServletResponse {
+
+    private int status;
+    private String reason;
+    private SipRequest request;
+
+    public SipResponse() {
+    }
+
+    public SipResponse(int status, String reason) {
+        this.status = status;
+        this.reason = reason;
+        startLineModified();
+    }
+
+    @Override
+    public boolean isRequest() {
+        return false;
+    }
+
+    @Override
+    public String getMethod() {
+        String cseq = fields.get(SipHeader.CSEQ);
+        if (cseq == null)
+            return null;
+        int i = cseq.indexOf(' ');
+        return i == -1 ? null : cseq.substring(i + 1).trim();
+    }
+
+    @Override
+    public int getStatus() {
+        return status;
+    }
+
+    @Override
+    public void setStatus(int status) {
+        setStatus(status, null);
+    }
+
+    @Override
+    public void setStatus(int status, String reason) {
+        if (status < 100 || status > 699)
+            throw new IllegalArgumentException("invalid status " + status);
+        this.status = status;
+        this.reason = reason;
+        startLineModified();
+    }
+
+    @Override
+    public String getReasonPhrase() {
+        return reason;
+    }
+
+    @Override
+    public SipServletRequest getRequest() {
+        return request;
+    }
+
+    public void setRequest(SipRequest request) {
+        this.request = request;
+    }
+
+    /**
+     * Sends the response in the server transaction of its request, if any.
+     */
+    @Override
+    public void send() throws IOException {
+        recordResponseTime();
+        ServerTransaction transaction = request == null ? null : request.getTransaction();
+        if (transaction != null)
+            transaction.send(this);
+        else
+            super.send();
+    }
+
+    /**
+     * Records the time from the dispatch of the request to its first response.
+     */
+    private void recordResponseTime() {
+        if (request == null || request.getProcessNanos() == 0)
+            return;
+        SipConnection connection = request.getConnection();
+        if (connection != null && connection.getConnector() != null)
+            connection.getConnector().getStatistics().getResponseTime()
+                    .record(System.nanoTime() - request.getProcessNanos());
+        request.setProcessNanos(0);
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        return null;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        return null;
+    }
+
+    @Override
+    public Proxy getProxy() {
+        return null;
+    }
+
+    @Override
+    public ProxyBranch getProxyBranch() {
+        return null;
+    }
+
+    @Override
+    public void sendReliably() throws Rel100Exception {
+
+    }
+
+    @Override
+    public SipServletRequest createAck() {
+        return null;
+    }
+
+    @Override
+    public SipServletRequest createPrack() throws Rel100Exception {
+        return null;
+    }
+
+    @Override
+    public Iterator<String> getChallengeRealms() {
+        return null;
+    }
+
+    @Override
+    public boolean isBranchResponse() {
+        return false;
+    }
+
+    @Override
+    public void setBufferSize(int i) {
+
+    }
+
+    @Override
+    public int getBufferSize() {
+        return 0;
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+
+    }
+
+    @Override
+    public void resetBuffer() {
+
+    }
+
+    @Override
+    public void reset() {
+
+    }
+
+    @Override
+    public void setLocale(Locale locale) {
+
+    }
+
+    @Override
+    public Locale getLocale() {
+        return null;
+    }
+}
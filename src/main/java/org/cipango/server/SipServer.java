@@ -1,15 +1,46 @@
 package org.cipango.server;
 
 import org.cipango.server.nio.UdpConnector;
+import org.cipango.server.proxy.StatelessProxy;
+import org.cipango.server.session.SessionManager;
+import org.cipango.server.transaction.TransactionManager;
+import org.cipango.sip.SipURICache;
+import org.cipango.util.VirtualThreads;
+import org.eclipse.jetty.util.annotation.ManagedAttribute;
+import org.eclipse.jetty.util.annotation.ManagedObject;
 import org.eclipse.jetty.util.component.ContainerLifeCycle;
+import org.eclipse.jetty.util.component.LifeCycle;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
 
+import java.io.IOException;
+
+@ManagedObject("SIP server")
 public class SipServer extends ContainerLifeCycle {
 
+    private static final Logger LOG = Log.getLogger(SipServer.class);
+
     private SipConnector[] connectors;
+    private SipHandler handler;
+    private SipDispatcher dispatcher;
+    private TransactionManager transactionManager;
+    private SessionManager sessionManager;
+    private StatelessProxy statelessProxy;
+    private boolean virtualThreads;
+
+    public SipServer() {
+        setDispatcher(new SipDispatcher(this));
+        setTransactionManager(new TransactionManager(this));
+        setSessionManager(new SessionManager());
+        // shared by all servers, only registered so that their statistics are managed and dumped
+        addBean(SipValueCache.getDefault());
+        addBean(SipURICache.getDefault());
+    }
 
     public SipServer(int port) {
+        this();
 
-        SipConnector connector = new UdpConnector();
+        SipConnector connector = new UdpConnector(this);
         connector.setPort(port);
 
         setConnectors(new SipConnector[] { connector });
@@ -25,10 +56,209 @@ public class SipServer extends ContainerLifeCycle {
         }
     }
 
+    protected void doStop() throws Exception {
+        if (connectors != null) {
+            for (SipConnector connector : connectors) {
+                connector.stop();
+            }
+        }
+        super.doStop();
+    }
+
+    /**
+     * Connectors are started after the other beans, see {@link #doStart()}.
+     */
+    @Override
+    protected void start(LifeCycle bean) throws Exception {
+        if (!(bean instanceof SipConnector))
+            super.start(bean);
+    }
+
+    @Override
+    protected void stop(LifeCycle bean) throws Exception {
+        if (!(bean instanceof SipConnector))
+            super.stop(bean);
+    }
+
+    /**
+     * Sets the connectors. They are beans of the server, so that they are dumped and managed with it, but they
+     * are started after and stopped before the other beans.
+     */
     public void setConnectors(SipConnector[] connectors) {
+        updateBeans(this.connectors, connectors);
         this.connectors = connectors;
     }
 
+    @ManagedAttribute("Connectors")
+    public SipConnector[] getConnectors() {
+        return connectors;
+    }
+
+    public SipHandler getHandler() {
+        return handler;
+    }
+
+    public void setHandler(SipHandler handler) {
+        this.handler = handler;
+    }
+
+    @ManagedAttribute("Dispatcher")
+    public SipDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * Sets the dispatcher that messages received by the connectors are queued to. If <code>null</code>,
+     * messages are processed on the connector threads.
+     */
+    public void setDispatcher(SipDispatcher dispatcher) {
+        if (isRunning())
+            throw new IllegalStateException("running");
+        updateBean(this.dispatcher, dispatcher, true);
+        this.dispatcher = dispatcher;
+    }
+
+    @ManagedAttribute("Transaction manager")
+    public TransactionManager getTransactionManager() {
+        return transactionManager;
+    }
+
+    /**
+     * Sets the transaction layer messages go through before reaching the handler. If <code>null</code>,
+     * messages are handled statelessly.
+     */
+    public void setTransactionManager(TransactionManager transactionManager) {
+        if (isRunning())
+            throw new IllegalStateException("running");
+        updateBean(this.transactionManager, transactionManager, true);
+        this.transactionManager = transactionManager;
+    }
+
+    @ManagedAttribute("Session manager")
+    public SessionManager getSessionManager() {
+        return sessionManager;
+    }
+
+    /**
+     * Sets the store of the sessions messages are handled in. If <code>null</code>, messages have no session.
+     */
+    public void setSessionManager(SessionManager sessionManager) {
+        if (isRunning())
+            throw new IllegalStateException("running");
+        updateBean(this.sessionManager, sessionManager, true);
+        this.sessionManager = sessionManager;
+    }
+
+    @ManagedAttribute("Cache of the header values of received messages")
+    public SipValueCache getValueCache() {
+        return SipValueCache.getDefault();
+    }
+
+    @ManagedAttribute("Cache of the URIs of received messages")
+    public SipURICache getURICache() {
+        return SipURICache.getDefault();
+    }
+
+    public StatelessProxy getStatelessProxy() {
+        return statelessProxy;
+    }
+
+    /**
+     * Sets the proxy UDP messages are offered to before they are parsed into {@link SipMessage}s. Messages it
+     * forwards are not handled by the server. If <code>null</code>, the default, all messages are handled.
+     */
+    public void setStatelessProxy(StatelessProxy statelessProxy) {
+        updateBean(this.statelessProxy, statelessProxy);
+        this.statelessProxy = statelessProxy;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Runs message processing, and by default connector acceptors, on virtual threads when the JVM supports
+     * them. Platform threads are used otherwise.
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        if (isRunning())
+            throw new IllegalStateException("running");
+        if (virtualThreads && !VirtualThreads.isSupported())
+            LOG.warn("Virtual threads not supported by this JVM, using platform threads");
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Called by the connectors for each received message.
+     */
+    public void handle(SipMessage message) throws IOException {
+        SipDispatcher dispatcher = this.dispatcher;
+        if (dispatcher != null)
+            dispatcher.dispatch(message);
+        else
+            process(message);
+    }
+
+    /**
+     * Called by the connectors for the first <code>count</code> messages of <code>messages</code>, received in a
+     * single batch.
+     */
+    public void handle(SipMessage[] messages, int count) {
+        SipDispatcher dispatcher = this.dispatcher;
+        if (dispatcher != null) {
+            dispatcher.dispatch(messages, count);
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            try {
+                process(messages[i]);
+            } catch (IOException | RuntimeException e) {
+                LOG.warn("Failed to process " + messages[i], e);
+            }
+        }
+    }
+
+    /**
+     * Processes a received message, then gives its pooled body back with {@link SipMessage#release()}.
+     */
+    public void process(SipMessage message) throws IOException {
+        long now = System.nanoTime();
+        message.setProcessNanos(now);
+        SipConnection connection = message.getConnection();
+        if (message.getReceivedNanos() != 0 && connection != null && connection.getConnector() != null)
+            connection.getConnector().getStatistics().getDispatchLatency().record(now - message.getReceivedNanos());
+
+        try {
+            TransactionManager transactionManager = this.transactionManager;
+            if (transactionManager != null)
+                transactionManager.handle(message);
+            else
+                deliver(message);
+        } finally {
+            message.release();
+        }
+    }
+
+    /**
+     * Passes a message to the handler in its session, once the transaction layer is done with it. The handler may
+     * keep the message, which is therefore {@link SipMessage#retain() retained}.
+     */
+    public void deliver(SipMessage message) throws IOException {
+        SipHandler handler = this.handler;
+        if (handler == null) {
+            if (LOG.isDebugEnabled())
+                LOG.debug("No handler for {}", message);
+            return;
+        }
+        message.retain();
+
+        SessionManager sessionManager = this.sessionManager;
+        if (sessionManager != null)
+            sessionManager.handle(message, handler);
+        else
+            handler.handle(message);
+    }
+
     public static void main(String[] args) throws Exception {
         new SipServer(5070).start();
     }
@@ -0,0 +1,372 @@
+package org.cipango.server;
+
+import org.cipango.sip.SipHeader;
+import org.eclipse.jetty.util.annotation.ManagedAttribute;
+import org.eclipse.jetty.util.annotation.ManagedObject;
+import org.eclipse.jetty.util.annotation.ManagedOperation;
+
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shared instances of the header values, method names and reason phrases that most messages repeat, so that
+ * decoding them does not create a new String for every message.
+ * <p>
+ * The cache is pre-populated with common values. It may also learn the values seen for a small set of
+ * headers that carry the same value across calls (Max-Forwards, Content-Type, Allow...), up to a bound.
+ * Headers unique to a call (Call-ID, From, To, Via...) or carrying numbers that vary (Content-Length,
+ * Expires) are never cached. Learned values decay: each miss halves the use count of the learned values it
+ * probes, and replaces one that has not been used since, so that one-off values do not hold the cache forever.
+ * Lookups compare the bytes in place and take no lock. A concurrent insertion may be missed, which only costs a
+ * String.
+ */
+@ManagedObject("Header value cache")
+public class SipValueCache {
+
+    public static final int DEFAULT_MAX_LEARNED = 1024;
+    public static final int MAX_VALUE_LENGTH = 128;
+
+    private static final int PROBES = 8;
+
+    private static final Set<SipHeader> CACHEABLE = EnumSet.of(
+            SipHeader.ACCEPT, SipHeader.ACCEPT_ENCODING, SipHeader.ACCEPT_LANGUAGE, SipHeader.ALLOW,
+            SipHeader.ALLOW_EVENTS, SipHeader.CONTENT_DISPOSITION, SipHeader.CONTENT_ENCODING,
+            SipHeader.CONTENT_LANGUAGE, SipHeader.CONTENT_TYPE, SipHeader.EVENT, SipHeader.MAX_FORWARDS,
+            SipHeader.MIME_VERSION, SipHeader.MIN_EXPIRES,
+            SipHeader.MIN_SE, SipHeader.PRIVACY, SipHeader.PROXY_REQUIRE, SipHeader.REQUIRE, SipHeader.SERVER,
+            SipHeader.SESSION_EXPIRES, SipHeader.SUBSCRIPTION_STATE, SipHeader.SUPPORTED, SipHeader.UNSUPPORTED,
+            SipHeader.USER_AGENT);
+
+    private static final String[] METHODS = {
+            "INVITE", "ACK", "BYE", "CANCEL", "OPTIONS", "REGISTER", "PRACK", "SUBSCRIBE", "NOTIFY", "PUBLISH",
+            "INFO", "REFER", "MESSAGE", "UPDATE"
+    };
+
+    private static final String[] REASON_PHRASES = new String[700];
+
+    static {
+        REASON_PHRASES[100] = "Trying";
+        REASON_PHRASES[180] = "Ringing";
+        REASON_PHRASES[181] = "Call Is Being Forwarded";
+        REASON_PHRASES[182] = "Queued";
+        REASON_PHRASES[183] = "Session Progress";
+        REASON_PHRASES[200] = "OK";
+        REASON_PHRASES[202] = "Accepted";
+        REASON_PHRASES[301] = "Moved Permanently";
+        REASON_PHRASES[302] = "Moved Temporarily";
+        REASON_PHRASES[400] = "Bad Request";
+        REASON_PHRASES[401] = "Unauthorized";
+        REASON_PHRASES[403] = "Forbidden";
+        REASON_PHRASES[404] = "Not Found";
+        REASON_PHRASES[405] = "Method Not Allowed";
+        REASON_PHRASES[407] = "Proxy Authentication Required";
+        REASON_PHRASES[408] = "Request Timeout";
+        REASON_PHRASES[415] = "Unsupported Media Type";
+        REASON_PHRASES[420] = "Bad Extension";
+        REASON_PHRASES[422] = "Session Interval Too Small";
+        REASON_PHRASES[423] = "Interval Too Brief";
+        REASON_PHRASES[480] = "Temporarily Unavailable";
+        REASON_PHRASES[481] = "Call/Transaction Does Not Exist";
+        REASON_PHRASES[482] = "Loop Detected";
+        REASON_PHRASES[483] = "Too Many Hops";
+        REASON_PHRASES[486] = "Busy Here";
+        REASON_PHRASES[487] = "Request Terminated";
+        REASON_PHRASES[488] = "Not Acceptable Here";
+        REASON_PHRASES[489] = "Bad Event";
+        REASON_PHRASES[491] = "Request Pending";
+        REASON_PHRASES[500] = "Server Internal Error";
+        REASON_PHRASES[501] = "Not Implemented";
+        REASON_PHRASES[502] = "Bad Gateway";
+        REASON_PHRASES[503] = "Service Unavailable";
+        REASON_PHRASES[504] = "Server Time-out";
+        REASON_PHRASES[600] = "Busy Everywhere";
+        REASON_PHRASES[603] = "Decline";
+        REASON_PHRASES[604] = "Does Not Exist Anywhere";
+        REASON_PHRASES[606] = "Not Acceptable";
+    }
+
+    private static final SipValueCache DEFAULT = new SipValueCache(DEFAULT_MAX_LEARNED);
+
+    public static SipValueCache getDefault() {
+        return DEFAULT;
+    }
+
+    public static boolean isCacheable(SipHeader header) {
+        return CACHEABLE.contains(header);
+    }
+
+    public static String getReasonPhrase(int status) {
+        return status >= 0 && status < REASON_PHRASES.length ? REASON_PHRASES[status] : null;
+    }
+
+    private final Entry[] table;
+    private final int maxLearned;
+    private final AtomicInteger learned = new AtomicInteger();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+
+    /**
+     * @param maxLearned the maximum number of values learned from the traffic, <code>0</code> to only use the
+     *                   pre-populated values.
+     */
+    public SipValueCache(int maxLearned) {
+        this.maxLearned = maxLearned;
+        int capacity = Integer.highestOneBit(Math.max(256, (maxLearned + 256) * 2) - 1) << 1;
+        table = new Entry[capacity];
+
+        for (String method : METHODS)
+            put(null, method);
+
+        for (int i = 10; i <= 70; i++)
+            put(SipHeader.MAX_FORWARDS, Integer.toString(i));
+        put(SipHeader.CONTENT_TYPE, "application/sdp");
+        put(SipHeader.CONTENT_TYPE, "application/pidf+xml");
+        put(SipHeader.CONTENT_TYPE, "application/dtmf-relay");
+        put(SipHeader.CONTENT_TYPE, "application/simple-message-summary");
+        put(SipHeader.CONTENT_TYPE, "message/sipfrag");
+        put(SipHeader.CONTENT_TYPE, "text/plain");
+        put(SipHeader.CONTENT_DISPOSITION, "session");
+        put(SipHeader.ALLOW, "INVITE, ACK, CANCEL, BYE, OPTIONS");
+        put(SipHeader.SUPPORTED, "timer");
+        put(SipHeader.SUPPORTED, "100rel");
+        put(SipHeader.SUPPORTED, "replaces");
+        put(SipHeader.SUPPORTED, "path");
+        put(SipHeader.REQUIRE, "100rel");
+        put(SipHeader.EVENT, "presence");
+        put(SipHeader.EVENT, "message-summary");
+        put(SipHeader.EVENT, "refer");
+        put(SipHeader.SUBSCRIPTION_STATE, "active");
+    }
+
+    /**
+     * Returns the value of a <code>header</code> field whose value bytes are between <code>start</code> and
+     * <code>end</code>, or <code>null</code> if the value is not cached and cannot be learned. Only headers
+     * that are {@link #isCacheable(SipHeader) cacheable} are looked up and counted in the statistics.
+     */
+    public String getValue(SipHeader header, ByteBuffer buffer, int start, int end) {
+        if (header == null || !isCacheable(header) || end - start > MAX_VALUE_LENGTH)
+            return null;
+
+        int hash = hash(header, buffer, start, end);
+        String value = lookup(header, hash, buffer, start, end);
+        if (value != null) {
+            hits.increment();
+            return value;
+        }
+        misses.increment();
+
+        if (maxLearned == 0)
+            return null;
+        value = toAscii(buffer, start, end);
+        if (value == null)
+            return null;
+        Entry entry = new Entry(header, value, hash, true);
+        if (learned.get() < maxLearned && insert(entry)) {
+            learned.incrementAndGet();
+            return value;
+        }
+        return replace(entry) ? value : null;
+    }
+
+    /**
+     * Returns the shared instance of a standard method name, or <code>null</code> for an extension method.
+     */
+    public String getMethod(ByteBuffer buffer, int start, int end) {
+        String method = lookup(null, hash(null, buffer, start, end), buffer, start, end);
+        if (method != null)
+            hits.increment();
+        else
+            misses.increment();
+        return method;
+    }
+
+    /**
+     * Returns the standard reason phrase of <code>status</code> if it is the one between <code>start</code> and
+     * <code>end</code>, <code>null</code> otherwise.
+     */
+    public String getReasonPhrase(int status, ByteBuffer buffer, int start, int end) {
+        String reason = getReasonPhrase(status);
+        if (reason != null && matches(reason, buffer, start, end)) {
+            hits.increment();
+            return reason;
+        }
+        misses.increment();
+        return null;
+    }
+
+    @ManagedAttribute("Lookups that returned a shared value")
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @ManagedAttribute("Lookups that found no shared value")
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @ManagedAttribute("Ratio of lookups that returned a shared value")
+    public double getHitRatio() {
+        long hits = this.hits.sum();
+        long total = hits + misses.sum();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * Number of values learned from the traffic.
+     */
+    @ManagedAttribute("Values learned from the traffic")
+    public int getLearned() {
+        return learned.get();
+    }
+
+    @ManagedAttribute("Maximum number of learned values")
+    public int getMaxLearned() {
+        return maxLearned;
+    }
+
+    /**
+     * Number of learned values replaced by newer ones.
+     */
+    @ManagedAttribute("Learned values replaced by newer ones")
+    public long getEvicted() {
+        return evicted.sum();
+    }
+
+    @ManagedOperation(value = "Resets the statistics", impact = "ACTION")
+    public void resetStatistics() {
+        hits.reset();
+        misses.reset();
+    }
+
+    private void put(SipHeader header, String value) {
+        insert(new Entry(header, value, hash(header, value), false));
+    }
+
+    private String lookup(SipHeader header, int hash, ByteBuffer buffer, int start, int end) {
+        int mask = table.length - 1;
+        for (int i = 0; i < PROBES; i++) {
+            Entry entry = table[(hash + i) & mask];
+            if (entry == null)
+                return null;
+            if (entry.hash == hash && entry.header == header && matches(entry.value, buffer, start, end)) {
+                if (entry.learned)
+                    entry.uses++;
+                return entry.value;
+            }
+        }
+        return null;
+    }
+
+    private boolean insert(Entry entry) {
+        int mask = table.length - 1;
+        for (int i = 0; i < PROBES; i++) {
+            int index = (entry.hash + i) & mask;
+            Entry e = table[index];
+            if (e == null) {
+                table[index] = entry;
+                return true;
+            }
+            if (e.hash == entry.hash && e.header == entry.header && e.value.equals(entry.value))
+                return false;
+        }
+        return false;
+    }
+
+    /**
+     * Replaces a learned value of the probe window of <code>entry</code> that has not been used since the last
+     * miss that probed it, and decays the others.
+     */
+    private boolean replace(Entry entry) {
+        int mask = table.length - 1;
+        int victim = -1;
+        for (int i = 0; i < PROBES; i++) {
+            int index = (entry.hash + i) & mask;
+            Entry e = table[index];
+            if (e == null)
+                break;
+            if (!e.learned)
+                continue;
+            if (e.uses == 0) {
+                if (victim == -1)
+                    victim = index;
+            } else {
+                e.uses >>>= 1;
+            }
+        }
+        if (victim == -1)
+            return false;
+        table[victim] = entry;
+        evicted.increment();
+        return true;
+    }
+
+    private static int hash(SipHeader header, ByteBuffer buffer, int start, int end) {
+        int hash = header == null ? -1 : header.ordinal();
+        for (int i = start; i < end; i++)
+            hash = 31 * hash + (buffer.get(i) & 0xff);
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int hash(SipHeader header, String value) {
+        int hash = header == null ? -1 : header.ordinal();
+        for (int i = 0; i < value.length(); i++)
+            hash = 31 * hash + value.charAt(i);
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean matches(String value, ByteBuffer buffer, int start, int end) {
+        if (value.length() != end - start)
+            return false;
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) != (buffer.get(start + i) & 0xff))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Decodes a printable ASCII value, returns <code>null</code> if the value has other bytes (line folding,
+     * UTF-8...).
+     */
+    private static String toAscii(ByteBuffer buffer, int start, int end) {
+        char[] chars = new char[end - start];
+        for (int i = 0; i < chars.length; i++) {
+            int b = buffer.get(start + i);
+            if (b < 0x20 || b > 0x7e)
+                return null;
+            chars[i] = (char) b;
+        }
+        return new String(chars);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s@%x{hits=%d,misses=%d,learned=%d/%d,evicted=%d}", getClass().getSimpleName(),
+                hashCode(), getHits(), getMisses(), getLearned(), maxLearned, getEvicted());
+    }
+
+    private static class Entry {
+
+        final SipHeader header;
+        final String value;
+        final int hash;
+        final boolean learned;
+        /**
+         * Hits since the last decay, updated without synchronization: a lost update only makes the value a little
+         * more likely to be replaced.
+         */
+        int uses;
+
+        Entry(SipHeader header, String value, int hash, boolean learned) {
+            this.header = header;
+            this.value = value;
+            this.hash = hash;
+            this.learned = learned;
+        }
+    }
+}
@@ -1,7 +1,9 @@
 package org.cipango.server;
 
 public enum Transport {
-    UDP("UDP", 5060, false, false, "SIP+D2U", "_sip._udp");
+    UDP("UDP", 5060, false, false, "SIP+D2U", "_sip._udp"),
+    TCP("TCP", 5060, true, false, "SIP+D2T", "_sip._tcp"),
+    TLS("TLS", 5061, true, true, "SIPS+D2T", "_sips._tcp");
 
     private String name;
     private int defaultPort;
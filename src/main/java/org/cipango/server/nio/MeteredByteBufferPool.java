@@ -0,0 +1,86 @@
+package org.cipango.server.nio;
+
+import org.eclipse.jetty.io.ArrayByteBufferPool;
+import org.eclipse.jetty.util.annotation.ManagedAttribute;
+import org.eclipse.jetty.util.annotation.ManagedObject;
+import org.eclipse.jetty.util.annotation.ManagedOperation;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded {@link ArrayByteBufferPool} that counts how often a buffer could be reused. A miss is an acquire that
+ * had to allocate a new buffer, either because its bucket was empty or because the size is not pooled.
+ */
+@ManagedObject("Metered buffer pool")
+public class MeteredByteBufferPool extends ArrayByteBufferPool {
+
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public MeteredByteBufferPool(int minSize, int factor, int maxSize, int maxQueue) {
+        super(minSize, factor, maxSize, maxQueue);
+    }
+
+    @Override
+    public ByteBuffer acquire(int size, boolean direct) {
+        acquired.increment();
+        return super.acquire(size, direct);
+    }
+
+    @Override
+    public ByteBuffer newByteBuffer(int capacity, boolean direct) {
+        misses.increment();
+        return super.newByteBuffer(capacity, direct);
+    }
+
+    @Override
+    public void release(ByteBuffer buffer) {
+        if (buffer != null)
+            released.increment();
+        super.release(buffer);
+    }
+
+    @ManagedAttribute("Buffers acquired")
+    public long getAcquired() {
+        return acquired.sum();
+    }
+
+    @ManagedAttribute("Acquires served from the pool")
+    public long getHits() {
+        return acquired.sum() - misses.sum();
+    }
+
+    @ManagedAttribute("Acquires that allocated a buffer")
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Number of buffers acquired and not released yet.
+     */
+    @ManagedAttribute("Buffers in use")
+    public long getInUse() {
+        return acquired.sum() - released.sum();
+    }
+
+    @ManagedAttribute("Ratio of acquires served from the pool")
+    public double getHitRatio() {
+        long total = acquired.sum();
+        return total == 0 ? 0 : (double) getHits() / total;
+    }
+
+    @ManagedOperation(value = "Resets the statistics", impact = "ACTION")
+    public void resetStatistics() {
+        acquired.reset();
+        released.reset();
+        misses.reset();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s@%x{hits=%d,misses=%d,inUse=%d}", getClass().getSimpleName(), hashCode(),
+                getHits(), getMisses(), getInUse());
+    }
+}
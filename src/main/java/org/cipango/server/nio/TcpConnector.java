@@ -0,0 +1,661 @@
+package org.cipango.server.nio;
+
+import org.cipango.server.AbstractSipConnector;
+import org.cipango.server.ConnectorStatistics;
+import org.cipango.server.ContentInputStream;
+import org.cipango.server.SipConnection;
+import org.cipango.server.SipConnector;
+import org.cipango.server.SipMessage;
+import org.cipango.server.SipMessageBuilder;
+import org.cipango.server.SipParser;
+import org.cipango.server.SipServer;
+import org.cipango.server.Transport;
+import org.eclipse.jetty.io.AbstractConnection;
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.io.Connection;
+import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.io.ManagedSelector;
+import org.eclipse.jetty.io.SelectorManager;
+import org.eclipse.jetty.io.SocketChannelEndPoint;
+import org.eclipse.jetty.util.BufferUtil;
+import org.eclipse.jetty.util.FutureCallback;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ScheduledExecutorScheduler;
+import org.eclipse.jetty.util.thread.Scheduler;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stream connector: blocking acceptors hand the accepted channels over to Jetty selectors, and each connection
+ * parses its messages incrementally as bytes arrive.
+ * <p>
+ * A connection only holds an input buffer while a message is partially read: once all buffered bytes have been
+ * parsed the buffer goes back to the pool, so idle connections cost no buffer memory. The bytes buffered for a
+ * single message are capped by {@link #getMaxMessageSize()}.
+ * <p>
+ * A body that does not fit in the input buffer is read into pooled chunks of {@value #BODY_CHUNK_SIZE} bytes
+ * rather than by growing the buffer, so that memory follows the bytes actually received. The message keeps the
+ * chunks as its body, see {@link SipMessage#getContentBuffers()}, and gives them back to the pool once it has
+ * been processed.
+ * <p>
+ * Optionally, messages with a body of at least {@link #getStreamingThreshold()} bytes are dispatched as soon as
+ * their header is parsed, and their body is read as the application consumes it from
+ * {@link SipMessage#getContentStream()}: a connection then holds at most {@value #STREAM_CHUNKS} chunks whatever
+ * the size of the body. Reading the stream blocks until the peer sends the body, so these messages are not queued
+ * on the lanes of the dispatcher, where a slow peer would hold up the other calls of the lane: each is processed
+ * on its own thread of the connector executor, and is not ordered with the other messages of its call.
+ */
+public class TcpConnector extends AbstractSipConnector {
+
+    private static final Logger LOG = Log.getLogger(TcpConnector.class);
+
+    public static final long DEFAULT_IDLE_TIMEOUT = 300000;
+    public static final long DEFAULT_WRITE_TIMEOUT = 10000;
+    public static final int DEFAULT_INPUT_BUFFER_SIZE = 4096;
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 65536;
+    public static final int DEFAULT_MAX_POOLED_BUFFERS = 256;
+    public static final int BODY_CHUNK_SIZE = 16384;
+    public static final int STREAM_CHUNKS = 4;
+
+    private final Scheduler scheduler;
+    private final SelectorManager selectorManager;
+    private final AtomicInteger connections = new AtomicInteger();
+
+    private volatile ServerSocketChannel acceptChannel;
+    private InetSocketAddress localAddress;
+
+    private volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private volatile long writeTimeout = DEFAULT_WRITE_TIMEOUT;
+    private volatile int inputBufferSize = DEFAULT_INPUT_BUFFER_SIZE;
+    private volatile int maxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+    private volatile int streamingThreshold = -1;
+
+    /**
+     * Creates a connector with its own thread pool, started and stopped with the connector.
+     */
+    public TcpConnector(SipServer server) {
+        this(server, newThreadPool(), true, 1,
+                Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)));
+    }
+
+    /**
+     * Creates a connector running on the given executor, which is left to the caller to stop.
+     */
+    public TcpConnector(SipServer server, Executor executor, int acceptors, int selectors) {
+        this(server, executor, false, acceptors, selectors);
+    }
+
+    private TcpConnector(SipServer server, Executor executor, boolean managed, int acceptors, int selectors) {
+        super(server, executor, acceptors);
+        // added first so that it is started before the selectors and stopped after them
+        if (managed)
+            addBean(executor, true);
+        scheduler = new ScheduledExecutorScheduler();
+        selectorManager = new TcpSelectorManager(executor, scheduler, selectors);
+        addBean(scheduler, true);
+        addBean(selectorManager, true);
+        setByteBufferPool(new MeteredByteBufferPool(0, 1024, DEFAULT_MAX_MESSAGE_SIZE, DEFAULT_MAX_POOLED_BUFFERS));
+    }
+
+    private static QueuedThreadPool newThreadPool() {
+        QueuedThreadPool threadPool = new QueuedThreadPool();
+        threadPool.setName("sip-tcp");
+        return threadPool;
+    }
+
+    public Transport getTransport() {
+        return Transport.TCP;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Time in milliseconds after which a connection with no activity is closed.
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public long getWriteTimeout() {
+        return writeTimeout;
+    }
+
+    /**
+     * Time in milliseconds a send may wait for the peer to read. The connection is closed if the bytes cannot be
+     * written in that time, so that a peer that stops reading does not hold the sending thread.
+     */
+    public void setWriteTimeout(long writeTimeout) {
+        this.writeTimeout = writeTimeout;
+    }
+
+    public int getInputBufferSize() {
+        return inputBufferSize;
+    }
+
+    public void setInputBufferSize(int inputBufferSize) {
+        this.inputBufferSize = inputBufferSize;
+    }
+
+    public int getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
+    /**
+     * Maximum number of bytes a connection may buffer for a single message. The connection is closed if a
+     * message does not fit.
+     */
+    public void setMaxMessageSize(int maxMessageSize) {
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    public int getStreamingThreshold() {
+        return streamingThreshold;
+    }
+
+    /**
+     * Sets the body size from which messages are dispatched before their body is received, or <code>-1</code>,
+     * the default, to always receive the whole message first. Applications must then read or close the
+     * {@link SipMessage#getContentStream() content stream} of these messages, which are not limited by
+     * {@link #getMaxMessageSize()}.
+     */
+    public void setStreamingThreshold(int streamingThreshold) {
+        this.streamingThreshold = streamingThreshold;
+    }
+
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    public SelectorManager getSelectorManager() {
+        return selectorManager;
+    }
+
+    protected void open() throws IOException {
+        acceptChannel = ServerSocketChannel.open();
+        acceptChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        acceptChannel.bind(new InetSocketAddress(InetAddress.getByName(getHost()), getPort()));
+        acceptChannel.configureBlocking(true);
+
+        localAddress = (InetSocketAddress) acceptChannel.getLocalAddress();
+    }
+
+    protected void close() throws IOException {
+        if (acceptChannel != null)
+            acceptChannel.close();
+    }
+
+    protected void accept(int acceptorId) throws IOException {
+        ServerSocketChannel acceptChannel = this.acceptChannel;
+        if (acceptChannel != null && acceptChannel.isOpen()) {
+            SocketChannel channel = acceptChannel.accept();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            selectorManager.accept(channel);
+        }
+    }
+
+    protected EndPoint newEndPoint(SocketChannel channel, ManagedSelector selector, SelectionKey key) {
+        SocketChannelEndPoint endPoint = new SocketChannelEndPoint(channel, selector, key, scheduler);
+        endPoint.setIdleTimeout(idleTimeout);
+        return endPoint;
+    }
+
+    protected Connection newConnection(EndPoint endPoint) {
+        return new TcpConnection(endPoint);
+    }
+
+    class TcpSelectorManager extends SelectorManager {
+
+        TcpSelectorManager(Executor executor, Scheduler scheduler, int selectors) {
+            super(executor, scheduler, selectors);
+        }
+
+        @Override
+        protected EndPoint newEndPoint(SelectableChannel channel, ManagedSelector selector, SelectionKey key) {
+            return TcpConnector.this.newEndPoint((SocketChannel) channel, selector, key);
+        }
+
+        @Override
+        public Connection newConnection(SelectableChannel channel, EndPoint endPoint, Object attachment) {
+            return TcpConnector.this.newConnection(endPoint);
+        }
+
+        @Override
+        public void connectionOpened(Connection connection) {
+            connections.incrementAndGet();
+            super.connectionOpened(connection);
+        }
+
+        @Override
+        public void connectionClosed(Connection connection) {
+            super.connectionClosed(connection);
+            connections.decrementAndGet();
+        }
+    }
+
+    public class TcpConnection extends AbstractConnection implements SipConnection {
+
+        private final SipMessageBuilder builder = new SipMessageBuilder();
+        private final SipParser parser = new SipParser(builder);
+        private ByteBuffer buffer;
+        private final List<ByteBuffer> chunks = new ArrayList<>();
+        private int bodyRemaining;
+        private ContentInputStream stream;
+
+        public TcpConnection(EndPoint endPoint) {
+            super(endPoint, TcpConnector.this.getExecutor());
+        }
+
+        public SipConnector getConnector() {
+            return TcpConnector.this;
+        }
+
+        public Transport getTransport() {
+            return TcpConnector.this.getTransport();
+        }
+
+        public InetSocketAddress getLocalAddress() {
+            return getEndPoint().getLocalAddress();
+        }
+
+        public InetSocketAddress getRemoteAddress() {
+            return getEndPoint().getRemoteAddress();
+        }
+
+        public void send(ByteBuffer buffer) throws IOException {
+            send(new ByteBuffer[] { buffer });
+        }
+
+        /**
+         * Writes the buffers with a single gathering write, waiting at most {@link #getWriteTimeout()}.
+         */
+        @Override
+        public synchronized void send(ByteBuffer... buffers) throws IOException {
+            int bytes = 0;
+            for (ByteBuffer buffer : buffers)
+                bytes += buffer.remaining();
+            getStatistics().messageSent(bytes);
+
+            FutureCallback callback = new FutureCallback();
+            getEndPoint().write(callback, buffers);
+            try {
+                callback.get(writeTimeout, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                LOG.debug("Write timeout on {}", this);
+                getEndPoint().close();
+                throw new InterruptedByTimeoutException();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException)
+                    throw (IOException) e.getCause();
+                throw new IOException(e.getCause());
+            }
+        }
+
+        @Override
+        public void onOpen() {
+            super.onOpen();
+            fillInterested();
+        }
+
+        @Override
+        public void onClose() {
+            releaseBuffer();
+            super.onClose();
+        }
+
+        @Override
+        public void onFillable() {
+            try {
+                while (true) {
+                    if (stream != null) {
+                        ByteBuffer chunk = getByteBufferPool().acquire(Math.min(BODY_CHUNK_SIZE, bodyRemaining), false);
+                        int filled = fill(chunk);
+                        if (filled <= 0) {
+                            getByteBufferPool().release(chunk);
+                            if (filled < 0) {
+                                releaseBuffer();
+                                getEndPoint().shutdownOutput();
+                            } else {
+                                fillInterested();
+                            }
+                            return;
+                        }
+                        bodyRemaining -= filled;
+                        if (!stream.offer(chunk, bodyRemaining == 0))
+                            return; // until the application reads
+                        if (bodyRemaining == 0)
+                            stream = null;
+                        continue;
+                    }
+
+                    if (bodyRemaining > 0) {
+                        int filled = fillBody();
+                        if (filled < 0) {
+                            releaseBuffer();
+                            getEndPoint().shutdownOutput();
+                            return;
+                        }
+                        if (filled == 0) {
+                            fillInterested();
+                            return;
+                        }
+                        if (bodyRemaining == 0)
+                            completeBody();
+                        continue;
+                    }
+
+                    if (buffer == null) {
+                        buffer = getByteBufferPool().acquire(inputBufferSize, false);
+                    } else if (!isPending()) {
+                        BufferUtil.clear(buffer);
+                        parser.reset();
+                    } else if (BufferUtil.space(buffer) == 0) {
+                        makeRoom();
+                    }
+
+                    // the parsed bytes of a pending message must be kept: fill() would discard them if the buffer
+                    // looked empty
+                    int position = buffer.position();
+                    if (isPending())
+                        buffer.position(parser.getMessageStart());
+                    int filled = getEndPoint().fill(buffer);
+                    buffer.position(position);
+
+                    if (filled < 0) {
+                        releaseBuffer();
+                        getEndPoint().shutdownOutput();
+                        return;
+                    }
+                    if (filled == 0) {
+                        if (!isPending())
+                            releaseBuffer();
+                        fillInterested();
+                        return;
+                    }
+                    parse();
+                    checkBody();
+                }
+            } catch (ParseException e) {
+                getStatistics().parseError();
+                if (LOG.isDebugEnabled())
+                    LOG.debug("Closing " + this, e);
+                releaseBuffer();
+                close();
+            } catch (IOException e) {
+                if (LOG.isDebugEnabled())
+                    LOG.debug("Closing " + this, e);
+                releaseBuffer();
+                close();
+            }
+        }
+
+        /**
+         * Parses the buffered messages. The parse time recorded for a message read in several fills is the time of
+         * the last parse only.
+         */
+        protected void parse() throws IOException, ParseException {
+            ConnectorStatistics statistics = getStatistics();
+            while (buffer.hasRemaining()) {
+                long parseStart = System.nanoTime();
+                if (!parser.parse(buffer))
+                    return;
+                statistics.parsed(System.nanoTime() - parseStart);
+
+                int start = parser.getMessageStart();
+                int end = buffer.position();
+                statistics.messageReceived(end - start);
+
+                // the message gets its own copy so that the input buffer can be reused
+                ByteBuffer bytes = buffer.duplicate();
+                bytes.position(start).limit(end);
+                ByteBuffer copy = ByteBuffer.allocate(end - start);
+                copy.put(bytes).flip();
+
+                SipMessage message = builder.getMessage();
+                message.rebase(copy, start);
+                message.setConnection(this);
+                message.setReceivedNanos(parseStart);
+
+                parser.reset();
+                builder.reset();
+
+                getServer().handle(message);
+            }
+        }
+
+        /**
+         * Called when the buffered bytes have been parsed: if the header of a message is complete but its body
+         * would not fit in the input buffer, switches to reading the body in chunks.
+         */
+        private void checkBody() throws IOException {
+            if (!parser.isHeaderComplete() || parser.isComplete())
+                return;
+
+            int threshold = streamingThreshold;
+            if (threshold >= 0 && parser.getContentLength() >= threshold) {
+                startStream();
+                return;
+            }
+
+            int start = parser.getMessageStart();
+            int end = parser.getContentStart() + parser.getContentLength();
+            if (end - start > maxMessageSize)
+                throw new IOException("Message too large");
+            if (end - start > buffer.capacity())
+                bodyRemaining = end - buffer.limit();
+        }
+
+        /**
+         * Processes the message with its header only on a thread of the executor, its body to be offered to its
+         * content stream as it is read.
+         */
+        private void startStream() throws IOException {
+            int start = parser.getMessageStart();
+            int contentStart = parser.getContentStart();
+            int limit = buffer.limit();
+            ByteBufferPool pool = getByteBufferPool();
+
+            ByteBuffer header = ByteBuffer.allocate(contentStart - start);
+            ByteBuffer bytes = buffer.duplicate();
+            bytes.position(start).limit(contentStart);
+            header.put(bytes).flip();
+
+            SipMessage message = builder.getMessage();
+            message.rebase(header, start);
+            message.setConnection(this);
+            message.setReceivedNanos(System.nanoTime());
+            getStatistics().messageReceived(contentStart - start + parser.getContentLength());
+
+            stream = new ContentInputStream(pool, STREAM_CHUNKS, this::fillInterested);
+            message.setContentStream(stream);
+            bodyRemaining = parser.getContentLength() - (limit - contentStart);
+            if (limit > contentStart) {
+                ByteBuffer chunk = pool.acquire(limit - contentStart, false);
+                bytes.limit(limit).position(contentStart);
+                BufferUtil.append(chunk, bytes);
+                stream.offer(chunk, false);
+            }
+
+            parser.reset();
+            builder.reset();
+            BufferUtil.clear(buffer);
+
+            ContentInputStream stream = this.stream;
+            try {
+                getExecutor().execute(() -> process(message, stream));
+            } catch (RejectedExecutionException e) {
+                // nobody will read the body
+                stream.close();
+                throw new IOException("Failed to process streamed message", e);
+            }
+        }
+
+        private void process(SipMessage message, ContentInputStream stream) {
+            try {
+                getServer().process(message);
+            } catch (Throwable t) {
+                LOG.warn("Failed to process " + message, t);
+                // the rest of the body is discarded, not left to stall the connection
+                stream.close();
+            }
+        }
+
+        /**
+         * Reads body bytes into the last chunk, never past the end of the body.
+         */
+        private int fillBody() throws IOException {
+            ByteBuffer chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+            if (chunk == null || chunk.limit() == chunk.capacity()) {
+                chunk = getByteBufferPool().acquire(Math.min(BODY_CHUNK_SIZE, bodyRemaining), false);
+                chunks.add(chunk);
+            }
+
+            int filled = fill(chunk);
+            if (filled > 0)
+                bodyRemaining -= filled;
+            return filled;
+        }
+
+        /**
+         * Reads into the space after the limit of <code>chunk</code>, at most the remaining bytes of the body.
+         */
+        private int fill(ByteBuffer chunk) throws IOException {
+            ByteBuffer window = chunk.duplicate();
+            window.limit(Math.min(chunk.capacity(), chunk.limit() + bodyRemaining)).position(chunk.limit());
+            window = window.slice();
+            BufferUtil.clear(window);
+
+            int filled = getEndPoint().fill(window);
+            if (filled > 0)
+                chunk.limit(chunk.limit() + filled);
+            return filled;
+        }
+
+        /**
+         * Copies the header, still in the input buffer, into the buffer of the message, which takes the chunks of
+         * the body. The first bytes of the body, read along with the header, are moved into a chunk of their own.
+         */
+        private void completeBody() throws IOException {
+            int start = parser.getMessageStart();
+            int contentStart = parser.getContentStart();
+            int limit = buffer.limit();
+            ByteBufferPool pool = getByteBufferPool();
+
+            ByteBuffer header = ByteBuffer.allocate(contentStart - start);
+            ByteBuffer bytes = buffer.duplicate();
+            bytes.position(start).limit(contentStart);
+            header.put(bytes).flip();
+
+            int length = contentStart - start;
+            if (limit > contentStart) {
+                ByteBuffer chunk = pool.acquire(limit - contentStart, false);
+                bytes.limit(limit).position(contentStart);
+                BufferUtil.append(chunk, bytes);
+                chunks.add(0, chunk);
+            }
+            for (ByteBuffer chunk : chunks)
+                length += chunk.remaining();
+
+            SipMessage message = builder.getMessage();
+            message.rebase(header, start);
+            message.setContentChunks(chunks.toArray(new ByteBuffer[0]), pool);
+            chunks.clear();
+            message.setConnection(this);
+            message.setReceivedNanos(System.nanoTime());
+            getStatistics().messageReceived(length);
+
+            parser.reset();
+            builder.reset();
+            BufferUtil.clear(buffer);
+
+            getServer().handle(message);
+        }
+
+        private boolean isPending() {
+            int start = parser.getMessageStart();
+            return start >= 0 && start < buffer.limit();
+        }
+
+        /**
+         * Called when the input buffer is full: either moves the message being parsed to the start of the buffer
+         * or grows the buffer, up to the maximum message size.
+         */
+        private void makeRoom() throws IOException {
+            int start = parser.getMessageStart();
+            if (start > 0) {
+                buffer.position(start);
+                BufferUtil.compact(buffer);
+                buffer.position(buffer.limit());
+                rebase(buffer, start);
+                return;
+            }
+
+            int size = buffer.capacity() * 2;
+            if (buffer.capacity() >= maxMessageSize)
+                throw new IOException("Message too large");
+
+            ByteBufferPool pool = getByteBufferPool();
+            ByteBuffer larger = pool.acquire(Math.min(size, maxMessageSize), false);
+            int position = buffer.position();
+            buffer.position(0);
+            BufferUtil.append(larger, buffer);
+            larger.position(position);
+            pool.release(buffer);
+            buffer = larger;
+            rebase(buffer, 0);
+        }
+
+        private void rebase(ByteBuffer buffer, int offset) {
+            parser.rebase(offset);
+            if (builder.getMessage() != null)
+                builder.getMessage().rebase(buffer, offset);
+        }
+
+        private void releaseBuffer() {
+            for (ByteBuffer chunk : chunks)
+                getByteBufferPool().release(chunk);
+            chunks.clear();
+            bodyRemaining = 0;
+            if (stream != null) {
+                stream.fail(new EOFException("Connection closed before the end of the body"));
+                stream = null;
+            }
+
+            ByteBuffer buffer = this.buffer;
+            if (buffer != null) {
+                this.buffer = null;
+                getByteBufferPool().release(buffer);
+                if (parser.getMessageStart() >= 0) {
+                    parser.reset();
+                    builder.reset();
+                }
+            }
+        }
+    }
+}
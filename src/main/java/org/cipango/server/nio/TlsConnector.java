@@ -0,0 +1,156 @@
+package org.cipango.server.nio;
+
+import org.cipango.server.SipServer;
+import org.cipango.server.Transport;
+import org.eclipse.jetty.io.Connection;
+import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.io.ssl.SslConnection;
+import org.eclipse.jetty.io.ssl.SslHandshakeListener;
+import org.eclipse.jetty.util.TypeUtil;
+import org.eclipse.jetty.util.annotation.ManagedAttribute;
+import org.eclipse.jetty.util.annotation.ManagedObject;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * SIPS connector: a {@link TcpConnector} whose connections are wrapped in a Jetty {@link SslConnection}.
+ * <p>
+ * Session caching is enabled on the {@link SslContextFactory} so that clients reconnecting with a session ID or a
+ * session ticket (when enabled on the JVM) skip the full handshake. Handshakes are run on the connector executor
+ * rather than on the thread that was selecting.
+ */
+@ManagedObject("TLS connector")
+public class TlsConnector extends TcpConnector {
+
+    private static final Logger LOG = Log.getLogger(TlsConnector.class);
+
+    public static final int DEFAULT_SESSION_CACHE_SIZE = 20480;
+    public static final int DEFAULT_SESSION_TIMEOUT = 86400;
+
+    private final SslContextFactory sslContextFactory;
+
+    private final LongAdder fullHandshakes = new LongAdder();
+    private final LongAdder resumedHandshakes = new LongAdder();
+    private final LongAdder failedHandshakes = new LongAdder();
+    // IDs and creation times of the sessions seen at the end of full handshakes
+    private final Map<String, Boolean> sessions = Collections.synchronizedMap(new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > 2 * sslContextFactory.getSslSessionCacheSize();
+        }
+    });
+
+    public TlsConnector(SipServer server, SslContextFactory sslContextFactory) {
+        super(server);
+        this.sslContextFactory = sslContextFactory;
+        init();
+    }
+
+    public TlsConnector(SipServer server, SslContextFactory sslContextFactory, Executor executor, int acceptors, int selectors) {
+        super(server, executor, acceptors, selectors);
+        this.sslContextFactory = sslContextFactory;
+        init();
+    }
+
+    private void init() {
+        sslContextFactory.setSessionCachingEnabled(true);
+        if (sslContextFactory.getSslSessionCacheSize() <= 0)
+            sslContextFactory.setSslSessionCacheSize(DEFAULT_SESSION_CACHE_SIZE);
+        if (sslContextFactory.getSslSessionTimeout() <= 0)
+            sslContextFactory.setSslSessionTimeout(DEFAULT_SESSION_TIMEOUT);
+        addBean(sslContextFactory, true);
+    }
+
+    @Override
+    public Transport getTransport() {
+        return Transport.TLS;
+    }
+
+    @ManagedAttribute("SSL context factory")
+    public SslContextFactory getSslContextFactory() {
+        return sslContextFactory;
+    }
+
+    @ManagedAttribute("Full handshakes")
+    public long getFullHandshakes() {
+        return fullHandshakes.sum();
+    }
+
+    @ManagedAttribute("Handshakes that resumed a cached session")
+    public long getResumedHandshakes() {
+        return resumedHandshakes.sum();
+    }
+
+    @ManagedAttribute("Failed handshakes")
+    public long getFailedHandshakes() {
+        return failedHandshakes.sum();
+    }
+
+    @Override
+    protected Connection newConnection(EndPoint endPoint) {
+        InetSocketAddress remoteAddress = endPoint.getRemoteAddress();
+        SSLEngine engine = sslContextFactory.newSSLEngine(remoteAddress.getHostString(), remoteAddress.getPort());
+        engine.setUseClientMode(false);
+
+        TlsConnection tlsConnection = new TlsConnection(endPoint, engine);
+        EndPoint decryptedEndPoint = tlsConnection.getDecryptedEndPoint();
+        decryptedEndPoint.setConnection(new TcpConnection(decryptedEndPoint));
+        return tlsConnection;
+    }
+
+    class TlsConnection extends SslConnection implements SslHandshakeListener {
+
+        private volatile boolean handshaken;
+
+        TlsConnection(EndPoint endPoint, SSLEngine engine) {
+            super(TlsConnector.this.getByteBufferPool(), TlsConnector.this.getExecutor(), endPoint, engine);
+            addHandshakeListener(this);
+        }
+
+        @Override
+        public void onFillable() {
+            // handshake steps, and the key computations they run, do not delay the selector thread
+            if (handshaken)
+                super.onFillable();
+            else
+                getExecutor().execute(super::onFillable);
+        }
+
+        @Override
+        public void handshakeSucceeded(Event event) {
+            handshaken = true;
+
+            // a resumed session is one seen at the end of a previous full handshake. TLS 1.3 resumes it under
+            // a new ID but keeps its creation time, which is then older than this connection
+            SSLSession session = event.getSSLEngine().getSession();
+            String id = "id:" + TypeUtil.toHexString(session.getId());
+            String created = "created:" + session.getCreationTime();
+            if (sessions.containsKey(id)
+                    || session.getCreationTime() < getCreatedTimeStamp() && sessions.containsKey(created)) {
+                resumedHandshakes.increment();
+            } else {
+                fullHandshakes.increment();
+                if (session.getId().length > 0)
+                    sessions.put(id, Boolean.TRUE);
+                sessions.put(created, Boolean.TRUE);
+            }
+        }
+
+        @Override
+        public void handshakeFailed(Event event, Throwable failure) {
+            failedHandshakes.increment();
+            if (LOG.isDebugEnabled())
+                LOG.debug("Handshake failed " + this, failure);
+        }
+    }
+}
@@ -1,54 +1,643 @@
 package org.cipango.server.nio;
 
 import org.cipango.server.AbstractSipConnector;
+import org.cipango.server.ConnectorStatistics;
+import org.cipango.server.SipConnection;
+import org.cipango.server.SipConnector;
+import org.cipango.server.SipMessage;
+import org.cipango.server.SipMessageBuilder;
+import org.cipango.server.SipParser;
+import org.cipango.server.SipRequest;
+import org.cipango.server.SipServer;
 import org.cipango.server.Transport;
+import org.cipango.server.proxy.StatelessProxy;
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.util.BufferUtil;
+import org.eclipse.jetty.util.annotation.ManagedAttribute;
+import org.eclipse.jetty.util.annotation.ManagedObject;
 import org.eclipse.jetty.util.log.Log;
 import org.eclipse.jetty.util.log.Logger;
 
+import javax.servlet.sip.SipServletResponse;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketOption;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
-import java.nio.charset.StandardCharsets;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Datagram connector. Sockets are non-blocking: each receive loop drains the datagrams available on its socket,
+ * up to {@link #getMaxBatch()}, and hands them to the server as a single batch. When its socket is empty, a loop
+ * retries a few times before waiting in its selector, so that a steady flow of datagrams is received without a
+ * wakeup per datagram.
+ * <p>
+ * Datagrams sent from a socket while another thread is writing to it are queued, so that concurrent senders do
+ * not wait for each other. The writing thread also writes up to {@link #getMaxBatch()} of the queued datagrams,
+ * then hands the rest over to a thread of the connector executor. Senders never wait for a full socket send
+ * buffer: their datagram is queued instead, and datagrams sent while the queue holds
+ * {@link #getMaxSendQueue()} of them are dropped.
+ */
+@ManagedObject("UDP connector")
 public class UdpConnector extends AbstractSipConnector {
 
     private static final Logger LOG = Log.getLogger(UdpConnector.class);
 
     public static final int MAX_DATAGRAM_SIZE = 65536;
+    public static final int DEFAULT_MAX_POOLED_BUFFERS = 64;
+    public static final int DEFAULT_MAX_BATCH = 32;
+    public static final int DEFAULT_SPINS = 16;
+    public static final int DEFAULT_MAX_SEND_QUEUE = 1024;
 
-    private volatile DatagramChannel channel;
-    private InetAddress localAddress;
+    private volatile DatagramChannel[] channels;
+    private volatile Sender[] senders;
+    private volatile Receiver[] receivers;
+    private InetSocketAddress localAddress;
+    private boolean reusePort = true;
+    private int maxBatch = DEFAULT_MAX_BATCH;
+    private volatile int spins = Runtime.getRuntime().availableProcessors() > 1 ? DEFAULT_SPINS : 0;
+    private int maxSendQueue = DEFAULT_MAX_SEND_QUEUE;
 
-    public UdpConnector() {
-        super(Executors.newCachedThreadPool(), 1);
+    private final LongAdder receiveCalls = new LongAdder();
+    private final LongAdder selectCalls = new LongAdder();
+    private final LongAdder sendCalls = new LongAdder();
+    private final LongAdder sendDropped = new LongAdder();
+
+    public UdpConnector(SipServer server) {
+        super(server, Executors.newCachedThreadPool(), Runtime.getRuntime().availableProcessors());
+        setByteBufferPool(new MeteredByteBufferPool(0, 1024, MAX_DATAGRAM_SIZE, DEFAULT_MAX_POOLED_BUFFERS));
+    }
+
+    /**
+     * Number of receive loops. With SO_REUSEPORT each loop has its own socket bound to the connector address,
+     * so that the kernel spreads datagrams over them; otherwise the loops share a single socket. Defaults to the
+     * number of processors.
+     */
+    public int getSockets() {
+        return getAcceptors();
+    }
+
+    public void setSockets(int sockets) {
+        setAcceptors(sockets);
+    }
+
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    public void setReusePort(boolean reusePort) {
+        if (isRunning())
+            throw new IllegalStateException("running");
+        this.reusePort = reusePort;
+    }
+
+    @ManagedAttribute("Maximum number of datagrams received per batch")
+    public int getMaxBatch() {
+        return maxBatch;
+    }
+
+    public void setMaxBatch(int maxBatch) {
+        if (isRunning())
+            throw new IllegalStateException("running");
+        if (maxBatch < 1)
+            throw new IllegalArgumentException("invalid batch size: " + maxBatch);
+        this.maxBatch = maxBatch;
+    }
+
+    @ManagedAttribute("Receive attempts on an empty socket before waiting")
+    public int getSpins() {
+        return spins;
+    }
+
+    /**
+     * Number of times a receive loop yields and retries on an empty socket before waiting in its selector. Each
+     * retry is a system call, but saves a wakeup when datagrams keep arriving. Defaults to
+     * {@value #DEFAULT_SPINS}, or 0 on a single processor where spinning delays the threads that would answer.
+     */
+    public void setSpins(int spins) {
+        this.spins = spins;
+    }
+
+    @ManagedAttribute("Maximum number of datagrams queued for sending per socket")
+    public int getMaxSendQueue() {
+        return maxSendQueue;
+    }
+
+    public void setMaxSendQueue(int maxSendQueue) {
+        if (isRunning())
+            throw new IllegalStateException("running");
+        if (maxSendQueue < 1)
+            throw new IllegalArgumentException("invalid send queue size: " + maxSendQueue);
+        this.maxSendQueue = maxSendQueue;
+    }
+
+    @ManagedAttribute("Receive system calls, including those that found no datagram")
+    public long getReceiveCalls() {
+        return receiveCalls.sum();
+    }
+
+    @ManagedAttribute("Selector waits")
+    public long getSelectCalls() {
+        return selectCalls.sum();
+    }
+
+    @ManagedAttribute("Send system calls")
+    public long getSendCalls() {
+        return sendCalls.sum();
+    }
+
+    @ManagedAttribute("Datagrams dropped because the send queue was full")
+    public long getSendDropped() {
+        return sendDropped.sum();
+    }
+
+    /**
+     * Number of sockets actually opened, which is 1 if SO_REUSEPORT is disabled or not supported.
+     */
+    public int getOpenSockets() {
+        DatagramChannel[] channels = this.channels;
+        return channels == null ? 0 : channels.length;
     }
 
     public Transport getTransport() {
         return Transport.UDP;
     }
 
+    public InetSocketAddress getLocalAddress() {
+        return localAddress;
+    }
+
     protected void open() throws IOException {
-        channel = DatagramChannel.open();
-        channel.configureBlocking(true);
-        channel.socket().bind(new InetSocketAddress(InetAddress.getByName(getHost()), getPort()));
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getByName(getHost()), getPort());
+
+        DatagramChannel channel = DatagramChannel.open();
+        SocketOption<Boolean> reusePortOption = reusePort ? getReusePortOption(channel) : null;
+
+        DatagramChannel[] channels = new DatagramChannel[reusePortOption != null ? getSockets() : 1];
+        Sender[] senders = new Sender[channels.length];
+        Receiver[] receivers = new Receiver[getSockets()];
+        channels[0] = channel;
+        try {
+            for (int i = 0; i < channels.length; i++) {
+                if (channels[i] == null)
+                    channels[i] = DatagramChannel.open();
+                channels[i].configureBlocking(false);
+                if (reusePortOption != null)
+                    channels[i].setOption(reusePortOption, true);
+                channels[i].bind(address);
+                senders[i] = new Sender(channels[i]);
+            }
+            // without SO_REUSEPORT, the receive loops share the socket, each waiting in its own selector
+            for (int i = 0; i < receivers.length; i++)
+                receivers[i] = new Receiver(senders[i % senders.length]);
+        } catch (IOException e) {
+            for (DatagramChannel c : channels) {
+                if (c != null)
+                    c.close();
+            }
+            close(receivers, senders);
+            throw e;
+        }
+
+        if (reusePortOption == null && reusePort && getSockets() > 1)
+            LOG.info("SO_REUSEPORT not supported, {} receive loops share a single socket", getSockets());
 
-        localAddress = channel.socket().getLocalAddress();
+        localAddress = (InetSocketAddress) channels[0].getLocalAddress();
+        this.channels = channels;
+        this.senders = senders;
+        this.receivers = receivers;
     }
 
-    protected void accept() throws IOException {
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> getReusePortOption(DatagramChannel channel) {
+        // StandardSocketOptions.SO_REUSEPORT only exists from Java 9
+        for (SocketOption<?> option : channel.supportedOptions()) {
+            if ("SO_REUSEPORT".equals(option.name()) && option.type() == Boolean.class)
+                return (SocketOption<Boolean>) option;
+        }
+        return null;
+    }
+
+    protected void close() throws IOException {
+        DatagramChannel[] channels = this.channels;
+        if (channels != null) {
+            for (DatagramChannel channel : channels)
+                channel.close();
+        }
+        close(receivers, senders);
+    }
+
+    private void close(Receiver[] receivers, Sender[] senders) throws IOException {
+        if (receivers != null) {
+            for (Receiver receiver : receivers) {
+                if (receiver != null)
+                    receiver.close();
+            }
+        }
+        if (senders != null) {
+            for (Sender sender : senders) {
+                if (sender != null)
+                    sender.close();
+            }
+        }
+    }
+
+    protected void accept(int acceptorId) throws IOException {
+        Receiver receiver = receivers[acceptorId];
+        if (receiver.sender.channel.isOpen())
+            receiver.receive();
+    }
+
+    /**
+     * Sends <code>buffer</code> to <code>address</code> from the first socket of the connector.
+     */
+    public void send(ByteBuffer buffer, InetSocketAddress address) throws IOException {
+        Sender[] senders = this.senders;
+        if (senders == null)
+            throw new IOException("not open");
+        senders[0].send(buffer, address);
+    }
+
+    /**
+     * Answers a request with a 400 when its body is shorter than its Content-Length (RFC 3261 18.3). Such
+     * responses are discarded.
+     */
+    private void badRequest(SipMessage message, SipConnection connection) {
+        if (!message.isRequest() || "ACK".equals(message.getMethod()))
+            return;
+        message.setConnection(connection);
+        try {
+            ((SipRequest) message).createResponse(SipServletResponse.SC_BAD_REQUEST, "Content-Length Mismatch").send();
+        } catch (Exception e) {
+            LOG.debug("Failed to reject {}", message, e);
+        }
+    }
+
+    /**
+     * Receive loop state of an acceptor.
+     */
+    class Receiver {
+
+        private final Sender sender;
+        private final Selector selector;
+        private final SipMessage[] batch = new SipMessage[maxBatch];
+        private final ByteBuffer buffer;
+        private final SipMessageBuilder builder = new SipMessageBuilder();
+        private final SipParser parser = new SipParser(builder);
+        private final StatelessProxy.Parser proxyParser = new StatelessProxy.Parser();
+        private int idle;
 
-        if (channel != null && channel.isOpen()) {
+        Receiver(Sender sender) throws IOException {
+            this.sender = sender;
+            selector = Selector.open();
+            sender.channel.register(selector, SelectionKey.OP_READ);
+            // datagrams are forwarded from it or copied out of it, so each receive loop keeps the same buffer
+            buffer = getByteBufferPool().acquire(MAX_DATAGRAM_SIZE, true);
+            parser.setDatagram(true);
+        }
+
+        void close() throws IOException {
+            try {
+                selector.close();
+            } finally {
+                getByteBufferPool().release(buffer);
+            }
+        }
+
+        /**
+         * Drains up to a batch of datagrams, then hands the messages over to the server. If the socket was empty,
+         * retries or waits until it is readable.
+         */
+        void receive() throws IOException {
+            int received = 0;
+            int count = 0;
+            while (received < batch.length) {
+                BufferUtil.clearToFill(buffer);
+                receiveCalls.increment();
+                InetSocketAddress remoteAddress = (InetSocketAddress) sender.channel.receive(buffer);
+                if (remoteAddress == null)
+                    break;
+                received++;
+                BufferUtil.flipToFlush(buffer, 0);
+                getStatistics().messageReceived(buffer.remaining());
+
+                UdpConnection connection = new UdpConnection(sender, remoteAddress);
+                StatelessProxy proxy = getServer().getStatelessProxy();
+                if (proxy != null && proxy.process(buffer, connection, proxyParser))
+                    continue;
+
+                // copied into a buffer of its size so that a small message does not pin the receive buffer while
+                // it is processed, given back to the pool by SipMessage.release()
+                ByteBufferPool pool = getByteBufferPool();
+                ByteBuffer datagram = pool.acquire(buffer.remaining(), false);
+                BufferUtil.append(datagram, buffer);
+                SipMessage message = parse(datagram, connection);
+                if (message != null) {
+                    message.setBufferPool(pool);
+                    batch[count++] = message;
+                } else {
+                    pool.release(datagram);
+                }
+            }
+
+            if (count > 0) {
+                getServer().handle(batch, count);
+                Arrays.fill(batch, 0, count, null);
+            }
+
+            if (received > 0) {
+                idle = 0;
+            } else if (idle < spins) {
+                idle++;
+                Thread.yield();
+            } else {
+                idle = 0;
+                selectCalls.increment();
+                selector.select();
+                selector.selectedKeys().clear();
+            }
+        }
+
+        /**
+         * Returns the message in <code>datagram</code>, or <code>null</code> if it is invalid. The parser is reset
+         * between datagrams rather than created for each.
+         */
+        SipMessage parse(ByteBuffer datagram, SipConnection connection) {
+            ConnectorStatistics statistics = getStatistics();
+            parser.reset();
+            builder.reset();
+            long start = System.nanoTime();
+            try {
+                if (!parser.parse(datagram)) {
+                    statistics.dropped();
+                    LOG.debug("Incomplete message from {}", connection.getRemoteAddress());
+                    return null;
+                }
+            } catch (ParseException e) {
+                statistics.parseError();
+                LOG.debug("Invalid message from {}: {}", connection.getRemoteAddress(), e.getMessage());
+                if (parser.isHeaderComplete())
+                    badRequest(builder.getMessage(), connection);
+                return null;
+            }
+            long parsed = System.nanoTime();
+            statistics.parsed(parsed - start);
+
+            SipMessage message = builder.getMessage();
+            message.setConnection(connection);
+            message.setReceivedNanos(start);
+            return message;
+        }
+    }
+
+    /**
+     * Writes the datagrams sent from a socket. The thread that finds the socket free writes its datagram and up to
+     * a batch of the datagrams queued meanwhile by other threads, without waiting for the socket. Datagrams left
+     * over, or that did not fit in the socket send buffer, are written by a flusher run on the connector executor.
+     */
+    class Sender implements Runnable {
+
+        private final DatagramChannel channel;
+        private final Queue<Datagram> queue = new ConcurrentLinkedQueue<>();
+        // datagrams queued or pending, decremented once written or dropped
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicBoolean writing = new AtomicBoolean();
+        // the datagram that did not fit in the send buffer, only accessed by the writing thread
+        private Datagram pending;
+        private volatile Selector selector;
+
+        Sender(DatagramChannel channel) {
+            this.channel = channel;
+        }
+
+        void send(ByteBuffer buffer, InetSocketAddress address) throws IOException {
+            int length = buffer.remaining();
+            if (!writing.compareAndSet(false, true)) {
+                if (offer(buffer, address))
+                    getStatistics().messageSent(length);
+                // the writer may have finished before the datagram was queued
+                if (!writing.compareAndSet(false, true))
+                    return;
+                try {
+                    flush(maxBatch);
+                } finally {
+                    release();
+                }
+                return;
+            }
+
+            try {
+                if (flush(maxBatch)) {
+                    sendCalls.increment();
+                    if (channel.send(buffer, address) > 0 || !buffer.hasRemaining()) {
+                        getStatistics().messageSent(length);
+                        return;
+                    }
+                }
+                if (offer(buffer, address))
+                    getStatistics().messageSent(length);
+            } finally {
+                release();
+            }
+        }
+
+        /**
+         * Queues a copy of <code>buffer</code>, that the caller may reuse once this returns, or drops it if the
+         * queue is full.
+         */
+        private boolean offer(ByteBuffer buffer, InetSocketAddress address) {
+            if (queued.incrementAndGet() > maxSendQueue) {
+                queued.decrementAndGet();
+                sendDropped.increment();
+                LOG.debug("Send queue full, dropped datagram to {}", address);
+                return false;
+            }
+            ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+            copy.put(buffer).flip();
+            queue.offer(new Datagram(copy, address));
+            return true;
+        }
+
+        /**
+         * Writes up to <code>max</code> queued datagrams, or all of them if <code>max</code> is negative, waiting
+         * for the socket only in the latter case. Returns whether the queue was emptied.
+         */
+        private boolean flush(int max) {
+            int written = 0;
+            while (max < 0 || written < max) {
+                Datagram datagram = pending;
+                pending = null;
+                if (datagram == null) {
+                    datagram = queue.poll();
+                    if (datagram == null)
+                        return true;
+                }
+                try {
+                    while (true) {
+                        sendCalls.increment();
+                        if (channel.send(datagram.buffer, datagram.address) > 0 || !datagram.buffer.hasRemaining())
+                            break;
+                        if (max >= 0) {
+                            pending = datagram;
+                            return false;
+                        }
+                        waitWritable();
+                    }
+                } catch (IOException e) {
+                    LOG.debug("Failed to send to {}", datagram.address, e);
+                }
+                queued.decrementAndGet();
+                written++;
+            }
+            return pending == null && queue.isEmpty();
+        }
+
+        /**
+         * Drops the datagrams queued on a closed socket or a stopped connector.
+         */
+        private void drop() {
+            if (pending != null) {
+                pending = null;
+                queued.decrementAndGet();
+                sendDropped.increment();
+            }
+            while (queue.poll() != null) {
+                queued.decrementAndGet();
+                sendDropped.increment();
+            }
+        }
+
+        /**
+         * Releases the socket, handing the datagrams still queued over to the flusher.
+         */
+        private void release() {
+            while (true) {
+                writing.set(false);
+                if (queued.get() == 0 || !writing.compareAndSet(false, true))
+                    return;
+                try {
+                    getExecutor().execute(this);
+                    return;
+                } catch (RejectedExecutionException e) {
+                    LOG.debug("Dropped the datagrams queued on a stopped connector", e);
+                    drop();
+                }
+            }
+        }
+
+        /**
+         * Flusher, run with the socket held: writes all the queued datagrams, waiting for the socket if needed.
+         */
+        @Override
+        public void run() {
+            try {
+                if (channel.isOpen())
+                    flush(-1);
+                else
+                    drop();
+            } finally {
+                release();
+            }
+        }
+
+        /**
+         * Called by the flusher when the socket send buffer is full.
+         */
+        private void waitWritable() throws IOException {
+            Selector selector = this.selector;
+            if (selector == null) {
+                selector = Selector.open();
+                channel.register(selector, SelectionKey.OP_WRITE);
+                this.selector = selector;
+            }
+            selectCalls.increment();
+            selector.select(1000);
+            selector.selectedKeys().clear();
+        }
+
+        void close() throws IOException {
+            Selector selector = this.selector;
+            if (selector != null)
+                selector.close();
+        }
+    }
+
+    static class Datagram {
+
+        final ByteBuffer buffer;
+        final InetSocketAddress address;
+
+        Datagram(ByteBuffer buffer, InetSocketAddress address) {
+            this.buffer = buffer;
+            this.address = address;
+        }
+    }
+
+    class UdpConnection implements SipConnection {
+
+        private final Sender sender;
+        private final InetSocketAddress remoteAddress;
+
+        UdpConnection(Sender sender, InetSocketAddress remoteAddress) {
+            this.sender = sender;
+            this.remoteAddress = remoteAddress;
+        }
+
+        public SipConnector getConnector() {
+            return UdpConnector.this;
+        }
+
+        public Transport getTransport() {
+            return Transport.UDP;
+        }
+
+        public InetSocketAddress getLocalAddress() {
+            return localAddress;
+        }
+
+        public InetSocketAddress getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        public void send(ByteBuffer buffer) throws IOException {
+            sender.send(buffer, remoteAddress);
+        }
 
-            ByteBuffer buffer = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
-            InetSocketAddress remoteAddress = (InetSocketAddress) channel.receive(buffer);
+        /**
+         * An unconnected datagram channel has no gathering send: the buffers are copied into a pooled buffer.
+         */
+        @Override
+        public void send(ByteBuffer... buffers) throws IOException {
+            if (buffers.length == 1) {
+                send(buffers[0]);
+                return;
+            }
+            int length = 0;
+            for (ByteBuffer buffer : buffers)
+                length += buffer.remaining();
 
-            buffer.put((byte) 65);
-            buffer.flip();
-            System.out.println(StandardCharsets.UTF_8.decode(buffer).toString());
+            ByteBufferPool pool = getByteBufferPool();
+            ByteBuffer datagram = pool.acquire(length, true);
+            try {
+                BufferUtil.clearToFill(datagram);
+                for (ByteBuffer buffer : buffers)
+                    datagram.put(buffer);
+                BufferUtil.flipToFlush(datagram, 0);
+                send(datagram);
+            } finally {
+                pool.release(datagram);
+            }
         }
     }
 }
@@ -0,0 +1,84 @@
+package org.cipango.server.proxy;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Selects the requests forwarded by the {@link StatelessProxy}, by method and Request-URI host.
+ */
+public class ForwardingRule {
+
+    private final String host;
+    private final String[] methods;
+    private final byte[] hostBytes;
+    private final byte[][] methodBytes;
+    private volatile InetSocketAddress nextHop;
+
+    /**
+     * @param host    the Request-URI host, matched ignoring case, or <code>null</code> for any host.
+     * @param methods the methods, matched with case, or none for any method.
+     */
+    public ForwardingRule(String host, String... methods) {
+        this.host = host;
+        this.methods = methods.clone();
+        hostBytes = host == null ? null : host.toLowerCase(Locale.ENGLISH).getBytes(StandardCharsets.US_ASCII);
+        methodBytes = new byte[methods.length][];
+        for (int i = 0; i < methods.length; i++)
+            methodBytes[i] = methods[i].getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public String[] getMethods() {
+        return methods.clone();
+    }
+
+    public InetSocketAddress getNextHop() {
+        return nextHop;
+    }
+
+    /**
+     * Sets the address matching requests are sent to. If <code>null</code>, they are sent to their first Route
+     * that is not this proxy, or to their Request-URI.
+     */
+    public void setNextHop(InetSocketAddress nextHop) {
+        this.nextHop = nextHop;
+    }
+
+    /**
+     * @param hostStart the start of the Request-URI host, or <code>-1</code> if the Request-URI is not a SIP URI.
+     */
+    boolean matches(ByteBuffer buffer, int methodStart, int methodEnd, int hostStart, int hostEnd) {
+        if (methodBytes.length > 0) {
+            int i = 0;
+            while (i < methodBytes.length && !equals(buffer, methodStart, methodEnd, methodBytes[i], false))
+                i++;
+            if (i == methodBytes.length)
+                return false;
+        }
+        return hostBytes == null || hostStart >= 0 && equals(buffer, hostStart, hostEnd, hostBytes, true);
+    }
+
+    private static boolean equals(ByteBuffer buffer, int start, int end, byte[] bytes, boolean ignoreCase) {
+        if (end - start != bytes.length)
+            return false;
+        for (int i = 0; i < bytes.length; i++) {
+            int b = buffer.get(start + i);
+            if (ignoreCase && b >= 'A' && b <= 'Z')
+                b += 'a' - 'A';
+            if (b != bytes[i])
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s{host=%s,methods=%s,nextHop=%s}", getClass().getSimpleName(), host,
+                String.join("|", methods), nextHop);
+    }
+}
@@ -0,0 +1,903 @@
+package org.cipango.server.proxy;
+
+import org.cipango.server.SipConnection;
+import org.cipango.server.SipConnector;
+import org.cipango.server.SipParser;
+import org.cipango.server.Transport;
+import org.cipango.server.nio.UdpConnector;
+import org.cipango.server.transaction.Transaction;
+import org.cipango.sip.SipHeader;
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.util.BufferUtil;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stateless forwarding of UDP messages, before any {@link org.cipango.server.SipMessage} is built.
+ * <p>
+ * Requests matching a {@link ForwardingRule} are forwarded with a Via prepended, Max-Forwards decremented and the top
+ * Route removed if it is this proxy. Responses are forwarded if their top Via was added by this proxy, which is then
+ * removed. The outgoing message is written by copying the received bytes around these edits: header values are never
+ * decoded. Requests are matched against the rules as soon as their request line is parsed, so that the headers of a
+ * request no rule matches are not parsed. Messages the fast path cannot forward (no matching rule, Max-Forwards
+ * exhausted, next hop not UDP or not an IP address...) are left to the normal processing.
+ * <p>
+ * Name resolution would block the receiving thread, so messages are only forwarded to the next hop of their rule
+ * or to IP addresses.
+ */
+public class StatelessProxy {
+
+    private static final Logger LOG = Log.getLogger(StatelessProxy.class);
+
+    public static final int DEFAULT_MAX_FORWARDS = 70;
+
+    /**
+     * Prefix of the branch of the Vias added by the proxy, by which their responses are recognized.
+     */
+    public static final String BRANCH_PREFIX = Transaction.BRANCH_MAGIC_COOKIE + "-sl-";
+
+    private static final byte[] BRANCH = ";branch=".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] RECEIVED = ";received=".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] RPORT = ";rport=".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] RPORT_NAME = ";rport".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] EQUALS = { '=' };
+    private static final byte[] DOT = { '.' };
+    private static final byte[] TRANSPORT = ";transport=".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MAX_FORWARDS = ("\r\n" + SipHeader.MAX_FORWARDS.asString() + ": "
+            + DEFAULT_MAX_FORWARDS).getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CRLF = { SipParser.CR, SipParser.LF };
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private volatile ForwardingRule[] rules = new ForwardingRule[0];
+    private final ConcurrentMap<SipConnector, byte[]> viaPrefixes = new ConcurrentHashMap<>();
+
+    private final LongAdder forwardedRequests = new LongAdder();
+    private final LongAdder forwardedResponses = new LongAdder();
+
+    public ForwardingRule[] getRules() {
+        return rules.clone();
+    }
+
+    /**
+     * Sets the rules requests are matched against, in order. A request is forwarded according to the first
+     * rule it matches.
+     */
+    public void setRules(ForwardingRule... rules) {
+        this.rules = rules.clone();
+    }
+
+    public synchronized void addRule(ForwardingRule rule) {
+        ForwardingRule[] rules = Arrays.copyOf(this.rules, this.rules.length + 1);
+        rules[rules.length - 1] = rule;
+        this.rules = rules;
+    }
+
+    public long getForwardedRequests() {
+        return forwardedRequests.sum();
+    }
+
+    public long getForwardedResponses() {
+        return forwardedResponses.sum();
+    }
+
+    /**
+     * Forwards <code>datagram</code> if it can be forwarded statelessly.
+     *
+     * @return <code>true</code> if the message has been consumed, <code>false</code> if it must be processed
+     * normally, in which case the datagram is left unchanged.
+     */
+    public boolean process(ByteBuffer datagram, SipConnection connection) {
+        return process(datagram, connection, new Parser());
+    }
+
+    /**
+     * Forwards <code>datagram</code> if it can be forwarded statelessly, parsing it with <code>p</code>, e.g. the
+     * parser of the receive loop.
+     */
+    public boolean process(ByteBuffer datagram, SipConnection connection, Parser p) {
+        if (!(connection.getConnector() instanceof UdpConnector))
+            return false;
+
+        int position = datagram.position();
+        p.reset();
+        Headers headers = p.headers;
+        headers.rules = rules;
+        SipParser parser = p.parser;
+        boolean forwarded = false;
+        try {
+            if (parser.parse(datagram) && headers.via >= 0) {
+                int start = parser.getMessageStart();
+                int end = datagram.position();
+                if (headers.request)
+                    forwarded = forwardRequest(datagram, start, end, headers, connection);
+                else
+                    forwarded = forwardResponse(datagram, start, end, headers, connection);
+            }
+        } catch (ParseException e) {
+            LOG.ignore(e);
+        } finally {
+            if (!forwarded)
+                datagram.position(position);
+        }
+        return forwarded;
+    }
+
+    private boolean forwardRequest(ByteBuffer buffer, int start, int end, Headers headers, SipConnection connection) {
+        UdpConnector connector = (UdpConnector) connection.getConnector();
+
+        ForwardingRule rule = headers.rule;
+        int maxForwards = DEFAULT_MAX_FORWARDS;
+        if (headers.maxForwardsStart >= 0) {
+            maxForwards = parseInt(buffer, headers.maxForwardsStart, headers.maxForwardsEnd);
+            if (maxForwards <= 0)
+                return false; // exhausted or invalid, answered by the normal processing
+        }
+
+        Splice splice = new Splice();
+
+        Uri hop = headers.sipUri ? headers.requestUri : null;
+        if (headers.route >= 0) {
+            int comma = comma(buffer, headers.routeValueStart, headers.routeValueEnd);
+            Uri route = new Uri();
+            if (!route.parse(buffer, headers.routeValueStart, comma))
+                return false;
+            if (isLocal(buffer, route.hostStart, route.hostEnd, route.port, connector)) {
+                removeFirst(buffer, splice, headers.route, headers.routeValueStart, comma, headers.routeValueEnd);
+                if (comma < headers.routeValueEnd) {
+                    int next = skipSeparator(buffer, comma, headers.routeValueEnd);
+                    if (!route.parse(buffer, next, comma(buffer, next, headers.routeValueEnd)))
+                        return false;
+                    hop = route;
+                } else if (headers.route2ValueStart >= 0) {
+                    if (!route.parse(buffer, headers.route2ValueStart,
+                            comma(buffer, headers.route2ValueStart, headers.route2ValueEnd)))
+                        return false;
+                    hop = route;
+                }
+            } else {
+                hop = route;
+            }
+        }
+
+        InetSocketAddress target = rule.getNextHop();
+        if (target == null) {
+            if (hop == null || isLocal(buffer, hop.hostStart, hop.hostEnd, hop.port, connector))
+                return false;
+            target = resolve(buffer, hop.hostStart, hop.hostEnd, hop.port);
+            if (target == null)
+                return false;
+        }
+
+        int viaEnd = trimEnd(buffer, headers.viaValueStart, comma(buffer, headers.viaValueStart, headers.viaValueEnd));
+        Via via = new Via();
+        if (!via.parse(buffer, headers.viaValueStart, viaEnd))
+            return false;
+
+        splice.add(headers.via, headers.via, newVia(connector, buffer, headers.viaValueStart, viaEnd,
+                headers.maxForwardsStart < 0));
+        InetSocketAddress remoteAddress = connection.getRemoteAddress();
+        // an empty rport asks for the source port, and for received even if the host is the source (RFC 3581)
+        int rport = emptyParam(buffer, via.paramsStart, viaEnd, RPORT_NAME);
+        if (rport >= 0)
+            splice.add(rport, rport).put(EQUALS).put(remoteAddress.getPort());
+        if (rport >= 0 || !isAddress(buffer, via.hostStart, via.hostEnd, remoteAddress.getAddress()))
+            splice.add(viaEnd, viaEnd).put(RECEIVED).put(remoteAddress.getAddress());
+        if (headers.maxForwardsStart >= 0)
+            splice.add(headers.maxForwardsStart, headers.maxForwardsEnd).put(maxForwards - 1);
+
+        if (!send(buffer, start, end, splice, connection, target))
+            return false;
+        forwardedRequests.increment();
+        return true;
+    }
+
+    private boolean forwardResponse(ByteBuffer buffer, int start, int end, Headers headers, SipConnection connection) {
+        UdpConnector connector = (UdpConnector) connection.getConnector();
+
+        int comma = comma(buffer, headers.viaValueStart, headers.viaValueEnd);
+        Via via = new Via();
+        if (!via.parse(buffer, headers.viaValueStart, trimEnd(buffer, headers.viaValueStart, comma)))
+            return false;
+        int branch = param(buffer, via.paramsStart, via.end, BRANCH);
+        if (branch < 0 || !startsWith(buffer, branch, via.end, BRANCH_PREFIX)
+                || !isLocal(buffer, via.hostStart, via.hostEnd, via.port, connector))
+            return false;
+
+        Splice splice = new Splice();
+        removeFirst(buffer, splice, headers.via, headers.viaValueStart, comma, headers.viaValueEnd);
+
+        Via next = new Via();
+        if (comma < headers.viaValueEnd) {
+            int i = skipSeparator(buffer, comma, headers.viaValueEnd);
+            if (!next.parse(buffer, i, trimEnd(buffer, i, comma(buffer, i, headers.viaValueEnd))))
+                return false;
+        } else if (headers.via2ValueStart < 0 || !next.parse(buffer, headers.via2ValueStart,
+                trimEnd(buffer, headers.via2ValueStart,
+                        comma(buffer, headers.via2ValueStart, headers.via2ValueEnd)))) {
+            return false;
+        }
+        if (!next.isUdp(buffer))
+            return false;
+
+        int hostStart = next.hostStart;
+        int hostEnd = next.hostEnd;
+        int received = param(buffer, next.paramsStart, next.end, RECEIVED);
+        if (received >= 0 && received < paramEnd(buffer, received, next.end)) {
+            hostStart = received;
+            hostEnd = paramEnd(buffer, received, next.end);
+        }
+        int port = next.port;
+        int rport = param(buffer, next.paramsStart, next.end, RPORT);
+        if (rport >= 0) {
+            int p = parseInt(buffer, rport, paramEnd(buffer, rport, next.end));
+            if (p > 0)
+                port = p;
+        }
+
+        InetSocketAddress target = resolve(buffer, hostStart, hostEnd, port);
+        if (target == null || !send(buffer, start, end, splice, connection, target))
+            return false;
+        forwardedResponses.increment();
+        return true;
+    }
+
+    /**
+     * Returns the Via line of the proxy, with a branch derived from the received top Via so that the CANCEL
+     * and the ACK of a request are sent with the branch of the request.
+     */
+    private byte[] newVia(UdpConnector connector, ByteBuffer buffer, int viaStart, int viaEnd, boolean maxForwards) {
+        byte[] prefix = viaPrefixes.computeIfAbsent(connector, c -> (SipHeader.VIA.asString() + ": SIP/2.0/"
+                + Transport.UDP.getName() + " " + c.getHost() + ":" + c.getPort() + ";branch=" + BRANCH_PREFIX)
+                .getBytes(StandardCharsets.US_ASCII));
+
+        long hash = 0xcbf29ce484222325L;
+        for (int i = viaStart; i < viaEnd; i++)
+            hash = (hash ^ (buffer.get(i) & 0xff)) * 0x100000001b3L;
+
+        byte[] line = Arrays.copyOf(prefix, prefix.length + 16 + (maxForwards ? MAX_FORWARDS.length : 0)
+                + CRLF.length);
+        int i = prefix.length;
+        for (int shift = 60; shift >= 0; shift -= 4)
+            line[i++] = HEX[(int) (hash >>> shift) & 0xf];
+        if (maxForwards) {
+            System.arraycopy(MAX_FORWARDS, 0, line, i, MAX_FORWARDS.length);
+            i += MAX_FORWARDS.length;
+        }
+        System.arraycopy(CRLF, 0, line, i, CRLF.length);
+        return line;
+    }
+
+    private boolean send(ByteBuffer buffer, int start, int end, Splice splice, SipConnection connection,
+            InetSocketAddress target) {
+        int length = splice.length(start, end);
+        if (length > UdpConnector.MAX_DATAGRAM_SIZE)
+            return false;
+
+        ByteBufferPool pool = ((UdpConnector) connection.getConnector()).getByteBufferPool();
+        ByteBuffer out = pool.acquire(length, false);
+        try {
+            BufferUtil.clearToFill(out);
+            splice.write(buffer, start, end, out);
+            BufferUtil.flipToFlush(out, 0);
+            send(connection, out, target);
+        } catch (IOException e) {
+            // a stateless proxy drops what it cannot send
+            LOG.debug("Failed to forward to {}", target, e);
+        } finally {
+            pool.release(out);
+        }
+        return true;
+    }
+
+    protected void send(SipConnection connection, ByteBuffer buffer, InetSocketAddress target) throws IOException {
+        ((UdpConnector) connection.getConnector()).send(buffer, target);
+    }
+
+    private static boolean isLocal(ByteBuffer buffer, int hostStart, int hostEnd, int port, SipConnector connector) {
+        if ((port < 0 ? Transport.UDP.getDefaultPort() : port) != connector.getPort())
+            return false;
+        if (equalsIgnoreCase(buffer, hostStart, hostEnd, connector.getHost()))
+            return true;
+        InetSocketAddress local = connector instanceof UdpConnector ? ((UdpConnector) connector).getLocalAddress()
+                : null;
+        return local != null && equalsIgnoreCase(buffer, hostStart, hostEnd, local.getAddress().getHostAddress());
+    }
+
+    /**
+     * Returns the address of a host that is an IP address, or <code>null</code> for a host name.
+     */
+    private static InetSocketAddress resolve(ByteBuffer buffer, int hostStart, int hostEnd, int port) {
+        if (port < 0)
+            port = Transport.UDP.getDefaultPort();
+        try {
+            byte[] ipv4 = parseIPv4(buffer, hostStart, hostEnd);
+            if (ipv4 != null)
+                return new InetSocketAddress(InetAddress.getByAddress(ipv4), port);
+            if (buffer.get(hostStart) == '[' && buffer.get(hostEnd - 1) == ']') {
+                // a bracketed literal is parsed as an IPv6 address, without lookup
+                return new InetSocketAddress(InetAddress.getByName(BufferUtil.toString(buffer, hostStart,
+                        hostEnd - hostStart, StandardCharsets.US_ASCII)), port);
+            }
+        } catch (UnknownHostException e) {
+            LOG.ignore(e);
+        }
+        return null;
+    }
+
+    /**
+     * Returns whether a host is the textual form of <code>address</code>, as written by
+     * {@link Splice#put(InetAddress)}.
+     */
+    private static boolean isAddress(ByteBuffer buffer, int hostStart, int hostEnd, InetAddress address) {
+        if (address instanceof Inet4Address) {
+            byte[] bytes = address.getAddress();
+            int i = hostStart;
+            for (int n = 0; n < 4; n++) {
+                if (n > 0 && (i == hostEnd || buffer.get(i++) != '.'))
+                    return false;
+                int value = 0;
+                int j = i;
+                while (j < hostEnd && j - i < 3 && buffer.get(j) >= '0' && buffer.get(j) <= '9')
+                    value = value * 10 + buffer.get(j++) - '0';
+                if (j == i || value != (bytes[n] & 0xff))
+                    return false;
+                i = j;
+            }
+            return i == hostEnd;
+        }
+        return equalsIgnoreCase(buffer, hostStart, hostEnd, address.getHostAddress());
+    }
+
+    /**
+     * Parses an IPv4 address without going through the name resolution of {@link InetSocketAddress}.
+     */
+    private static byte[] parseIPv4(ByteBuffer buffer, int start, int end) {
+        byte[] address = new byte[4];
+        int i = start;
+        for (int n = 0; n < 4; n++) {
+            int j = i;
+            int value = 0;
+            while (j < end && j - i < 3 && buffer.get(j) >= '0' && buffer.get(j) <= '9')
+                value = value * 10 + buffer.get(j++) - '0';
+            if (j == i || value > 255 || (n < 3 ? j == end || buffer.get(j) != '.' : j != end))
+                return null;
+            address[n] = (byte) value;
+            i = j + 1;
+        }
+        return address;
+    }
+
+    /**
+     * Removes the first value of a header: the value and its comma if the header has several values, the whole
+     * header line otherwise.
+     */
+    private static void removeFirst(ByteBuffer buffer, Splice splice, int nameStart, int valueStart, int comma,
+            int valueEnd) {
+        if (comma < valueEnd) {
+            splice.add(valueStart, skipSeparator(buffer, comma, valueEnd), null);
+        } else {
+            int i = valueEnd;
+            while (buffer.get(i) != SipParser.LF)
+                i++;
+            splice.add(nameStart, i + 1, null);
+        }
+    }
+
+    /**
+     * Returns the index of the comma that ends the first value of a header, or <code>end</code>.
+     */
+    private static int comma(ByteBuffer buffer, int start, int end) {
+        boolean quoted = false;
+        boolean bracketed = false;
+        for (int i = start; i < end; i++) {
+            byte b = buffer.get(i);
+            if (quoted) {
+                if (b == '\\')
+                    i++;
+                else if (b == '"')
+                    quoted = false;
+            } else if (b == '"') {
+                quoted = true;
+            } else if (b == '<') {
+                bracketed = true;
+            } else if (b == '>') {
+                bracketed = false;
+            } else if (b == ',' && !bracketed) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static int skipSeparator(ByteBuffer buffer, int comma, int end) {
+        int i = comma + 1;
+        while (i < end && isWhitespace(buffer.get(i)))
+            i++;
+        return i;
+    }
+
+    private static int trimEnd(ByteBuffer buffer, int start, int end) {
+        while (end > start && isWhitespace(buffer.get(end - 1)))
+            end--;
+        return end;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == SipParser.SPACE || b == SipParser.TAB || b == SipParser.CR || b == SipParser.LF;
+    }
+
+    /**
+     * Returns the start of the value of a parameter, given with its leading semicolon and trailing equal sign,
+     * or <code>-1</code> if absent.
+     */
+    private static int param(ByteBuffer buffer, int start, int end, byte[] name) {
+        for (int i = start; i <= end - name.length; i++) {
+            int j = 0;
+            while (j < name.length && lowerCase(buffer.get(i + j)) == name[j])
+                j++;
+            if (j == name.length)
+                return i + j;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the index following the name of a parameter without value, given with its leading semicolon, or
+     * <code>-1</code> if absent or with a value.
+     */
+    private static int emptyParam(ByteBuffer buffer, int start, int end, byte[] name) {
+        int i = start;
+        while ((i = param(buffer, i, end, name)) >= 0) {
+            if (i == end || paramEnd(buffer, i, end) == i)
+                return i;
+            // a longer name, or a value
+            if (buffer.get(i) == '=')
+                return -1;
+        }
+        return -1;
+    }
+
+    private static int paramEnd(ByteBuffer buffer, int start, int end) {
+        int i = start;
+        while (i < end) {
+            byte b = buffer.get(i);
+            if (b == ';' || b == ',' || b == '?' || b == '>' || isWhitespace(b))
+                break;
+            i++;
+        }
+        return i;
+    }
+
+    private static int parseInt(ByteBuffer buffer, int start, int end) {
+        if (start == end || end - start > 9)
+            return -1;
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b < '0' || b > '9')
+                return -1;
+            value = value * 10 + b - '0';
+        }
+        return value;
+    }
+
+    private static boolean startsWith(ByteBuffer buffer, int start, int end, String prefix) {
+        if (end - start < prefix.length())
+            return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (buffer.get(start + i) != prefix.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean equalsIgnoreCase(ByteBuffer buffer, int start, int end, String s) {
+        if (s == null || end - start != s.length())
+            return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (lowerCase(buffer.get(start + i)) != lowerCase((byte) s.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+
+    private static byte lowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + 'a' - 'A') : b;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s@%x{rules=%d,requests=%d,responses=%d}", getClass().getSimpleName(), hashCode(),
+                rules.length, getForwardedRequests(), getForwardedResponses());
+    }
+
+    /**
+     * Datagram parser of the proxy, which a receive loop reuses for all its datagrams.
+     */
+    public static class Parser {
+
+        private final Headers headers = new Headers();
+        private final SipParser parser = new SipParser(headers);
+
+        public Parser() {
+            parser.setDatagram(true);
+        }
+
+        void reset() {
+            parser.reset();
+            headers.reset();
+        }
+
+        /**
+         * Whether the last request matched no rule, its headers then not having been parsed.
+         */
+        boolean isSkipped() {
+            return parser.isSkipped();
+        }
+    }
+
+    /**
+     * Positions of the headers the proxy edits or routes on.
+     */
+    static class Headers implements SipParser.SipMessageHandler {
+
+        ForwardingRule[] rules;
+        ForwardingRule rule;
+        final Uri requestUri = new Uri();
+        boolean sipUri;
+
+        boolean request;
+        int methodStart;
+        int methodEnd;
+        int uriStart;
+        int uriEnd;
+
+        int via = -1;
+        int viaValueStart;
+        int viaValueEnd;
+        int via2ValueStart = -1;
+        int via2ValueEnd;
+
+        int route = -1;
+        int routeValueStart;
+        int routeValueEnd;
+        int route2ValueStart = -1;
+        int route2ValueEnd;
+
+        int maxForwardsStart = -1;
+        int maxForwardsEnd;
+
+        void reset() {
+            rule = null;
+            request = false;
+            via = -1;
+            via2ValueStart = -1;
+            route = -1;
+            route2ValueStart = -1;
+            maxForwardsStart = -1;
+        }
+
+        /**
+         * Selects the first rule the request matches, the headers of a request no rule matches are skipped.
+         */
+        @Override
+        public boolean startRequest(ByteBuffer buffer, int methodStart, int methodEnd, int uriStart, int uriEnd) {
+            request = true;
+            this.methodStart = methodStart;
+            this.methodEnd = methodEnd;
+            this.uriStart = uriStart;
+            this.uriEnd = uriEnd;
+
+            sipUri = requestUri.parse(buffer, uriStart, uriEnd);
+            for (ForwardingRule r : rules) {
+                if (r.matches(buffer, methodStart, methodEnd, sipUri ? requestUri.hostStart : -1,
+                        requestUri.hostEnd)) {
+                    rule = r;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void startResponse(ByteBuffer buffer, int start, int status, int reasonStart, int reasonEnd) {
+            request = false;
+        }
+
+        @Override
+        public void parsedHeader(ByteBuffer buffer, SipHeader header, int nameStart, int nameEnd, int valueStart,
+                int valueEnd) {
+            if (header == SipHeader.VIA) {
+                if (via < 0) {
+                    via = nameStart;
+                    viaValueStart = valueStart;
+                    viaValueEnd = valueEnd;
+                } else if (via2ValueStart < 0) {
+                    via2ValueStart = valueStart;
+                    via2ValueEnd = valueEnd;
+                }
+            } else if (header == SipHeader.ROUTE) {
+                if (route < 0) {
+                    route = nameStart;
+                    routeValueStart = valueStart;
+                    routeValueEnd = valueEnd;
+                } else if (route2ValueStart < 0) {
+                    route2ValueStart = valueStart;
+                    route2ValueEnd = valueEnd;
+                }
+            } else if (header == SipHeader.MAX_FORWARDS && maxForwardsStart < 0) {
+                maxForwardsStart = valueStart;
+                maxForwardsEnd = valueEnd;
+            }
+        }
+
+        @Override
+        public void headerComplete() {
+        }
+
+        @Override
+        public void content(ByteBuffer buffer, int start, int end) {
+        }
+
+        @Override
+        public void messageComplete() {
+        }
+    }
+
+    /**
+     * Host and port of a SIP URI, possibly in angle brackets.
+     */
+    static class Uri {
+
+        int hostStart;
+        int hostEnd;
+        int port;
+
+        /**
+         * @return <code>false</code> if not a <code>sip:</code> URI or if its transport is not UDP.
+         */
+        boolean parse(ByteBuffer buffer, int start, int end) {
+            for (int i = start; i < end; i++) {
+                if (buffer.get(i) == '<') {
+                    start = i + 1;
+                    while (i < end && buffer.get(i) != '>')
+                        i++;
+                    end = i;
+                    break;
+                }
+            }
+
+            if (end - start < 4 || lowerCase(buffer.get(start)) != 's' || lowerCase(buffer.get(start + 1)) != 'i'
+                    || lowerCase(buffer.get(start + 2)) != 'p' || buffer.get(start + 3) != ':')
+                return false;
+            int i = start + 4;
+            for (int j = i; j < end; j++) {
+                if (buffer.get(j) == '@') {
+                    i = j + 1;
+                    break;
+                }
+            }
+
+            i = parseHostPort(buffer, i, end);
+            if (i < 0)
+                return false;
+
+            int transport = param(buffer, i, end, TRANSPORT);
+            return transport < 0 || equalsIgnoreCase(buffer, transport, paramEnd(buffer, transport, end), "udp");
+        }
+
+        /**
+         * Sets the host and port from <code>start</code>, returns the index following them or <code>-1</code>.
+         */
+        int parseHostPort(ByteBuffer buffer, int start, int end) {
+            int i = start;
+            if (i < end && buffer.get(i) == '[') {
+                while (i < end && buffer.get(i) != ']')
+                    i++;
+                if (i++ == end)
+                    return -1;
+            } else {
+                while (i < end) {
+                    byte b = buffer.get(i);
+                    if (b == ':' || b == ';' || b == '?' || b == '>' || b == ',' || isWhitespace(b))
+                        break;
+                    i++;
+                }
+            }
+            if (i == start)
+                return -1;
+            hostStart = start;
+            hostEnd = i;
+
+            port = -1;
+            if (i < end && buffer.get(i) == ':') {
+                int portEnd = paramEnd(buffer, ++i, end);
+                port = parseInt(buffer, i, portEnd);
+                if (port <= 0 || port > 0xffff)
+                    return -1;
+                i = portEnd;
+            }
+            return i;
+        }
+    }
+
+    /**
+     * Transport and sent-by of a Via value.
+     */
+    static class Via extends Uri {
+
+        int transportStart;
+        int paramsStart;
+        int end;
+
+        boolean parse(ByteBuffer buffer, int start, int end) {
+            this.end = end;
+            int i = start;
+            int slashes = 0;
+            while (i < end && slashes < 2) {
+                if (buffer.get(i++) == '/')
+                    slashes++;
+            }
+            transportStart = i;
+            while (i < end && !isWhitespace(buffer.get(i)))
+                i++;
+            int transportEnd = i;
+            while (i < end && isWhitespace(buffer.get(i)))
+                i++;
+            if (transportEnd == transportStart || i == transportEnd)
+                return false;
+
+            i = parseHostPort(buffer, i, end);
+            if (i < 0)
+                return false;
+            paramsStart = i;
+            return true;
+        }
+
+        boolean isUdp(ByteBuffer buffer) {
+            int i = transportStart;
+            while (i < paramsStart && !isWhitespace(buffer.get(i)))
+                i++;
+            return equalsIgnoreCase(buffer, transportStart, i, Transport.UDP.getName());
+        }
+    }
+
+    /**
+     * Edits of the received message, each replacing a range of its bytes, sorted by position. The inserted bytes
+     * are written into a single array as the edits are added.
+     */
+    static class Splice {
+
+        private int[] starts = new int[4];
+        private int[] ends = new int[4];
+        private int[] insertStarts = new int[4];
+        private int[] insertEnds = new int[4];
+        private int size;
+        private int last;
+        private byte[] bytes = new byte[64];
+        private int length;
+
+        /**
+         * @param insert the bytes replacing <code>[start, end)</code>, or <code>null</code> to remove it.
+         */
+        void add(int start, int end, byte[] insert) {
+            add(start, end);
+            if (insert != null)
+                put(insert);
+        }
+
+        /**
+         * Adds an edit removing <code>[start, end)</code>, the bytes then put replacing it.
+         */
+        Splice add(int start, int end) {
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+                insertStarts = Arrays.copyOf(insertStarts, size * 2);
+                insertEnds = Arrays.copyOf(insertEnds, size * 2);
+            }
+            int i = size++;
+            while (i > 0 && starts[i - 1] > start) {
+                starts[i] = starts[i - 1];
+                ends[i] = ends[i - 1];
+                insertStarts[i] = insertStarts[i - 1];
+                insertEnds[i] = insertEnds[i - 1];
+                i--;
+            }
+            starts[i] = start;
+            ends[i] = end;
+            insertStarts[i] = length;
+            insertEnds[i] = length;
+            last = i;
+            return this;
+        }
+
+        Splice put(byte[] insert) {
+            ensureCapacity(insert.length);
+            System.arraycopy(insert, 0, bytes, length, insert.length);
+            length += insert.length;
+            insertEnds[last] = length;
+            return this;
+        }
+
+        /**
+         * Puts the decimal form of a non-negative integer.
+         */
+        Splice put(int value) {
+            int digits = 1;
+            for (int n = value; n >= 10; n /= 10)
+                digits++;
+            ensureCapacity(digits);
+            for (int i = length + digits - 1; i >= length; i--) {
+                bytes[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            length += digits;
+            insertEnds[last] = length;
+            return this;
+        }
+
+        /**
+         * Puts the textual form of an address, the same as {@link InetAddress#getHostAddress()}.
+         */
+        Splice put(InetAddress address) {
+            if (!(address instanceof Inet4Address)) {
+                String host = address.getHostAddress();
+                ensureCapacity(host.length());
+                for (int i = 0; i < host.length(); i++)
+                    bytes[length++] = (byte) host.charAt(i);
+                insertEnds[last] = length;
+                return this;
+            }
+            byte[] ip = address.getAddress();
+            for (int n = 0; n < ip.length; n++) {
+                if (n > 0)
+                    put(DOT);
+                put(ip[n] & 0xff);
+            }
+            return this;
+        }
+
+        private void ensureCapacity(int more) {
+            if (length + more > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + more));
+        }
+
+        int length(int start, int end) {
+            int length = end - start;
+            for (int i = 0; i < size; i++)
+                length += (insertEnds[i] - insertStarts[i]) - (ends[i] - starts[i]);
+            return length;
+        }
+
+        void write(ByteBuffer buffer, int start, int end, ByteBuffer out) {
+            ByteBuffer in = buffer.duplicate();
+            int position = start;
+            for (int i = 0; i < size; i++) {
+                copy(in, position, starts[i], out);
+                out.put(bytes, insertStarts[i], insertEnds[i] - insertStarts[i]);
+                position = ends[i];
+            }
+            copy(in, position, end, out);
+        }
+
+        private static void copy(ByteBuffer in, int start, int end, ByteBuffer out) {
+            in.limit(end);
+            in.position(start);
+            out.put(in);
+        }
+    }
+}
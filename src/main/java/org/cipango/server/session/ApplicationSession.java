@@ -0,0 +1,303 @@
+package org.cipango.server.session;
+
+import org.cipango.util.TimerWheel;
+
+import javax.servlet.sip.ServletTimer;
+import javax.servlet.sip.SipApplicationSession;
+import javax.servlet.sip.SipSession;
+import javax.servlet.sip.URI;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Application session of a call, holding its SIP sessions. Messages of the call are processed holding its lock,
+ * see {@link SessionManager#handle}.
+ */
+public class ApplicationSession implements SipApplicationSession {
+
+    private static final long RETRY_DELAY = 1000;
+
+    private final SessionManager manager;
+    private final String id;
+    private final long creationTime = System.currentTimeMillis();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private volatile long lastAccessedTime = creationTime;
+    private volatile boolean valid = true;
+    private long expiresMillis;
+    private TimerWheel.Timeout expiryTimer;
+
+    // most application sessions have a single SIP session
+    private Session[] sessions = new Session[1];
+    private int nbSessions;
+    private int nextSessionId;
+    private Map<String, Object> attributes;
+
+    ApplicationSession(SessionManager manager, String id) {
+        this.manager = manager;
+        this.id = id;
+    }
+
+    public void lock() {
+        lock.lock();
+    }
+
+    public void unlock() {
+        lock.unlock();
+    }
+
+    void access() {
+        lastAccessedTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the SIP session with these tags. A session without local tag yet matches any local tag.
+     */
+    public Session getSession(String localTag, String remoteTag) {
+        for (int i = 0; i < nbSessions; i++) {
+            if (sessions[i].matches(localTag, remoteTag))
+                return sessions[i];
+        }
+        return null;
+    }
+
+    Session createSession(String callId, String localTag, String remoteTag) {
+        if (nbSessions == sessions.length)
+            sessions = Arrays.copyOf(sessions, nbSessions * 2);
+        Session session = new Session(this, id + ';' + nextSessionId++, callId, localTag, remoteTag);
+        sessions[nbSessions++] = session;
+        manager.sessionCreated();
+        return session;
+    }
+
+    void removeSession(Session session) {
+        for (int i = 0; i < nbSessions; i++) {
+            if (sessions[i] == session) {
+                System.arraycopy(sessions, i + 1, sessions, i, nbSessions - i - 1);
+                sessions[--nbSessions] = null;
+                session.invalidated();
+                manager.sessionsRemoved(1);
+                return;
+            }
+        }
+    }
+
+    SessionManager getManager() {
+        return manager;
+    }
+
+    @Override
+    public long getCreationTime() {
+        return creationTime;
+    }
+
+    @Override
+    public long getLastAccessedTime() {
+        return lastAccessedTime;
+    }
+
+    @Override
+    public long getExpirationTime() {
+        return expiresMillis <= 0 ? 0 : lastAccessedTime + expiresMillis;
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public String getApplicationName() {
+        return null;
+    }
+
+    @Override
+    public int setExpires(int minutes) {
+        setExpiresMillis(minutes * 60000L);
+        return minutes;
+    }
+
+    void setExpiresMillis(long expires) {
+        lock.lock();
+        try {
+            checkValid();
+            startExpiry(expires);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void startExpiry(long expires) {
+        lock.lock();
+        try {
+            if (!valid)
+                return;
+            expiresMillis = expires;
+            if (expiryTimer != null)
+                expiryTimer.cancel();
+            expiryTimer = expires > 0 ? manager.schedule(this::expire, expires) : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called by the timer wheel. As the timer is not rescheduled on each access, it is rescheduled here if the
+     * session has been accessed since it was set. The wheel thread never waits for the session lock.
+     */
+    private void expire() {
+        if (!lock.tryLock()) {
+            expiryTimer = manager.schedule(this::expire, RETRY_DELAY);
+            return;
+        }
+        try {
+            if (!valid || expiresMillis <= 0)
+                return;
+            long remaining = lastAccessedTime + expiresMillis - System.currentTimeMillis();
+            if (remaining > 0)
+                expiryTimer = manager.schedule(this::expire, remaining);
+            else
+                invalidate(true);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void invalidate() {
+        lock.lock();
+        try {
+            checkValid();
+            invalidate(false);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void invalidate(boolean expired) {
+        valid = false;
+        if (expiryTimer != null) {
+            expiryTimer.cancel();
+            expiryTimer = null;
+        }
+        for (int i = 0; i < nbSessions; i++)
+            sessions[i].invalidated();
+        manager.sessionsRemoved(nbSessions);
+        if (attributes != null)
+            manager.attributesChanged(-attributes.size());
+        manager.removeApplicationSession(this, expired);
+    }
+
+    @Override
+    public boolean isReadyToInvalidate() {
+        return false;
+    }
+
+    @Override
+    public void setInvalidateWhenReady(boolean invalidateWhenReady) {
+
+    }
+
+    @Override
+    public boolean getInvalidateWhenReady() {
+        return false;
+    }
+
+    @Override
+    public Iterator<?> getSessions() {
+        return Arrays.asList(sessions).subList(0, nbSessions).iterator();
+    }
+
+    @Override
+    public Iterator<?> getSessions(String protocol) {
+        if ("SIP".equalsIgnoreCase(protocol))
+            return getSessions();
+        return Collections.emptyIterator();
+    }
+
+    @Override
+    public SipSession getSipSession(String id) {
+        for (int i = 0; i < nbSessions; i++) {
+            if (sessions[i].getId().equals(id))
+                return sessions[i];
+        }
+        return null;
+    }
+
+    @Override
+    public Object getSession(String id, Protocol protocol) {
+        return protocol == Protocol.SIP ? getSipSession(id) : null;
+    }
+
+    @Override
+    public void encodeURI(URI uri) {
+
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return attributes == null ? null : attributes.get(name);
+    }
+
+    @Override
+    public Iterator<String> getAttributeNames() {
+        if (attributes == null)
+            return Collections.emptyIterator();
+        return attributes.keySet().iterator();
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        if (value == null) {
+            removeAttribute(name);
+            return;
+        }
+        if (attributes == null)
+            attributes = new HashMap<>(4);
+        if (attributes.put(name, value) == null)
+            manager.attributesChanged(1);
+    }
+
+    @Override
+    public void removeAttribute(String name) {
+        if (attributes != null && attributes.remove(name) != null)
+            manager.attributesChanged(-1);
+    }
+
+    @Override
+    public Collection<ServletTimer> getTimers() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public ServletTimer getTimer(String id) {
+        return null;
+    }
+
+    @Override
+    public boolean isValid() {
+        return valid;
+    }
+
+    @Override
+    public URL encodeURL(URL url) {
+        return url;
+    }
+
+    private void checkValid() {
+        if (!valid)
+            throw new IllegalStateException("Invalidated application session " + id);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s@%x{%s,sessions=%d,valid=%b}", getClass().getSimpleName(), hashCode(), id,
+                nbSessions, valid);
+    }
+}
@@ -0,0 +1,216 @@
+package org.cipango.server.session;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.sip.Address;
+import javax.servlet.sip.SipApplicationSession;
+import javax.servlet.sip.SipServletRequest;
+import javax.servlet.sip.SipSession;
+import javax.servlet.sip.URI;
+import javax.servlet.sip.ar.SipApplicationRoutingRegion;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * SIP session, identified in its application session by its local and remote tags. Accessed holding the lock
+ * of the application session.
+ */
+public class Session implements SipSession {
+
+    private final ApplicationSession appSession;
+    private final String id;
+    private final String callId;
+    private final long creationTime = System.currentTimeMillis();
+
+    private String localTag;
+    private String remoteTag;
+    private State state = State.INITIAL;
+    private boolean valid = true;
+    private Map<String, Object> attributes;
+
+    Session(ApplicationSession appSession, String id, String callId, String localTag, String remoteTag) {
+        this.appSession = appSession;
+        this.id = id;
+        this.callId = callId;
+        this.localTag = localTag;
+        this.remoteTag = remoteTag;
+    }
+
+    boolean matches(String localTag, String remoteTag) {
+        if (this.remoteTag == null ? remoteTag != null : !this.remoteTag.equals(remoteTag))
+            return false;
+        return this.localTag == null || localTag == null || this.localTag.equals(localTag);
+    }
+
+    public String getLocalTag() {
+        return localTag;
+    }
+
+    public void setLocalTag(String localTag) {
+        this.localTag = localTag;
+    }
+
+    public String getRemoteTag() {
+        return remoteTag;
+    }
+
+    public void setState(State state) {
+        this.state = state;
+    }
+
+    void invalidated() {
+        valid = false;
+        state = State.TERMINATED;
+        if (attributes != null)
+            appSession.getManager().attributesChanged(-attributes.size());
+    }
+
+    @Override
+    public long getCreationTime() {
+        return creationTime;
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public long getLastAccessedTime() {
+        return appSession.getLastAccessedTime();
+    }
+
+    /**
+     * Invalidates this SIP session alone, the other sessions of the application session are left as they are.
+     */
+    @Override
+    public void invalidate() {
+        appSession.lock();
+        try {
+            if (!valid)
+                throw new IllegalStateException("Invalidated SIP session " + id);
+            appSession.removeSession(this);
+        } finally {
+            appSession.unlock();
+        }
+    }
+
+    @Override
+    public boolean isReadyToInvalidate() {
+        return false;
+    }
+
+    @Override
+    public void setInvalidateWhenReady(boolean invalidateWhenReady) {
+
+    }
+
+    @Override
+    public boolean getInvalidateWhenReady() {
+        return false;
+    }
+
+    @Override
+    public SipApplicationSession getApplicationSession() {
+        return appSession;
+    }
+
+    @Override
+    public String getCallId() {
+        return callId;
+    }
+
+    @Override
+    public Address getLocalParty() {
+        return null;
+    }
+
+    @Override
+    public Address getRemoteParty() {
+        return null;
+    }
+
+    @Override
+    public SipServletRequest createRequest(String method) {
+        return null;
+    }
+
+    @Override
+    public void setHandler(String name) throws ServletException {
+
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return attributes == null ? null : attributes.get(name);
+    }
+
+    @Override
+    public Enumeration<String> getAttributeNames() {
+        if (attributes == null)
+            return Collections.emptyEnumeration();
+        return Collections.enumeration(attributes.keySet());
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        if (value == null) {
+            removeAttribute(name);
+            return;
+        }
+        if (attributes == null)
+            attributes = new HashMap<>(4);
+        if (attributes.put(name, value) == null)
+            appSession.getManager().attributesChanged(1);
+    }
+
+    @Override
+    public void removeAttribute(String name) {
+        if (attributes != null && attributes.remove(name) != null)
+            appSession.getManager().attributesChanged(-1);
+    }
+
+    @Override
+    public State getState() {
+        return state;
+    }
+
+    @Override
+    public void setOutboundInterface(InetSocketAddress address) {
+
+    }
+
+    @Override
+    public void setOutboundInterface(InetAddress address) {
+
+    }
+
+    @Override
+    public boolean isValid() {
+        return valid;
+    }
+
+    @Override
+    public SipApplicationRoutingRegion getRegion() {
+        return null;
+    }
+
+    @Override
+    public URI getSubscriberURI() {
+        return null;
+    }
+
+    @Override
+    public ServletContext getServletContext() {
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s@%x{%s,%s}", getClass().getSimpleName(), hashCode(), id, state);
+    }
+}
@@ -0,0 +1,280 @@
+package org.cipango.server.session;
+
+import org.cipango.server.SipHandler;
+import org.cipango.server.SipMessage;
+import org.cipango.server.SipRequest;
+import org.cipango.sip.SipHeader;
+import org.cipango.util.TimerWheel;
+import org.eclipse.jetty.util.component.ContainerLifeCycle;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+import javax.servlet.sip.SipServletResponse;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Store of the application sessions and of their SIP sessions.
+ * <p>
+ * Application sessions are keyed by Call-ID in maps that are locked by stripe, and SIP sessions are kept in
+ * their application session, matched by tags. The messages of an application session are handled holding its
+ * own lock only. Sessions expire on a coarse {@link TimerWheel}: the timer is not moved on each access, it is
+ * rescheduled for the remaining time when it fires on a session that has been accessed since.
+ */
+public class SessionManager extends ContainerLifeCycle {
+
+    private static final Logger LOG = Log.getLogger(SessionManager.class);
+
+    /**
+     * Default expiration, in minutes, of application sessions.
+     */
+    public static final int DEFAULT_EXPIRES = 3;
+
+    // Approximate heap footprint of the objects of a session, in bytes, for getMemoryEstimate()
+    static final int APPLICATION_SESSION_SIZE = 240;
+    static final int SESSION_SIZE = 160;
+    static final int ATTRIBUTE_SIZE = 80;
+
+    private static final int STRIPES = 64;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private TimerWheel timerWheel;
+
+    private int defaultExpires = DEFAULT_EXPIRES;
+    private int maxApplicationSessions = -1;
+
+    private final AtomicInteger applicationSessions = new AtomicInteger();
+    private final LongAdder sessions = new LongAdder();
+    private final LongAdder attributes = new LongAdder();
+    private final LongAdder created = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    public SessionManager() {
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe();
+        TimerWheel timerWheel = new TimerWheel(1, TimeUnit.SECONDS, 512);
+        timerWheel.setName("session-expiry");
+        setTimerWheel(timerWheel);
+    }
+
+    public TimerWheel getTimerWheel() {
+        return timerWheel;
+    }
+
+    public void setTimerWheel(TimerWheel timerWheel) {
+        if (isRunning())
+            throw new IllegalStateException("running");
+        updateBean(this.timerWheel, timerWheel, true);
+        this.timerWheel = timerWheel;
+    }
+
+    /**
+     * Returns the expiration of new application sessions, in minutes.
+     */
+    public int getDefaultExpires() {
+        return defaultExpires;
+    }
+
+    /**
+     * Sets the expiration of new application sessions in minutes. Sessions do not expire if <code>0</code> or
+     * less.
+     */
+    public void setDefaultExpires(int defaultExpires) {
+        this.defaultExpires = defaultExpires;
+    }
+
+    public int getMaxApplicationSessions() {
+        return maxApplicationSessions;
+    }
+
+    /**
+     * Sets the number of application sessions over which new initial requests are rejected. Unlimited if
+     * <code>-1</code>.
+     */
+    public void setMaxApplicationSessions(int maxApplicationSessions) {
+        this.maxApplicationSessions = maxApplicationSessions;
+    }
+
+    public int getApplicationSessions() {
+        return applicationSessions.get();
+    }
+
+    public long getSipSessions() {
+        return sessions.sum();
+    }
+
+    public long getCreated() {
+        return created.sum();
+    }
+
+    public long getExpired() {
+        return expired.sum();
+    }
+
+    /**
+     * Number of initial requests rejected because {@link #getMaxApplicationSessions()} was reached.
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * Approximate heap used by the live sessions and their attributes, in bytes. Attribute values are not
+     * accounted for.
+     */
+    public long getMemoryEstimate() {
+        return (long) applicationSessions.get() * APPLICATION_SESSION_SIZE + sessions.sum() * SESSION_SIZE
+                + attributes.sum() * ATTRIBUTE_SIZE;
+    }
+
+    public ApplicationSession getApplicationSession(String id) {
+        Stripe stripe = stripe(id);
+        synchronized (stripe) {
+            return stripe.get(id);
+        }
+    }
+
+    /**
+     * Returns the application session of <code>id</code>, creating it if needed.
+     *
+     * @throws IllegalStateException if the maximum number of application sessions has been reached.
+     */
+    public ApplicationSession createApplicationSession(String id) {
+        Stripe stripe = stripe(id);
+        ApplicationSession session;
+        synchronized (stripe) {
+            session = stripe.get(id);
+            if (session != null)
+                return session;
+
+            if (applicationSessions.incrementAndGet() > maxApplicationSessions && maxApplicationSessions >= 0) {
+                applicationSessions.decrementAndGet();
+                rejected.increment();
+                throw new IllegalStateException("Too many application sessions");
+            }
+            session = new ApplicationSession(this, id);
+            stripe.put(id, session);
+        }
+        created.increment();
+        // outside of the stripe lock, that is taken with the session lock held on invalidation
+        session.startExpiry(defaultExpires * 60000L);
+        return session;
+    }
+
+    /**
+     * Handles <code>message</code> in its session: the application session of the Call-ID is locked, the SIP
+     * session matching the tags is set on the message, and the message is passed to <code>handler</code>.
+     * Sessions are only created for requests without To tag, the From tag being their remote tag: requests in
+     * the same direction and their responses carry it in From, messages in the other direction in To.
+     */
+    public void handle(SipMessage message, SipHandler handler) throws IOException {
+        String callId = message.getCallId();
+        if (callId == null) {
+            handler.handle(message);
+            return;
+        }
+
+        String fromTag = getTag(message.getFields().get(SipHeader.FROM));
+        String toTag = getTag(message.getFields().get(SipHeader.TO));
+        boolean initial = message.isRequest() && toTag == null && !((SipRequest) message).isAck();
+
+        ApplicationSession appSession;
+        if (initial) {
+            try {
+                appSession = createApplicationSession(callId);
+            } catch (IllegalStateException e) {
+                LOG.debug("Rejected {}", callId, e);
+                ((SipRequest) message).createResponse(SipServletResponse.SC_SERVICE_UNAVAILABLE).send();
+                return;
+            }
+        } else {
+            appSession = getApplicationSession(callId);
+        }
+
+        if (appSession == null) {
+            handler.handle(message);
+            return;
+        }
+
+        appSession.lock();
+        try {
+            if (appSession.isValid()) {
+                Session session = appSession.getSession(toTag, fromTag);
+                if (session == null) {
+                    if (initial)
+                        session = appSession.createSession(callId, null, fromTag);
+                    else if (toTag != null)
+                        session = appSession.getSession(fromTag, toTag);
+                }
+                message.setSession(session);
+                appSession.access();
+            }
+            handler.handle(message);
+        } finally {
+            appSession.unlock();
+        }
+    }
+
+    /**
+     * Returns the tag parameter of a From or To value.
+     */
+    public static String getTag(String value) {
+        if (value == null)
+            return null;
+        int i = value.lastIndexOf('>');
+        i = value.indexOf(";tag=", i + 1);
+        if (i == -1)
+            return null;
+        i += 5;
+        int end = i;
+        while (end < value.length() && value.charAt(end) != ';' && value.charAt(end) > ' ')
+            end++;
+        return end == i ? null : value.substring(i, end);
+    }
+
+    TimerWheel.Timeout schedule(Runnable task, long delay) {
+        return timerWheel.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    void removeApplicationSession(ApplicationSession session, boolean expired) {
+        Stripe stripe = stripe(session.getId());
+        synchronized (stripe) {
+            if (!stripe.remove(session.getId(), session))
+                return;
+        }
+        applicationSessions.decrementAndGet();
+        if (expired)
+            this.expired.increment();
+    }
+
+    void sessionCreated() {
+        sessions.increment();
+    }
+
+    void sessionsRemoved(int count) {
+        sessions.add(-count);
+    }
+
+    void attributesChanged(int delta) {
+        attributes.add(delta);
+    }
+
+    private Stripe stripe(String id) {
+        int hash = id.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s@%x{applicationSessions=%d,sipSessions=%d}", getClass().getSimpleName(), hashCode(),
+                getApplicationSessions(), getSipSessions());
+    }
+
+    @SuppressWarnings("serial")
+    static class Stripe extends HashMap<String, ApplicationSession> {
+    }
+}
@@ -0,0 +1,143 @@
+package org.cipango.server.transaction;
+
+import org.cipango.server.SipFields;
+import org.cipango.server.SipGenerator;
+import org.cipango.server.SipRequest;
+import org.cipango.server.SipResponse;
+import org.cipango.sip.SipHeader;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Client transaction (RFC 3261 17.1). Over unreliable transports the request is serialized once, retransmissions
+ * (Timers A and E) resend the same bytes. Over reliable transports it is written as the slices of the generator. The ACK of a non-2xx final response to an INVITE is generated here and resent for each
+ * retransmission of the response. Once an INVITE is proceeding, it times out after
+ * {@link TransactionManager#TIMER_C} without a new provisional response instead of 64*T1.
+ */
+public class ClientTransaction extends Transaction {
+
+    private final ClientTransactionListener listener;
+
+    private ByteBuffer bytes;
+    private ByteBuffer ack;
+
+    ClientTransaction(TransactionManager manager, SipRequest request, String branch, ClientTransactionListener listener) {
+        super(manager, request, branch, getKey(branch, request.getMethod()));
+        this.listener = listener;
+    }
+
+    public ClientTransactionListener getListener() {
+        return listener;
+    }
+
+    synchronized void start() {
+        state = invite ? State.CALLING : State.TRYING;
+        if (isReliable()) {
+            write(request);
+        } else {
+            bytes = SipGenerator.generate(request);
+            send(bytes);
+            startRetransmitTimer(manager.getT1());
+        }
+        startTimeoutTimer(64 * manager.getT1());
+    }
+
+    @Override
+    protected synchronized void retransmit() {
+        long interval;
+        if (invite) {
+            if (state != State.CALLING)
+                return;
+            interval = retransmitInterval * 2;
+        } else {
+            if (state != State.TRYING && state != State.PROCEEDING)
+                return;
+            interval = state == State.PROCEEDING ? manager.getT2() : Math.min(retransmitInterval * 2, manager.getT2());
+        }
+        manager.retransmitted();
+        send(bytes);
+        startRetransmitTimer(interval);
+    }
+
+    @Override
+    protected void timeout() {
+        boolean notify;
+        synchronized (this) {
+            notify = state == State.CALLING || state == State.TRYING || state == State.PROCEEDING;
+            terminate();
+        }
+        if (notify && listener != null)
+            listener.transactionTimeout(this);
+    }
+
+    void handleResponse(SipResponse response) {
+        int status = response.getStatus();
+        synchronized (this) {
+            switch (state) {
+                case CALLING:
+                case TRYING:
+                case PROCEEDING:
+                    if (status < 200) {
+                        state = State.PROCEEDING;
+                        if (invite) {
+                            // Timer B only runs while calling, the callee may ring for much longer
+                            cancelRetransmitTimer();
+                            startTimeoutTimer(TransactionManager.TIMER_C);
+                        }
+                    } else if (invite && status < 300) {
+                        terminate();
+                    } else {
+                        state = State.COMPLETED;
+                        cancelRetransmitTimer();
+                        if (invite) {
+                            ack = SipGenerator.generate(createAck(response));
+                            send(ack);
+                            startTimeoutTimer(isReliable() ? 0 : TransactionManager.TIMER_D);
+                        } else {
+                            startTimeoutTimer(isReliable() ? 0 : manager.getT4());
+                        }
+                    }
+                    break;
+
+                case COMPLETED:
+                    if (ack != null && status >= 300) {
+                        manager.retransmitted();
+                        send(ack);
+                    }
+                    return;
+
+                default:
+                    return;
+            }
+        }
+        if (listener != null) {
+            response.retain();
+            listener.handleResponse(this, response);
+        }
+    }
+
+    /**
+     * Creates the ACK of a non-2xx final response (RFC 3261 17.1.1.3).
+     */
+    private SipRequest createAck(SipResponse response) {
+        SipRequest ack = new SipRequest("ACK", request.getRawRequestURI());
+        SipFields fields = request.getFields();
+        SipFields ackFields = ack.getFields();
+
+        ackFields.add(SipHeader.VIA, fields.getFirst(SipHeader.VIA));
+        for (String route : fields.getValues(SipHeader.ROUTE))
+            ackFields.add(SipHeader.ROUTE, route);
+        String maxForwards = fields.get(SipHeader.MAX_FORWARDS);
+        if (maxForwards != null)
+            ackFields.add(SipHeader.MAX_FORWARDS, maxForwards);
+        ackFields.add(SipHeader.FROM, fields.get(SipHeader.FROM));
+        ackFields.add(SipHeader.TO, response.getFields().get(SipHeader.TO));
+        ackFields.add(SipHeader.CALL_ID, fields.get(SipHeader.CALL_ID));
+
+        String cseq = fields.get(SipHeader.CSEQ);
+        ackFields.add(SipHeader.CSEQ, cseq.substring(0, cseq.indexOf(' ')) + " ACK");
+
+        ack.setConnection(request.getConnection());
+        return ack;
+    }
+}
@@ -0,0 +1,17 @@
+package org.cipango.server.transaction;
+
+import org.cipango.server.SipResponse;
+
+/**
+ * Receives the responses of a client transaction. Timeouts are reported on the timer thread, so they should
+ * be handled without blocking.
+ */
+public interface ClientTransactionListener {
+
+    void handleResponse(ClientTransaction transaction, SipResponse response);
+
+    /**
+     * Called when Timer B or F fires before a final response has been received.
+     */
+    void transactionTimeout(ClientTransaction transaction);
+}
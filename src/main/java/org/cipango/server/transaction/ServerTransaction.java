@@ -0,0 +1,145 @@
+package org.cipango.server.transaction;
+
+import org.cipango.server.SipGenerator;
+import org.cipango.server.SipRequest;
+import org.cipango.server.SipResponse;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+import javax.servlet.sip.SipServletResponse;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Server transaction (RFC 3261 17.2). Over unreliable transports the last response sent is kept serialized, to
+ * answer retransmissions of the request and for the retransmissions of Timer G. Over reliable transports, where
+ * neither happens, responses are written as the slices of the generator. An INVITE the application has not answered within
+ * {@value #TRYING_DELAY} ms is answered with a 100 (RFC 3261 17.2.1), which stops the retransmissions of the
+ * client over unreliable transports.
+ */
+public class ServerTransaction extends Transaction {
+
+    private static final Logger LOG = Log.getLogger(ServerTransaction.class);
+
+    /**
+     * Time after which an INVITE without response is answered with a 100.
+     */
+    public static final long TRYING_DELAY = 200;
+
+    private ByteBuffer response;
+    private boolean responded;
+
+    ServerTransaction(TransactionManager manager, SipRequest request, String branch, String key) {
+        super(manager, request, branch, key);
+        state = invite ? State.PROCEEDING : State.TRYING;
+    }
+
+    /**
+     * Starts the timer that terminates the transaction if the application never sends a final response, and for
+     * an INVITE the timer of the 100.
+     */
+    synchronized void start() {
+        startTimeoutTimer(64 * manager.getT1());
+        if (invite)
+            manager.schedule(this::trying, TRYING_DELAY);
+    }
+
+    /**
+     * Sends a 100 if no response has been sent yet. It is sent by the transaction, not by the application, so that
+     * it is not recorded as the response time.
+     */
+    private synchronized void trying() {
+        if (responded || state != State.PROCEEDING)
+            return;
+        try {
+            send((SipResponse) request.createResponse(SipServletResponse.SC_TRYING));
+        } catch (RuntimeException e) {
+            LOG.debug("Failed to send 100 on {}", this, e);
+        }
+    }
+
+    /**
+     * Answers the request with a 500 if no final response has been sent, when there is no application or it
+     * failed to handle the request.
+     */
+    synchronized void abort() {
+        if (state != State.TRYING && state != State.PROCEEDING)
+            return;
+        try {
+            request.createResponse(SipServletResponse.SC_SERVER_INTERNAL_ERROR).send();
+        } catch (IOException | RuntimeException e) {
+            LOG.debug("Failed to answer {}", this, e);
+            terminate();
+        }
+    }
+
+    /**
+     * Sends a response to the request of the transaction.
+     *
+     * @throws IllegalStateException if a final response has already been sent.
+     */
+    public synchronized void send(SipResponse response) {
+        if (state != State.TRYING && state != State.PROCEEDING)
+            throw new IllegalStateException("transaction " + state);
+
+        int status = response.getStatus();
+        if (isReliable()) {
+            write(response);
+        } else {
+            this.response = SipGenerator.generate(response);
+            send(this.response);
+        }
+        responded = true;
+
+        if (status < 200) {
+            state = State.PROCEEDING;
+            if (invite)
+                startTimeoutTimer(TransactionManager.TIMER_C);
+        } else if (invite && status < 300) {
+            terminate();
+        } else {
+            state = State.COMPLETED;
+            if (invite) {
+                if (!isReliable())
+                    startRetransmitTimer(manager.getT1());
+                startTimeoutTimer(64 * manager.getT1());
+            } else {
+                startTimeoutTimer(isReliable() ? 0 : 64 * manager.getT1());
+            }
+        }
+    }
+
+    /**
+     * Handles a retransmission of the request, or the ACK of a non-2xx final response.
+     */
+    synchronized void handleRequest(SipRequest request) {
+        if (request.isAck()) {
+            if (invite && state == State.COMPLETED) {
+                state = State.CONFIRMED;
+                cancelRetransmitTimer();
+                startTimeoutTimer(isReliable() ? 0 : manager.getT4());
+            }
+        } else if (response != null && (state == State.PROCEEDING || state == State.COMPLETED)) {
+            manager.retransmitted();
+            send(response);
+        }
+    }
+
+    @Override
+    protected synchronized void retransmit() {
+        if (state != State.COMPLETED)
+            return;
+        manager.retransmitted();
+        send(response);
+        startRetransmitTimer(Math.min(retransmitInterval * 2, manager.getT2()));
+    }
+
+    @Override
+    protected synchronized void timeout() {
+        if (state == State.TRYING || state == State.PROCEEDING)
+            LOG.debug("No final response sent for {}", this);
+        else if (state == State.COMPLETED && invite)
+            LOG.debug("No ACK received for {}", this);
+        terminate();
+    }
+}
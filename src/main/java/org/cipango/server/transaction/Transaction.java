@@ -0,0 +1,296 @@
+package org.cipango.server.transaction;
+
+import org.cipango.server.SipConnection;
+import org.cipango.server.SipFields;
+import org.cipango.server.SipGenerator;
+import org.cipango.server.SipMessage;
+import org.cipango.server.SipRequest;
+import org.cipango.sip.SipHeader;
+import org.cipango.util.TimerWheel;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * RFC 3261 transaction, identified by the branch of its top Via and its method, or for server transactions of
+ * RFC 2543 requests by the fields of {@link #getKey(SipRequest)}.
+ * <p>
+ * State changes are made holding the transaction lock, either on the thread processing a message of the
+ * transaction or on the thread running an expired timer. A timer that expired before being cancelled or replaced
+ * may still be run: it is then ignored.
+ */
+public abstract class Transaction {
+
+    private static final Logger LOG = Log.getLogger(Transaction.class);
+
+    public static final String BRANCH_MAGIC_COOKIE = "z9hG4bK";
+
+    public enum State {
+        CALLING, TRYING, PROCEEDING, COMPLETED, CONFIRMED, TERMINATED
+    }
+
+    protected final TransactionManager manager;
+    protected final SipRequest request;
+    protected final String branch;
+    protected final String key;
+    protected final boolean invite;
+
+    protected State state;
+
+    private TimerWheel.Timeout retransmitTimer;
+    private TimerWheel.Timeout timeoutTimer;
+    // incremented when a timer is started or cancelled, so that a timer already expired can tell it is stale
+    private int retransmitTimers;
+    private int timeoutTimers;
+    protected long retransmitInterval;
+
+    protected Transaction(TransactionManager manager, SipRequest request, String branch, String key) {
+        this.manager = manager;
+        this.request = request;
+        this.branch = branch;
+        this.invite = "INVITE".equals(request.getMethod());
+        this.key = key;
+    }
+
+    public SipRequest getRequest() {
+        return request;
+    }
+
+    public String getBranch() {
+        return branch;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public boolean isInvite() {
+        return invite;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized boolean isTerminated() {
+        return state == State.TERMINATED;
+    }
+
+    public SipConnection getConnection() {
+        return request.getConnection();
+    }
+
+    /**
+     * Transactions over reliable transports have no retransmissions and no wait states.
+     */
+    public boolean isReliable() {
+        SipConnection connection = getConnection();
+        return connection != null && connection.getTransport().isReliable();
+    }
+
+    protected void send(ByteBuffer bytes) {
+        try {
+            getConnection().send(bytes.duplicate());
+        } catch (IOException e) {
+            LOG.debug("Failed to send on transaction {}", this, e);
+        }
+    }
+
+    /**
+     * Sends a message that is not retransmitted, as the buffers of {@link SipGenerator#generateBuffers}, with a
+     * gathering write if the connection has one.
+     */
+    protected void write(SipMessage message) {
+        try {
+            getConnection().send(SipGenerator.generateBuffers(message));
+        } catch (IOException e) {
+            LOG.debug("Failed to send on transaction {}", this, e);
+        }
+    }
+
+    protected void startRetransmitTimer(long interval) {
+        retransmitInterval = interval;
+        int generation = ++retransmitTimers;
+        retransmitTimer = manager.schedule(() -> retransmitTimerExpired(generation), interval);
+    }
+
+    private synchronized void retransmitTimerExpired(int generation) {
+        if (generation == retransmitTimers)
+            retransmit();
+    }
+
+    protected void cancelRetransmitTimer() {
+        if (retransmitTimer != null) {
+            retransmitTimers++;
+            retransmitTimer.cancel();
+            retransmitTimer = null;
+        }
+    }
+
+    /**
+     * Terminates the transaction when <code>delay</code> has elapsed, or right away for a zero delay.
+     */
+    protected void startTimeoutTimer(long delay) {
+        if (timeoutTimer != null)
+            timeoutTimer.cancel();
+        int generation = ++timeoutTimers;
+        if (delay <= 0)
+            terminate();
+        else
+            timeoutTimer = manager.schedule(() -> timeoutTimerExpired(generation), delay);
+    }
+
+    private void timeoutTimerExpired(int generation) {
+        synchronized (this) {
+            if (generation != timeoutTimers)
+                return;
+        }
+        timeout();
+    }
+
+    protected abstract void retransmit();
+
+    protected abstract void timeout();
+
+    protected void terminate() {
+        state = State.TERMINATED;
+        cancelRetransmitTimer();
+        if (timeoutTimer != null) {
+            timeoutTimers++;
+            timeoutTimer.cancel();
+            timeoutTimer = null;
+        }
+        manager.remove(this);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s@%x{%s,%s}", getClass().getSimpleName(), hashCode(), key, state);
+    }
+
+    /**
+     * Returns the key of a client transaction, matched by the branch and the method (RFC 3261 17.1.3).
+     */
+    static String getKey(String branch, String method) {
+        return branch + ' ' + ("ACK".equals(method) ? "INVITE" : method);
+    }
+
+    /**
+     * Returns the key of a server transaction, matched by the branch, the sent-by of the top Via and the method
+     * (RFC 3261 17.2.3).
+     */
+    static String getKey(String branch, String sentBy, String method) {
+        return branch + ' ' + sentBy + ' ' + ("ACK".equals(method) ? "INVITE" : method);
+    }
+
+    /**
+     * Returns the key of a server transaction for a request without an RFC 3261 branch, matched by the
+     * Request-URI, the From tag, the Call-ID, the CSeq and the top Via (RFC 3261 17.2.3). The To tag is also
+     * matched, except for INVITE and ACK since the ACK carries the tag of the response. Returns <code>null</code>
+     * if the request misses one of these headers.
+     */
+    static String getKey(SipRequest request) {
+        SipFields fields = request.getFields();
+        String via = fields.getFirst(SipHeader.VIA);
+        String callId = fields.get(SipHeader.CALL_ID);
+        String cseq = fields.get(SipHeader.CSEQ);
+        if (via == null || callId == null || cseq == null)
+            return null;
+
+        String method = request.getMethod();
+        int i = skipSpaces(cseq, 0);
+        int end = i;
+        while (end < cseq.length() && cseq.charAt(end) >= '0' && cseq.charAt(end) <= '9')
+            end++;
+
+        StringBuilder sb = new StringBuilder(128);
+        sb.append(request.getRawRequestURI()).append(' ').append(getTag(fields.get(SipHeader.FROM))).append(' ');
+        if (!"INVITE".equals(method) && !"ACK".equals(method))
+            sb.append(getTag(fields.get(SipHeader.TO)));
+        sb.append(' ').append(callId).append(' ').append(cseq, i, end).append(' ');
+        sb.append("ACK".equals(method) ? "INVITE" : method).append(' ').append(via);
+        return sb.toString();
+    }
+
+    /**
+     * Returns the tag parameter of a From or To value, or <code>null</code> if it has none.
+     */
+    private static String getTag(String address) {
+        if (address == null)
+            return null;
+        return getParameter(address.substring(address.lastIndexOf('>') + 1), "tag");
+    }
+
+    /**
+     * Returns the branch of the top Via of <code>message</code>, or <code>null</code> if it has none.
+     */
+    public static String getBranch(SipMessage message) {
+        String via = message.getFields().getFirst(SipHeader.VIA);
+        return via == null ? null : getParameter(via, "branch");
+    }
+
+    /**
+     * Returns the sent-by of the top Via of <code>message</code>, in lower case and without whitespace, or
+     * <code>null</code> if it has none.
+     */
+    public static String getSentBy(SipMessage message) {
+        String via = message.getFields().getFirst(SipHeader.VIA);
+        if (via == null)
+            return null;
+
+        int end = via.indexOf(';');
+        if (end == -1)
+            end = via.length();
+        // sent-by follows the transport, after the last slash of the sent-protocol
+        int i = via.lastIndexOf('/', end);
+        if (i == -1)
+            return null;
+        i = skipSpaces(via, i + 1);
+        while (i < end && via.charAt(i) != ' ' && via.charAt(i) != '\t')
+            i++;
+
+        StringBuilder sb = new StringBuilder(end - i);
+        for (; i < end; i++) {
+            char c = via.charAt(i);
+            if (c != ' ' && c != '\t')
+                sb.append(Character.toLowerCase(c));
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    /**
+     * Returns the value of the parameter <code>name</code> of a Via value, the name being matched ignoring case
+     * and whitespace being allowed around the separators (RFC 3261 7.3.1).
+     */
+    static String getParameter(String via, String name) {
+        int length = via.length();
+        int i = via.indexOf(';');
+        while (i != -1) {
+            int nameStart = skipSpaces(via, i + 1);
+            int nameEnd = nameStart;
+            while (nameEnd < length && "=; \t".indexOf(via.charAt(nameEnd)) == -1)
+                nameEnd++;
+            int j = skipSpaces(via, nameEnd);
+
+            if (nameEnd - nameStart == name.length() && via.regionMatches(true, nameStart, name, 0, name.length())) {
+                if (j == length || via.charAt(j) != '=')
+                    return null;
+                int valueStart = skipSpaces(via, j + 1);
+                int valueEnd = valueStart;
+                while (valueEnd < length && "; \t".indexOf(via.charAt(valueEnd)) == -1)
+                    valueEnd++;
+                return valueEnd == valueStart ? null : via.substring(valueStart, valueEnd);
+            }
+            i = via.indexOf(';', j);
+        }
+        return null;
+    }
+
+    private static int skipSpaces(String s, int i) {
+        while (i < s.length() && (s.charAt(i) == ' ' || s.charAt(i) == '\t'))
+            i++;
+        return i;
+    }
+}
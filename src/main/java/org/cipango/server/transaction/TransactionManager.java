@@ -0,0 +1,291 @@
+package org.cipango.server.transaction;
+
+import org.cipango.server.SipConnection;
+import org.cipango.server.SipDispatcher;
+import org.cipango.server.SipMessage;
+import org.cipango.server.SipRequest;
+import org.cipango.server.SipResponse;
+import org.cipango.server.SipServer;
+import org.cipango.sip.SipHeader;
+import org.cipango.util.TimerWheel;
+import org.eclipse.jetty.util.component.ContainerLifeCycle;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Transaction layer, between the connectors and the handler of the {@link SipServer}.
+ * <p>
+ * Transactions are kept in concurrent maps keyed by branch and method. Retransmitted requests and the ACKs of
+ * non-2xx responses are absorbed by their server transaction, responses are matched to their client
+ * transaction, and only new requests and responses that match no transaction reach the handler. Requests
+ * without an RFC 3261 branch are matched as RFC 2543 requests (RFC 3261 17.2.3), responses without one bypass
+ * the transaction layer. All timers are scheduled on a {@link TimerWheel}. As they send retransmissions and call
+ * listeners, they are run on the lane executor of the dispatcher, or on a pool of the manager if the server has no
+ * dispatcher, rather than on the wheel thread.
+ */
+public class TransactionManager extends ContainerLifeCycle {
+
+    private static final Logger LOG = Log.getLogger(TransactionManager.class);
+
+    public static final long DEFAULT_T1 = 500;
+    public static final long DEFAULT_T2 = 4000;
+    public static final long DEFAULT_T4 = 5000;
+    public static final long TIMER_D = 32000;
+    /**
+     * Time an INVITE transaction waits for a final response once a provisional response has been sent or received.
+     */
+    public static final long TIMER_C = 180000;
+
+    private final SipServer server;
+    private TimerWheel timerWheel;
+    private QueuedThreadPool threadPool;
+
+    private long t1 = DEFAULT_T1;
+    private long t2 = DEFAULT_T2;
+    private long t4 = DEFAULT_T4;
+
+    private final ConcurrentMap<String, ServerTransaction> serverTransactions = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ClientTransaction> clientTransactions = new ConcurrentHashMap<>();
+
+    private final LongAdder absorbed = new LongAdder();
+    private final LongAdder retransmissions = new LongAdder();
+
+    public TransactionManager(SipServer server) {
+        this.server = server;
+        setTimerWheel(new TimerWheel());
+    }
+
+    public TimerWheel getTimerWheel() {
+        return timerWheel;
+    }
+
+    /**
+     * Sets the wheel transaction timers are scheduled on. Unless the wheel has its own executor, the timers are run
+     * by the executor of the manager.
+     */
+    public void setTimerWheel(TimerWheel timerWheel) {
+        if (isRunning())
+            throw new IllegalStateException("running");
+        if (timerWheel != null && timerWheel.getExecutor() == null)
+            timerWheel.setExecutor(this::execute);
+        updateBean(this.timerWheel, timerWheel, true);
+        this.timerWheel = timerWheel;
+    }
+
+    public long getT1() {
+        return t1;
+    }
+
+    /**
+     * Sets the round-trip time estimate in milliseconds, from which retransmission intervals and transaction
+     * timeouts are computed.
+     */
+    public void setT1(long t1) {
+        this.t1 = t1;
+    }
+
+    public long getT2() {
+        return t2;
+    }
+
+    public void setT2(long t2) {
+        this.t2 = t2;
+    }
+
+    public long getT4() {
+        return t4;
+    }
+
+    public void setT4(long t4) {
+        this.t4 = t4;
+    }
+
+    public int getServerTransactions() {
+        return serverTransactions.size();
+    }
+
+    public int getClientTransactions() {
+        return clientTransactions.size();
+    }
+
+    /**
+     * Number of retransmitted requests and ACKs absorbed by server transactions.
+     */
+    public long getAbsorbed() {
+        return absorbed.sum();
+    }
+
+    /**
+     * Number of requests, responses and ACKs retransmitted.
+     */
+    public long getRetransmissions() {
+        return retransmissions.sum();
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        if (server.getDispatcher() == null) {
+            threadPool = new QueuedThreadPool();
+            threadPool.setName("sip-timer");
+            threadPool.start();
+        }
+        super.doStart();
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        super.doStop();
+        if (threadPool != null) {
+            threadPool.stop();
+            threadPool = null;
+        }
+    }
+
+    /**
+     * Runs an expired timer, away from the wheel thread unless the executor is stopping.
+     */
+    private void execute(Runnable task) {
+        QueuedThreadPool threadPool = this.threadPool;
+        SipDispatcher dispatcher = server.getDispatcher();
+        Executor executor = threadPool != null ? threadPool : dispatcher != null ? dispatcher.getLaneExecutor() : null;
+        if (executor != null) {
+            try {
+                executor.execute(task);
+                return;
+            } catch (RejectedExecutionException e) {
+                LOG.debug("Running timer on the wheel thread", e);
+            }
+        }
+        task.run();
+    }
+
+    public void handle(SipMessage message) throws IOException {
+        if (message.isRequest())
+            handleRequest((SipRequest) message);
+        else
+            handleResponse((SipResponse) message);
+    }
+
+    private void handleRequest(SipRequest request) throws IOException {
+        String branch = Transaction.getBranch(request);
+        String key;
+        if (branch != null && branch.startsWith(Transaction.BRANCH_MAGIC_COOKIE))
+            key = Transaction.getKey(branch, Transaction.getSentBy(request), request.getMethod());
+        else
+            key = Transaction.getKey(request);
+        if (key == null) {
+            // malformed, left to the application
+            server.deliver(request);
+            return;
+        }
+
+        ServerTransaction transaction = serverTransactions.get(key);
+        if (transaction != null) {
+            absorbed.increment();
+            transaction.handleRequest(request);
+            return;
+        }
+
+        if (request.isAck()) {
+            // ACK of a 2xx, handled by the application
+            server.deliver(request);
+            return;
+        }
+
+        transaction = new ServerTransaction(this, request, branch, key);
+        ServerTransaction existing = serverTransactions.putIfAbsent(key, transaction);
+        if (existing != null) {
+            absorbed.increment();
+            existing.handleRequest(request);
+            return;
+        }
+        request.setTransaction(transaction);
+        transaction.start();
+        try {
+            server.deliver(request);
+        } catch (IOException | RuntimeException e) {
+            transaction.abort();
+            throw e;
+        }
+        if (server.getHandler() == null)
+            transaction.abort();
+    }
+
+    private void handleResponse(SipResponse response) throws IOException {
+        String branch = Transaction.getBranch(response);
+        String method = response.getMethod();
+        ClientTransaction transaction = branch == null || method == null ? null
+                : clientTransactions.get(Transaction.getKey(branch, method));
+
+        if (transaction != null)
+            transaction.handleResponse(response);
+        else
+            server.deliver(response); // stray response, e.g. a 2xx retransmission
+    }
+
+    /**
+     * Sends <code>request</code> on its connection in a new client transaction. A top Via is added if the request
+     * has none with an RFC 3261 branch.
+     */
+    public ClientTransaction sendRequest(SipRequest request, ClientTransactionListener listener) {
+        if (request.isAck())
+            throw new IllegalArgumentException("ACK is sent outside transactions");
+        SipConnection connection = request.getConnection();
+        if (connection == null)
+            throw new IllegalStateException("no connection");
+
+        String branch = Transaction.getBranch(request);
+        if (branch == null || !branch.startsWith(Transaction.BRANCH_MAGIC_COOKIE)) {
+            branch = newBranch();
+            InetSocketAddress local = connection.getLocalAddress();
+            request.getFields().addFirst(SipHeader.VIA, "SIP/2.0/" + connection.getTransport().getName() + " "
+                    + local.getAddress().getHostAddress() + ":" + local.getPort() + ";branch=" + branch);
+        }
+
+        ClientTransaction transaction = new ClientTransaction(this, request, branch, listener);
+        if (clientTransactions.putIfAbsent(transaction.getKey(), transaction) != null)
+            throw new IllegalStateException("transaction exists: " + transaction.getKey());
+        transaction.start();
+        return transaction;
+    }
+
+    public static String newBranch() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return Transaction.BRANCH_MAGIC_COOKIE + Long.toHexString(random.nextLong() | Long.MIN_VALUE)
+                + Integer.toHexString(random.nextInt());
+    }
+
+    TimerWheel.Timeout schedule(Runnable task, long delay) {
+        return timerWheel.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    void retransmitted() {
+        retransmissions.increment();
+    }
+
+    void remove(Transaction transaction) {
+        if (transaction instanceof ServerTransaction)
+            serverTransactions.remove(transaction.getKey(), transaction);
+        else
+            clientTransactions.remove(transaction.getKey(), transaction);
+        if (LOG.isDebugEnabled())
+            LOG.debug("Removed {}", transaction);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s@%x{server=%d,client=%d}", getClass().getSimpleName(), hashCode(),
+                getServerTransactions(), getClientTransactions());
+    }
+}
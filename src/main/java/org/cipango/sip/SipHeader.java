@@ -1,14 +1,138 @@
 package org.cipango.sip;
 
+import org.eclipse.jetty.util.ArrayTrie;
+import org.eclipse.jetty.util.Trie;
+
+/**
+ * Standard SIP headers, with their compact forms (RFC 3261 7.3.3 and extensions).
+ */
 public enum SipHeader {
 
-    CALL_ID("Call-ID");
+    ACCEPT("Accept"),
+    ACCEPT_CONTACT("Accept-Contact", 'a'),
+    ACCEPT_ENCODING("Accept-Encoding"),
+    ACCEPT_LANGUAGE("Accept-Language"),
+    ACCEPT_RESOURCE_PRIORITY("Accept-Resource-Priority"),
+    ALERT_INFO("Alert-Info"),
+    ALLOW("Allow"),
+    ALLOW_EVENTS("Allow-Events", 'u'),
+    AUTHENTICATION_INFO("Authentication-Info"),
+    AUTHORIZATION("Authorization"),
+    CALL_ID("Call-ID", 'i'),
+    CALL_INFO("Call-Info"),
+    CONTACT("Contact", 'm'),
+    CONTENT_DISPOSITION("Content-Disposition"),
+    CONTENT_ENCODING("Content-Encoding", 'e'),
+    CONTENT_LANGUAGE("Content-Language"),
+    CONTENT_LENGTH("Content-Length", 'l'),
+    CONTENT_TYPE("Content-Type", 'c'),
+    CSEQ("CSeq"),
+    DATE("Date"),
+    ERROR_INFO("Error-Info"),
+    EVENT("Event", 'o'),
+    EXPIRES("Expires"),
+    FROM("From", 'f'),
+    HISTORY_INFO("History-Info"),
+    IDENTITY("Identity", 'y'),
+    IDENTITY_INFO("Identity-Info", 'n'),
+    IN_REPLY_TO("In-Reply-To"),
+    JOIN("Join"),
+    MAX_FORWARDS("Max-Forwards"),
+    MIME_VERSION("MIME-Version"),
+    MIN_EXPIRES("Min-Expires"),
+    MIN_SE("Min-SE"),
+    ORGANIZATION("Organization"),
+    P_ASSERTED_IDENTITY("P-Asserted-Identity"),
+    P_PREFERRED_IDENTITY("P-Preferred-Identity"),
+    PATH("Path"),
+    PRIORITY("Priority"),
+    PRIVACY("Privacy"),
+    PROXY_AUTHENTICATE("Proxy-Authenticate"),
+    PROXY_AUTHORIZATION("Proxy-Authorization"),
+    PROXY_REQUIRE("Proxy-Require"),
+    RACK("RAck"),
+    REASON("Reason"),
+    RECORD_ROUTE("Record-Route"),
+    REFER_SUB("Refer-Sub"),
+    REFER_TO("Refer-To", 'r'),
+    REFERRED_BY("Referred-By", 'b'),
+    REJECT_CONTACT("Reject-Contact", 'j'),
+    REPLACES("Replaces"),
+    REPLY_TO("Reply-To"),
+    REQUEST_DISPOSITION("Request-Disposition", 'd'),
+    REQUIRE("Require"),
+    RESOURCE_PRIORITY("Resource-Priority"),
+    RETRY_AFTER("Retry-After"),
+    ROUTE("Route"),
+    RSEQ("RSeq"),
+    SECURITY_CLIENT("Security-Client"),
+    SECURITY_SERVER("Security-Server"),
+    SECURITY_VERIFY("Security-Verify"),
+    SERVER("Server"),
+    SERVICE_ROUTE("Service-Route"),
+    SESSION_EXPIRES("Session-Expires", 'x'),
+    SIP_ETAG("SIP-ETag"),
+    SIP_IF_MATCH("SIP-If-Match"),
+    SUBJECT("Subject", 's'),
+    SUBSCRIPTION_STATE("Subscription-State"),
+    SUPPORTED("Supported", 'k'),
+    TARGET_DIALOG("Target-Dialog"),
+    TIMESTAMP("Timestamp"),
+    TO("To", 't'),
+    UNSUPPORTED("Unsupported"),
+    USER_AGENT("User-Agent"),
+    VIA("Via", 'v'),
+    WARNING("Warning"),
+    WWW_AUTHENTICATE("WWW-Authenticate");
+
+    /**
+     * Case-insensitive lookup of headers by full or compact name.
+     */
+    public static final Trie<SipHeader> CACHE = new ArrayTrie<>(1024);
+
+    static {
+        for (SipHeader header : SipHeader.values()) {
+            if (!CACHE.put(header.asString(), header))
+                throw new IllegalStateException("CACHE full");
+            if (header.isCompact() && !CACHE.put(header.getCompactForm(), header))
+                throw new IllegalStateException("CACHE full");
+        }
+    }
+
+    public static SipHeader lookup(String name) {
+        return CACHE.get(name);
+    }
 
-    private String name;
+    private final String name;
+    private final String compact;
 
     SipHeader(String name) {
         this.name = name;
+        this.compact = null;
+    }
 
+    SipHeader(String name, char compact) {
+        this.name = name;
+        this.compact = String.valueOf(compact);
     }
 
+    public boolean isCompact() {
+        return compact != null;
+    }
+
+    /**
+     * Returns the compact form of the header, or <code>null</code> if it has none.
+     */
+    public String getCompactForm() {
+        return compact;
+    }
+
+    public String asString() {
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return asString();
+    }
 }
@@ -1,7 +1,11 @@
 package org.cipango.sip;
 
-import java.util.BitSet;
-
+/**
+ * Character classes of the SIP grammar.
+ * <p>
+ * Every class is a bit flag in a single table of 256 entries, so that testing whether a char or a byte belongs
+ * to a class is one array load and a mask.
+ */
 public class SipRules {
 
     public static final char SP = 0x20;
@@ -18,33 +22,62 @@ public class SipRules {
     public static final String USER_CHARS = UNRESERVED_CHARS + "&=+$,;?/";
     public static final String HOSTNAME_CHARS =ALPHANUM_CHARS + "-.";
     public static final String PARAM_CHARS = "[]/:&+$" +  UNRESERVED_CHARS;
+    public static final String HEADER_CHARS = "[]/?:+$" + UNRESERVED_CHARS;
+
+    public static final String TOKEN_CHARS = "-.!%*_+`'~" + ALPHANUM_CHARS;
+
+    public static final int DIGIT = 1;
+    public static final int ALPHA = 1 << 1;
 
-    public static final String TOKEN_CHARS = "-.!%*_+`'~" + ALPHA_CHARS;
+    public static final int USER = 1 << 2;
+    public static final int ESCAPED_USER = 1 << 3;
 
-    public static final BitSet USER = fromChars(USER_CHARS);
-    public static final BitSet ESCAPED_USER = fromChars(USER_CHARS + ESCAPE_CHAR);
+    public static final int PASSWORD = 1 << 4;
+    public static final int ESCAPED_PASSWORD = 1 << 5;
 
-    public static final BitSet PASSWORD = fromChars(PASSWORD_CHARS);
-    public static final BitSet ESCAPED_PASSWORD = fromChars(PASSWORD_CHARS + ESCAPE_CHAR);
+    public static final int HOSTNAME = 1 << 6;
 
-    public static final BitSet HOSTNAME = fromChars(HOSTNAME_CHARS);
+    public static final int PARAM = 1 << 7;
+    public static final int ESCAPED_PARAM = 1 << 8;
 
-    public static final BitSet ESCAPED_PARAM = fromChars(PARAM_CHARS + ESCAPE_CHAR);
+    public static final int HEADER = 1 << 9;
+    public static final int ESCAPED_HEADER = 1 << 10;
 
+    public static final int TOKEN = 1 << 11;
 
-    public static final BitSet TOKEN = fromChars(TOKEN_CHARS);
+    private static final int[] CLASSES = new int[256];
 
+    static {
+        define(DIGIT, DIGIT_CHARS);
+        define(ALPHA, ALPHA_CHARS);
+        define(USER, USER_CHARS);
+        define(ESCAPED_USER, USER_CHARS + ESCAPE_CHAR);
+        define(PASSWORD, PASSWORD_CHARS);
+        define(ESCAPED_PASSWORD, PASSWORD_CHARS + ESCAPE_CHAR);
+        define(HOSTNAME, HOSTNAME_CHARS);
+        define(PARAM, PARAM_CHARS);
+        define(ESCAPED_PARAM, PARAM_CHARS + ESCAPE_CHAR);
+        define(HEADER, HEADER_CHARS);
+        define(ESCAPED_HEADER, HEADER_CHARS + ESCAPE_CHAR);
+        define(TOKEN, TOKEN_CHARS);
+    }
+
+    private static void define(int charClass, String chars) {
+        for (int i = 0; i < chars.length(); i++)
+            CLASSES[chars.charAt(i)] |= charClass;
+    }
 
-    public static final BitSet fromChars(String s) {
-        BitSet bs = new BitSet(256);
-        for (int i = 0; i < s.length(); i++)
-            bs.set(s.charAt(i));
-        return bs;
+    /**
+     * Returns <code>true</code> if <code>c</code> is in one of the classes of the <code>charClasses</code> mask.
+     * A byte must be given as an unsigned value (<code>b &amp; 0xff</code>).
+     */
+    public static boolean is(int c, int charClasses) {
+        return (c & ~0xff) == 0 && (CLASSES[c] & charClasses) != 0;
     }
 
-    public static boolean isValid(String s, BitSet bs) {
+    public static boolean isValid(String s, int charClasses) {
         for (int i = 0; i < s.length(); i++) {
-            if (!bs.get(s.charAt(i)))
+            if (!is(s.charAt(i), charClasses))
                 return false;
         }
         return true;
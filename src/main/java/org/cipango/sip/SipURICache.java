@@ -0,0 +1,368 @@
+package org.cipango.sip;
+
+import org.eclipse.jetty.util.annotation.ManagedAttribute;
+import org.eclipse.jetty.util.annotation.ManagedObject;
+import org.eclipse.jetty.util.annotation.ManagedOperation;
+
+import javax.servlet.sip.SipURI;
+import javax.servlet.sip.URI;
+import java.text.ParseException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of parsed SIP URIs, keyed by their text.
+ * <p>
+ * The same few URIs (the Record-Route of a proxy, the Contact of an SBC, the host of a registrar) appear in
+ * most messages. The cache keeps one parsed {@link SipURIImpl} per text, that is never modified. Each lookup
+ * returns a light view of it, which only copies the shared URI if a setter is called. Entries are evicted in
+ * least recently used order, within stripes that are locked independently.
+ */
+@ManagedObject("Parsed URI cache")
+public class SipURICache {
+
+    public static final int DEFAULT_MAX_SIZE = 1024;
+    public static final String MAX_SIZE_PROPERTY = "org.cipango.sip.uriCacheSize";
+
+    private static final int STRIPES = 16;
+
+    private static final SipURICache DEFAULT = new SipURICache(Integer.getInteger(MAX_SIZE_PROPERTY, DEFAULT_MAX_SIZE));
+
+    /**
+     * Returns the cache used for received messages, sized with the {@value #MAX_SIZE_PROPERTY} system property.
+     * A size of <code>0</code> disables caching.
+     */
+    public static SipURICache getDefault() {
+        return DEFAULT;
+    }
+
+    private final int maxSize;
+    private final Stripe[] stripes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public SipURICache(int maxSize) {
+        this.maxSize = maxSize;
+        int stripes = maxSize < STRIPES * 4 ? 1 : STRIPES;
+        this.stripes = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++)
+            this.stripes[i] = new Stripe((maxSize + stripes - 1) / stripes);
+    }
+
+    /**
+     * Returns the parsed URI for <code>s</code>, shared with the other lookups of the same text until modified.
+     */
+    public SipURI parse(String s) throws ParseException {
+        if (maxSize <= 0)
+            return SipURIImpl.parseURI(s);
+
+        int hash = s.hashCode();
+        Stripe stripe = stripes[((hash ^ (hash >>> 16)) & 0x7fffffff) % stripes.length];
+
+        SipURIImpl uri;
+        synchronized (stripe) {
+            uri = stripe.get(s);
+        }
+
+        if (uri != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+            uri = SipURIImpl.parseURI(s);
+            uri.getHost(); // extracted once for all the views
+            synchronized (stripe) {
+                stripe.put(s, uri);
+            }
+        }
+        return new SharedSipURI(uri);
+    }
+
+    @ManagedAttribute("Maximum number of URIs")
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    @ManagedAttribute("Number of URIs")
+    public int getSize() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    @ManagedAttribute("Lookups that found a parsed URI")
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @ManagedAttribute("Lookups that parsed the URI")
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @ManagedAttribute("URIs evicted to make room for others")
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @ManagedAttribute("Ratio of lookups that found a parsed URI")
+    public double getHitRatio() {
+        long hits = this.hits.sum();
+        long total = hits + misses.sum();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @ManagedOperation(value = "Removes all URIs", impact = "ACTION")
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    @ManagedOperation(value = "Resets the statistics", impact = "ACTION")
+    public void resetStatistics() {
+        hits.reset();
+        misses.reset();
+        evictions.reset();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s@%x{size=%d/%d,hits=%d,misses=%d,evictions=%d}", getClass().getSimpleName(),
+                hashCode(), getSize(), maxSize, getHits(), getMisses(), getEvictions());
+    }
+
+    @SuppressWarnings("serial")
+    class Stripe extends LinkedHashMap<String, SipURIImpl> {
+
+        private final int capacity;
+
+        Stripe(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SipURIImpl> eldest) {
+            if (size() > capacity) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Read-through view of a shared URI, copied on the first modification.
+     */
+    static class SharedSipURI implements SipURI {
+
+        private SipURIImpl uri;
+        private boolean shared = true;
+
+        SharedSipURI(SipURIImpl uri) {
+            this.uri = uri;
+        }
+
+        private SipURIImpl writable() {
+            if (shared) {
+                uri = (SipURIImpl) uri.clone();
+                shared = false;
+            }
+            return uri;
+        }
+
+        boolean isShared() {
+            return shared;
+        }
+
+        @Override
+        public String getUser() {
+            return uri.getUser();
+        }
+
+        @Override
+        public String getUserPassword() {
+            return uri.getUserPassword();
+        }
+
+        @Override
+        public String getHost() {
+            return uri.getHost();
+        }
+
+        @Override
+        public int getPort() {
+            return uri.getPort();
+        }
+
+        @Override
+        public boolean isSecure() {
+            return uri.isSecure();
+        }
+
+        @Override
+        public String getTransportParam() {
+            return uri.getTransportParam();
+        }
+
+        @Override
+        public String getMAddrParam() {
+            return uri.getMAddrParam();
+        }
+
+        @Override
+        public String getMethodParam() {
+            return uri.getMethodParam();
+        }
+
+        @Override
+        public int getTTLParam() {
+            return uri.getTTLParam();
+        }
+
+        @Override
+        public String getUserParam() {
+            return uri.getUserParam();
+        }
+
+        @Override
+        public boolean getLrParam() {
+            return uri.getLrParam();
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return uri.getHeader(name);
+        }
+
+        @Override
+        public Iterator<String> getHeaderNames() {
+            return uri.getHeaderNames();
+        }
+
+        @Override
+        public String getScheme() {
+            return uri.getScheme();
+        }
+
+        @Override
+        public boolean isSipURI() {
+            return uri.isSipURI();
+        }
+
+        @Override
+        public String getParameter(String name) {
+            return uri.getParameter(name);
+        }
+
+        @Override
+        public Iterator<String> getParameterNames() {
+            return uri.getParameterNames();
+        }
+
+        @Override
+        public void setUser(String user) {
+            writable().setUser(user);
+        }
+
+        @Override
+        public void setUserPassword(String password) {
+            writable().setUserPassword(password);
+        }
+
+        @Override
+        public void setHost(String host) {
+            writable().setHost(host);
+        }
+
+        @Override
+        public void setPort(int port) {
+            writable().setPort(port);
+        }
+
+        @Override
+        public void setSecure(boolean secure) {
+            writable().setSecure(secure);
+        }
+
+        @Override
+        public void setTransportParam(String transport) {
+            writable().setTransportParam(transport);
+        }
+
+        @Override
+        public void setMAddrParam(String maddr) {
+            writable().setMAddrParam(maddr);
+        }
+
+        @Override
+        public void setMethodParam(String method) {
+            writable().setMethodParam(method);
+        }
+
+        @Override
+        public void setTTLParam(int ttl) {
+            writable().setTTLParam(ttl);
+        }
+
+        @Override
+        public void setUserParam(String user) {
+            writable().setUserParam(user);
+        }
+
+        @Override
+        public void setLrParam(boolean lr) {
+            writable().setLrParam(lr);
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            writable().setHeader(name, value);
+        }
+
+        @Override
+        public void removeHeader(String name) {
+            writable().removeHeader(name);
+        }
+
+        @Override
+        public void setParameter(String name, String value) {
+            writable().setParameter(name, value);
+        }
+
+        @Override
+        public void removeParameter(String name) {
+            writable().removeParameter(name);
+        }
+
+        @Override
+        public URI clone() {
+            return uri.clone();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o == this || uri.equals(o);
+        }
+
+        @Override
+        public int hashCode() {
+            return uri.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return uri.toString();
+        }
+    }
+}
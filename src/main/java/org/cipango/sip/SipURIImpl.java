@@ -1,34 +1,74 @@
 package org.cipango.sip;
 
-import org.cipango.util.Scanner;
+import org.cipango.util.BufferScanner;
 import org.cipango.util.StringUtil;
 import org.cipango.util.TypeUtils;
+import org.eclipse.jetty.util.ArrayTrie;
+import org.eclipse.jetty.util.Trie;
 
 import javax.servlet.sip.SipURI;
 import javax.servlet.sip.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
-import java.util.BitSet;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
 
-public class SipURIImpl implements SipURI {
-
-    private static final BitSet PARAM_SEPARATORS = SipRules.fromChars(";=?");
+/**
+ * SIP URI parsed lazily: the text is validated once, then only the offsets of its components are kept. User,
+ * password, host, parameters and headers are extracted when first asked for, and an unmodified URI is written
+ * back as the original text.
+ */
+public class SipURIImpl implements SipURI, Cloneable {
 
     enum Param {
         TRANSPORT, TTL, MADDR, METHOD, USER, LR;
 
+        static final Trie<Param> CACHE = new ArrayTrie<>();
+
+        static {
+            for (Param param : Param.values())
+                CACHE.put(param.asString(), param);
+        }
+
         private String string;
         Param() { string = name().toLowerCase(); }
         public String asString() { return string; }
         @Override public String toString() { return asString(); }
     }
 
+    private String source;
+    private boolean modified;
+
+    private boolean secure;
+    private int port;
+
+    private int userStart = -1;
+    private int userEnd;
+    private int passwordStart = -1;
+    private int passwordEnd;
+    private int hostStart = -1;
+    private int hostEnd;
+    private int paramsStart = -1;
+    private int headersStart = -1;
+
     private String user;
     private String password;
     private String host;
 
-    private boolean secure;
-    private int port;
+    // Parameters and headers are read from the source until one of them is modified. They are then loaded
+    // in flat arrays, in source order, the well-known parameters having slots that hold their index in the array.
+    private boolean paramsLoaded;
+    private int[] paramSlots;
+    private String[] params;
+    private int paramsSize;
+
+    private boolean headersLoaded;
+    private String[] headers;
+    private int headersSize;
 
     protected SipURIImpl() {
         this.port = -1;
@@ -36,26 +76,36 @@ public class SipURIImpl implements SipURI {
 
     @Override
     public String getUser() {
+        if (user == null && userStart >= 0)
+            user = source.substring(userStart, userEnd);
         return user;
     }
 
     @Override
-    public void setUser(String s) {
+    public void setUser(String user) {
+        materialize();
         this.user = user;
+        userStart = -1;
     }
 
     @Override
     public String getUserPassword() {
+        if (password == null && passwordStart >= 0)
+            password = source.substring(passwordStart, passwordEnd);
         return password;
     }
 
     @Override
-    public void setUserPassword(String s) {
+    public void setUserPassword(String password) {
+        materialize();
         this.password = password;
+        passwordStart = -1;
     }
 
     @Override
     public String getHost() {
+        if (host == null && hostStart >= 0)
+            host = source.substring(hostStart, hostEnd);
         return host;
     }
 
@@ -67,7 +117,9 @@ public class SipURIImpl implements SipURI {
         if (!SipRules.isValid(host, SipRules.HOSTNAME))
             throw new IllegalArgumentException("invalid host");
 
+        materialize();
         this.host = host;
+        hostStart = -1;
     }
 
     @Override
@@ -83,6 +135,7 @@ public class SipURIImpl implements SipURI {
         if (port > 65535)
             throw new IllegalArgumentException("invalid port");
 
+        materialize();
         this.port = port;
     }
 
@@ -92,91 +145,128 @@ public class SipURIImpl implements SipURI {
     }
 
     @Override
-    public void setSecure(boolean b) {
-        this.secure = true;
+    public void setSecure(boolean secure) {
+        materialize();
+        this.secure = secure;
+    }
+
+    /**
+     * Called before a modification: the URI can no longer be written as the text it was parsed from.
+     */
+    private void materialize() {
+        if (!modified) {
+            getUser();
+            getUserPassword();
+            getHost();
+            modified = true;
+        }
     }
 
     @Override
     public String getTransportParam() {
-        return getParameter(Param.TRANSPORT.asString());
+        return getParameter(Param.TRANSPORT);
     }
 
     @Override
     public void setTransportParam(String transport) {
-        setParameter(Param.TRANSPORT.asString(), transport);
+        setParameter(Param.TRANSPORT, transport);
     }
 
     @Override
     public String getMAddrParam() {
-        return getParameter(Param.MADDR.asString());
+        return getParameter(Param.MADDR);
     }
 
     @Override
     public void setMAddrParam(String maddr) {
-        setParameter(Param.MADDR.asString(), maddr);
+        setParameter(Param.MADDR, maddr);
     }
 
     @Override
     public String getMethodParam() {
-        return getParameter(Param.METHOD.asString());
+        return getParameter(Param.METHOD);
     }
 
     @Override
     public void setMethodParam(String method) {
-        setParameter(Param.METHOD.asString(), method);
+        setParameter(Param.METHOD, method);
     }
 
     @Override
     public int getTTLParam() {
-        return TypeUtils.toInt(getParameter(Param.TTL.asString()), -1);
+        return TypeUtils.toInt(getParameter(Param.TTL), -1);
     }
 
     @Override
     public void setTTLParam(int ttl) {
-        if (ttl < 0)
-            removeParameter(Param.TTL.asString());
-        else
-            setParameter(Param.TTL.asString(), String.valueOf(ttl));
+        setParameter(Param.TTL, ttl < 0 ? null : String.valueOf(ttl));
     }
 
     @Override
     public String getUserParam() {
-        return getParameter(Param.USER.asString());
+        return getParameter(Param.USER);
     }
 
     @Override
     public void setUserParam(String user) {
-        setParameter(Param.USER.asString(), user);
+        setParameter(Param.USER, user);
     }
 
     @Override
     public boolean getLrParam() {
-        return "".equals(getParameter(Param.LR.asString()));
+        return getParameter(Param.LR) != null;
     }
 
     @Override
-    public void setLrParam(boolean b) {
-        setParameter(Param.LR.asString(), "");
+    public void setLrParam(boolean lr) {
+        setParameter(Param.LR, lr ? "" : null);
     }
 
     @Override
-    public String getHeader(String s) {
-        return null;
+    public String getHeader(String name) {
+        if (headersLoaded) {
+            int index = indexOf(headers, headersSize, name);
+            return index < 0 ? null : headers[index + 1];
+        }
+        return find(headersStart, source == null ? 0 : source.length(), '&', name);
     }
 
     @Override
-    public void setHeader(String s, String s1) {
-
+    public void setHeader(String name, String value) {
+        if (name == null)
+            throw new NullPointerException("null name");
+        if (value == null) {
+            removeHeader(name);
+            return;
+        }
+        loadHeaders();
+        int index = indexOf(headers, headersSize, name);
+        if (index >= 0) {
+            headers[index + 1] = value;
+        } else {
+            headers = add(headers, headersSize, name, value);
+            headersSize += 2;
+        }
     }
 
     @Override
-    public void removeHeader(String s) {
-
+    public void removeHeader(String name) {
+        loadHeaders();
+        int index = indexOf(headers, headersSize, name);
+        if (index >= 0)
+            headersSize = remove(headers, headersSize, index);
     }
 
     @Override
     public Iterator<String> getHeaderNames() {
-        return null;
+        List<String> names = new ArrayList<>();
+        if (headersLoaded) {
+            for (int i = 0; i < headersSize; i += 2)
+                names.add(headers[i]);
+        } else {
+            scan(headersStart, source == null ? 0 : source.length(), '&', names, null);
+        }
+        return names.iterator();
     }
 
     @Override
@@ -190,33 +280,338 @@ public class SipURIImpl implements SipURI {
     }
 
     @Override
-    public String getParameter(String s) {
-        return null;
+    public String getParameter(String name) {
+        if (paramsLoaded) {
+            int index = indexOfParameter(name);
+            return index < 0 ? null : params[index + 1];
+        }
+        return find(paramsStart, getParamsEnd(), ';', name);
     }
 
-    @Override
-    public void setParameter(String s, String s1) {
+    private String getParameter(Param param) {
+        if (paramsLoaded) {
+            int index = paramSlots[param.ordinal()];
+            return index < 0 ? null : params[index + 1];
+        }
+        return find(paramsStart, getParamsEnd(), ';', param.asString());
+    }
 
+    private int indexOfParameter(String name) {
+        Param param = Param.CACHE.get(name);
+        return param != null ? paramSlots[param.ordinal()] : indexOf(params, paramsSize, name);
     }
 
     @Override
-    public void removeParameter(String s) {
+    public void setParameter(String name, String value) {
+        if (name == null)
+            throw new NullPointerException("null name");
+        if (value == null) {
+            removeParameter(name);
+            return;
+        }
+        loadParameters();
+        int index = indexOfParameter(name);
+        if (index >= 0) {
+            params[index + 1] = value;
+        } else {
+            Param param = Param.CACHE.get(name);
+            if (param != null)
+                paramSlots[param.ordinal()] = paramsSize;
+            params = add(params, paramsSize, name, value);
+            paramsSize += 2;
+        }
+    }
+
+    private void setParameter(Param param, String value) {
+        setParameter(param.asString(), value);
+    }
 
+    @Override
+    public void removeParameter(String name) {
+        loadParameters();
+        int index = indexOfParameter(name);
+        if (index < 0)
+            return;
+        paramsSize = remove(params, paramsSize, index);
+        for (int i = 0; i < paramSlots.length; i++) {
+            if (paramSlots[i] == index)
+                paramSlots[i] = -1;
+            else if (paramSlots[i] > index)
+                paramSlots[i] -= 2;
+        }
     }
 
     @Override
     public Iterator<String> getParameterNames() {
-        return null;
+        List<String> names = new ArrayList<>();
+        if (paramsLoaded) {
+            for (int i = 0; i < paramsSize; i += 2)
+                names.add(params[i]);
+        } else {
+            scan(paramsStart, getParamsEnd(), ';', names, null);
+        }
+        return names.iterator();
+    }
+
+    private void loadParameters() {
+        if (paramsLoaded)
+            return;
+        materialize();
+        List<String> names = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        scan(paramsStart, getParamsEnd(), ';', names, values);
+        paramsLoaded = true;
+        paramSlots = new int[Param.values().length];
+        Arrays.fill(paramSlots, -1);
+        for (int i = 0; i < names.size(); i++)
+            setParameter(names.get(i), values.get(i));
+    }
+
+    private void loadHeaders() {
+        if (headersLoaded)
+            return;
+        materialize();
+        List<String> names = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        scan(headersStart, source == null ? 0 : source.length(), '&', names, values);
+        headersLoaded = true;
+        for (int i = 0; i < names.size(); i++)
+            setHeader(names.get(i), values.get(i));
     }
 
     @Override
     public URI clone() {
+        try {
+            SipURIImpl clone = (SipURIImpl) super.clone();
+            if (paramSlots != null)
+                clone.paramSlots = paramSlots.clone();
+            if (params != null)
+                clone.params = params.clone();
+            if (headers != null)
+                clone.headers = headers.clone();
+            return clone;
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Compares URIs with the rules of RFC 3261 19.1.4: scheme, host and parameter values ignore case but user and
+     * password do not, the user, ttl, method, maddr and transport parameters must match when either URI has them,
+     * the other parameters are only compared when both URIs have them, in any order, and all headers must match.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (o == this)
+            return true;
+        if (!(o instanceof SipURI))
+            return false;
+        SipURI uri = (SipURI) o;
+
+        if (isSecure() != uri.isSecure() || getPort() != uri.getPort()
+                || !getHost().equalsIgnoreCase(uri.getHost())
+                || !Objects.equals(getUser(), uri.getUser())
+                || !Objects.equals(getUserPassword(), uri.getUserPassword()))
+            return false;
+
+        for (Iterator<String> it = getParameterNames(); it.hasNext(); ) {
+            String name = it.next();
+            String value = uri.getParameter(name);
+            if (value == null) {
+                if (isRequired(name))
+                    return false;
+            } else if (!value.equalsIgnoreCase(getParameter(name))) {
+                return false;
+            }
+        }
+        for (Iterator<String> it = uri.getParameterNames(); it.hasNext(); ) {
+            String name = it.next();
+            if (isRequired(name) && getParameter(name) == null)
+                return false;
+        }
+
+        int headers = 0;
+        for (Iterator<String> it = getHeaderNames(); it.hasNext(); headers++) {
+            String name = it.next();
+            String value = uri.getHeader(name);
+            if (value == null || !value.equalsIgnoreCase(getHeader(name)))
+                return false;
+        }
+        for (Iterator<String> it = uri.getHeaderNames(); it.hasNext(); it.next())
+            headers--;
+        return headers == 0;
+    }
+
+    private static boolean isRequired(String name) {
+        Param param = Param.CACHE.get(name);
+        return param != null && param != Param.LR;
+    }
+
+    /**
+     * Based on the components that are always compared by {@link #equals(Object)}: scheme, host and port.
+     */
+    @Override
+    public int hashCode() {
+        String host = getHost();
+        int hash = secure ? 1 : 0;
+        for (int i = 0; i < host.length(); i++)
+            hash = 31 * hash + Character.toLowerCase(host.charAt(i));
+        return 31 * hash + port;
+    }
+
+    /**
+     * Returns the text the URI was parsed from if it has not been modified.
+     */
+    @Override
+    public String toString() {
+        if (!modified)
+            return source;
+
+        StringBuilder sb = new StringBuilder(64);
+        sb.append(getScheme()).append(':');
+        if (user != null) {
+            StringUtil.encode(user, SipRules.USER, sb);
+            if (password != null)
+                StringUtil.encode(password, SipRules.PASSWORD, sb.append(':'));
+            sb.append('@');
+        }
+        sb.append(host);
+        if (port >= 0)
+            sb.append(':').append(port);
+
+        if (!paramsLoaded) {
+            if (paramsStart >= 0)
+                sb.append(source, paramsStart, getParamsEnd());
+        } else {
+            for (int i = 0; i < paramsSize; i += 2)
+                appendParameter(sb, params[i], params[i + 1]);
+        }
+
+        if (!headersLoaded) {
+            if (headersStart >= 0)
+                sb.append(source, headersStart, source.length());
+        } else {
+            for (int i = 0; i < headersSize; i += 2) {
+                sb.append(i == 0 ? '?' : '&');
+                StringUtil.encode(headers[i], SipRules.HEADER, sb);
+                StringUtil.encode(headers[i + 1], SipRules.HEADER, sb.append('='));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void appendParameter(StringBuilder sb, String name, String value) {
+        StringUtil.encode(name, SipRules.PARAM, sb.append(';'));
+        if (value.length() > 0)
+            StringUtil.encode(value, SipRules.PARAM, sb.append('='));
+    }
+
+    private int getParamsEnd() {
+        return headersStart >= 0 ? headersStart : source == null ? 0 : source.length();
+    }
+
+    /**
+     * Finds the value of <code>name</code> in the <code>separator</code> separated name[=value] list that starts
+     * at <code>start</code> (with a leading separator). A name without value has an empty value.
+     */
+    private String find(int start, int end, char separator, String name) {
+        if (start < 0)
+            return null;
+        int i = start;
+        while (i < end) {
+            int nameStart = i + 1;
+            int next = indexOf(separator, nameStart, end);
+            int eq = indexOf('=', nameStart, next);
+            if (matches(name, nameStart, eq))
+                return eq == next ? "" : decode(eq + 1, next);
+            i = next;
+        }
         return null;
     }
 
+    private void scan(int start, int end, char separator, List<String> names, List<String> values) {
+        if (start < 0)
+            return;
+        int i = start;
+        while (i < end) {
+            int next = indexOf(separator, i + 1, end);
+            int eq = indexOf('=', i + 1, next);
+            names.add(decode(i + 1, eq));
+            if (values != null)
+                values.add(eq == next ? "" : decode(eq + 1, next));
+            i = next;
+        }
+    }
+
+    private static int indexOf(String[] pairs, int size, String name) {
+        for (int i = 0; i < size; i += 2) {
+            if (pairs[i].equalsIgnoreCase(name))
+                return i;
+        }
+        return -1;
+    }
+
+    private static String[] add(String[] pairs, int size, String name, String value) {
+        if (pairs == null)
+            pairs = new String[4];
+        else if (size == pairs.length)
+            pairs = Arrays.copyOf(pairs, size * 2);
+        pairs[size] = name;
+        pairs[size + 1] = value;
+        return pairs;
+    }
+
+    private static int remove(String[] pairs, int size, int index) {
+        System.arraycopy(pairs, index + 2, pairs, index, size - index - 2);
+        pairs[size - 2] = null;
+        pairs[size - 1] = null;
+        return size - 2;
+    }
+
+    private int indexOf(char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (source.charAt(i) == c)
+                return i;
+        }
+        return end;
+    }
+
+    private boolean matches(String name, int start, int end) {
+        return end - start == name.length() && source.regionMatches(true, start, name, 0, end - start);
+    }
+
+    private String decode(int start, int end) {
+        try {
+            return StringUtil.decode(source, start, end);
+        } catch (ParseException e) {
+            return source.substring(start, end);
+        }
+    }
+
+    /**
+     * Parses a SIP or SIPS URI. The whole text is validated, but components are only extracted when they are
+     * first asked for.
+     */
     public static SipURIImpl parseURI(String s) throws ParseException {
+        return parseURI(s, new BufferScanner(s));
+    }
+
+    /**
+     * Parses the SIP or SIPS URI between <code>start</code> and <code>end</code> in <code>buffer</code>, for
+     * instance a Request-URI still in the receive buffer.
+     */
+    public static SipURIImpl parseURI(ByteBuffer buffer, int start, int end) throws ParseException {
+        BufferScanner scanner = new BufferScanner(buffer, start, end);
+        return parseURI(scanner.toString(start, end), scanner);
+    }
+
+    private static SipURIImpl parseURI(String s, BufferScanner scanner) throws ParseException {
 
         SipURIImpl uri = new SipURIImpl();
+        uri.source = s;
+
+        // offsets are kept relative to the source string
+        int origin = scanner.getPosition();
 
         int i = 0;
         if (StringUtil.startsWithIgnoreCase(s, "sip:")) {
@@ -227,48 +622,100 @@ public class SipURIImpl implements SipURI {
         } else {
             throw new ParseException("invalid scheme", 0);
         }
-
-        Scanner scanner = new Scanner(s, i);
+        scanner.consume(i);
 
         if (scanner.indexOf('@') != -1) { // user/password
 
-            uri.user = StringUtil.decode(scanner.read(SipRules.ESCAPED_USER));
-            if (StringUtil.isEmpty(uri.user))
-                throw new ParseException("Empty user", scanner.getPosition());
+            uri.userStart = scanner.getPosition() - origin;
+            uri.userEnd = scanner.read(SipRules.ESCAPED_USER) - origin;
+            if (uri.userEnd == uri.userStart)
+                throw new ParseException("Empty user", scanner.getPosition() - origin);
+            uri.user = decodeEscaped(s, uri.userStart, uri.userEnd);
 
             if (scanner.peek() == ':') {
                 scanner.consume(1);
-                uri.password = StringUtil.decode(scanner.read(SipRules.ESCAPED_PASSWORD));
+                uri.passwordStart = scanner.getPosition() - origin;
+                uri.passwordEnd = scanner.read(SipRules.ESCAPED_PASSWORD) - origin;
+                uri.password = decodeEscaped(s, uri.passwordStart, uri.passwordEnd);
             }
 
             scanner.match('@');
         }
 
-        uri.host = scanner.read(SipRules.HOSTNAME); // TODO IPv6
+        uri.hostStart = scanner.getPosition() - origin;
+        uri.hostEnd = scanner.read(SipRules.HOSTNAME) - origin; // TODO IPv6
 
-        if (StringUtil.isEmpty(uri.host))
-            throw new ParseException("Empty host", scanner.getPosition());
+        if (uri.hostEnd == uri.hostStart)
+            throw new ParseException("Empty host", scanner.getPosition() - origin);
 
         if (scanner.peek() == ':') {
             scanner.consume(1);
-            uri.port = scanner.readInt();
+            int start = scanner.getPosition() - origin;
+            if (scanner.peek() < '0' || scanner.peek() > '9')
+                throw new ParseException("Invalid port", start);
+            uri.port = scanner.readInt(5);
+            if (uri.port > 65535 || (scanner.peek() >= '0' && scanner.peek() <= '9'))
+                throw new ParseException("Invalid port", start);
         }
 
-        while (scanner.peek() == ';') {
-
-            scanner.consume(1);
-            String name = scanner.readUntil(PARAM_SEPARATORS);
-            String value = "";
-
-            if (scanner.peek() == '=') {
+        if (scanner.peek() == ';') {
+            uri.paramsStart = scanner.getPosition() - origin;
+            while (scanner.peek() == ';') {
                 scanner.consume(1);
-                value = scanner.readUntil(PARAM_SEPARATORS);
+                int start = scanner.getPosition() - origin;
+                if (scanner.read(SipRules.ESCAPED_PARAM) - origin == start)
+                    throw new ParseException("Empty parameter name", start);
+
+                if (scanner.peek() == '=') {
+                    scanner.consume(1);
+                    scanner.skip(SipRules.ESCAPED_PARAM);
+                }
             }
         }
 
+        if (scanner.peek() == '?') {
+            uri.headersStart = scanner.getPosition() - origin;
+            do {
+                scanner.consume(1);
+                int start = scanner.getPosition() - origin;
+                if (scanner.read(SipRules.ESCAPED_HEADER) - origin == start)
+                    throw new ParseException("Empty header name", start);
+                scanner.match('=');
+                scanner.skip(SipRules.ESCAPED_HEADER);
+            } while (scanner.peek() == '&');
+        }
+
+        if (!scanner.eof())
+            throw new ParseException("Unexpected character", scanner.getPosition() - origin);
+
+        int escapes = uri.paramsStart >= 0 ? uri.paramsStart : uri.headersStart;
+        if (escapes >= 0)
+            checkEscapes(s, escapes, s.length());
+
         return uri;
     }
 
+    /**
+     * Decodes the rare components that have escaped chars, so that invalid escapes are reported by the parse.
+     * Components without escapes are left to be extracted on first access.
+     */
+    private static String decodeEscaped(String s, int start, int end) throws ParseException {
+        int escape = s.indexOf(SipRules.ESCAPE_CHAR, start);
+        if (escape == -1 || escape >= end)
+            return null;
+        return StringUtil.decode(s, start, end);
+    }
+
+    private static void checkEscapes(String s, int start, int end) throws ParseException {
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i) == SipRules.ESCAPE_CHAR) {
+                if (i + 2 >= end || Character.digit(s.charAt(i + 1), 16) < 0 || Character.digit(s.charAt(i + 2), 16) < 0)
+                    throw new ParseException("expecting % HEXDIG HEXDIG", i);
+                i += 2;
+            }
+        }
+    }
+
     public static void main(String[] args) throws Exception {
         parseURI("sip:%61lice@atlanta.com");
     }
@@ -0,0 +1,219 @@
+package org.cipango.util;
+
+import org.cipango.sip.SipRules;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+
+/**
+ * {@link Scanner} over a range of a <code>ByteBuffer</code>, so that receive buffers are parsed without decoding
+ * them first. Strings are scanned in place as well, non-ASCII chars matching no char class.
+ * <p>
+ * Positions are absolute indexes in the buffer and the buffer position is left untouched. Reads return the
+ * end of what has been read rather than a string, the caller keeping the start from {@link #getPosition()}.
+ * Offsets of parse errors are relative to the origin, which is the start of the range unless set otherwise.
+ */
+public class BufferScanner {
+
+    private ByteBuffer buffer;
+    private CharSequence chars;
+    private int origin;
+    private int position;
+    private int end;
+
+    public BufferScanner() {
+    }
+
+    public BufferScanner(byte[] bytes) {
+        this(ByteBuffer.wrap(bytes), 0, bytes.length);
+    }
+
+    public BufferScanner(ByteBuffer buffer, int start, int end) {
+        reset(buffer, start, end);
+    }
+
+    public BufferScanner(CharSequence chars) {
+        reset(chars);
+    }
+
+    /**
+     * Scans a new range. Allows a scanner to be reused across lines or messages.
+     */
+    public BufferScanner reset(ByteBuffer buffer, int start, int end) {
+        this.buffer = buffer;
+        this.chars = null;
+        this.origin = start;
+        this.position = start;
+        this.end = end;
+        return this;
+    }
+
+    /**
+     * Scans a whole char sequence, positions being its char indexes.
+     */
+    public BufferScanner reset(CharSequence chars) {
+        this.buffer = null;
+        this.chars = chars;
+        this.origin = 0;
+        this.position = 0;
+        this.end = chars.length();
+        return this;
+    }
+
+    public void setOrigin(int origin) {
+        this.origin = origin;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    public void setPosition(int position) {
+        this.position = Math.min(position, end);
+    }
+
+    public int getEnd() {
+        return end;
+    }
+
+    public boolean eof() {
+        return position >= end;
+    }
+
+    public char peek() {
+        if (eof())
+            return 0;
+        return (char) at(position);
+    }
+
+    public BufferScanner consume(int n) {
+        position = Math.min(position + n, end);
+        return this;
+    }
+
+    /**
+     * Moves past the bytes of <code>charClasses</code>.
+     *
+     * @return the position after the last byte read.
+     */
+    public int read(int charClasses) {
+        while (position < end && SipRules.is(at(position), charClasses))
+            position++;
+        return position;
+    }
+
+    public BufferScanner skip(int charClasses) {
+        read(charClasses);
+        return this;
+    }
+
+    /**
+     * Moves up to the first byte of <code>separatorClasses</code>, or to the end of the range.
+     *
+     * @return the position of the separator.
+     */
+    public int readUntil(int separatorClasses) {
+        while (position < end && !SipRules.is(at(position), separatorClasses))
+            position++;
+        return position;
+    }
+
+    public int readUntil(char c) {
+        while (position < end && at(position) != c)
+            position++;
+        return position;
+    }
+
+    /**
+     * Reads a non-negative decimal number of at most <code>maxDigits</code> digits.
+     */
+    public int readInt(int maxDigits) throws ParseException {
+        int start = position;
+        int value = 0;
+        while (position < end && position - start < maxDigits) {
+            int digit = at(position) - '0';
+            if (digit < 0 || digit > 9)
+                break;
+            value = value * 10 + digit;
+            position++;
+        }
+        if (position == start)
+            throw new ParseException("Invalid number", start - origin);
+        return value;
+    }
+
+    public int readInt() throws ParseException {
+        return readInt(9);
+    }
+
+    public BufferScanner match(char c) throws ParseException {
+        if (eof() || at(position) != c)
+            throw new ParseException("Excepting " + c, position - origin);
+        position++;
+        return this;
+    }
+
+    public BufferScanner skipSpace() {
+        while (position < end && at(position) == ' ')
+            position++;
+        return this;
+    }
+
+    public BufferScanner matchSpace() throws ParseException {
+        int start = position;
+        skipSpace();
+        if (position == start)
+            throw new ParseException("Expecting space", position - origin);
+        return this;
+    }
+
+    /**
+     * @return the end of the token.
+     */
+    public int token() throws ParseException {
+        int start = position;
+        if (read(SipRules.TOKEN) == start)
+            throw new ParseException("Expecting token", position - origin);
+        return position;
+    }
+
+    public int indexOf(char c) {
+        for (int i = position; i < end; i++) {
+            if (at(i) == c)
+                return i;
+        }
+        return -1;
+    }
+
+    private int at(int i) {
+        if (chars != null)
+            return chars.charAt(i);
+        return buffer.get(i) & 0xff;
+    }
+
+    /**
+     * Returns the bytes between <code>start</code> and <code>end</code> as a buffer sharing their content.
+     */
+    public ByteBuffer slice(int start, int end) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(end);
+        slice.position(start);
+        return slice.slice();
+    }
+
+    public String toString(int start, int end) {
+        if (chars != null)
+            return chars.subSequence(start, end).toString();
+        if (buffer.hasArray())
+            return new String(buffer.array(), buffer.arrayOffset() + start, end - start, StandardCharsets.UTF_8);
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = buffer.get(start + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,200 @@
+package org.cipango.util;
+
+import org.eclipse.jetty.util.annotation.ManagedAttribute;
+import org.eclipse.jetty.util.annotation.ManagedObject;
+import org.eclipse.jetty.util.annotation.ManagedOperation;
+import org.eclipse.jetty.util.component.ContainerLifeCycle;
+import org.eclipse.jetty.util.component.Dumpable;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies in nanoseconds, cheap enough to record every message.
+ * <p>
+ * As in HdrHistogram, buckets are log-linear: each power of two is split in {@value #SUB_BUCKETS} buckets, so that
+ * values are recorded with a relative precision of 1/{@value #SUB_BUCKETS} whatever their magnitude, from a
+ * nanosecond up to about an hour. Counts are striped over several arrays chosen from the recording thread, so that
+ * threads recording at the same time rarely update the same cache lines. Recording is an increment and allocates
+ * nothing; percentiles are computed when read.
+ */
+@ManagedObject("Latency histogram")
+public class LatencyHistogram implements Dumpable {
+
+    static final int SUB_BITS = 4;
+    static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    /**
+     * Values from 2<sup>MAX_EXPONENT + 1</sup> nanoseconds, about an hour, are recorded in the last bucket.
+     */
+    private static final int MAX_EXPONENT = 41;
+    private static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final String name;
+    private final AtomicLongArray[] stripes;
+    private final int mask;
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public LatencyHistogram(String name) {
+        this(name, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param stripes the number of count arrays, rounded up to a power of two.
+     */
+    public LatencyHistogram(String name, int stripes) {
+        this.name = name;
+        int n = Integer.highestOneBit(Math.max(1, stripes));
+        if (n < stripes)
+            n <<= 1;
+        this.stripes = new AtomicLongArray[n];
+        for (int i = 0; i < n; i++)
+            this.stripes[i] = new AtomicLongArray(BUCKETS);
+        mask = n - 1;
+    }
+
+    @ManagedAttribute("Name")
+    public String getName() {
+        return name;
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        int stripe = (int) ((Thread.currentThread().getId() * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+        stripes[stripe].getAndIncrement(index(nanos));
+        sum.add(nanos);
+
+        long m = max.get();
+        while (nanos > m && !max.compareAndSet(m, nanos))
+            m = max.get();
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT)
+            return BUCKETS - 1;
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (exponent - SUB_BITS) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Returns the highest value recorded in the bucket at <code>index</code>.
+     */
+    static long highestValue(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int exponent = (index - SUB_BUCKETS) / SUB_BUCKETS + SUB_BITS;
+        long sub = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        long lowest = (1L << exponent) | (sub << (exponent - SUB_BITS));
+        return lowest + (1L << (exponent - SUB_BITS)) - 1;
+    }
+
+    private long[] snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++)
+                counts[i] += stripe.get(i);
+        }
+        return counts;
+    }
+
+    @ManagedAttribute("Number of recorded values")
+    public long getCount() {
+        long count = 0;
+        for (long c : snapshot())
+            count += c;
+        return count;
+    }
+
+    /**
+     * Returns the value, in nanoseconds, under which <code>percentile</code> percent of the recorded values are,
+     * within the precision of the histogram.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long[] counts = snapshot();
+        long count = 0;
+        for (long c : counts)
+            count += c;
+        if (count == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(highestValue(i), max.get());
+        }
+        return max.get();
+    }
+
+    @ManagedAttribute("Mean in microseconds")
+    public double getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : sum.sum() / 1000.0 / count;
+    }
+
+    @ManagedAttribute("Maximum in microseconds")
+    public long getMax() {
+        return TimeUnit.NANOSECONDS.toMicros(max.get());
+    }
+
+    @ManagedAttribute("Median in microseconds")
+    public long getP50() {
+        return TimeUnit.NANOSECONDS.toMicros(getValueAtPercentile(50));
+    }
+
+    @ManagedAttribute("90th percentile in microseconds")
+    public long getP90() {
+        return TimeUnit.NANOSECONDS.toMicros(getValueAtPercentile(90));
+    }
+
+    @ManagedAttribute("99th percentile in microseconds")
+    public long getP99() {
+        return TimeUnit.NANOSECONDS.toMicros(getValueAtPercentile(99));
+    }
+
+    @ManagedAttribute("99.9th percentile in microseconds")
+    public long getP999() {
+        return TimeUnit.NANOSECONDS.toMicros(getValueAtPercentile(99.9));
+    }
+
+    /**
+     * Clears the histogram. Values recorded while it is reset may be lost.
+     */
+    @ManagedOperation(value = "Resets the histogram", impact = "ACTION")
+    public void reset() {
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++)
+                stripe.set(i, 0);
+        }
+        sum.reset();
+        max.set(0);
+    }
+
+    @Override
+    public String dump() {
+        return ContainerLifeCycle.dump(this);
+    }
+
+    @Override
+    public void dump(Appendable out, String indent) throws IOException {
+        ContainerLifeCycle.dumpObject(out, this);
+        ContainerLifeCycle.dump(out, indent, Arrays.asList(
+                String.format("p50=%dus p90=%dus p99=%dus p99.9=%dus", getP50(), getP90(), getP99(), getP999())));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s@%x{%s,count=%d,mean=%.1fus,max=%dus}", getClass().getSimpleName(), hashCode(),
+                name, getCount(), getMean(), getMax());
+    }
+}
@@ -3,7 +3,6 @@ package org.cipango.util;
 import org.cipango.sip.SipRules;
 
 import java.text.ParseException;
-import java.util.BitSet;
 
 public class Scanner {
 
@@ -44,16 +43,25 @@ public class Scanner {
         return this;
     }
 
-    public String read(BitSet validChars) {
+    public String read(int charClasses) {
         int start = position;
-        while(position < end && validChars.get(string.charAt(position)))
+        while (position < end && SipRules.is(string.charAt(position), charClasses))
             position++;
         return string.substring(start, position);
     }
 
-    public String readUntil(BitSet separatorChars) {
+    /**
+     * Moves past the chars of <code>charClasses</code> without reading them.
+     */
+    public Scanner skip(int charClasses) {
+        while (position < end && SipRules.is(string.charAt(position), charClasses))
+            position++;
+        return this;
+    }
+
+    public String readUntil(int separatorClasses) {
         int start = position;
-        while (position < end && !separatorChars.get(string.charAt(position)))
+        while (position < end && !SipRules.is(string.charAt(position), separatorClasses))
             position++;
         return string.substring(start, position);
     }
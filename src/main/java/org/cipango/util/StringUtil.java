@@ -1,116 +1,183 @@
 package org.cipango.util;
 
-import org.eclipse.jetty.util.TypeUtil;
-import org.eclipse.jetty.util.Utf8StringBuffer;
+import org.cipango.sip.SipRules;
 
 import java.text.ParseException;
-import java.util.BitSet;
+import java.util.Arrays;
 
 public class StringUtil {
 
-    final static String[] hex = {
-            "%00", "%01", "%02", "%03", "%04", "%05", "%06", "%07",
-            "%08", "%09", "%0a", "%0b", "%0c", "%0d", "%0e", "%0f",
-            "%10", "%11", "%12", "%13", "%14", "%15", "%16", "%17",
-            "%18", "%19", "%1a", "%1b", "%1c", "%1d", "%1e", "%1f",
-            "%20", "%21", "%22", "%23", "%24", "%25", "%26", "%27",
-            "%28", "%29", "%2a", "%2b", "%2c", "%2d", "%2e", "%2f",
-            "%30", "%31", "%32", "%33", "%34", "%35", "%36", "%37",
-            "%38", "%39", "%3a", "%3b", "%3c", "%3d", "%3e", "%3f",
-            "%40", "%41", "%42", "%43", "%44", "%45", "%46", "%47",
-            "%48", "%49", "%4a", "%4b", "%4c", "%4d", "%4e", "%4f",
-            "%50", "%51", "%52", "%53", "%54", "%55", "%56", "%57",
-            "%58", "%59", "%5a", "%5b", "%5c", "%5d", "%5e", "%5f",
-            "%60", "%61", "%62", "%63", "%64", "%65", "%66", "%67",
-            "%68", "%69", "%6a", "%6b", "%6c", "%6d", "%6e", "%6f",
-            "%70", "%71", "%72", "%73", "%74", "%75", "%76", "%77",
-            "%78", "%79", "%7a", "%7b", "%7c", "%7d", "%7e", "%7f",
-            "%80", "%81", "%82", "%83", "%84", "%85", "%86", "%87",
-            "%88", "%89", "%8a", "%8b", "%8c", "%8d", "%8e", "%8f",
-            "%90", "%91", "%92", "%93", "%94", "%95", "%96", "%97",
-            "%98", "%99", "%9a", "%9b", "%9c", "%9d", "%9e", "%9f",
-            "%a0", "%a1", "%a2", "%a3", "%a4", "%a5", "%a6", "%a7",
-            "%a8", "%a9", "%aa", "%ab", "%ac", "%ad", "%ae", "%af",
-            "%b0", "%b1", "%b2", "%b3", "%b4", "%b5", "%b6", "%b7",
-            "%b8", "%b9", "%ba", "%bb", "%bc", "%bd", "%be", "%bf",
-            "%c0", "%c1", "%c2", "%c3", "%c4", "%c5", "%c6", "%c7",
-            "%c8", "%c9", "%ca", "%cb", "%cc", "%cd", "%ce", "%cf",
-            "%d0", "%d1", "%d2", "%d3", "%d4", "%d5", "%d6", "%d7",
-            "%d8", "%d9", "%da", "%db", "%dc", "%dd", "%de", "%df",
-            "%e0", "%e1", "%e2", "%e3", "%e4", "%e5", "%e6", "%e7",
-            "%e8", "%e9", "%ea", "%eb", "%ec", "%ed", "%ee", "%ef",
-            "%f0", "%f1", "%f2", "%f3", "%f4", "%f5", "%f6", "%f7",
-            "%f8", "%f9", "%fa", "%fb", "%fc", "%fd", "%fe", "%ff"
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final byte[] HEX_VALUES = new byte[128];
+
+    static {
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < 10; i++)
+            HEX_VALUES['0' + i] = (byte) i;
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUES['a' + i] = (byte) (10 + i);
+            HEX_VALUES['A' + i] = (byte) (10 + i);
+        }
+    }
+
+    private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(128);
+        }
     };
 
-    public static String encode(String s, BitSet bs)
-    {
-        StringBuilder buf = null;
-        int len = s.length();
-        for (int i = 0; i < len; i++) {
+    /**
+     * Returns <code>true</code> if <code>s</code> has chars outside of <code>charClasses</code>.
+     */
+    public static boolean needsEncoding(CharSequence s, int charClasses) {
+        for (int i = 0; i < s.length(); i++) {
+            if (!SipRules.is(s.charAt(i), charClasses))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Percent-encodes the chars of <code>s</code> that are not in <code>charClasses</code>. <code>s</code> is
+     * returned as is if it has none.
+     */
+    public static String encode(String s, int charClasses) {
+        if (!needsEncoding(s, charClasses))
+            return s;
+        StringBuilder buffer = buffer();
+        encode(s, charClasses, buffer);
+        return buffer.toString();
+    }
 
+    /**
+     * Appends <code>s</code> to <code>out</code>, percent-encoding the UTF-8 bytes of the chars that are not in
+     * <code>charClasses</code>.
+     */
+    public static void encode(CharSequence s, int charClasses, StringBuilder out) {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
             int ch = s.charAt(i);
 
-            if (bs.get(ch)) {
-                if (buf != null)
-                    buf.append((char) ch);
+            if (SipRules.is(ch, charClasses)) {
+                out.append((char) ch);
+            } else if (ch <= 0x7f) {
+                appendEscaped(out, ch);
+            } else if (ch <= 0x7ff) {
+                appendEscaped(out, 0xc0 | (ch >> 6));
+                appendEscaped(out, 0x80 | (ch & 0x3f));
+            } else if (Character.isHighSurrogate((char) ch) && i + 1 < length
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint((char) ch, s.charAt(++i));
+                appendEscaped(out, 0xf0 | (cp >> 18));
+                appendEscaped(out, 0x80 | ((cp >> 12) & 0x3f));
+                appendEscaped(out, 0x80 | ((cp >> 6) & 0x3f));
+                appendEscaped(out, 0x80 | (cp & 0x3f));
             } else {
-                if (buf == null) {
-                    buf = new StringBuilder(s.length() * 3);
-                    buf.append(s, 0, i);
-                }
-
-                if (ch <= 0x007f) {
-                    buf.append(hex[ch]);
-                } else if (ch <= 0x07FF) {
-                    buf.append(hex[0xc0 | (ch >> 6)]);
-                    buf.append(hex[0x80 | (ch & 0x3F)]);
-                } else {
-                    buf.append(hex[0xe0 | (ch >> 12)]);
-                    buf.append(hex[0x80 | ((ch >> 6) & 0x3F)]);
-                    buf.append(hex[0x80 | (ch & 0x3F)]);
-                }
+                appendEscaped(out, 0xe0 | (ch >> 12));
+                appendEscaped(out, 0x80 | ((ch >> 6) & 0x3f));
+                appendEscaped(out, 0x80 | (ch & 0x3f));
             }
         }
-        if (buf != null)
-            return buf.toString();
-        return s;
+    }
+
+    private static void appendEscaped(StringBuilder out, int b) {
+        out.append('%').append(HEX_DIGITS[b >> 4]).append(HEX_DIGITS[b & 0xf]);
     }
 
     public static String decode(String encoded) throws ParseException {
-        Utf8StringBuffer buffer = null;
-        int length = encoded.length();
+        return decode(encoded, 0, encoded.length());
+    }
 
-        for (int i = 0; i < length; i++) {
-            try {
-                char c = encoded.charAt(i);
-                if (c == '%') {
-                    if (buffer == null) {
-                        buffer = new Utf8StringBuffer(length);
-                        buffer.getStringBuffer().append(encoded, 0, i);
-                    }
-                    if (i + 2 >= length)
-                        throw new ParseException("expecting % HEXDIG HEXDIG", i);
-
-                    int o = i + 1;
-                    i += 2;
-                    try {
-                        buffer.append((byte) TypeUtil.parseInt(encoded, o, 2, 16));
-                    } catch (NumberFormatException e) {
-                        throw new ParseException("expecting % HEXDIG HEXDIG", i - 2);
-                    }
-                } else if (buffer != null) {
-                    buffer.getStringBuffer().append(c);
+    /**
+     * Decodes the percent-encoded UTF-8 between <code>start</code> and <code>end</code>. The range is returned
+     * as is if it has no escapes.
+     */
+    public static String decode(String s, int start, int end) throws ParseException {
+        int escape = s.indexOf('%', start);
+        if (escape == -1 || escape >= end)
+            return start == 0 && end == s.length() ? s : s.substring(start, end);
+
+        StringBuilder buffer = buffer();
+        int error = decode(s, start, end, buffer);
+        if (error >= 0)
+            throw new ParseException(isEscape(s, error, end) ? "invalid utf8" : "expecting % HEXDIG HEXDIG", error);
+        return buffer.toString();
+    }
+
+    /**
+     * Appends the decoded chars between <code>start</code> and <code>end</code> to <code>out</code>.
+     *
+     * @return <code>-1</code>, or the index of the first malformed escape or UTF-8 sequence.
+     */
+    public static int decode(CharSequence s, int start, int end, StringBuilder out) {
+        int cp = 0;
+        int min = 0;
+        int remaining = 0;
+        int sequenceStart = -1;
+
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c != '%') {
+                if (remaining != 0)
+                    return sequenceStart;
+                out.append(c);
+                continue;
+            }
+
+            if (i + 2 >= end)
+                return i;
+            int b = (hexValue(s.charAt(i + 1)) << 4) | hexValue(s.charAt(i + 2));
+            if (b < 0)
+                return i;
+
+            if (remaining == 0) {
+                sequenceStart = i;
+                if (b < 0x80) {
+                    out.append((char) b);
+                } else if ((b & 0xe0) == 0xc0) {
+                    cp = b & 0x1f;
+                    min = 0x80;
+                    remaining = 1;
+                } else if ((b & 0xf0) == 0xe0) {
+                    cp = b & 0x0f;
+                    min = 0x800;
+                    remaining = 2;
+                } else if ((b & 0xf8) == 0xf0) {
+                    cp = b & 0x07;
+                    min = 0x10000;
+                    remaining = 3;
+                } else {
+                    return i;
+                }
+            } else {
+                if ((b & 0xc0) != 0x80)
+                    return sequenceStart;
+                cp = (cp << 6) | (b & 0x3f);
+                if (--remaining == 0) {
+                    if (cp < min || cp > Character.MAX_CODE_POINT || (cp >= 0xd800 && cp <= 0xdfff))
+                        return sequenceStart;
+                    out.appendCodePoint(cp);
                 }
-            } catch (Exception e) {
-                throw new ParseException("invalid utf8", i);
             }
+            i += 2;
         }
+        return remaining == 0 ? -1 : sequenceStart;
+    }
+
+    private static boolean isEscape(String s, int i, int end) {
+        return i + 2 < end && s.charAt(i) == '%' && hexValue(s.charAt(i + 1)) >= 0 && hexValue(s.charAt(i + 2)) >= 0;
+    }
 
-        if (buffer == null)
-            return encoded;
+    private static int hexValue(char c) {
+        return c < 128 ? HEX_VALUES[c] : -1;
+    }
 
-        return buffer.toReplacedString();
+    private static StringBuilder buffer() {
+        StringBuilder buffer = BUFFER.get();
+        buffer.setLength(0);
+        return buffer;
     }
 
     public static boolean isEmpty(String s) {
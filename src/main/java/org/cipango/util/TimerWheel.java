@@ -0,0 +1,284 @@
+package org.cipango.util;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timer wheel, for the large number of short-lived timers of transactions and sessions.
+ * <p>
+ * Timeouts are hashed by deadline into the buckets of a wheel that a single thread advances one bucket per tick.
+ * Scheduling pushes the timeout on a lock-free stack that the wheel thread drains at each tick, and cancelling
+ * only marks it, the wheel thread unlinking it when it next visits its bucket: both are O(1) and allocate
+ * nothing but the timeout. Timers fire with the precision of a tick, on the wheel thread unless an executor is
+ * set, so tasks run on the wheel thread must not block.
+ */
+public class TimerWheel extends AbstractLifeCycle {
+
+    private static final Logger LOG = Log.getLogger(TimerWheel.class);
+
+    public static final long DEFAULT_TICK = 10;
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private static final int INIT = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+            AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+    private final long origin = System.nanoTime();
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+
+    private final AtomicReference<Timeout> pending = new AtomicReference<>();
+    private final LongAdder size = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+
+    private String name = "timer-wheel";
+    private Executor executor;
+    private volatile Thread thread;
+
+    public TimerWheel() {
+        this(DEFAULT_TICK, TimeUnit.MILLISECONDS, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * @param wheelSize the number of buckets, rounded up to a power of two.
+     */
+    public TimerWheel(long tick, TimeUnit unit, int wheelSize) {
+        if (tick <= 0 || wheelSize <= 0)
+            throw new IllegalArgumentException("invalid tick or wheel size");
+        tickNanos = unit.toNanos(tick);
+        int buckets = Integer.highestOneBit(wheelSize);
+        if (buckets < wheelSize)
+            buckets <<= 1;
+        wheel = new Bucket[buckets];
+        for (int i = 0; i < buckets; i++)
+            wheel[i] = new Bucket();
+        mask = buckets - 1;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Sets the executor expired tasks are run by. If <code>null</code>, they are run on the wheel thread.
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public long getTickMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(tickNanos);
+    }
+
+    public int getWheelSize() {
+        return wheel.length;
+    }
+
+    /**
+     * Number of timeouts scheduled and neither expired nor cancelled.
+     */
+    public long getSize() {
+        return size.sum();
+    }
+
+    public long getExpired() {
+        return expired.sum();
+    }
+
+    /**
+     * Runs <code>task</code> once, after <code>delay</code>. Timeouts scheduled before the wheel is started
+     * expire once it is.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, now() + Math.max(0, unit.toNanos(delay)));
+        size.increment();
+
+        Timeout head;
+        do {
+            head = pending.get();
+            timeout.nextPending = head;
+        } while (!pending.compareAndSet(head, timeout));
+
+        return timeout;
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        Thread thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        this.thread = thread;
+        thread.start();
+        super.doStart();
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        Thread thread = this.thread;
+        this.thread = null;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            thread.join(TimeUnit.NANOSECONDS.toMillis(tickNanos) * 10 + 1000);
+        }
+        super.doStop();
+    }
+
+    private long now() {
+        return System.nanoTime() - origin;
+    }
+
+    private void run() {
+        long tick = now() / tickNanos;
+        while (thread == Thread.currentThread()) {
+            long deadline = (tick + 1) * tickNanos;
+            long sleep = deadline - now();
+            if (sleep > 0) {
+                LockSupport.parkNanos(this, sleep);
+                continue;
+            }
+            transferPending(tick);
+            expire(wheel[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    private void transferPending(long tick) {
+        Timeout timeout = pending.getAndSet(null);
+        while (timeout != null) {
+            Timeout next = timeout.nextPending;
+            timeout.nextPending = null;
+            if (timeout.state == INIT) {
+                long ticks = Math.max(timeout.deadline / tickNanos, tick);
+                timeout.rounds = (ticks - tick) / wheel.length;
+                wheel[(int) (ticks & mask)].add(timeout);
+            }
+            timeout = next;
+        }
+    }
+
+    private void expire(Bucket bucket) {
+        Timeout timeout = bucket.head;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.state != INIT) {
+                bucket.remove(timeout);
+            } else if (timeout.rounds <= 0) {
+                bucket.remove(timeout);
+                timeout.expire();
+            } else {
+                timeout.rounds--;
+            }
+            timeout = next;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s@%x{%s,size=%d}", getClass().getSimpleName(), hashCode(), name, getSize());
+    }
+
+    public class Timeout {
+
+        private final Runnable task;
+        private final long deadline;
+        volatile int state = INIT;
+
+        // only accessed by the wheel thread
+        private long rounds;
+        private Timeout prev;
+        private Timeout next;
+        private Timeout nextPending;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return <code>true</code> if the timeout has been cancelled by this call, <code>false</code> if it had
+         * already expired or been cancelled.
+         */
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, INIT, CANCELLED))
+                return false;
+            size.decrement();
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state == EXPIRED;
+        }
+
+        private void expire() {
+            if (!STATE.compareAndSet(this, INIT, EXPIRED))
+                return;
+            size.decrement();
+            expired.increment();
+
+            Executor executor = TimerWheel.this.executor;
+            if (executor != null)
+                executor.execute(this::runTask);
+            else
+                runTask();
+        }
+
+        private void runTask() {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                LOG.warn("Timer task failed: " + task, t);
+            }
+        }
+    }
+
+    private static class Bucket {
+
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.prev = tail;
+            if (tail == null)
+                head = timeout;
+            else
+                tail.next = timeout;
+            tail = timeout;
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.prev == null)
+                head = timeout.next;
+            else
+                timeout.prev.next = timeout.next;
+            if (timeout.next == null)
+                tail = timeout.prev;
+            else
+                timeout.next.prev = timeout.prev;
+            timeout.prev = null;
+            timeout.next = null;
+        }
+    }
+}
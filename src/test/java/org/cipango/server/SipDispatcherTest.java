@@ -0,0 +1,200 @@
+package org.cipango.server;
+
+import org.cipango.server.SipDispatcher.OverloadPolicy;
+import org.cipango.util.VirtualThreads;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+public class SipDispatcherTest {
+
+    private SipServer server = new SipServer();
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void testOrderPerCall() throws Exception {
+        final int calls = 8;
+        final int messages = 200;
+        final List<List<Integer>> received = new ArrayList<>();
+        for (int i = 0; i < calls; i++)
+            received.add(Collections.synchronizedList(new ArrayList<Integer>()));
+        final CountDownLatch latch = new CountDownLatch(calls * messages);
+
+        server.getDispatcher().setLanes(4);
+        server.setHandler(new SipHandler() {
+            public void handle(SipMessage message) throws IOException {
+                String cseq = message.getHeader("CSeq");
+                received.get(Integer.parseInt(message.getCallId())).add(Integer.parseInt(cseq.substring(0, cseq.indexOf(' '))));
+                latch.countDown();
+            }
+        });
+        server.start();
+
+        for (int i = 0; i < messages; i++) {
+            for (int call = 0; call < calls; call++)
+                server.handle(newRequest("MESSAGE", call, i, null));
+        }
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        for (List<Integer> list : received) {
+            assertEquals(messages, list.size());
+            for (int i = 0; i < messages; i++)
+                assertEquals(i, (int) list.get(i));
+        }
+        assertEquals(calls * messages, server.getDispatcher().getDispatched());
+    }
+
+    @Test
+    public void testOverload() throws Exception {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        SipDispatcher dispatcher = server.getDispatcher();
+        dispatcher.setLanes(1);
+        dispatcher.setLaneCapacity(1);
+        server.setHandler(new SipHandler() {
+            public void handle(SipMessage message) throws IOException {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        });
+        server.start();
+
+        TestConnection connection = new TestConnection();
+        server.handle(newRequest("INVITE", 1, 1, connection));
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        server.handle(newRequest("INVITE", 2, 1, connection));
+
+        server.handle(newRequest("INVITE", 3, 1, connection));
+        server.handle(newRequest("ACK", 3, 1, connection));
+        dispatcher.setOverloadPolicy(OverloadPolicy.DROP);
+        server.handle(newRequest("INVITE", 4, 1, connection));
+
+        release.countDown();
+
+        assertEquals(1, dispatcher.getRejected());
+        assertEquals(2, dispatcher.getDropped());
+        assertEquals(1, connection.sent.size());
+
+        String response = connection.sent.get(0);
+        assertTrue(response.startsWith("SIP/2.0 503 Service Unavailable\r\n"));
+        assertTrue(response.contains("Via: SIP/2.0/UDP 127.0.0.1;branch=z9hG4bK3.1\r\n"));
+        assertTrue(response.matches("(?s).*\r\nTo: <sip:bob@127.0.0.1>;tag=\\p{XDigit}+\r\n.*"));
+        assertTrue(response.contains("Call-ID: 3\r\n"));
+        assertTrue(response.contains("CSeq: 1 INVITE\r\n"));
+        assertTrue(response.endsWith("Content-Length: 0\r\n\r\n"));
+    }
+
+    @Test
+    public void testRescheduleRejected() throws Exception {
+        final int messages = SipDispatcher.MAX_BATCH * 3;
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch latch = new CountDownLatch(messages + 1);
+
+        // lanes can be started, but not rescheduled from a lane
+        server.setDispatcher(new SipDispatcher(server, task -> {
+            if ("lane".equals(Thread.currentThread().getName()))
+                throw new RejectedExecutionException();
+            new Thread(task, "lane").start();
+        }));
+        server.getDispatcher().setLanes(1);
+        server.setHandler(new SipHandler() {
+            public void handle(SipMessage message) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                latch.countDown();
+            }
+        });
+        server.start();
+
+        for (int i = 0; i < messages; i++)
+            server.handle(newRequest("MESSAGE", 1, i, null));
+        release.countDown();
+        assertTrue(waitFor(() -> latch.getCount() == 1));
+
+        // the lane is not left scheduled
+        server.handle(newRequest("MESSAGE", 1, messages, null));
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        final List<Runnable> tasks = new ArrayList<>();
+        final CountDownLatch latch = new CountDownLatch(6);
+        server.setDispatcher(new SipDispatcher(server, tasks::add));
+        server.getDispatcher().setLanes(2);
+        server.setHandler(new SipHandler() {
+            public void handle(SipMessage message) throws IOException {
+                latch.countDown();
+            }
+        });
+        server.start();
+
+        SipMessage[] messages = new SipMessage[8];
+        for (int i = 0; i < 6; i++)
+            messages[i] = newRequest("MESSAGE", i % 2, i, null);
+        server.handle(messages, 6);
+
+        // each lane is scheduled once for the batch
+        assertEquals(2, tasks.size());
+        for (Runnable task : tasks)
+            task.run();
+        assertEquals(0, latch.getCount());
+    }
+
+    @Test
+    public void testVirtualThreads() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        server.setVirtualThreads(true);
+        server.setHandler(new SipHandler() {
+            public void handle(SipMessage message) throws IOException {
+                latch.countDown();
+            }
+        });
+        server.start();
+
+        SipDispatcher dispatcher = server.getDispatcher();
+        assertEquals(VirtualThreads.isSupported(), dispatcher.getLaneExecutor() != dispatcher.getExecutor());
+
+        server.handle(newRequest("MESSAGE", 1, 1, null));
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    private static boolean waitFor(BooleanSupplier condition) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < end)
+            Thread.sleep(5);
+        return condition.getAsBoolean();
+    }
+
+    private static SipRequest newRequest(String method, int call, int cseq, SipConnection connection) {
+        SipRequest request = new SipRequest(method, "sip:bob@127.0.0.1");
+        request.addHeader("Via", "SIP/2.0/UDP 127.0.0.1;branch=z9hG4bK" + call + "." + cseq);
+        request.addHeader("To", "<sip:bob@127.0.0.1>");
+        request.addHeader("Call-ID", String.valueOf(call));
+        request.addHeader("CSeq", cseq + " " + method);
+        request.setConnection(connection);
+        return request;
+    }
+}
@@ -0,0 +1,100 @@
+package org.cipango.server;
+
+import org.cipango.sip.SipHeader;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class SipFieldsTest {
+
+    static final String REQUEST = "INVITE sip:bob@example.com SIP/2.0\r\n"
+            + "Max-Forwards: 70\r\n"
+            + "Via: SIP/2.0/UDP p2.example.com;branch=z9hG4bK2, SIP/2.0/UDP p1.example.com;branch=z9hG4bK1\r\n"
+            + "v: SIP/2.0/UDP alice.example.com;branch=z9hG4bK0\r\n"
+            + "Route: <sip:p3.example.com;lr>, \"Proxy, 4\" <sip:p4.example.com;lr>\r\n"
+            + "Record-Route: <sip:p2.example.com;lr>\r\n"
+            + "Call-ID: 1\r\n"
+            + "Record-Route: <sip:p1.example.com;lr>\r\n"
+            + "Content-Length: 0\r\n"
+            + "\r\n";
+
+    @Test
+    public void testLists() throws Exception {
+        SipFields fields = TestMessages.parse(REQUEST).getFields();
+
+        assertEquals(1, fields.indexOf(SipHeader.VIA));
+        assertEquals(2, fields.nextIndexOf(SipHeader.VIA, 1));
+        assertEquals(-1, fields.nextIndexOf(SipHeader.VIA, 2));
+        assertEquals(-1, fields.indexOf(SipHeader.CONTACT));
+
+        assertEquals("SIP/2.0/UDP p2.example.com;branch=z9hG4bK2", fields.getFirst(SipHeader.VIA));
+        assertEquals(Arrays.asList("SIP/2.0/UDP p2.example.com;branch=z9hG4bK2",
+                "SIP/2.0/UDP p1.example.com;branch=z9hG4bK1", "SIP/2.0/UDP alice.example.com;branch=z9hG4bK0"),
+                fields.getValues(SipHeader.VIA));
+        assertEquals(Arrays.asList("<sip:p3.example.com;lr>", "\"Proxy, 4\" <sip:p4.example.com;lr>"),
+                fields.getValues("route"));
+        assertEquals(Arrays.asList("<sip:p2.example.com;lr>", "<sip:p1.example.com;lr>"),
+                fields.getValues(SipHeader.RECORD_ROUTE));
+        // only list headers are split
+        assertEquals(fields.getValue(1), fields.get(SipHeader.VIA));
+    }
+
+    @Test
+    public void testPushPop() throws Exception {
+        SipMessage message = TestMessages.parse(REQUEST);
+        SipFields fields = message.getFields();
+
+        assertEquals("<sip:p3.example.com;lr>", fields.removeFirst(SipHeader.ROUTE));
+        assertEquals("\"Proxy, 4\" <sip:p4.example.com;lr>", fields.removeFirst(SipHeader.ROUTE));
+        assertNull(fields.removeFirst(SipHeader.ROUTE));
+        assertEquals(-1, fields.indexOf(SipHeader.ROUTE));
+        assertEquals("1", fields.get(SipHeader.CALL_ID));
+
+        fields.addFirst(SipHeader.ROUTE, "<sip:p5.example.com;lr>");
+        fields.addFirst(SipHeader.RECORD_ROUTE, "<sip:p3.example.com;lr>");
+        assertEquals(0, fields.indexOf(SipHeader.ROUTE));
+
+        assertEquals("SIP/2.0/UDP p2.example.com;branch=z9hG4bK2", fields.removeFirst(SipHeader.VIA));
+        fields.addFirst(SipHeader.VIA, "SIP/2.0/UDP p3.example.com;branch=z9hG4bK3");
+        assertEquals("SIP/2.0/UDP p3.example.com;branch=z9hG4bK3", fields.getFirst(SipHeader.VIA));
+        assertEquals(3, fields.getValues(SipHeader.VIA).size());
+        assertEquals("<sip:p3.example.com;lr>", fields.getFirst(SipHeader.RECORD_ROUTE));
+
+        assertEquals("INVITE sip:bob@example.com SIP/2.0\r\n"
+                + "Route: <sip:p5.example.com;lr>\r\n"
+                + "Max-Forwards: 70\r\n"
+                + "Via: SIP/2.0/UDP p3.example.com;branch=z9hG4bK3\r\n"
+                + "Via: SIP/2.0/UDP p1.example.com;branch=z9hG4bK1\r\n"
+                + "v: SIP/2.0/UDP alice.example.com;branch=z9hG4bK0\r\n"
+                + "Record-Route: <sip:p3.example.com;lr>\r\n"
+                + "Record-Route: <sip:p2.example.com;lr>\r\n"
+                + "Call-ID: 1\r\n"
+                + "Record-Route: <sip:p1.example.com;lr>\r\n"
+                + "Content-Length: 0\r\n"
+                + "\r\n", TestMessages.toString(SipGenerator.generateBuffers(message)));
+    }
+
+    @Test
+    public void testGrow() {
+        SipFields fields = new SipFields();
+        for (int i = 0; i < 100; i++) {
+            fields.addFirst(SipHeader.VIA, "v" + i);
+            fields.add("X-Header", "x" + i);
+        }
+        assertEquals(200, fields.size());
+        assertEquals("v99", fields.getFirst(SipHeader.VIA));
+        assertEquals("x0", fields.get("x-header"));
+
+        for (int i = 99; i >= 0; i--)
+            assertEquals("v" + i, fields.removeFirst(SipHeader.VIA));
+        assertEquals(100, fields.size());
+        assertEquals(-1, fields.indexOf(SipHeader.VIA));
+
+        fields.remove("X-Header");
+        assertEquals(0, fields.size());
+        fields.add(SipHeader.VIA, "v");
+        assertEquals(0, fields.indexOf(SipHeader.VIA));
+    }
+}
@@ -0,0 +1,140 @@
+package org.cipango.server;
+
+import org.cipango.sip.SipHeader;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class SipGeneratorTest {
+
+    static final String RESPONSE = "SIP/2.0  180   Ringing  \r\n"
+            + "v: SIP/2.0/UDP 192.168.1.26:5060;branch=z9hG4bK-90021-1-0 , SIP/2.0/UDP 10.0.0.1\r\n"
+            + "f: sipp <sip:sipp@192.168.1.26:5060>;tag=90021SIPpTag001\r\n"
+            + "To:service <sip:service@192.168.1.26:5070>;tag=1\r\n"
+            + "Call-ID: 1-90021@192.168.1.26\r\n"
+            + "CSeq: 1 INVITE\r\n"
+            + "X-Folded: a,\r\n"
+            + "  b\r\n"
+            + "l: 0\r\n"
+            + "\r\n";
+
+    @Test
+    public void testUnmodified() throws Exception {
+        for (String s : new String[] { SipParserTest.INVITE, RESPONSE, RESPONSE.replace("\r\n", "\n") }) {
+            SipMessage message = TestMessages.parse(s);
+            ByteBuffer[] buffers = SipGenerator.generateBuffers(message);
+            assertEquals(1, buffers.length);
+            assertEquals(s, TestMessages.toString(buffers));
+            assertEquals(s, TestMessages.toString(SipGenerator.generate(message)));
+        }
+    }
+
+    @Test
+    public void testRebased() throws Exception {
+        String s = SipParserTest.INVITE + SipParserTest.INVITE;
+        ByteBuffer buffer = StandardCharsets.UTF_8.encode(s);
+        SipMessageBuilder builder = new SipMessageBuilder();
+        SipParser parser = new SipParser(builder);
+        assertTrue(parser.parse(buffer));
+        parser.reset();
+        builder.reset();
+        assertTrue(parser.parse(buffer));
+
+        int start = parser.getMessageStart();
+        ByteBuffer copy = buffer.duplicate();
+        copy.position(start);
+        copy = copy.slice();
+        SipMessage message = builder.getMessage();
+        message.rebase(copy, start);
+        assertEquals(SipParserTest.INVITE, TestMessages.toString(SipGenerator.generateBuffers(message)));
+    }
+
+    @Test
+    public void testModified() throws Exception {
+        SipMessage message = TestMessages.parse(SipParserTest.INVITE);
+        message.setHeader("Subject", "Changed");
+        ByteBuffer[] buffers = SipGenerator.generateBuffers(message);
+        assertEquals(SipParserTest.INVITE.replace("Subject: Performance Test\r\n", "")
+                .replace("\r\n\r\n", "\r\nSubject: Changed\r\n\r\n"), TestMessages.toString(buffers));
+        assertEquals(4, buffers.length); // fields before and after Subject, Subject and the empty line, body
+
+        message = TestMessages.parse(SipParserTest.INVITE);
+        message.getFields().addFirst(SipHeader.VIA, "SIP/2.0/UDP 127.0.0.1");
+        assertEquals(SipParserTest.INVITE.replace("Via", "Via: SIP/2.0/UDP 127.0.0.1\r\nVia"),
+                TestMessages.toString(SipGenerator.generateBuffers(message)));
+
+        message = TestMessages.parse(RESPONSE);
+        ((SipResponse) message).setStatus(183, "Session Progress");
+        message.removeHeader("Content-Length");
+        assertEquals(RESPONSE.replace("SIP/2.0  180   Ringing  ", "SIP/2.0 183 Session Progress")
+                .replace("l: 0\r\n", "Content-Length: 0\r\n"), TestMessages.toString(SipGenerator.generateBuffers(message)));
+    }
+
+    @Test
+    public void testRequestURI() throws Exception {
+        SipRequest request = (SipRequest) TestMessages.parse(SipParserTest.INVITE);
+        request.getRequestURI();
+        assertEquals(1, SipGenerator.generateBuffers(request).length);
+
+        ((javax.servlet.sip.SipURI) request.getRequestURI()).setUser("changed");
+        assertTrue(TestMessages.toString(SipGenerator.generateBuffers(request))
+                .startsWith("INVITE sip:changed@192.168.1.26:5070 SIP/2.0\r\nVia:"));
+    }
+
+    @Test
+    public void testNew() {
+        SipRequest request = new SipRequest("OPTIONS", "sip:127.0.0.1");
+        request.addHeader("Call-ID", "1");
+        assertEquals("OPTIONS sip:127.0.0.1 SIP/2.0\r\nCall-ID: 1\r\nContent-Length: 0\r\n\r\n",
+                TestMessages.toString(SipGenerator.generateBuffers(request)));
+    }
+
+    @Test
+    public void testContent() throws Exception {
+        SipRequest request = new SipRequest("MESSAGE", "sip:127.0.0.1");
+        request.addHeader("Call-ID", "1");
+        request.setContent("h\u00e9llo", "text/plain;charset=UTF-8");
+        assertEquals("MESSAGE sip:127.0.0.1 SIP/2.0\r\nCall-ID: 1\r\nContent-Type: text/plain;charset=UTF-8\r\n"
+                + "Content-Length: 6\r\n\r\nh\u00e9llo", TestMessages.toString(SipGenerator.generateBuffers(request)));
+
+        SipMessage message = TestMessages.parse(SipParserTest.INVITE);
+        message.setContent(new byte[] { 'v', '=', '0' }, "application/sdp");
+        String s = TestMessages.toString(SipGenerator.generateBuffers(message));
+        assertTrue(s.endsWith("Content-Type: application/sdp\r\nContent-Length: 3\r\n\r\nv=0"));
+        assertEquals(1, s.split("Content-Length").length - 1);
+        assertEquals("v=0", new String(message.getRawContent(), StandardCharsets.UTF_8));
+        assertEquals("v=0", StandardCharsets.UTF_8.decode(message.getContentBuffer()).toString());
+        ByteBuffer[] buffers = message.getContentBuffers();
+        assertEquals(1, buffers.length);
+        assertTrue(buffers[0].isReadOnly());
+        assertEquals("v=0", TestMessages.toString(buffers));
+
+        try {
+            message.setContent(1, "application/sdp");
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void testStreamed() throws Exception {
+        SipMessage message = TestMessages.parse(SipParserTest.INVITE);
+        TestConnection connection = new TestConnection();
+        message.setConnection(connection);
+        message.setContentStream(new ContentInputStream(null, 4, null));
+        try {
+            message.send();
+            fail();
+        } catch (IllegalStateException e) {
+        }
+        assertTrue(connection.sent.isEmpty());
+
+        message.setContent("v=0", "application/sdp");
+        assertFalse(message.isContentStreamed());
+        message.send();
+        assertTrue(connection.sent.get(0).endsWith("Content-Length: 3\r\n\r\nv=0"));
+    }
+}
@@ -0,0 +1,271 @@
+package org.cipango.server;
+
+import org.cipango.sip.SipHeader;
+import org.eclipse.jetty.util.BufferUtil;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+
+import static org.junit.Assert.*;
+
+public class SipParserTest {
+
+    static final String INVITE = "INVITE sip:service@192.168.1.26:5070 SIP/2.0\r\n"
+            + "Via: SIP/2.0/UDP 192.168.1.26:5060;branch=z9hG4bK-90021-1-0\r\n"
+            + "From: sipp <sip:sipp@192.168.1.26:5060>;tag=90021SIPpTag001\r\n"
+            + "To: service <sip:service@192.168.1.26:5070>\r\n"
+            + "Call-ID: 1-90021@192.168.1.26\r\n"
+            + "CSeq: 1 INVITE\r\n"
+            + "Contact: sip:sipp@192.168.1.26:5060\r\n"
+            + "Max-Forwards: 70\r\n"
+            + "Subject: Performance Test\r\n"
+            + "Content-Type: application/sdp\r\n"
+            + "Content-Length:   135\r\n"
+            + "\r\n"
+            + "v=0\r\n"
+            + "o=user1 53655765 2353687637 IN IP4 192.168.1.26\r\n"
+            + "s=-\r\n"
+            + "c=IN IP4 192.168.1.26\r\n"
+            + "t=0 0\r\n"
+            + "m=audio 6000 RTP/AVP 0\r\n"
+            + "a=rtpmap:0 PCMU/8000\r\n";
+
+    @Test
+    public void testRequest() throws Exception {
+        Handler handler = new Handler();
+        ByteBuffer buffer = BufferUtil.toBuffer(INVITE);
+
+        assertTrue(new SipParser(handler).parse(buffer));
+
+        assertEquals("INVITE", handler.method);
+        assertEquals("sip:service@192.168.1.26:5070", handler.uri);
+        assertTrue(handler.complete);
+
+        SipFields fields = handler.fields;
+        assertEquals(10, fields.size());
+        assertEquals("Via", fields.getName(0));
+        assertEquals("SIP/2.0/UDP 192.168.1.26:5060;branch=z9hG4bK-90021-1-0", fields.getValue(0));
+        assertEquals("1-90021@192.168.1.26", fields.get("call-id"));
+        assertEquals("135", fields.get("Content-Length"));
+        assertNull(fields.get("Route"));
+
+        assertTrue(handler.content.startsWith("v=0\r\n"));
+        assertEquals(135, handler.content.length());
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void testSplit() throws Exception {
+        byte[] bytes = INVITE.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length);
+        buffer.put(bytes).flip();
+
+        Handler handler = new Handler();
+        SipParser parser = new SipParser(handler);
+
+        boolean complete = false;
+        for (int limit = 1; limit <= bytes.length && !complete; limit++) {
+            buffer.limit(limit);
+            complete = parser.parse(buffer);
+        }
+
+        assertTrue(complete);
+        assertFalse(buffer.hasRemaining());
+        assertEquals(135, handler.content.length());
+        assertEquals("sip:service@192.168.1.26:5070", handler.uri);
+        assertEquals(10, handler.fields.size());
+        assertEquals("service <sip:service@192.168.1.26:5070>", handler.fields.get("To"));
+    }
+
+    @Test
+    public void testResponse() throws Exception {
+        Handler handler = new Handler();
+        new SipParser(handler).parse(BufferUtil.toBuffer(
+                "\r\nSIP/2.0 180 Ringing\r\n"
+                + "Subject: folded\r\n  value\r\n\tend\r\n"
+                + "X-Empty:\r\n"
+                + "X-Header-1 : 1\r\n"
+                + "\r\n"));
+
+        assertEquals(180, handler.status);
+        assertEquals("Ringing", handler.reason);
+        assertEquals("folded value end", handler.fields.get("subject"));
+        assertEquals("", handler.fields.get("X-Empty"));
+        assertEquals("1", handler.fields.get("X-Header-1"));
+    }
+
+    @Test
+    public void testRestart() throws Exception {
+        Handler handler = new Handler();
+        SipParser parser = new SipParser(handler);
+        ByteBuffer buffer = BufferUtil.toBuffer("OPTIONS sip:a SIP/2.0\r\n\r\nSIP/2.0 200 OK\r\nCSeq: 1 OPTIONS\r\n\r\n");
+
+        assertTrue(parser.parse(buffer));
+        assertEquals("OPTIONS", handler.method);
+
+        parser.reset();
+        handler.fields.clear();
+        assertTrue(parser.parse(buffer));
+        assertEquals(200, handler.status);
+        assertEquals("1 OPTIONS", handler.fields.get("CSeq"));
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void testRebase() throws Exception {
+        Handler handler = new Handler();
+        SipParser parser = new SipParser(handler);
+
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.put("xxxxxOPTIONS sip:a SIP/2.0\r\nTo: b".getBytes(StandardCharsets.UTF_8)).flip();
+        buffer.position(5);
+        assertFalse(parser.parse(buffer));
+
+        buffer.position(parser.getMessageStart());
+        buffer.compact();
+        int parsed = buffer.position();
+        buffer.put("ob\r\nl: 2\r\n\r\nok".getBytes(StandardCharsets.UTF_8)).flip();
+        buffer.position(parsed);
+        parser.rebase(5);
+
+        assertTrue(parser.parse(buffer));
+        assertEquals("OPTIONS", handler.method);
+        assertEquals("bob", handler.fields.get("To"));
+        assertEquals(2, parser.getContentLength());
+        assertEquals("ok", handler.content);
+    }
+
+    @Test
+    public void testCompactForms() throws Exception {
+        Handler handler = new Handler();
+        new SipParser(handler).parse(BufferUtil.toBuffer("MESSAGE sip:a SIP/2.0\r\n"
+                + "v: SIP/2.0/UDP host\r\n"
+                + "CALL-ID: abc\r\n"
+                + "X-Custom: 1\r\n"
+                + "L: 2\r\n"
+                + "\r\n"
+                + "ok"));
+
+        SipFields fields = handler.fields;
+        assertEquals("ok", handler.content);
+        assertSame(SipHeader.VIA, fields.getHeader(0));
+        assertEquals("Via", fields.getName(0));
+        assertEquals("SIP/2.0/UDP host", fields.get("via"));
+        assertEquals("SIP/2.0/UDP host", fields.get("V"));
+        assertEquals("abc", fields.get(SipHeader.CALL_ID));
+        assertEquals("abc", fields.get("i"));
+        assertNull(fields.getHeader(2));
+        assertEquals("X-Custom", fields.getName(2));
+        assertEquals("1", fields.get("x-custom"));
+        assertEquals(1, fields.getValues(SipHeader.CONTENT_LENGTH).size());
+
+        fields.remove("content-length");
+        assertEquals(3, fields.size());
+        assertEquals(-1, fields.indexOf(SipHeader.CONTENT_LENGTH));
+        assertSame(SipHeader.SESSION_EXPIRES, SipHeader.lookup("x"));
+    }
+
+    @Test
+    public void testInvalid() {
+        String[] invalid = {
+                "INVITE\r\n",
+                "INVITE sip:a\r\n",
+                "INVITE sip:a SIP/3.0\r\n",
+                "SIP/2.0 20 OK\r\n",
+                "SIP/2.0 2000 OK\r\n",
+                "OPTIONS sip:a SIP/2.0\r\n continuation\r\n",
+                "OPTIONS sip:a SIP/2.0\r\nno-colon\r\n",
+                "OPTIONS sip:a SIP/2.0\r\nContent-Length: -1\r\n\r\n",
+        };
+        for (String s : invalid) {
+            try {
+                new SipParser(new Handler()).parse(BufferUtil.toBuffer(s));
+                fail("Expected invalid: " + s);
+            } catch (ParseException e) {
+            }
+        }
+    }
+
+    @Test (expected = ParseException.class)
+    public void testHeaderTooLarge() throws Exception {
+        new SipParser(new Handler(), 64).parse(BufferUtil.toBuffer(INVITE));
+    }
+
+    @Test
+    public void testDatagram() throws Exception {
+        SipMessageBuilder builder = new SipMessageBuilder();
+        SipParser parser = new SipParser(builder);
+        parser.setDatagram(true);
+
+        // bytes after the body are ignored
+        assertTrue(parser.parse(BufferUtil.toBuffer(INVITE + "garbage")));
+        SipMessage message = builder.getMessage();
+        ByteBuffer content = message.getContentBuffer();
+        assertTrue(content.isReadOnly());
+        assertEquals(135, content.remaining());
+        assertEquals(INVITE.substring(INVITE.length() - 135), message.getContent());
+        assertSame(message.getContent(), message.getContent());
+        assertArrayEquals(INVITE.substring(INVITE.length() - 135).getBytes(StandardCharsets.US_ASCII),
+                message.getRawContent());
+
+        // without Content-Length, the body extends to the end of the datagram
+        parser.reset();
+        assertTrue(parser.parse(BufferUtil.toBuffer(INVITE.replace("Content-Length:   135\r\n", "") + "a=sendrecv\r\n")));
+        assertEquals(135 + 12, builder.getMessage().getContentBuffer().remaining());
+
+        parser.reset();
+        assertTrue(parser.parse(BufferUtil.toBuffer("OPTIONS sip:127.0.0.1 SIP/2.0\r\nCall-ID: 1\r\n\r\n")));
+        assertNull(builder.getMessage().getContentBuffer());
+        assertNull(builder.getMessage().getContent());
+
+        // body shorter than Content-Length
+        parser.reset();
+        try {
+            parser.parse(BufferUtil.toBuffer(INVITE.substring(0, INVITE.length() - 10)));
+            fail();
+        } catch (ParseException e) {
+            assertTrue(parser.isHeaderComplete());
+        }
+    }
+
+    static class Handler implements SipParser.SipMessageHandler {
+
+        SipFields fields = new SipFields();
+        String method;
+        String uri;
+        int status;
+        String reason;
+        String content;
+        boolean complete;
+
+        public boolean startRequest(ByteBuffer buffer, int methodStart, int methodEnd, int uriStart, int uriEnd) {
+            fields.setBuffer(buffer);
+            method = BufferUtil.toString(buffer, methodStart, methodEnd - methodStart, StandardCharsets.UTF_8);
+            uri = BufferUtil.toString(buffer, uriStart, uriEnd - uriStart, StandardCharsets.UTF_8);
+            return true;
+        }
+
+        public void startResponse(ByteBuffer buffer, int start, int status, int reasonStart, int reasonEnd) {
+            fields.setBuffer(buffer);
+            this.status = status;
+            reason = BufferUtil.toString(buffer, reasonStart, reasonEnd - reasonStart, StandardCharsets.UTF_8);
+        }
+
+        public void parsedHeader(ByteBuffer buffer, SipHeader header, int nameStart, int nameEnd, int valueStart, int valueEnd) {
+            fields.add(header, nameStart, nameEnd, valueStart, valueEnd);
+        }
+
+        public void headerComplete() {
+        }
+
+        public void content(ByteBuffer buffer, int start, int end) {
+            content = BufferUtil.toString(buffer, start, end - start, StandardCharsets.UTF_8);
+        }
+
+        public void messageComplete() {
+            complete = true;
+        }
+    }
+}
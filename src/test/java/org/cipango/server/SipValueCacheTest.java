@@ -0,0 +1,96 @@
+package org.cipango.server;
+
+import org.cipango.server.nio.UdpConnector;
+import org.cipango.sip.SipHeader;
+import org.cipango.sip.SipURICache;
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.util.BufferUtil;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class SipValueCacheTest {
+
+    @Test
+    public void testSharedValues() throws Exception {
+        SipValueCache cache = new SipValueCache(2);
+        SipMessage[] messages = new SipMessage[2];
+        for (int i = 0; i < messages.length; i++) {
+            SipMessageBuilder builder = new SipMessageBuilder(cache);
+            new SipParser(builder).parse(BufferUtil.toBuffer("INVITE sip:a SIP/2.0\r\n"
+                    + "Call-ID: " + i + "\r\n"
+                    + "Max-Forwards: 70\r\n"
+                    + "c: application/sdp\r\n"
+                    + "User-Agent: Cipango\r\n"
+                    + "Supported: folded,\r\n timer\r\n"
+                    + "\r\n"));
+            messages[i] = builder.getMessage();
+        }
+
+        assertSame(messages[0].getMethod(), messages[1].getMethod());
+        assertEquals("70", messages[0].getHeader("Max-Forwards"));
+        assertSame(messages[0].getHeader("Max-Forwards"), messages[1].getHeader("Max-Forwards"));
+        assertSame(messages[0].getContentType(), messages[1].getContentType());
+        assertEquals("Cipango", messages[0].getHeader("User-Agent"));
+        assertSame(messages[0].getHeader("User-Agent"), messages[1].getHeader("User-Agent"));
+        assertEquals("folded, timer", messages[0].getHeader("Supported"));
+        assertNotSame(messages[0].getCallId(), messages[1].getCallId());
+
+        assertEquals(1, cache.getLearned());
+        // methods, Max-Forwards, Content-Type and User-Agent twice, Supported once
+        assertEquals(2 + 2 + 2 + 2 + 1, cache.getHits() + cache.getMisses());
+        assertEquals(2 + 2 + 2 + 1, cache.getHits());
+    }
+
+    @Test
+    public void testBounded() {
+        SipValueCache cache = new SipValueCache(1);
+        ByteBuffer a = BufferUtil.toBuffer("Aa");
+        ByteBuffer b = BufferUtil.toBuffer("BB");
+
+        String value = cache.getValue(SipHeader.SERVER, a, 0, 2);
+        assertEquals("Aa", value);
+        assertSame(value, cache.getValue(SipHeader.SERVER, a, 0, 2));
+        assertSame(value, cache.getValue(SipHeader.SERVER, a, 0, 2));
+        assertEquals(1, cache.getLearned());
+        assertNull(cache.getValue(SipHeader.CALL_ID, a, 0, 2));
+        assertNull(cache.getValue(SipHeader.CONTENT_LENGTH, a, 0, 2));
+
+        // same hash, so in the same probe window: each miss halves the uses of "Aa", which is replaced once unused
+        assertNull(cache.getValue(SipHeader.SERVER, b, 0, 2));
+        assertNull(cache.getValue(SipHeader.SERVER, b, 0, 2));
+        assertSame(value, cache.getValue(SipHeader.SERVER, a, 0, 2));
+        assertNull(cache.getValue(SipHeader.SERVER, b, 0, 2));
+        assertEquals(0, cache.getEvicted());
+        value = cache.getValue(SipHeader.SERVER, b, 0, 2);
+        assertEquals("BB", value);
+        assertSame(value, cache.getValue(SipHeader.SERVER, b, 0, 2));
+        assertEquals(1, cache.getLearned());
+        assertEquals(1, cache.getEvicted());
+    }
+
+    @Test
+    public void testReasonPhrase() {
+        SipValueCache cache = new SipValueCache(0);
+        assertSame(SipValueCache.getReasonPhrase(200), cache.getReasonPhrase(200, BufferUtil.toBuffer("OK"), 0, 2));
+        assertNull(cache.getReasonPhrase(200, BufferUtil.toBuffer("Ok"), 0, 2));
+        assertNull(cache.getReasonPhrase(299, BufferUtil.toBuffer("OK"), 0, 2));
+    }
+
+    @Test
+    public void testManaged() throws Exception {
+        SipServer server = new SipServer();
+        UdpConnector connector = new UdpConnector(server);
+        server.setConnectors(new SipConnector[] { connector });
+        assertSame(SipValueCache.getDefault(), server.getBean(SipValueCache.class));
+        assertSame(SipURICache.getDefault(), server.getBean(SipURICache.class));
+        assertSame(connector.getByteBufferPool(), connector.getBean(ByteBufferPool.class));
+
+        String dump = server.dump();
+        assertTrue(dump, dump.contains("SipValueCache@"));
+        assertTrue(dump, dump.contains("SipURICache@"));
+        assertTrue(dump, dump.contains("MeteredByteBufferPool@"));
+    }
+}
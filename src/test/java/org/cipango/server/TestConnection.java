@@ -0,0 +1,58 @@
+package org.cipango.server;
+
+import org.eclipse.jetty.util.BufferUtil;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A connection that records the messages sent on it, as strings, instead of writing them.
+ */
+public class TestConnection implements SipConnection {
+
+    public final List<String> sent = new CopyOnWriteArrayList<>();
+
+    private final SipConnector connector;
+    private final Transport transport;
+    private final InetSocketAddress localAddress;
+    private final InetSocketAddress remoteAddress;
+
+    public TestConnection() {
+        this(Transport.UDP);
+    }
+
+    public TestConnection(Transport transport) {
+        this(null, transport, new InetSocketAddress("127.0.0.1", 5060), new InetSocketAddress("127.0.0.2", 5060));
+    }
+
+    public TestConnection(SipConnector connector, Transport transport, InetSocketAddress localAddress,
+            InetSocketAddress remoteAddress) {
+        this.connector = connector;
+        this.transport = transport;
+        this.localAddress = localAddress;
+        this.remoteAddress = remoteAddress;
+    }
+
+    public SipConnector getConnector() {
+        return connector;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    public InetSocketAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    public InetSocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    public void send(ByteBuffer buffer) throws IOException {
+        sent.add(BufferUtil.toString(buffer));
+    }
+}
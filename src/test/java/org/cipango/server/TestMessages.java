@@ -0,0 +1,28 @@
+package org.cipango.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Parses messages from and decodes generated buffers to strings in tests.
+ */
+public final class TestMessages {
+
+    private TestMessages() {
+    }
+
+    public static SipMessage parse(String s) throws Exception {
+        SipMessageBuilder builder = new SipMessageBuilder();
+        assertTrue(new SipParser(builder).parse(StandardCharsets.UTF_8.encode(s)));
+        return builder.getMessage();
+    }
+
+    public static String toString(ByteBuffer... buffers) {
+        StringBuilder sb = new StringBuilder();
+        for (ByteBuffer buffer : buffers)
+            sb.append(StandardCharsets.UTF_8.decode(buffer.duplicate()));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,353 @@
+package org.cipango.server.nio;
+
+import org.cipango.server.SipGenerator;
+import org.cipango.server.SipHandler;
+import org.cipango.server.SipMessage;
+import org.cipango.server.SipServer;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+public class TcpConnectorTest {
+
+    private SipServer server;
+    private TcpConnector connector;
+    private BlockingQueue<SipMessage> messages = new LinkedBlockingQueue<>();
+
+    @Before
+    public void setUp() throws Exception {
+        server = new SipServer();
+        connector = new TcpConnector(server);
+        connector.setHost("127.0.0.1");
+        connector.setPort(getFreePort());
+        connector.setInputBufferSize(64);
+        connector.setMaxMessageSize(1024);
+        server.setConnectors(new TcpConnector[] { connector });
+        server.setHandler(new SipHandler() {
+            public void handle(SipMessage message) throws IOException {
+                messages.add(message);
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void testPipelined() throws Exception {
+        String message = "MESSAGE sip:bob@127.0.0.1 SIP/2.0\r\n"
+                + "Call-ID: pipelined\r\n"
+                + "CSeq: %d MESSAGE\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "Content-Length: 5\r\n"
+                + "\r\n"
+                + "hello";
+
+        StringBuilder sb = new StringBuilder("\r\n");
+        for (int i = 0; i < 20; i++)
+            sb.append(String.format(message, i));
+        byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+        try (Socket socket = new Socket(connector.getHost(), connector.getPort())) {
+            OutputStream out = socket.getOutputStream();
+            for (int i = 0; i < bytes.length; i += 37) {
+                out.write(bytes, i, Math.min(37, bytes.length - i));
+                out.flush();
+                Thread.sleep(1);
+            }
+
+            for (int i = 0; i < 20; i++) {
+                SipMessage m = messages.poll(5, TimeUnit.SECONDS);
+                assertNotNull(m);
+                assertEquals("MESSAGE", m.getMethod());
+                assertEquals(i + " MESSAGE", m.getHeader("CSeq"));
+                assertEquals("text/plain", m.getContentType());
+                assertEquals("TCP", m.getTransport());
+            }
+            assertNull(messages.poll());
+            assertEquals(1, connector.getConnectionCount());
+        }
+    }
+
+    @Test
+    public void testLargeBody() throws Exception {
+        connector.setMaxMessageSize(1 << 20);
+
+        StringBuilder body = new StringBuilder();
+        while (body.length() < 100000)
+            body.append("<tuple id=\"").append(body.length()).append("\"><status><basic>open</basic></status></tuple>\r\n");
+        String notify = "NOTIFY sip:bob@127.0.0.1 SIP/2.0\r\n"
+                + "Call-ID: large-body\r\n"
+                + "CSeq: 1 NOTIFY\r\n"
+                + "Content-Type: application/pidf+xml\r\n"
+                + "Content-Length: " + body.length() + "\r\n"
+                + "\r\n"
+                + body;
+        String options = "OPTIONS sip:bob@127.0.0.1 SIP/2.0\r\nCall-ID: large-body\r\nCSeq: 2 OPTIONS\r\n\r\n";
+        byte[] bytes = (notify + options).getBytes(StandardCharsets.UTF_8);
+
+        // the body is only available while the message is processed
+        MeteredByteBufferPool pool = (MeteredByteBufferPool) connector.getByteBufferPool();
+        BlockingQueue<String> generated = new LinkedBlockingQueue<>();
+        AtomicInteger chunks = new AtomicInteger();
+        server.setHandler(message -> {
+            ByteBuffer[] buffers = message.getContentBuffers();
+            if (buffers != null) {
+                chunks.set(buffers.length);
+                assertTrue(pool.getInUse() >= buffers.length);
+            }
+            generated.add(new String(SipGenerator.generate(message).array(), StandardCharsets.UTF_8));
+            messages.add(message);
+        });
+
+        SipMessage received;
+        try (Socket socket = new Socket(connector.getHost(), connector.getPort())) {
+            OutputStream out = socket.getOutputStream();
+            for (int i = 0; i < bytes.length; i += 7000) {
+                out.write(bytes, i, Math.min(7000, bytes.length - i));
+                out.flush();
+                Thread.sleep(1);
+            }
+
+            SipMessage m = messages.poll(5, TimeUnit.SECONDS);
+            assertNotNull(m);
+            assertEquals("NOTIFY", m.getMethod());
+            assertEquals(notify, generated.poll());
+            assertTrue(chunks.get() > 1);
+            received = m;
+
+            m = messages.poll(5, TimeUnit.SECONDS);
+            assertNotNull(m);
+            assertEquals("OPTIONS", m.getMethod());
+            assertNull(m.getRawContent());
+        }
+
+        // chunks and input buffer go back to the pool once the connection has read everything
+        for (int i = 0; i < 100 && pool.getInUse() > 0; i++)
+            Thread.sleep(50);
+        assertEquals(0, pool.getInUse());
+        try {
+            received.getRawContent();
+            fail("content not released");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testStreamedBody() throws Exception {
+        connector.setStreamingThreshold(1000);
+
+        byte[] body = new byte[200000];
+        for (int i = 0; i < body.length; i++)
+            body[i] = (byte) ('a' + i % 26);
+        String header = "NOTIFY sip:bob@127.0.0.1 SIP/2.0\r\n"
+                + "Call-ID: streamed\r\n"
+                + "CSeq: 1 NOTIFY\r\n"
+                + "Content-Type: application/rlmi+xml\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "\r\n";
+
+        try (Socket socket = new Socket(connector.getHost(), connector.getPort())) {
+            OutputStream out = socket.getOutputStream();
+            out.write(header.getBytes(StandardCharsets.UTF_8));
+            out.write(body, 0, 100);
+            out.flush();
+
+            // dispatched before the body is sent
+            SipMessage m = messages.poll(5, TimeUnit.SECONDS);
+            assertNotNull(m);
+            assertEquals("NOTIFY", m.getMethod());
+            assertTrue(m.isContentStreamed());
+            assertNull(m.getRawContent());
+
+            Thread writer = new Thread(() -> {
+                try {
+                    out.write(body, 100, body.length - 100);
+                    out.write("OPTIONS sip:bob@127.0.0.1 SIP/2.0\r\nCall-ID: streamed\r\nCSeq: 2 OPTIONS\r\n\r\n"
+                            .getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            writer.start();
+
+            // the connection reads no faster than the body is consumed
+            Thread.sleep(200);
+            MeteredByteBufferPool pool = (MeteredByteBufferPool) connector.getByteBufferPool();
+            assertTrue(pool.getInUse() <= TcpConnector.STREAM_CHUNKS + 1);
+            assertNull(messages.poll());
+
+            InputStream in = m.getContentStream();
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            byte[] b = new byte[1000];
+            int n;
+            while ((n = in.read(b)) >= 0)
+                received.write(b, 0, n);
+            assertArrayEquals(body, received.toByteArray());
+            writer.join();
+
+            m = messages.poll(5, TimeUnit.SECONDS);
+            assertNotNull(m);
+            assertEquals("OPTIONS", m.getMethod());
+            assertFalse(m.isContentStreamed());
+        }
+    }
+
+    @Test
+    public void testStreamedBodyOffLane() throws Exception {
+        server.stop();
+        server.getDispatcher().setLanes(1);
+        connector.setStreamingThreshold(1000);
+        CountDownLatch reading = new CountDownLatch(1);
+        BlockingQueue<byte[]> bodies = new LinkedBlockingQueue<>();
+        server.setHandler(message -> {
+            if (!message.isContentStreamed()) {
+                messages.add(message);
+                return;
+            }
+            reading.countDown();
+            InputStream in = message.getContentStream();
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            byte[] b = new byte[1000];
+            int n;
+            while ((n = in.read(b)) >= 0)
+                received.write(b, 0, n);
+            bodies.add(received.toByteArray());
+        });
+        server.start();
+
+        byte[] body = new byte[2000];
+        String header = "MESSAGE sip:bob@127.0.0.1 SIP/2.0\r\n"
+                + "Call-ID: slow\r\n"
+                + "CSeq: 1 MESSAGE\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "\r\n";
+        try (Socket slow = new Socket(connector.getHost(), connector.getPort());
+                Socket other = new Socket(connector.getHost(), connector.getPort())) {
+            slow.getOutputStream().write(header.getBytes(StandardCharsets.UTF_8));
+            slow.getOutputStream().write(body, 0, 100);
+            assertTrue(reading.await(5, TimeUnit.SECONDS));
+
+            // the handler waiting for the body does not hold up the only lane
+            other.getOutputStream().write("OPTIONS sip:bob@127.0.0.1 SIP/2.0\r\nCall-ID: other\r\nCSeq: 1 OPTIONS\r\n\r\n"
+                    .getBytes(StandardCharsets.UTF_8));
+            SipMessage m = messages.poll(5, TimeUnit.SECONDS);
+            assertNotNull(m);
+            assertEquals("OPTIONS", m.getMethod());
+            assertNull(bodies.poll());
+
+            slow.getOutputStream().write(body, 100, body.length - 100);
+            byte[] received = bodies.poll(5, TimeUnit.SECONDS);
+            assertNotNull(received);
+            assertArrayEquals(body, received);
+        }
+    }
+
+    @Test
+    public void testResponse() throws Exception {
+        try (Socket socket = new Socket(connector.getHost(), connector.getPort())) {
+            socket.getOutputStream().write("OPTIONS sip:127.0.0.1 SIP/2.0\r\nCall-ID: 1\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+
+            SipMessage message = messages.poll(5, TimeUnit.SECONDS);
+            assertNotNull(message);
+            message.getConnection().send(StandardCharsets.UTF_8.encode("SIP/2.0 200 OK\r\n\r\n"));
+
+            byte[] b = new byte[18];
+            InputStream in = socket.getInputStream();
+            int n = 0;
+            while (n < b.length)
+                n += in.read(b, n, b.length - n);
+            assertEquals("SIP/2.0 200 OK\r\n\r\n", new String(b, StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testWriteTimeout() throws Exception {
+        connector.setWriteTimeout(200);
+        try (Socket socket = new Socket(connector.getHost(), connector.getPort())) {
+            socket.setReceiveBufferSize(4096);
+            socket.getOutputStream().write("OPTIONS sip:127.0.0.1 SIP/2.0\r\nCall-ID: 1\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+            SipMessage message = messages.poll(5, TimeUnit.SECONDS);
+            assertNotNull(message);
+
+            // the peer does not read
+            long start = System.nanoTime();
+            try {
+                for (int i = 0; i < 10000; i++)
+                    message.getConnection().send(ByteBuffer.allocate(65536));
+                fail();
+            } catch (IOException e) {
+                assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 5);
+            }
+            assertTrue(waitFor(() -> connector.getConnectionCount() == 0));
+        }
+    }
+
+    @Test
+    public void testMessageTooLarge() throws Exception {
+        try (Socket socket = new Socket(connector.getHost(), connector.getPort())) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            out.write("MESSAGE sip:bob@127.0.0.1 SIP/2.0\r\nContent-Length: 2000\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+            out.write(new byte[2000]);
+
+            assertEquals(-1, socket.getInputStream().read());
+            assertNull(messages.poll());
+        }
+    }
+
+    @Test
+    public void testIdleTimeout() throws Exception {
+        connector.setIdleTimeout(200);
+        try (Socket socket = new Socket(connector.getHost(), connector.getPort())) {
+            socket.setSoTimeout(5000);
+            long start = System.nanoTime();
+            assertEquals(-1, socket.getInputStream().read());
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 100);
+        }
+    }
+
+    @Test
+    public void testExecutorStopped() throws Exception {
+        QueuedThreadPool executor = (QueuedThreadPool) connector.getExecutor();
+        assertTrue(executor.isRunning());
+        server.stop();
+        assertTrue(executor.isStopped());
+    }
+
+        private static boolean waitFor(BooleanSupplier condition) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < end)
+            Thread.sleep(5);
+        return condition.getAsBoolean();
+    }
+
+    static int getFreePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package org.cipango.server.nio;
+
+import org.cipango.server.SipHandler;
+import org.cipango.server.SipMessage;
+import org.cipango.server.SipServer;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TlsConnectorTest {
+
+    private static final String PASSWORD = "storepwd";
+
+    private static File keyStore;
+
+    private SipServer server;
+    private TlsConnector connector;
+    private BlockingQueue<SipMessage> messages = new LinkedBlockingQueue<>();
+
+    @BeforeClass
+    public static void generateKeyStore() throws Exception {
+        keyStore = File.createTempFile("cipango", ".p12");
+        keyStore.delete();
+        keyStore.deleteOnExit();
+
+        String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "cipango",
+                "-keyalg", "RSA", "-keysize", "2048", "-validity", "1", "-dname", "CN=localhost",
+                "-storetype", "PKCS12", "-keystore", keyStore.getPath(),
+                "-storepass", PASSWORD, "-keypass", PASSWORD)
+                .redirectErrorStream(true).start();
+        assertEquals(0, process.waitFor());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        SslContextFactory sslContextFactory = new SslContextFactory();
+        sslContextFactory.setKeyStorePath(keyStore.getPath());
+        sslContextFactory.setKeyStoreType("PKCS12");
+        sslContextFactory.setKeyStorePassword(PASSWORD);
+
+        server = new SipServer();
+        connector = new TlsConnector(server, sslContextFactory);
+        connector.setHost("127.0.0.1");
+        connector.setPort(TcpConnectorTest.getFreePort());
+        server.setConnectors(new TcpConnector[] { connector });
+        server.setHandler(new SipHandler() {
+            public void handle(SipMessage message) throws IOException {
+                messages.add(message);
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void testResumption() throws Exception {
+        assertResumption("TLS");
+    }
+
+    @Test
+    public void testResumptionTls12() throws Exception {
+        assertResumption("TLSv1.2");
+    }
+
+    private void assertResumption(String protocol) throws Exception {
+        SSLContext context = SSLContext.getInstance(protocol);
+        context.init(null, new TrustManager[] { new TrustAll() }, null);
+
+        for (int i = 0; i < 3; i++) {
+            try (SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket(connector.getHost(), connector.getPort())) {
+                socket.getOutputStream().write(("OPTIONS sips:127.0.0.1 SIP/2.0\r\nCall-ID: " + i + "\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+
+                SipMessage message = messages.poll(5, TimeUnit.SECONDS);
+                assertNotNull(message);
+                assertEquals(String.valueOf(i), message.getCallId());
+                assertEquals("TLS", message.getTransport());
+
+                message.getConnection().send(StandardCharsets.UTF_8.encode("SIP/2.0 200 OK\r\n\r\n"));
+                byte[] b = new byte[18];
+                InputStream in = socket.getInputStream();
+                int n = 0;
+                while (n < b.length)
+                    n += in.read(b, n, b.length - n);
+                assertEquals("SIP/2.0 200 OK\r\n\r\n", new String(b, StandardCharsets.UTF_8));
+            }
+        }
+
+        assertEquals(1, connector.getFullHandshakes());
+        assertEquals(2, connector.getResumedHandshakes());
+        assertEquals(0, connector.getFailedHandshakes());
+    }
+
+    static class TrustAll implements X509TrustManager {
+
+        public void checkClientTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        public void checkServerTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package org.cipango.server.nio;
+
+import org.cipango.server.ConnectorStatistics;
+import org.cipango.server.SipHandler;
+import org.cipango.server.SipMessage;
+import org.cipango.server.SipRequest;
+import org.cipango.server.SipServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class UdpConnectorTest {
+
+    private SipServer server;
+    private UdpConnector connector;
+    private BlockingQueue<SipMessage> messages = new LinkedBlockingQueue<>();
+
+    @Before
+    public void setUp() throws Exception {
+        server = new SipServer();
+        connector = new UdpConnector(server);
+        connector.setHost("127.0.0.1");
+        connector.setPort(getFreePort());
+        connector.setSockets(1);
+        server.setConnectors(new UdpConnector[] { connector });
+        server.setHandler(new SipHandler() {
+            public void handle(SipMessage message) throws IOException {
+                messages.add(message);
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void testReceive() throws Exception {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            for (int i = 0; i < 10; i++)
+                send(socket, "OPTIONS sip:127.0.0.1 SIP/2.0\r\nCall-ID: receive\r\nCSeq: " + i + " OPTIONS\r\nContent-Length: 0\r\n\r\n");
+
+            for (int i = 0; i < 10; i++) {
+                SipMessage message = messages.poll(5, TimeUnit.SECONDS);
+                assertNotNull(message);
+                assertTrue(message instanceof SipRequest);
+                assertEquals("OPTIONS", message.getMethod());
+                assertEquals(i + " OPTIONS", message.getHeader("CSeq"));
+                assertEquals("UDP", message.getTransport());
+                assertEquals(socket.getLocalPort(), message.getRemotePort());
+            }
+        }
+
+        // the receive loop keeps its buffer, each datagram is copied into a pooled buffer that goes back to the
+        // pool once processed, the messages passed to the handler being copied out of it
+        MeteredByteBufferPool pool = (MeteredByteBufferPool) connector.getByteBufferPool();
+        for (int i = 0; i < 100 && pool.getInUse() > 1; i++)
+            Thread.sleep(50);
+        assertEquals(1, pool.getInUse());
+        assertEquals(11, pool.getAcquired());
+        assertEquals(11, pool.getHits() + pool.getMisses());
+        assertTrue(connector.getReceiveCalls() >= 10);
+
+        server.stop();
+        assertEquals(0, pool.getInUse());
+    }
+
+    @Test
+    public void testContentLengthMismatch() throws Exception {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(5000);
+            send(socket, "MESSAGE sip:127.0.0.1 SIP/2.0\r\n"
+                    + "Via: SIP/2.0/UDP 127.0.0.1:" + socket.getLocalPort() + ";branch=z9hG4bK-mismatch\r\n"
+                    + "Call-ID: mismatch\r\nCSeq: 1 MESSAGE\r\nContent-Type: text/plain\r\nContent-Length: 100\r\n\r\n"
+                    + "too short");
+
+            DatagramPacket packet = new DatagramPacket(new byte[1024], 1024);
+            socket.receive(packet);
+            String response = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+            assertTrue(response, response.startsWith("SIP/2.0 400 "));
+
+            // extra bytes are ignored
+            send(socket, "MESSAGE sip:127.0.0.1 SIP/2.0\r\nCall-ID: mismatch\r\nCSeq: 2 MESSAGE\r\n"
+                    + "Content-Type: text/plain\r\nContent-Length: 5\r\n\r\nhello world");
+            SipMessage message = messages.poll(5, TimeUnit.SECONDS);
+            assertNotNull(message);
+            assertEquals("hello", message.getContent());
+        }
+        assertEquals(1, connector.getStatistics().getParseErrors());
+    }
+
+    @Test
+    public void testConcurrentSend() throws Exception {
+        try (DatagramSocket socket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"))) {
+            socket.setReceiveBufferSize(1 << 20);
+            socket.setSoTimeout(5000);
+            InetSocketAddress address = (InetSocketAddress) socket.getLocalSocketAddress();
+
+            Thread[] threads = new Thread[4];
+            for (int i = 0; i < threads.length; i++) {
+                int thread = i;
+                threads[i] = new Thread(() -> {
+                    for (int j = 0; j < 100; j++) {
+                        try {
+                            connector.send(ByteBuffer.wrap((thread + ":" + j).getBytes(StandardCharsets.UTF_8)), address);
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                });
+                threads[i].start();
+            }
+            for (Thread thread : threads)
+                thread.join();
+
+            // datagrams of each thread are sent in order, whichever thread writes them
+            int[] next = new int[threads.length];
+            DatagramPacket packet = new DatagramPacket(new byte[64], 64);
+            for (int i = 0; i < 400; i++) {
+                socket.receive(packet);
+                String[] s = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8).split(":");
+                assertEquals(next[Integer.parseInt(s[0])]++, Integer.parseInt(s[1]));
+            }
+        }
+        assertEquals(400, connector.getStatistics().getMessagesSent());
+        assertTrue(connector.getSendCalls() >= 400);
+    }
+
+    @Test
+    public void testStatistics() throws Exception {
+        String options = "OPTIONS sip:127.0.0.1 SIP/2.0\r\nCall-ID: statistics\r\nCSeq: 1 OPTIONS\r\nContent-Length: 0\r\n\r\n";
+        try (DatagramSocket socket = new DatagramSocket()) {
+            send(socket, options);
+            send(socket, "not a SIP message\r\n\r\n");
+            send(socket, options);
+            assertNotNull(messages.poll(5, TimeUnit.SECONDS));
+            assertNotNull(messages.poll(5, TimeUnit.SECONDS));
+        }
+
+        ConnectorStatistics statistics = connector.getStatistics();
+        assertEquals(3, statistics.getMessagesReceived());
+        assertEquals(1, statistics.getParseErrors());
+        assertEquals(2, statistics.getParseTime().getCount());
+        assertEquals(2, statistics.getDispatchLatency().getCount());
+        assertTrue(statistics.getDispatchLatency().getValueAtPercentile(100) > 0);
+
+        String dump = server.dump();
+        assertTrue(dump, dump.contains("receive-to-dispatch"));
+        assertTrue(dump, dump.contains("in=3/"));
+    }
+
+    @Test
+    public void testReusePort() throws Exception {
+        UdpConnector multi = new UdpConnector(server);
+        multi.setHost("127.0.0.1");
+        multi.setPort(getFreePort());
+        multi.setSockets(4);
+        multi.start();
+
+        try {
+            assertTrue(multi.getOpenSockets() == 4 || multi.getOpenSockets() == 1);
+
+            DatagramSocket[] sockets = new DatagramSocket[16];
+            for (int i = 0; i < sockets.length; i++) {
+                sockets[i] = new DatagramSocket();
+                byte[] b = ("OPTIONS sip:127.0.0.1 SIP/2.0\r\nCall-ID: " + i + "\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+                sockets[i].send(new DatagramPacket(b, b.length, InetAddress.getByName(multi.getHost()), multi.getPort()));
+            }
+
+            for (int i = 0; i < sockets.length; i++) {
+                assertNotNull(messages.poll(5, TimeUnit.SECONDS));
+                sockets[i].close();
+            }
+        } finally {
+            multi.stop();
+        }
+    }
+
+    private void send(DatagramSocket socket, String message) throws IOException {
+        byte[] b = message.getBytes(StandardCharsets.UTF_8);
+        socket.send(new DatagramPacket(b, b.length, InetAddress.getByName(connector.getHost()), connector.getPort()));
+    }
+
+    static int getFreePort() throws IOException {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            return socket.getLocalPort();
+        }
+    }
+}
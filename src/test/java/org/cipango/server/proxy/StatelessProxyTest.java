@@ -0,0 +1,226 @@
+package org.cipango.server.proxy;
+
+import org.cipango.server.SipConnection;
+import org.cipango.server.SipServer;
+import org.cipango.server.TestConnection;
+import org.cipango.server.Transport;
+import org.cipango.server.nio.UdpConnector;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class StatelessProxyTest {
+
+    private UdpConnector connector;
+    private String sent;
+    private InetSocketAddress target;
+    // reused across the messages of a test, as by a receive loop
+    private StatelessProxy.Parser parser = new StatelessProxy.Parser();
+
+    private StatelessProxy proxy = new StatelessProxy() {
+        @Override
+        protected void send(SipConnection connection, ByteBuffer buffer, InetSocketAddress target) throws IOException {
+            sent = StandardCharsets.US_ASCII.decode(buffer).toString();
+            StatelessProxyTest.this.target = target;
+        }
+    };
+
+    @Before
+    public void setUp() {
+        connector = new UdpConnector(new SipServer());
+        connector.setHost("127.0.0.1");
+        connector.setPort(5060);
+    }
+
+    @Test
+    public void testNextHop() {
+        ForwardingRule rule = new ForwardingRule("example.com", "OPTIONS");
+        rule.setNextHop(new InetSocketAddress("127.0.0.1", 5080));
+        proxy.addRule(rule);
+
+        String options = "OPTIONS sip:Example.COM SIP/2.0\r\n"
+                + "Via: SIP/2.0/UDP 10.0.0.1:5062;branch=z9hG4bK1\r\n"
+                + "Max-Forwards: 10\r\n"
+                + "Call-ID: 1\r\n"
+                + "CSeq: 1 OPTIONS\r\n"
+                + "Content-Length: 0\r\n\r\n";
+        assertTrue(process(options, "10.0.0.1"));
+        assertEquals(new InetSocketAddress("127.0.0.1", 5080), target);
+
+        String branch = getBranch(sent);
+        assertTrue(branch.startsWith(StatelessProxy.BRANCH_PREFIX));
+        assertEquals("OPTIONS sip:Example.COM SIP/2.0\r\n"
+                + "Via: SIP/2.0/UDP 127.0.0.1:5060;branch=" + branch + "\r\n"
+                + "Via: SIP/2.0/UDP 10.0.0.1:5062;branch=z9hG4bK1\r\n"
+                + "Max-Forwards: 9\r\n"
+                + "Call-ID: 1\r\n"
+                + "CSeq: 1 OPTIONS\r\n"
+                + "Content-Length: 0\r\n\r\n", sent);
+
+        // the branch only depends on the received Via, as for a CANCEL
+        assertFalse(process(options.replace("OPTIONS", "CANCEL"), "10.0.0.1"));
+        proxy.addRule(new ForwardingRule(null, "CANCEL"));
+        assertTrue(process(options.replace("OPTIONS sip:Example.COM", "CANCEL sip:127.0.0.1:5080"), "10.0.0.1"));
+        assertEquals(branch, getBranch(sent));
+        assertEquals(2, proxy.getForwardedRequests());
+    }
+
+    @Test
+    public void testRoute() {
+        proxy.addRule(new ForwardingRule(null, "INVITE", "ACK"));
+
+        String invite = "INVITE sip:bob@example.com SIP/2.0\r\n"
+                + "Via: SIP/2.0/UDP 10.0.0.1:5062;branch=z9hG4bK1, SIP/2.0/UDP 10.0.0.2;branch=z9hG4bK2\r\n"
+                + "Route: <sip:127.0.0.1;lr>, <sip:127.0.0.2:5070;lr>\r\n"
+                + "Route: <sip:127.0.0.3;lr>\r\n"
+                + "Content-Length: 4\r\n\r\n"
+                + "body";
+        assertTrue(process(invite, "10.0.0.9"));
+        assertEquals(new InetSocketAddress("127.0.0.2", 5070), target);
+        assertEquals("INVITE sip:bob@example.com SIP/2.0\r\n"
+                + "Via: SIP/2.0/UDP 127.0.0.1:5060;branch=" + getBranch(sent) + "\r\n"
+                + "Max-Forwards: 70\r\n"
+                + "Via: SIP/2.0/UDP 10.0.0.1:5062;branch=z9hG4bK1;received=10.0.0.9, SIP/2.0/UDP 10.0.0.2;branch=z9hG4bK2\r\n"
+                + "Route: <sip:127.0.0.2:5070;lr>\r\n"
+                + "Route: <sip:127.0.0.3;lr>\r\n"
+                + "Content-Length: 4\r\n\r\n"
+                + "body", sent);
+
+        String ack = "ACK sip:bob@127.0.0.4 SIP/2.0\r\n"
+                + "Route: <sip:127.0.0.1:5060;lr>\r\n"
+                + "Route: <sip:127.0.0.3;lr>\r\n"
+                + "Via: SIP/2.0/UDP 10.0.0.1:5062;branch=z9hG4bK3\r\n"
+                + "Max-Forwards: 70\r\n\r\n";
+        assertTrue(process(ack, "10.0.0.1"));
+        assertEquals(new InetSocketAddress("127.0.0.3", 5060), target);
+        assertEquals("ACK sip:bob@127.0.0.4 SIP/2.0\r\n"
+                + "Route: <sip:127.0.0.3;lr>\r\n"
+                + "Via: SIP/2.0/UDP 127.0.0.1:5060;branch=" + getBranch(sent) + "\r\n"
+                + "Via: SIP/2.0/UDP 10.0.0.1:5062;branch=z9hG4bK3\r\n"
+                + "Max-Forwards: 69\r\n\r\n", sent);
+
+        // no route left, sent to the Request-URI
+        assertTrue(process(ack.replace("Route: <sip:127.0.0.3;lr>\r\n", ""), "10.0.0.1"));
+        assertEquals(new InetSocketAddress("127.0.0.4", 5060), target);
+        assertTrue(process(ack.replace("127.0.0.3", "[::1]"), "10.0.0.1"));
+        assertEquals(new InetSocketAddress("::1", 5060), target);
+    }
+
+    @Test
+    public void testDatagramBody() {
+        proxy.addRule(new ForwardingRule(null, "MESSAGE"));
+
+        String message = "MESSAGE sip:bob@127.0.0.4 SIP/2.0\r\n"
+                + "Via: SIP/2.0/UDP 10.0.0.1:5062;branch=z9hG4bK1\r\n"
+                + "Max-Forwards: 70\r\n\r\n"
+                + "body without Content-Length";
+        assertTrue(process(message, "10.0.0.1"));
+        assertTrue(sent.endsWith("\r\n\r\nbody without Content-Length"));
+
+        // bytes after the body are not forwarded
+        assertTrue(process(message.replace("70\r\n", "70\r\nContent-Length: 4\r\n"), "10.0.0.1"));
+        assertTrue(sent.endsWith("\r\n\r\nbody"));
+
+        assertFalse(process(message.replace("70\r\n", "70\r\nContent-Length: 100\r\n"), "10.0.0.1"));
+    }
+
+    @Test
+    public void testRport() {
+        proxy.addRule(new ForwardingRule(null, "MESSAGE"));
+
+        // sent from behind a NAT
+        String message = "MESSAGE sip:bob@127.0.0.4 SIP/2.0\r\n"
+                + "Via: SIP/2.0/UDP 10.0.0.1:5062;rport;branch=z9hG4bK1\r\n"
+                + "Max-Forwards: 70\r\n"
+                + "Content-Length: 0\r\n\r\n";
+        assertTrue(process(message, "10.0.0.1", 6000));
+        String via = "Via: SIP/2.0/UDP 10.0.0.1:5062;rport=6000;branch=z9hG4bK1;received=10.0.0.1\r\n";
+        assertTrue(sent.contains(via));
+
+        String response = "SIP/2.0 200 OK\r\n"
+                + "Via: SIP/2.0/UDP 127.0.0.1:5060;branch=" + getBranch(sent) + "\r\n"
+                + via
+                + "Content-Length: 0\r\n\r\n";
+        assertTrue(process(response, "127.0.0.4"));
+        assertEquals(new InetSocketAddress("10.0.0.1", 6000), target);
+
+        // rport with a value, or another parameter starting alike, is left as is
+        assertTrue(process(message.replace(";rport", ";rport=5070"), "10.0.0.1", 6000));
+        assertTrue(sent.contains("Via: SIP/2.0/UDP 10.0.0.1:5062;rport=5070;branch=z9hG4bK1\r\n"));
+        assertTrue(process(message.replace(";rport", ";rportx"), "10.0.0.1", 6000));
+        assertTrue(sent.contains("Via: SIP/2.0/UDP 10.0.0.1:5062;rportx;branch=z9hG4bK1\r\n"));
+        assertTrue(process(message.replace(";rport;branch=z9hG4bK1", ";branch=z9hG4bK1;RPORT"), "10.0.0.1", 6000));
+        assertTrue(sent.contains("Via: SIP/2.0/UDP 10.0.0.1:5062;branch=z9hG4bK1;RPORT=6000;received=10.0.0.1\r\n"));
+    }
+
+    @Test
+    public void testNotForwarded() {
+        proxy.addRule(new ForwardingRule("example.com"));
+        proxy.addRule(new ForwardingRule(null, "MESSAGE"));
+
+        String request = "OPTIONS sip:example.com SIP/2.0\r\n"
+                + "Via: SIP/2.0/UDP 10.0.0.1:5062;branch=z9hG4bK1\r\n"
+                + "Max-Forwards: 0\r\n\r\n";
+        assertFalse(process(request, "10.0.0.1")); // Max-Forwards exhausted
+        assertFalse(process(request.replace("example.com", "example.org"), "10.0.0.1")); // no rule
+        assertTrue(parser.isSkipped());
+        assertFalse(process(request.replace("example.com", "example.org").replace("Via", "Via SIP"), "10.0.0.1"));
+        assertTrue(parser.isSkipped()); // the malformed header is not reached
+        assertFalse(process(request.replace("example.com", "127.0.0.1"), "10.0.0.1")); // loop
+        assertFalse(process(request.replace("sip:", "sips:"), "10.0.0.1"));
+        // host names are not resolved on the receiving thread
+        assertFalse(process("MESSAGE sip:bob@localhost SIP/2.0\r\n"
+                + "Via: SIP/2.0/UDP 10.0.0.1:5062;branch=z9hG4bK1\r\n\r\n", "10.0.0.1"));
+        assertFalse(process("SIP/2.0 200 OK\r\nVia: SIP/2.0/UDP 10.0.0.1;branch=z9hG4bK1\r\n\r\n", "10.0.0.1"));
+        assertFalse(process("SIP/2.0 200 OK\r\nVia: SIP/2.0/UDP 127.0.0.1:5060;branch="
+                + StatelessProxy.BRANCH_PREFIX + "1\r\nVia: SIP/2.0/TCP 10.0.0.1;branch=z9hG4bK1\r\n\r\n", "10.0.0.1"));
+        assertNull(sent);
+    }
+
+    @Test
+    public void testResponse() {
+        String response = "SIP/2.0 200 OK\r\n"
+                + "Via: SIP/2.0/UDP 127.0.0.1:5060;branch=" + StatelessProxy.BRANCH_PREFIX + "0123\r\n"
+                + "Via: SIP/2.0/UDP 10.0.0.1:5062;branch=z9hG4bK1;received=127.0.0.5;rport=5090\r\n"
+                + "CSeq: 1 OPTIONS\r\n"
+                + "Content-Length: 0\r\n\r\n";
+        assertTrue(process(response, "127.0.0.2"));
+        assertEquals(new InetSocketAddress("127.0.0.5", 5090), target);
+        assertEquals(response.substring(0, 16) + response.substring(response.indexOf("Via", 20)), sent);
+
+        response = "SIP/2.0 180 Ringing\r\n"
+                + "v: SIP/2.0/UDP 127.0.0.1:5060;branch=" + StatelessProxy.BRANCH_PREFIX + "0123 ,SIP/2.0/UDP 127.0.0.6\r\n"
+                + "Content-Length: 0\r\n\r\n";
+        assertTrue(process(response, "127.0.0.2"));
+        assertEquals(new InetSocketAddress("127.0.0.6", 5060), target);
+        assertEquals("SIP/2.0 180 Ringing\r\nv: SIP/2.0/UDP 127.0.0.6\r\nContent-Length: 0\r\n\r\n", sent);
+        assertEquals(2, proxy.getForwardedResponses());
+    }
+
+    private boolean process(String message, String remoteHost) {
+        return process(message, remoteHost, 5062);
+    }
+
+    private boolean process(String message, String remoteHost, int remotePort) {
+        ByteBuffer buffer = StandardCharsets.US_ASCII.encode(message);
+        boolean forwarded = proxy.process(buffer, new TestConnection(connector, Transport.UDP,
+                new InetSocketAddress(connector.getHost(), connector.getPort()), new InetSocketAddress(remoteHost, remotePort)), parser);
+        if (!forwarded)
+            assertEquals(0, buffer.position());
+        return forwarded;
+    }
+
+    private static String getBranch(String message) {
+        Matcher matcher = Pattern.compile("branch=([^\\r;,]*)").matcher(message);
+        assertTrue(matcher.find());
+        return matcher.group(1);
+    }
+}
@@ -0,0 +1,208 @@
+package org.cipango.server.session;
+
+import org.cipango.server.SipHandler;
+import org.cipango.server.SipMessage;
+import org.cipango.server.SipRequest;
+import org.cipango.server.SipResponse;
+import org.cipango.server.TestConnection;
+import org.cipango.util.TimerWheel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.sip.SipSession;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SessionManagerTest {
+
+    private SessionManager manager = new SessionManager();
+    private List<SipMessage> handled = new ArrayList<>();
+    private SipHandler handler = new SipHandler() {
+        public void handle(SipMessage message) throws IOException {
+            handled.add(message);
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        manager.setTimerWheel(new TimerWheel(5, TimeUnit.MILLISECONDS, 64));
+        manager.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        manager.stop();
+    }
+
+    @Test
+    public void testDialog() throws Exception {
+        SipRequest invite = newRequest("INVITE", "call1", "a", null);
+        manager.handle(invite, handler);
+        SipSession session = invite.getSession();
+        assertNotNull(session);
+        assertEquals("call1", session.getCallId());
+        assertSame(manager.getApplicationSession("call1"), invite.getApplicationSession());
+
+        // the 180 of the callee, as received by a proxy
+        SipResponse ringing = new SipResponse(180, "Ringing");
+        ringing.addHeader("From", "<sip:alice@example.com>;tag=a");
+        ringing.addHeader("To", "<sip:bob@example.com;tag=x>;tag=b");
+        ringing.addHeader("Call-ID", "call1");
+        ringing.addHeader("CSeq", "1 INVITE");
+        manager.handle(ringing, handler);
+        assertSame(session, ringing.getSession());
+
+        SipRequest bye = newRequest("BYE", "call1", "b", "a");
+        manager.handle(bye, handler);
+        assertSame(session, bye.getSession());
+
+        SipRequest other = newRequest("BYE", "call1", "c", "d");
+        manager.handle(other, handler);
+        assertNull(other.getSession());
+
+        SipRequest unknown = newRequest("BYE", "call2", "a", "b");
+        manager.handle(unknown, handler);
+        assertNull(unknown.getSession());
+        assertEquals(5, handled.size());
+
+        assertEquals(1, manager.getApplicationSessions());
+        assertEquals(1, manager.getSipSessions());
+
+        // another dialog of the same call, invalidated alone
+        SipRequest subscribe = newRequest("SUBSCRIBE", "call1", "e", null);
+        manager.handle(subscribe, handler);
+        SipSession subscription = subscribe.getSession();
+        assertNotSame(session, subscription);
+        assertNotEquals(session.getId(), subscription.getId());
+        assertEquals(2, manager.getSipSessions());
+        subscription.invalidate();
+        assertFalse(subscription.isValid());
+        assertTrue(session.isValid());
+        assertTrue(session.getApplicationSession().isValid());
+        assertEquals(1, manager.getSipSessions());
+        assertSame(session, session.getApplicationSession().getSessions().next());
+        try {
+            subscription.invalidate();
+            fail();
+        } catch (IllegalStateException e) {
+        }
+
+        SipRequest notify = newRequest("NOTIFY", "call1", "f", "e");
+        manager.handle(notify, handler);
+        assertNull(notify.getSession());
+
+        session.getApplicationSession().invalidate();
+        assertFalse(session.isValid());
+        assertEquals(0, manager.getApplicationSessions());
+        assertEquals(0, manager.getSipSessions());
+    }
+
+    @Test
+    public void testExpires() throws Exception {
+        ApplicationSession expiring = manager.createApplicationSession("expiring");
+        expiring.setExpiresMillis(50);
+        ApplicationSession accessed = manager.createApplicationSession("accessed");
+        accessed.setExpiresMillis(100);
+
+        long end = System.currentTimeMillis() + 300;
+        while (System.currentTimeMillis() < end) {
+            accessed.access();
+            Thread.sleep(10);
+        }
+        assertFalse(expiring.isValid());
+        assertTrue(accessed.isValid());
+        assertNull(manager.getApplicationSession("expiring"));
+
+        end = System.currentTimeMillis() + 5000;
+        while (accessed.isValid() && System.currentTimeMillis() < end)
+            Thread.sleep(10);
+        assertFalse(accessed.isValid());
+        assertEquals(2, manager.getExpired());
+        assertEquals(0, manager.getApplicationSessions());
+    }
+
+    @Test
+    public void testMaxSessions() throws Exception {
+        manager.setMaxApplicationSessions(1);
+        manager.handle(newRequest("REGISTER", "1", "a", null), handler);
+
+        TestConnection connection = new TestConnection();
+        SipRequest rejected = newRequest("REGISTER", "2", "a", null);
+        rejected.setConnection(connection);
+        manager.handle(rejected, handler);
+
+        assertEquals(1, manager.getRejected());
+        assertEquals(1, handled.size());
+        assertNull(rejected.getSession());
+        assertEquals(1, connection.sent.size());
+        assertTrue(connection.sent.get(0).startsWith("SIP/2.0 503 Service Unavailable\r\n"));
+        assertTrue(connection.sent.get(0).contains("Call-ID: 2\r\n"));
+        assertEquals(1, manager.getApplicationSessions());
+    }
+
+    @Test
+    public void testMemory() throws Exception {
+        int n = 4000;
+        register(0, n, -1);
+        assertEquals(n, manager.getApplicationSessions());
+        assertEquals(n, manager.getSipSessions());
+        assertEquals(n, manager.getTimerWheel().getSize());
+        long estimate = manager.getMemoryEstimate();
+        assertEquals((long) n * (SessionManager.APPLICATION_SESSION_SIZE + SessionManager.SESSION_SIZE
+                + SessionManager.ATTRIBUTE_SIZE), estimate);
+
+        // registrations expiring and being replaced leave the footprint steady
+        int churn = n / 10;
+        for (int round = 1; round <= 3; round++) {
+            register(n * round, churn, 20);
+            long end = System.currentTimeMillis() + 5000;
+            while (manager.getExpired() < (long) churn * round && System.currentTimeMillis() < end)
+                Thread.sleep(10);
+            assertEquals((long) churn * round, manager.getExpired());
+            assertEquals(n, manager.getApplicationSessions());
+            assertEquals(n, manager.getSipSessions());
+            assertEquals(n, manager.getTimerWheel().getSize());
+            assertEquals(estimate, manager.getMemoryEstimate());
+        }
+
+        for (int i = 0; i < n; i++)
+            manager.getApplicationSession("reg" + i).invalidate();
+        assertEquals(0, manager.getApplicationSessions());
+        assertEquals(0, manager.getSipSessions());
+        assertEquals(0, manager.getMemoryEstimate());
+        assertEquals(0, manager.getTimerWheel().getSize());
+    }
+
+    /**
+     * Registers <code>count</code> Call-IDs from <code>first</code>, expiring after <code>expires</code> ms if
+     * positive.
+     */
+    private void register(int first, int count, long expires) throws IOException {
+        SipHandler registrar = new SipHandler() {
+            public void handle(SipMessage message) throws IOException {
+            }
+        };
+        for (int i = first; i < first + count; i++) {
+            SipRequest register = newRequest("REGISTER", "reg" + i, "a", null);
+            manager.handle(register, registrar);
+            ApplicationSession appSession = (ApplicationSession) register.getApplicationSession();
+            appSession.setAttribute("contact", "sip:" + i + "@example.com");
+            if (expires > 0)
+                appSession.setExpiresMillis(expires);
+        }
+    }
+
+    private static SipRequest newRequest(String method, String callId, String fromTag, String toTag) {
+        SipRequest request = new SipRequest(method, "sip:bob@example.com");
+        request.addHeader("From", "<sip:alice@example.com>;tag=" + fromTag);
+        request.addHeader("To", "<sip:bob@example.com>" + (toTag == null ? "" : ";tag=" + toTag));
+        request.addHeader("Call-ID", callId);
+        request.addHeader("CSeq", "1 " + method);
+        return request;
+    }
+}
@@ -0,0 +1,390 @@
+package org.cipango.server.transaction;
+
+import org.cipango.server.SipHandler;
+import org.cipango.server.SipMessage;
+import org.cipango.server.SipRequest;
+import org.cipango.server.SipResponse;
+import org.cipango.server.SipServer;
+import org.cipango.server.TestConnection;
+import org.cipango.server.Transport;
+import org.cipango.server.session.SessionManager;
+import org.cipango.util.TimerWheel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TransactionManagerTest {
+
+    private SipServer server = new SipServer();
+    private TransactionManager manager;
+    private BlockingQueue<SipMessage> received = new LinkedBlockingQueue<>();
+    private TestConnection connection = new TestConnection(Transport.UDP);
+
+    @Before
+    public void setUp() throws Exception {
+        server.setDispatcher(null);
+        manager = server.getTransactionManager();
+        manager.setTimerWheel(new TimerWheel(5, TimeUnit.MILLISECONDS, 64));
+        manager.setT1(20);
+        manager.setT2(80);
+        manager.setT4(100);
+        server.setHandler(new SipHandler() {
+            public void handle(SipMessage message) throws IOException {
+                received.add(message);
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void testServerNonInvite() throws Exception {
+        server.handle(newRequest("OPTIONS", "z9hG4bK1"));
+        SipRequest request = (SipRequest) received.poll(1, TimeUnit.SECONDS);
+        assertNotNull(request.getTransaction());
+        assertEquals(Transaction.State.TRYING, request.getTransaction().getState());
+
+        server.handle(newRequest("OPTIONS", "z9hG4bK1"));
+        assertEquals(1, manager.getAbsorbed());
+        assertTrue(connection.sent.isEmpty());
+
+        request.createResponse(200).send();
+        assertEquals(Transaction.State.COMPLETED, request.getTransaction().getState());
+        server.handle(newRequest("OPTIONS", "z9hG4bK1"));
+        assertEquals(2, connection.sent.size());
+        assertEquals(connection.sent.get(0), connection.sent.get(1));
+        assertNull(received.poll());
+
+        // Timer J
+        assertTrue(awaitTerminated(request.getTransaction()));
+        assertEquals(0, manager.getServerTransactions());
+    }
+
+    @Test
+    public void testServerInvite() throws Exception {
+        server.handle(newRequest("INVITE", "z9hG4bK2"));
+        SipRequest request = (SipRequest) received.poll(1, TimeUnit.SECONDS);
+        assertNull(SessionManager.getTag(request.createResponse(100).getHeader("To")));
+        String tag = SessionManager.getTag(request.createResponse(180).getHeader("To"));
+        assertNotNull(tag);
+        request.createResponse(486).send();
+        assertTrue(connection.sent.get(0).contains("To: <sip:bob@127.0.0.1>;tag=" + tag + "\r\n"));
+
+        // Timer G retransmits the response until the ACK
+        Thread.sleep(100);
+        assertTrue(connection.sent.size() >= 3);
+        assertTrue(connection.sent.get(0).startsWith("SIP/2.0 486"));
+        assertEquals(connection.sent.get(0), connection.sent.get(connection.sent.size() - 1));
+
+        server.handle(newRequest("ACK", "z9hG4bK2"));
+        assertEquals(Transaction.State.CONFIRMED, request.getTransaction().getState());
+        assertNull(received.poll());
+        int sent = connection.sent.size();
+        Thread.sleep(100);
+        assertEquals(sent, connection.sent.size());
+
+        // Timer I
+        assertTrue(awaitTerminated(request.getTransaction()));
+
+        // the ACK of a 2xx is for the application
+        server.handle(newRequest("ACK", "z9hG4bK3"));
+        assertTrue(received.poll().isRequest());
+    }
+
+    @Test
+    public void testTrying() throws Exception {
+        server.handle(newRequest("INVITE", "z9hG4bK8"));
+        SipRequest request = (SipRequest) received.poll(1, TimeUnit.SECONDS);
+        assertNotNull(request);
+        assertTrue(connection.sent.isEmpty());
+
+        // answered with a 100 when the application is slow, which then answers retransmissions
+        long end = System.currentTimeMillis() + 5000;
+        while (connection.sent.isEmpty() && System.currentTimeMillis() < end)
+            Thread.sleep(5);
+        assertEquals(1, connection.sent.size());
+        assertTrue(connection.sent.get(0).startsWith("SIP/2.0 100 Trying"));
+        assertTrue(connection.sent.get(0).contains("To: <sip:bob@127.0.0.1>\r\n"));
+
+        server.handle(newRequest("INVITE", "z9hG4bK8"));
+        assertEquals(2, connection.sent.size());
+        assertEquals(connection.sent.get(0), connection.sent.get(1));
+        assertNull(received.poll());
+
+        request.createResponse(200).send();
+        assertTrue(connection.sent.get(2).startsWith("SIP/2.0 200"));
+    }
+
+    @Test
+    public void testReliable() throws Exception {
+        connection = new TestConnection(Transport.TCP);
+        server.handle(newRequest("MESSAGE", "z9hG4bK4"));
+        SipRequest request = (SipRequest) received.poll(1, TimeUnit.SECONDS);
+        request.createResponse(200).send();
+
+        assertTrue(request.getTransaction().isTerminated());
+        assertEquals(0, manager.getServerTransactions());
+        try {
+            request.createResponse(200).send();
+            fail();
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    @Test
+    public void testReliableGathered() throws Exception {
+        List<Integer> writes = new CopyOnWriteArrayList<>();
+        connection = new TestConnection(Transport.TCP) {
+            @Override
+            public void send(ByteBuffer... buffers) throws IOException {
+                writes.add(buffers.length);
+                super.send(buffers);
+            }
+        };
+        server.handle(newRequest("MESSAGE", "z9hG4bK9"));
+        SipRequest request = (SipRequest) received.poll(1, TimeUnit.SECONDS);
+        SipResponse response = (SipResponse) request.createResponse(200);
+        response.setContent("hello", "text/plain");
+        response.send();
+
+        // written as the header and the body, without joining them
+        assertEquals(1, writes.size());
+        assertEquals(2, (int) writes.get(0));
+        assertTrue(connection.sent.get(0).endsWith("\r\n\r\nhello"));
+
+        manager.sendRequest(newRequest("OPTIONS", null), new Listener());
+        assertEquals(2, writes.size());
+        assertTrue(connection.sent.get(1).startsWith("OPTIONS "));
+    }
+
+    @Test
+    public void testClientInvite() throws Exception {
+        Listener listener = new Listener();
+        SipRequest request = newRequest("INVITE", null);
+        ClientTransaction transaction = manager.sendRequest(request, listener);
+
+        String branch = transaction.getBranch();
+        assertTrue(branch.startsWith(Transaction.BRANCH_MAGIC_COOKIE));
+        assertTrue(connection.sent.get(0).contains("Via: SIP/2.0/UDP 127.0.0.1:5060;branch=" + branch + "\r\n"));
+
+        // Timer A
+        Thread.sleep(80);
+        assertTrue(connection.sent.size() >= 2);
+        assertEquals(connection.sent.get(0), connection.sent.get(1));
+
+        server.handle(newResponse(180, "INVITE", branch));
+        assertEquals(Transaction.State.PROCEEDING, transaction.getState());
+        int sent = connection.sent.size();
+        // neither retransmitted nor timed out by Timer B once proceeding
+        Thread.sleep(64 * manager.getT1() + 200);
+        assertEquals(sent, connection.sent.size());
+        assertEquals(Transaction.State.PROCEEDING, transaction.getState());
+        assertEquals(0, listener.timeouts);
+
+        server.handle(newResponse(486, "INVITE", branch));
+        assertEquals(Transaction.State.COMPLETED, transaction.getState());
+        String ack = connection.sent.get(sent);
+        assertTrue(ack.startsWith("ACK sip:bob@127.0.0.1 SIP/2.0\r\n"));
+        assertTrue(ack.contains("CSeq: 1 ACK\r\n"));
+        assertTrue(ack.contains("To: <sip:bob@127.0.0.1>;tag=b\r\n"));
+
+        server.handle(newResponse(486, "INVITE", branch));
+        assertEquals(ack, connection.sent.get(sent + 1));
+
+        assertEquals(2, listener.responses.size());
+        assertEquals(180, listener.responses.get(0).getStatus());
+        assertEquals(486, listener.responses.get(1).getStatus());
+        assertNull(received.poll());
+    }
+
+    @Test
+    public void testClientTimeout() throws Exception {
+        Listener listener = new Listener();
+        ClientTransaction transaction = manager.sendRequest(newRequest("OPTIONS", null), listener);
+
+        // Timer F fires after 64 * T1, the listener is notified once the transaction is terminated
+        assertTrue(awaitTerminated(transaction));
+        long end = System.currentTimeMillis() + 5000;
+        while (listener.timeouts == 0 && System.currentTimeMillis() < end)
+            Thread.sleep(5);
+        assertEquals(1, listener.timeouts);
+        assertEquals(0, manager.getClientTransactions());
+        assertTrue(manager.getRetransmissions() >= 5);
+
+        // stray response
+        server.handle(newResponse(200, "OPTIONS", transaction.getBranch()));
+        assertFalse(received.poll().isRequest());
+    }
+
+    @Test
+    public void testNoFinalResponse() throws Exception {
+        server.setHandler(null);
+        server.handle(newRequest("OPTIONS", "z9hG4bK5"));
+        assertTrue(connection.sent.get(0).startsWith("SIP/2.0 500"));
+
+        server.setHandler(new SipHandler() {
+            public void handle(SipMessage message) throws IOException {
+                throw new IllegalStateException("test");
+            }
+        });
+        try {
+            server.handle(newRequest("INVITE", "z9hG4bK6"));
+            fail();
+        } catch (IllegalStateException e) {
+        }
+        assertTrue(connection.sent.get(1).startsWith("SIP/2.0 500"));
+        server.handle(newRequest("ACK", "z9hG4bK6"));
+        int sent = connection.sent.size();
+
+        server.setHandler(new SipHandler() {
+            public void handle(SipMessage message) throws IOException {
+                received.add(message);
+            }
+        });
+        server.handle(newRequest("MESSAGE", "z9hG4bK7"));
+        SipRequest request = (SipRequest) received.poll(1, TimeUnit.SECONDS);
+        // terminated after 64 * T1 without a final response
+        assertTrue(awaitTerminated(request.getTransaction()));
+        assertEquals(sent, connection.sent.size());
+        assertTrue(awaitServerTransactions(0));
+    }
+
+    @Test
+    public void testMatching() throws Exception {
+        SipRequest request = newRequest("OPTIONS", null);
+        request.addHeader("Via", "SIP/2.0/UDP 127.0.0.2:5060 ; BRANCH = z9hG4bK8 ;rport");
+        server.handle(request);
+        request = (SipRequest) received.poll(1, TimeUnit.SECONDS);
+        assertEquals("z9hG4bK8", request.getTransaction().getBranch());
+
+        request = newRequest("OPTIONS", null);
+        request.addHeader("Via", "SIP/2.0/UDP 127.0.0.2:5060;branch=z9hG4bK8");
+        server.handle(request);
+        assertEquals(1, manager.getAbsorbed());
+
+        // same branch from another sender is another transaction
+        request = newRequest("OPTIONS", null);
+        request.addHeader("Via", "SIP/2.0/UDP 127.0.0.3:5060;branch=z9hG4bK8");
+        server.handle(request);
+        assertEquals(1, manager.getAbsorbed());
+        assertNotNull(received.poll(1, TimeUnit.SECONDS));
+        assertEquals(2, manager.getServerTransactions());
+    }
+
+    @Test
+    public void testRfc2543() throws Exception {
+        SipRequest request = newRequest("INVITE", null);
+        request.addHeader("Via", "SIP/2.0/UDP 127.0.0.2:5060");
+        server.handle(request);
+        request = (SipRequest) received.poll(1, TimeUnit.SECONDS);
+        assertNotNull(request.getTransaction());
+
+        SipRequest retransmission = newRequest("INVITE", null);
+        retransmission.addHeader("Via", "SIP/2.0/UDP 127.0.0.2:5060");
+        server.handle(retransmission);
+        assertEquals(1, manager.getAbsorbed());
+
+        request.createResponse(486).send();
+        SipRequest ack = newRequest("ACK", null);
+        ack.addHeader("Via", "SIP/2.0/UDP 127.0.0.2:5060");
+        ack.setHeader("To", "<sip:bob@127.0.0.1>;tag=b");
+        server.handle(ack);
+        assertEquals(Transaction.State.CONFIRMED, request.getTransaction().getState());
+
+        // another CSeq is another transaction
+        SipRequest other = newRequest("OPTIONS", null);
+        other.addHeader("Via", "SIP/2.0/UDP 127.0.0.2:5060");
+        other.setHeader("CSeq", "2 OPTIONS");
+        server.handle(other);
+        assertNotNull(received.poll(1, TimeUnit.SECONDS));
+        assertNull(received.poll());
+        assertEquals(2, manager.getServerTransactions());
+    }
+
+    @Test
+    public void testTimerThreads() throws Exception {
+        List<String> threads = new CopyOnWriteArrayList<>();
+        connection = new TestConnection(Transport.UDP) {
+            @Override
+            public void send(ByteBuffer buffer) throws IOException {
+                threads.add(Thread.currentThread().getName());
+                super.send(buffer);
+            }
+        };
+        manager.sendRequest(newRequest("OPTIONS", null), new Listener());
+
+        // Timer E retransmits on the pool of the manager, not on the wheel thread
+        long end = System.currentTimeMillis() + 5000;
+        while (threads.size() < 3 && System.currentTimeMillis() < end)
+            Thread.sleep(5);
+        assertTrue(threads.size() >= 3);
+        assertEquals(Thread.currentThread().getName(), threads.get(0));
+        for (String thread : threads.subList(1, threads.size()))
+            assertTrue(thread, thread.startsWith("sip-timer"));
+    }
+
+    private boolean awaitServerTransactions(int count) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (manager.getServerTransactions() != count && System.currentTimeMillis() < end)
+            Thread.sleep(5);
+        return manager.getServerTransactions() == count;
+    }
+
+    private boolean awaitTerminated(Transaction transaction) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (!transaction.isTerminated() && System.currentTimeMillis() < end)
+            Thread.sleep(5);
+        return transaction.isTerminated();
+    }
+
+    private SipRequest newRequest(String method, String branch) {
+        SipRequest request = new SipRequest(method, "sip:bob@127.0.0.1");
+        if (branch != null)
+            request.addHeader("Via", "SIP/2.0/UDP 127.0.0.2;branch=" + branch);
+        request.addHeader("From", "<sip:alice@127.0.0.2>;tag=a");
+        request.addHeader("To", "<sip:bob@127.0.0.1>");
+        request.addHeader("Call-ID", "1");
+        request.addHeader("CSeq", "1 " + ("ACK".equals(method) ? "INVITE" : method));
+        request.setConnection(connection);
+        return request;
+    }
+
+    private SipResponse newResponse(int status, String method, String branch) {
+        SipResponse response = new SipResponse(status, null);
+        response.addHeader("Via", "SIP/2.0/UDP 127.0.0.1:5060;branch=" + branch);
+        response.addHeader("From", "<sip:alice@127.0.0.2>;tag=a");
+        response.addHeader("To", "<sip:bob@127.0.0.1>;tag=b");
+        response.addHeader("Call-ID", "1");
+        response.addHeader("CSeq", "1 " + method);
+        response.setConnection(connection);
+        return response;
+    }
+
+    static class Listener implements ClientTransactionListener {
+
+        List<SipResponse> responses = new CopyOnWriteArrayList<>();
+        volatile int timeouts;
+
+        public void handleResponse(ClientTransaction transaction, SipResponse response) {
+            responses.add(response);
+        }
+
+        public void transactionTimeout(ClientTransaction transaction) {
+            timeouts++;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package org.cipango.sip;
+
+import org.junit.Test;
+
+import javax.servlet.sip.SipURI;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class SipURICacheTest {
+
+    @Test
+    public void testCopyOnWrite() throws Exception {
+        SipURICache cache = new SipURICache(16);
+        String s = "sip:proxy.example.com;lr;transport=udp";
+
+        SipURI uri1 = cache.parse(s);
+        SipURI uri2 = cache.parse(s);
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+        assertSame(uri1.getHost(), uri2.getHost());
+        assertTrue(((SipURICache.SharedSipURI) uri1).isShared());
+
+        uri1.setTransportParam("tcp");
+        assertFalse(((SipURICache.SharedSipURI) uri1).isShared());
+        assertEquals("sip:proxy.example.com;lr;transport=tcp", uri1.toString());
+        assertEquals(s, uri2.toString());
+        assertEquals("udp", cache.parse(s).getTransportParam());
+        assertEquals(2, cache.getHits());
+    }
+
+    @Test
+    public void testEquals() throws Exception {
+        SipURICache cache = new SipURICache(16);
+        String s = "sip:alice@example.com;transport=tcp";
+
+        SipURI view1 = cache.parse(s);
+        SipURI view2 = cache.parse(s);
+        SipURI parsed = SipURIImpl.parseURI(s);
+        assertEquals(view1, view2);
+        assertEquals(view1, parsed);
+        assertEquals(parsed, view1);
+        assertEquals(parsed.hashCode(), view1.hashCode());
+
+        // copied on write, with the same value
+        view1.setTransportParam("tcp");
+        assertFalse(((SipURICache.SharedSipURI) view1).isShared());
+        assertEquals(view1, view2);
+        assertEquals(view2, view1);
+        assertEquals(view2.hashCode(), view1.hashCode());
+
+        view1.setTransportParam("udp");
+        assertNotEquals(view1, view2);
+        assertNotEquals(parsed, view1);
+
+        // the hash of a view does not change when it is copied on write
+        Set<SipURI> set = new HashSet<>();
+        SipURI view3 = cache.parse("sip:h.com;ftag=x;lr");
+        set.add(view3);
+        view3.setLrParam(true);
+        assertFalse(((SipURICache.SharedSipURI) view3).isShared());
+        assertTrue(set.contains(view3));
+        assertTrue(set.contains(SipURIImpl.parseURI("sip:H.com;lr;ftag=x")));
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        SipURICache cache = new SipURICache(2);
+        cache.parse("sip:a");
+        cache.parse("sip:b");
+        cache.parse("sip:a");
+        cache.parse("sip:c");
+
+        assertEquals(2, cache.getSize());
+        assertEquals(1, cache.getEvictions());
+
+        cache.parse("sip:a");
+        assertEquals(2, cache.getHits());
+        cache.parse("sip:b");
+        assertEquals(4, cache.getMisses());
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        SipURICache cache = new SipURICache(0);
+        assertTrue(cache.parse("sip:a") instanceof SipURIImpl);
+        assertEquals(0, cache.getSize());
+    }
+}
@@ -1,12 +1,14 @@
 package org.cipango.sip;
 
+import org.eclipse.jetty.util.BufferUtil;
 import org.junit.Test;
 
 import javax.servlet.sip.SipURI;
 import java.text.ParseException;
 
-import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.fail;
+import java.util.Iterator;
+
+import static org.junit.Assert.*;
 
 public class SipURIImplTest {
 
@@ -25,7 +27,12 @@ public class SipURIImplTest {
             "sip:alice@atlanta:",
             "sip:alice@atlanta:com",
             "sip:atlanta:",
-            "sip:atlanta:com"
+            "sip:atlanta:com",
+            "sip:atlanta.com:65536",
+            "sip:atlanta.com;",
+            "sip:atlanta.com;a=%zz",
+            "sip:atlanta.com?subject",
+            "sip:atlanta.com/path"
     };
 
     Object[][] uris = {
@@ -53,6 +60,162 @@ public class SipURIImplTest {
         }
     }
 
+    @Test
+    public void testLazy() throws Exception {
+        String s = "sips:alice@atlanta.com:5061;transport=tcp;LR;maddr=239.255.255.1?subject=project%20x&priority=urgent";
+        SipURI uri = parseURI(s);
+
+        assertTrue(uri.isSecure());
+        assertEquals(5061, uri.getPort());
+        assertEquals("atlanta.com", uri.getHost());
+        assertEquals("tcp", uri.getTransportParam());
+        assertEquals("tcp", uri.getParameter("Transport"));
+        assertTrue(uri.getLrParam());
+        assertEquals("239.255.255.1", uri.getMAddrParam());
+        assertNull(uri.getParameter("ttl"));
+        assertEquals("project x", uri.getHeader("subject"));
+        assertEquals("urgent", uri.getHeader("priority"));
+        assertNull(uri.getHeader("to"));
+
+        Iterator<String> it = uri.getParameterNames();
+        assertEquals("transport", it.next());
+        assertEquals("LR", it.next());
+        assertEquals("maddr", it.next());
+        assertFalse(it.hasNext());
+        it = uri.getHeaderNames();
+        assertEquals("subject", it.next());
+        assertEquals("priority", it.next());
+        assertFalse(it.hasNext());
+
+        assertSame(s, uri.toString());
+    }
+
+    @Test
+    public void testBuffer() throws Exception {
+        String s = "sip:bob:secret@biloxi.com:5070;transport=tcp?subject=x";
+        SipURI uri = SipURIImpl.parseURI(BufferUtil.toBuffer("INVITE " + s + " SIP/2.0"), 7, 7 + s.length());
+
+        assertEquals("bob", uri.getUser());
+        assertEquals("biloxi.com", uri.getHost());
+        assertEquals(5070, uri.getPort());
+        assertEquals("tcp", uri.getTransportParam());
+        assertEquals("x", uri.getHeader("subject"));
+        assertEquals(s, uri.toString());
+
+        try {
+            SipURIImpl.parseURI("sip:b\u00f6b@biloxi.com");
+            fail();
+        } catch (ParseException e) {
+            assertEquals(5, e.getErrorOffset());
+        }
+    }
+
+    @Test
+    public void testModified() throws Exception {
+        SipURI uri = parseURI("sip:%61lice@atlanta.com;lr?subject=x");
+        SipURI clone = (SipURI) uri.clone();
+
+        uri.setUser("bob smith");
+        uri.setPort(5070);
+        assertEquals("sip:bob%20smith@atlanta.com:5070;lr?subject=x", uri.toString());
+
+        uri.setHost("biloxi.com");
+        uri.setSecure(true);
+        uri.setUser(null);
+        assertEquals("sips:biloxi.com:5070;lr?subject=x", uri.toString());
+
+        assertEquals("sip:%61lice@atlanta.com;lr?subject=x", clone.toString());
+        assertEquals("alice", clone.getUser());
+    }
+
+    @Test
+    public void testParameters() throws Exception {
+        SipURI uri = parseURI("sip:proxy.example.com;lr;transport=udp;ftag=abc;ttl=5?subject=x");
+        uri.setParameter("ftag", "def");
+        uri.setParameter("maddr", "239.255.255.1");
+        uri.removeParameter("transport");
+        uri.setParameter("foo", "bar baz");
+        uri.setLrParam(false);
+
+        assertNull(uri.getTransportParam());
+        assertEquals("def", uri.getParameter("FTAG"));
+        assertEquals(5, uri.getTTLParam());
+        assertFalse(uri.getLrParam());
+
+        // source order, added parameters last
+        Iterator<String> it = uri.getParameterNames();
+        assertEquals("ftag", it.next());
+        assertEquals("ttl", it.next());
+        assertEquals("maddr", it.next());
+        assertEquals("foo", it.next());
+        assertFalse(it.hasNext());
+        assertEquals("sip:proxy.example.com;ftag=def;ttl=5;maddr=239.255.255.1;foo=bar%20baz?subject=x", uri.toString());
+
+        uri.setHeader("Subject", "y");
+        uri.setHeader("priority", "urgent");
+        uri.setLrParam(true);
+        assertEquals("y", uri.getHeader("subject"));
+        assertEquals("sip:proxy.example.com;ftag=def;ttl=5;maddr=239.255.255.1;foo=bar%20baz;lr?subject=y&priority=urgent", uri.toString());
+
+        uri.removeHeader("subject");
+        uri.removeHeader("priority");
+        assertFalse(uri.getHeaderNames().hasNext());
+        assertEquals("sip:proxy.example.com;ftag=def;ttl=5;maddr=239.255.255.1;foo=bar%20baz;lr", uri.toString());
+
+        // a modified Record-Route keeps its parameters in place
+        uri = parseURI("sip:h.com;ftag=x;LR;Transport=udp");
+        uri.setLrParam(true);
+        uri.setTransportParam("tcp");
+        assertEquals("sip:h.com;ftag=x;LR;Transport=tcp", uri.toString());
+        it = uri.getParameterNames();
+        assertEquals("ftag", it.next());
+        assertEquals("LR", it.next());
+        assertEquals("Transport", it.next());
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void testEquals() throws Exception {
+        // RFC 3261 19.1.4
+        assertURIEquals("sip:alice@Atlanta.com;transport=UDP", "SIP:alice@atlanta.com;Transport=udp");
+        assertURIEquals("sip:%61lice@atlanta.com;transport=TCP", "sip:alice@AtLanTa.CoM;Transport=tcp");
+        assertURIEquals("sip:carol@chicago.com", "sip:carol@chicago.com;newparam=5");
+        assertURIEquals("sip:carol@chicago.com;security=on", "sip:carol@chicago.com;newparam=5");
+        assertURIEquals("sip:biloxi.com;transport=tcp;method=REGISTER?to=sip:bob%40biloxi.com",
+                "sip:biloxi.com;method=REGISTER;transport=tcp?to=sip:bob%40biloxi.com");
+        assertURIEquals("sip:alice@atlanta.com?subject=project%20x&priority=urgent",
+                "sip:alice@atlanta.com?priority=urgent&subject=project%20x");
+        assertURIEquals("sip:h.com;ftag=x;lr", "sip:h.com;lr;ftag=x");
+
+        assertURINotEquals("SIP:ALICE@AtLanTa.CoM;Transport=udp", "sip:alice@AtLanTa.CoM;Transport=UDP");
+        assertURINotEquals("sip:bob@biloxi.com", "sip:bob@biloxi.com:5060");
+        assertURINotEquals("sip:bob@biloxi.com", "sip:bob@biloxi.com;transport=udp");
+        assertURINotEquals("sip:bob@biloxi.com", "sips:bob@biloxi.com");
+        assertURINotEquals("sip:carol@chicago.com;security=on", "sip:carol@chicago.com;security=off");
+        assertURINotEquals("sip:carol@chicago.com", "sip:carol@chicago.com?Subject=next%20meeting");
+        assertURINotEquals("sip:bob@phone21.boxesbybob.com", "sip:bob@192.0.2.4");
+
+        // still equal after a modification that does not change the value
+        SipURI uri = parseURI("sip:h.com;ftag=x;lr");
+        int hash = uri.hashCode();
+        uri.setLrParam(true);
+        assertEquals(parseURI("sip:h.com;ftag=x;lr"), uri);
+        assertEquals(hash, uri.hashCode());
+    }
+
+    private void assertURIEquals(String s1, String s2) throws Exception {
+        SipURI uri1 = parseURI(s1);
+        SipURI uri2 = parseURI(s2);
+        assertEquals(uri1, uri2);
+        assertEquals(uri2, uri1);
+        assertEquals(uri1.hashCode(), uri2.hashCode());
+    }
+
+    private void assertURINotEquals(String s1, String s2) throws Exception {
+        assertNotEquals(parseURI(s1), parseURI(s2));
+        assertNotEquals(parseURI(s2), parseURI(s1));
+    }
+
     @Test
     public void testInvalidURIs() throws Exception {
 
@@ -0,0 +1,73 @@
+package org.cipango.util;
+
+import org.cipango.sip.SipRules;
+import org.eclipse.jetty.util.BufferUtil;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+
+import static org.junit.Assert.*;
+
+public class BufferScannerTest {
+
+    @Test
+    public void testScan() throws Exception {
+        ByteBuffer buffer = BufferUtil.toBuffer("xxCSeq: 1826  REGISTER;x");
+        BufferScanner scanner = new BufferScanner(buffer, 2, buffer.limit() - 2);
+
+        int end = scanner.token();
+        assertEquals("CSeq", scanner.toString(2, end));
+        scanner.match(':').skipSpace();
+        assertEquals(1826, scanner.readInt());
+
+        int start = scanner.matchSpace().getPosition();
+        end = scanner.token();
+        assertEquals("REGISTER", scanner.toString(start, end));
+        assertEquals("REGISTER", BufferUtil.toString(scanner.slice(start, end)));
+        assertTrue(scanner.eof());
+        assertEquals(0, scanner.peek());
+        assertEquals(0, buffer.position());
+    }
+
+    @Test
+    public void testRead() throws Exception {
+        BufferScanner scanner = new BufferScanner("alice@atlanta.com:5060".getBytes());
+        assertEquals(5, scanner.read(SipRules.USER));
+        assertEquals(17, scanner.indexOf(':'));
+        assertEquals(17, scanner.readUntil(':'));
+        assertEquals(5060, scanner.consume(1).readInt(5));
+
+        scanner = new BufferScanner("123456".getBytes());
+        assertEquals(123, scanner.readInt(3));
+        assertEquals(3, scanner.getPosition());
+    }
+
+    @Test
+    public void testChars() throws Exception {
+        BufferScanner scanner = new BufferScanner("b\u00f6b@biloxi.com:5060");
+        assertEquals(1, scanner.read(SipRules.USER));
+        assertEquals('\u00f6', scanner.peek());
+        assertEquals(14, scanner.readUntil(':'));
+        assertEquals(5060, scanner.consume(1).readInt(5));
+        assertEquals("biloxi.com", scanner.toString(4, 14));
+    }
+
+    @Test
+    public void testErrors() {
+        BufferScanner scanner = new BufferScanner(BufferUtil.toBuffer("abc  x"), 2, 6);
+        scanner.setOrigin(0);
+        try {
+            scanner.consume(1).match('y');
+            fail();
+        } catch (ParseException e) {
+            assertEquals(3, e.getErrorOffset());
+        }
+        try {
+            scanner.skipSpace().readInt();
+            fail();
+        } catch (ParseException e) {
+            assertEquals(5, e.getErrorOffset());
+        }
+    }
+}
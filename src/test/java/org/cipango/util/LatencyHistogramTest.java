@@ -0,0 +1,65 @@
+package org.cipango.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBuckets() {
+        long[] values = { 0, 1, 15, 16, 17, 31, 32, 33, 1000, 123456789, 1L << 40, (1L << 42) - 1 };
+        for (long value : values) {
+            int index = LatencyHistogram.index(value);
+            assertTrue(value + " in bucket " + index, value <= LatencyHistogram.highestValue(index));
+            if (index > 0)
+                assertTrue(value + " in bucket " + index, value > LatencyHistogram.highestValue(index - 1));
+            // precision is 1/16 of the value
+            assertTrue(LatencyHistogram.highestValue(index) - value <= value / LatencyHistogram.SUB_BUCKETS);
+        }
+        for (int i = 1; i < LatencyHistogram.index(1L << 41); i++)
+            assertEquals(i, LatencyHistogram.index(LatencyHistogram.highestValue(i)));
+        assertEquals(LatencyHistogram.index(1L << 42), LatencyHistogram.index(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        assertEquals(0, histogram.getP99());
+
+        for (int i = 1; i <= 1000; i++)
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500.5, histogram.getMean(), 0.01);
+        assertEquals(500, histogram.getP50(), 500 / LatencyHistogram.SUB_BUCKETS);
+        assertEquals(900, histogram.getP90(), 900 / LatencyHistogram.SUB_BUCKETS);
+        assertEquals(990, histogram.getP99(), 990 / LatencyHistogram.SUB_BUCKETS);
+        assertEquals(1000, histogram.getP999(), 1000 / LatencyHistogram.SUB_BUCKETS);
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+    }
+
+    @Test
+    public void testConcurrentRecord() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram("test", 4);
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 100000; j++)
+                    histogram.record(j);
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(800000, histogram.getCount());
+        assertEquals(99999, histogram.getValueAtPercentile(100));
+    }
+}
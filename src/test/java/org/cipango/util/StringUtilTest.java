@@ -1,8 +1,9 @@
 package org.cipango.util;
 
+import org.cipango.sip.SipRules;
 import org.junit.Test;
 
-import java.util.BitSet;
+import java.text.ParseException;
 
 import static org.junit.Assert.*;
 
@@ -18,15 +19,50 @@ public class StringUtilTest {
     @Test
     public void testEncode() {
 
-        BitSet bs = new BitSet();
-        bs.set('a', 'z');
-        assertEquals("francois", StringUtil.encode("francois", bs));
-        assertEquals("fran%c3%a7ois%20%49", StringUtil.encode("françois I", bs));
+        assertEquals("francois", StringUtil.encode("francois", SipRules.HOSTNAME));
+        assertEquals("fran%c3%a7ois%20I", StringUtil.encode("françois I", SipRules.HOSTNAME));
+        assertEquals("a%3bb", StringUtil.encode("a;b", SipRules.PARAM));
+        assertEquals("%f0%9f%98%80", StringUtil.encode("\ud83d\ude00", SipRules.PARAM));
+
+        String s = "alice";
+        assertFalse(StringUtil.needsEncoding(s, SipRules.USER));
+        assertSame(s, StringUtil.encode(s, SipRules.USER));
+
+        StringBuilder sb = new StringBuilder("sip:");
+        StringUtil.encode("alice smith", SipRules.USER, sb);
+        assertEquals("sip:alice%20smith", sb.toString());
     }
 
     @Test
     public void testDecode() throws Exception {
         assertEquals("françois", StringUtil.decode("fran%c3%a7ois"));
         assertEquals("françois", StringUtil.decode("françois"));
+        assertEquals("\ud83d\ude00 x", StringUtil.decode("%F0%9F%98%80%20x"));
+        assertEquals("bob", StringUtil.decode("sip:bob@x", 4, 7));
+
+        String s = "alice";
+        assertSame(s, StringUtil.decode(s));
+
+        StringBuilder sb = new StringBuilder();
+        assertEquals(-1, StringUtil.decode("a%20b", 0, 5, sb));
+        assertEquals("a b", sb.toString());
+        assertEquals(1, StringUtil.decode("a%c3b", 0, 5, new StringBuilder()));
+        assertEquals(1, StringUtil.decode("a%c3", 0, 4, new StringBuilder()));
+        assertEquals(0, StringUtil.decode("%c0%80", 0, 6, new StringBuilder()));
+        assertEquals(2, StringUtil.decode("ab%2", 0, 4, new StringBuilder()));
+        assertEquals(0, StringUtil.decode("%zz", 0, 3, new StringBuilder()));
+    }
+
+    @Test
+    public void testDecodeInvalid() {
+        String[] invalid = { "%", "%4", "%g1", "%ff", "%c3%28", "%e2%82" };
+        for (String s : invalid) {
+            try {
+                StringUtil.decode(s);
+                fail("Expected invalid: " + s);
+            } catch (ParseException e) {
+                assertEquals(0, e.getErrorOffset());
+            }
+        }
     }
 }
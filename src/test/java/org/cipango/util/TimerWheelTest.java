@@ -0,0 +1,63 @@
+package org.cipango.util;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TimerWheelTest {
+
+    private TimerWheel wheel = new TimerWheel(5, TimeUnit.MILLISECONDS, 8);
+
+    @After
+    public void tearDown() throws Exception {
+        wheel.stop();
+    }
+
+    @Test
+    public void testExpire() throws Exception {
+        assertEquals(8, wheel.getWheelSize());
+        final CountDownLatch latch = new CountDownLatch(3);
+        final long start = System.nanoTime();
+        final long[] elapsed = new long[1];
+
+        wheel.schedule(latch::countDown, 0, TimeUnit.MILLISECONDS);
+        wheel.schedule(latch::countDown, 10, TimeUnit.MILLISECONDS);
+        // several rounds of the wheel
+        wheel.schedule(() -> {
+            elapsed[0] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            latch.countDown();
+        }, 150, TimeUnit.MILLISECONDS);
+        assertEquals(3, wheel.getSize());
+
+        wheel.start();
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(elapsed[0] >= 150);
+        assertEquals(0, wheel.getSize());
+        assertEquals(3, wheel.getExpired());
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        final AtomicInteger fired = new AtomicInteger();
+        wheel.start();
+
+        TimerWheel.Timeout timeout = wheel.schedule(fired::incrementAndGet, 20, TimeUnit.MILLISECONDS);
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        assertTrue(timeout.isCancelled());
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        TimerWheel.Timeout other = wheel.schedule(latch::countDown, 40, TimeUnit.MILLISECONDS);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+        assertTrue(other.isExpired());
+        assertFalse(other.cancel());
+        assertEquals(0, fired.get());
+        assertEquals(0, wheel.getSize());
+    }
+}